@@ -30,6 +30,9 @@ typedef struct JCoreAudioStruct {
   jclass jclazzJCoreAudio;
   jmethodID fireOnCoreAudioInputMid;
   jmethodID fireOnCoreAudioOutputMid;
+  jmethodID fireOnStreamInputMid;
+  jmethodID fireOnStreamOutputMid;
+  jboolean isStream; // the session of an aggregated device
 
   AudioUnit auhalInput;
   AudioUnit auhalOutput;
@@ -64,7 +67,12 @@ OSStatus inputRenderCallback(void *inRefCon, AudioUnitRenderActionFlags *ioActio
         inNumberFrames, jca->inputBufferList);
 
     // make audio callback to Java with the new input
-    (*env)->CallStaticVoidMethod(env, jca->jclazzJCoreAudio, jca->fireOnCoreAudioInputMid, inTimeStamp->mSampleTime);
+    if (jca->isStream) {
+      (*env)->CallStaticVoidMethod(env, jca->jclazzJCoreAudio, jca->fireOnStreamInputMid, (jlong) jca,
+          inTimeStamp->mSampleTime);
+    } else {
+      (*env)->CallStaticVoidMethod(env, jca->jclazzJCoreAudio, jca->fireOnCoreAudioInputMid, inTimeStamp->mSampleTime);
+    }
   }
   
   return noErr; // everything is gonna be ok
@@ -80,7 +88,12 @@ OSStatus outputRenderCallback(void *inRefCon, AudioUnitRenderActionFlags *ioActi
   if (res == JNI_OK) {
     // make audio callback to Java and fill the byte buffers
     JCoreAudioStruct *jca = (JCoreAudioStruct *) inRefCon; 
-    (*env)->CallStaticVoidMethod(env, jca->jclazzJCoreAudio, jca->fireOnCoreAudioOutputMid, inTimeStamp->mSampleTime);
+    if (jca->isStream) {
+      (*env)->CallStaticVoidMethod(env, jca->jclazzJCoreAudio, jca->fireOnStreamOutputMid, (jlong) jca,
+          inTimeStamp->mSampleTime);
+    } else {
+      (*env)->CallStaticVoidMethod(env, jca->jclazzJCoreAudio, jca->fireOnCoreAudioOutputMid, inTimeStamp->mSampleTime);
+    }
     
     // interleave the channels to the backing buffers
     // TODO(mhroth): vectorise this like a real man, ok?
@@ -146,6 +159,68 @@ JNIEXPORT void JNICALL Java_ch_section6_jcoreaudio_JCoreAudio_fillAudioDeviceLis
   }
 }
 
+jmethodID JCoreAudio_onDevicesChangedMid = nil;
+jmethodID JCoreAudio_onDeviceChangedMid = nil;
+
+// called by Core Audio on its notification thread when a property of the system or of a device
+// changes. The CoreAudioBackend then invalidates its cached devices.
+OSStatus propertyListenerProc(AudioObjectID inObjectID, UInt32 inNumberAddresses,
+    const AudioObjectPropertyAddress inAddresses[], void *inClientData) {
+
+  JNIEnv *env = nil;
+  jint res = (*JCoreAudio_globalJvm)->AttachCurrentThreadAsDaemon(JCoreAudio_globalJvm, (void **) &env, NULL);
+  if (res == JNI_OK) {
+    jobject jbackend = (jobject) inClientData;
+    if (inObjectID == kAudioObjectSystemObject) {
+      (*env)->CallVoidMethod(env, jbackend, JCoreAudio_onDevicesChangedMid);
+    } else {
+      (*env)->CallVoidMethod(env, jbackend, JCoreAudio_onDeviceChangedMid, (jint) inObjectID);
+    }
+  }
+
+  return noErr;
+}
+
+JNIEXPORT void JNICALL Java_ch_section6_jcoreaudio_JCoreAudio_addPropertyListener
+    (JNIEnv *env, jclass jclazz, jobject jbackend, jint deviceId) {
+
+  if (JCoreAudio_onDevicesChangedMid == nil) {
+    jclass jclazzBackend = (*env)->FindClass(env, "ch/section6/jcoreaudio/CoreAudioBackend");
+    JCoreAudio_onDevicesChangedMid = (*env)->GetMethodID(env, jclazzBackend, "onDevicesChanged", "()V");
+    JCoreAudio_onDeviceChangedMid = (*env)->GetMethodID(env, jclazzBackend, "onDeviceChanged", "(I)V");
+  }
+
+  // the backend listens for as long as the process runs, so the reference is never released
+  jobject jglobalBackend = (*env)->NewGlobalRef(env, jbackend);
+
+  if (deviceId == 0) {
+    AudioObjectPropertyAddress aopa = {
+      kAudioHardwarePropertyDevices,
+      kAudioObjectPropertyScopeGlobal,
+      kAudioObjectPropertyElementMaster
+    };
+    AudioObjectAddPropertyListener(kAudioObjectSystemObject, &aopa, propertyListenerProc, jglobalBackend);
+  } else {
+    // the properties which are cached by AudioDevice and AudioLet
+    AudioObjectPropertySelector selectors[] = {
+      kAudioDevicePropertyNominalSampleRate,
+      kAudioDevicePropertyAvailableNominalSampleRates,
+      kAudioDevicePropertyBufferFrameSize,
+      kAudioDevicePropertyBufferFrameSizeRange,
+      kAudioDevicePropertyStreamConfiguration,
+      kAudioDevicePropertyStreamFormats
+    };
+    for (int i = 0; i < sizeof(selectors)/sizeof(AudioObjectPropertySelector); i++) {
+      AudioObjectPropertyAddress aopa = {
+        selectors[i],
+        kAudioObjectPropertyScopeWildcard,
+        kAudioObjectPropertyElementWildcard
+      };
+      AudioObjectAddPropertyListener(deviceId, &aopa, propertyListenerProc, jglobalBackend);
+    }
+  }
+}
+
 JNIEXPORT void JNICALL Java_ch_section6_jcoreaudio_AudioDevice_queryLetSet
     (JNIEnv *env, jclass jclazz, jobject jobj, jint deviceId, jboolean isInput, jobject jset) {
   
@@ -284,10 +359,11 @@ JNIEXPORT jfloat JNICALL Java_ch_section6_jcoreaudio_AudioDevice_getCurrentSampl
   return (jfloat) sampleRate;
 }
 
-JNIEXPORT jlong JNICALL Java_ch_section6_jcoreaudio_JCoreAudio_initialize
-  (JNIEnv *env, jclass jclazz, jarray jinputArray, jint jnumChannelsInput, jint jinputDeviceId,
-      jarray joutputArray, jint jnumChannelsOutput, jint joutputDeviceId,
-      jint jblockSize, jfloat jsampleRate) {
+// configures the AUHALs of a session. The session of an aggregated device calls back to
+// fireOnStreamInput/Output with its own pointer.
+static jlong initializeSession(JNIEnv *env, jclass jclazz, jarray jinputArray, jint jnumChannelsInput,
+    jint jinputDeviceId, jarray joutputArray, jint jnumChannelsOutput, jint joutputDeviceId,
+    jint jblockSize, jfloat jsampleRate, jboolean isStream) {
     
   JCoreAudioStruct * jcaStruct = (JCoreAudioStruct *) malloc(sizeof(JCoreAudioStruct));
    
@@ -299,6 +375,11 @@ JNIEXPORT jlong JNICALL Java_ch_section6_jcoreaudio_JCoreAudio_initialize
       "fireOnCoreAudioInput", "(D)V");
   jcaStruct->fireOnCoreAudioOutputMid = (*env)->GetStaticMethodID(env, jcaStruct->jclazzJCoreAudio,
       "fireOnCoreAudioOutput", "(D)V");
+  jcaStruct->fireOnStreamInputMid = (*env)->GetStaticMethodID(env, jcaStruct->jclazzJCoreAudio,
+      "fireOnStreamInput", "(JD)V");
+  jcaStruct->fireOnStreamOutputMid = (*env)->GetStaticMethodID(env, jcaStruct->jclazzJCoreAudio,
+      "fireOnStreamOutput", "(JD)V");
+  jcaStruct->isStream = isStream;
     
   // initialise to known values
   jcaStruct->auhalInput = NULL;
@@ -600,6 +681,24 @@ JNIEXPORT jlong JNICALL Java_ch_section6_jcoreaudio_JCoreAudio_initialize
   return (jlong) jcaStruct;
 }
 
+JNIEXPORT jlong JNICALL Java_ch_section6_jcoreaudio_JCoreAudio_initialize
+  (JNIEnv *env, jclass jclazz, jarray jinputArray, jint jnumChannelsInput, jint jinputDeviceId,
+      jarray joutputArray, jint jnumChannelsOutput, jint joutputDeviceId,
+      jint jblockSize, jfloat jsampleRate) {
+  return initializeSession(env, jclazz, jinputArray, jnumChannelsInput, jinputDeviceId,
+      joutputArray, jnumChannelsOutput, joutputDeviceId, jblockSize, jsampleRate, JNI_FALSE);
+}
+
+JNIEXPORT jlong JNICALL Java_ch_section6_jcoreaudio_JCoreAudio_initializeStream
+  (JNIEnv *env, jclass jclazz, jarray jinputArray, jint jnumChannelsInput,
+      jarray joutputArray, jint jnumChannelsOutput, jint jdeviceId,
+      jint jblockSize, jfloat jsampleRate) {
+  return initializeSession(env, jclazz,
+      jinputArray, jnumChannelsInput, (jnumChannelsInput > 0) ? jdeviceId : 0,
+      joutputArray, jnumChannelsOutput, (jnumChannelsOutput > 0) ? jdeviceId : 0,
+      jblockSize, jsampleRate, JNI_TRUE);
+}
+
 JNIEXPORT void JNICALL Java_ch_section6_jcoreaudio_JCoreAudio_uninitialize
     (JNIEnv *env, jclass jclazz, jlong nativePtr) {
 
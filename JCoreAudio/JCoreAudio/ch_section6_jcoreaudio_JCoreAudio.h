@@ -15,6 +15,14 @@ extern "C" {
 JNIEXPORT void JNICALL Java_ch_section6_jcoreaudio_JCoreAudio_fillAudioDeviceList
   (JNIEnv *, jclass, jobject);
 
+/*
+ * Class:     ch_section6_jcoreaudio_JCoreAudio
+ * Method:    addPropertyListener
+ * Signature: (Lch/section6/jcoreaudio/CoreAudioBackend;I)V
+ */
+JNIEXPORT void JNICALL Java_ch_section6_jcoreaudio_JCoreAudio_addPropertyListener
+  (JNIEnv *, jclass, jobject, jint);
+
 /*
  * Class:     ch_section6_jcoreaudio_JCoreAudio
  * Method:    initialize
@@ -23,6 +31,14 @@ JNIEXPORT void JNICALL Java_ch_section6_jcoreaudio_JCoreAudio_fillAudioDeviceLis
 JNIEXPORT jlong JNICALL Java_ch_section6_jcoreaudio_JCoreAudio_initialize
   (JNIEnv *, jclass, jobjectArray, jint, jint, jobjectArray, jint, jint, jint, jfloat);
 
+/*
+ * Class:     ch_section6_jcoreaudio_JCoreAudio
+ * Method:    initializeStream
+ * Signature: ([Ljava/lang/Object;I[Ljava/lang/Object;IIIF)J
+ */
+JNIEXPORT jlong JNICALL Java_ch_section6_jcoreaudio_JCoreAudio_initializeStream
+  (JNIEnv *, jclass, jobjectArray, jint, jobjectArray, jint, jint, jint, jfloat);
+
 /*
  * Class:     ch_section6_jcoreaudio_JCoreAudio
  * Method:    uninitialize
@@ -0,0 +1,178 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio.bench;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import ch.section6.jcoreaudio.AggregatedDevice;
+import ch.section6.jcoreaudio.AudioChannels;
+import ch.section6.jcoreaudio.AudioDevice;
+import ch.section6.jcoreaudio.AudioLet;
+import ch.section6.jcoreaudio.CoreAudioChannelListener;
+import ch.section6.jcoreaudio.JCoreAudio;
+import ch.section6.jcoreaudio.SimulatedAudioBackend;
+
+/**
+ * <code>AggregationCheck</code> checks the aggregation of two devices whose clocks drift apart.
+ * It runs a {@link SimulatedAudioBackend} in real time with a clock device and a second device,
+ * whose clocks are offset with {@link SimulatedAudioBackend#setClockDrift(int, double)} in
+ * opposite directions, and samples the {@link AggregatedDevice} of the second device while it
+ * plays. The drift is chosen so that the clocks slip by several blocks during the run, which the
+ * buffers of the aggregated device could not absorb without compensation. Once the measured drift
+ * has settled, it asserts that
+ * <ul>
+ *   <li>the measured drift is within 10% of that of the clocks.</li>
+ *   <li>the fill level of the buffers stays within two blocks of its target.</li>
+ *   <li>no audio is resynchronised, i.e. the clocks never slip.</li>
+ *   <li>no further block is delivered as silence.</li>
+ * </ul>
+ * The check runs in real time, and so is at the mercy of the scheduler. The time after the whole
+ * process has been stalled, which the check notices by sleeping late itself, is left to settle
+ * again and not checked, as is the time after the start.
+ * It exits with an <code>IllegalStateException</code> if a check fails. Usage:
+ * <pre>
+ * java -cp JCoreAudio.jar:bench ch.section6.jcoreaudio.bench.AggregationCheck [-p 10000] [-s 10]
+ * </pre>
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class AggregationCheck {
+  
+  private static final int BLOCK_SIZE = 2048;
+  private static final float SAMPLE_RATE = 48000.0f;
+  
+  /** The target fill level of the buffers of an aggregated device, in blocks. */
+  private static final double TARGET_BLOCKS = 2.0;
+  
+  /**
+   * The largest distance of the fill level from its target, in blocks. The fill level moves by a
+   * block whenever the callbacks of the two clocks pass each other, and after a stall of the
+   * process it is primed again anywhere up to a block above its target.
+   */
+  private static final double MAX_FILL_ERROR = 2.0;
+  
+  /** The largest error of the measured drift, relative to the drift of the clocks. */
+  private static final double DRIFT_TOLERANCE = 0.1;
+  
+  /** The time in which the measured drift settles, in seconds. */
+  private static final double SETTLING_SECONDS = 2.0;
+  
+  /** The interval at which the aggregated device is sampled, in milliseconds. */
+  private static final long SAMPLE_MILLIS = 20L;
+  
+  /**
+   * The delay of a sample beyond its interval at which the process is considered to have been
+   * stalled, in milliseconds. The clocks then catch up in any order, and a slip is expected.
+   */
+  private static final long STALL_MILLIS = 10L;
+  
+  public static void main(String[] args) throws InterruptedException {
+    int driftPpm = Microbenchmark.parseIntList(args, "-p", new int[] {10000})[0];
+    int seconds = Microbenchmark.parseIntList(args, "-s", new int[] {10})[0];
+    
+    JCoreAudio jca = JCoreAudio.getInstance();
+    jca.uninitialize();
+    SimulatedAudioBackend backend = new SimulatedAudioBackend();
+    int clockId = backend.addDevice("Clock Device", new int[] {2}, new int[] {2});
+    int driftingId = backend.addDevice("Drifting Device", new int[] {2}, new int[] {2});
+    backend.setBufferSizes(BLOCK_SIZE, 1, 1 << 16);
+    backend.setSampleRates(SAMPLE_RATE, SAMPLE_RATE);
+    backend.setClockDrift(clockId, -0.5 * driftPpm);
+    backend.setClockDrift(driftingId, 0.5 * driftPpm);
+    jca.setBackend(backend);
+    
+    List<AudioDevice> devices = JCoreAudio.getAudioDeviceList();
+    Set<AudioLet> inputLets = new HashSet<AudioLet>();
+    Set<AudioLet> outputLets = new HashSet<AudioLet>();
+    for (AudioDevice device : devices) {
+      inputLets.addAll(device.getInputSet());
+      outputLets.addAll(device.getOutputSet());
+    }
+    jca.setClockDevice(devices.get(0));
+    jca.initialize(inputLets, outputLets, BLOCK_SIZE, SAMPLE_RATE);
+    jca.setChannelListener(new CoreAudioChannelListener() {
+      @Override public void onCoreAudioInput(double timestamp, AudioChannels inputs) {
+        // the input of both devices is discarded
+      }
+      @Override public void onCoreAudioOutput(double timestamp, AudioChannels outputs) {
+        // the output of both devices is silence
+      }
+    });
+    AggregatedDevice aggregated = jca.getAggregatedDevices().get(0);
+    
+    jca.play();
+    long previousResyncs = 0L;
+    long previousSilentBlocks = 0L;
+    long previousNanos = System.nanoTime();
+    long recoveredNanos = previousNanos + (long) (SETTLING_SECONDS * 1000000000.0);
+    long endNanos = recoveredNanos + 1000000000L * seconds;
+    long slips = 0L;
+    long silentBlocks = 0L;
+    long stalls = 0L;
+    double minFill = Double.MAX_VALUE;
+    double maxFill = -Double.MAX_VALUE;
+    while (previousNanos < endNanos) {
+      Thread.sleep(SAMPLE_MILLIS);
+      long nanos = System.nanoTime();
+      if (nanos - previousNanos > (SAMPLE_MILLIS + STALL_MILLIS) * 1000000L) {
+        stalls++;
+        recoveredNanos = nanos + (long) (SETTLING_SECONDS * 1000000000.0);
+      }
+      previousNanos = nanos;
+      long resyncs = aggregated.getResyncs();
+      long silent = aggregated.getSilentBlocks();
+      if (nanos >= recoveredNanos) {
+        slips += resyncs - previousResyncs;
+        silentBlocks += silent - previousSilentBlocks;
+        double input = aggregated.getInputLatency() / BLOCK_SIZE;
+        double output = aggregated.getOutputLatency() / BLOCK_SIZE;
+        minFill = Math.min(minFill, Math.min(input, output));
+        maxFill = Math.max(maxFill, Math.max(input, output));
+      }
+      previousResyncs = resyncs;
+      previousSilentBlocks = silent;
+    }
+    jca.pause();
+    double measuredPpm = aggregated.getDriftPpm();
+    jca.uninitialize();
+    
+    System.out.printf("%+d ppm over %d s: measured %+.1f ppm, fill %.2f to %.2f blocks, " +
+        "%d slips and %d silent blocks, %d stalls of the process%n", driftPpm, seconds, measuredPpm,
+        minFill, maxFill, slips, silentBlocks, stalls);
+    if (Math.abs(measuredPpm - driftPpm) > DRIFT_TOLERANCE * driftPpm) {
+      throw new IllegalStateException(String.format("The drift was measured as %+.1f ppm instead " +
+          "of %+d ppm.", measuredPpm, driftPpm));
+    }
+    if (minFill < TARGET_BLOCKS - MAX_FILL_ERROR || maxFill > TARGET_BLOCKS + MAX_FILL_ERROR) {
+      throw new IllegalStateException(String.format("The fill level left the range of %.0f to " +
+          "%.0f blocks: %.2f to %.2f blocks.", TARGET_BLOCKS - MAX_FILL_ERROR,
+          TARGET_BLOCKS + MAX_FILL_ERROR, minFill, maxFill));
+    }
+    if (slips != 0L) {
+      throw new IllegalStateException("The clocks slipped " + slips + " times.");
+    }
+    if (silentBlocks != 0L) {
+      throw new IllegalStateException(silentBlocks + " blocks were silent after settling.");
+    }
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio.bench;
+
+import java.lang.management.ManagementFactory;
+
+import ch.section6.jcoreaudio.AudioChannels;
+import ch.section6.jcoreaudio.CoreAudioChannelListener;
+import ch.section6.jcoreaudio.JCoreAudio;
+
+/**
+ * <code>AllocationCheck</code> checks that the dispatch of callbacks to a
+ * {@link CoreAudioChannelListener} allocates nothing. It makes 1,000,000 blocks of input and output callbacks
+ * through the {@link BenchmarkBackend}, with a listener which reads every input channel and writes
+ * every output channel, and compares the bytes allocated by the calling thread before and after.
+ * It exits with an <code>IllegalStateException</code> if any byte was allocated. Usage:
+ * <pre>
+ * java -cp JCoreAudio.jar:bench ch.section6.jcoreaudio.bench.AllocationCheck [-c 2,64] [-b 64] [-k 1000000]
+ * </pre>
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class AllocationCheck {
+  
+  private static final float SAMPLE_RATE = 48000.0f;
+  
+  /** The callbacks made before measuring, so that the dispatch is compiled. */
+  private static final int WARMUP_CALLBACKS = 200000;
+  
+  public static void main(String[] args) {
+    int[] channelCounts = Microbenchmark.parseIntList(args, "-c", new int[] {2, 64});
+    int blockSize = Microbenchmark.parseIntList(args, "-b", new int[] {64})[0];
+    int numCallbacks = Microbenchmark.parseIntList(args, "-k", new int[] {1000000})[0];
+    
+    java.lang.management.ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+    if (!(mx instanceof com.sun.management.ThreadMXBean) ||
+        !((com.sun.management.ThreadMXBean) mx).isThreadAllocatedMemorySupported()) {
+      throw new IllegalStateException("This JVM cannot measure the bytes allocated by a thread.");
+    }
+    com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) mx;
+    long threadId = Thread.currentThread().getId();
+    
+    for (int numChannels : channelCounts) {
+      BenchmarkBackend.open(numChannels, blockSize, SAMPLE_RATE);
+      final float[] samples = new float[blockSize];
+      JCoreAudio.getInstance().setChannelListener(new CoreAudioChannelListener() {
+        @Override public void onCoreAudioInput(double timestamp, AudioChannels inputs) {
+          for (int c = 0; c < inputs.getNumChannels(); c++) {
+            inputs.read(c, samples, 0);
+          }
+        }
+        @Override public void onCoreAudioOutput(double timestamp, AudioChannels outputs) {
+          for (int c = 0; c < outputs.getNumChannels(); c++) {
+            samples[0] = outputs.get(c, 0);
+            outputs.write(c, samples, 0);
+          }
+        }
+      });
+      run(WARMUP_CALLBACKS, blockSize);
+      long before = allocation.getThreadAllocatedBytes(threadId);
+      before = allocation.getThreadAllocatedBytes(threadId); // the first call may allocate itself
+      run(numCallbacks, blockSize);
+      long allocated = allocation.getThreadAllocatedBytes(threadId) - before;
+      BenchmarkBackend.close();
+      
+      System.out.printf("%-34s %6d bytes in %d callbacks%n",
+          "channel listener [" + numChannels + "ch]", allocated, 2L * numCallbacks);
+      if (allocated != 0L) {
+        throw new IllegalStateException(allocated + " bytes were allocated by " + numCallbacks +
+            " blocks of " + numChannels + " channels.");
+      }
+    }
+  }
+  
+  private static void run(int numCallbacks, int blockSize) {
+    double timestamp = 0.0;
+    for (int i = 0; i < numCallbacks; i++, timestamp += blockSize) {
+      BenchmarkBackend.input(timestamp);
+      BenchmarkBackend.output(timestamp);
+    }
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio.bench;
+
+import java.util.List;
+
+import ch.section6.jcoreaudio.AudioDevice;
+import ch.section6.jcoreaudio.JCoreAudio;
+import ch.section6.jcoreaudio.SimulatedAudioBackend;
+
+/**
+ * <code>BenchmarkBackend</code> is a {@link SimulatedAudioBackend} whose callbacks are made
+ * directly by the benchmark thread instead of by the simulated clock, so that the cost of
+ * dispatch can be measured in isolation.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class BenchmarkBackend extends SimulatedAudioBackend {
+  
+  /**
+   * Installs a new <code>BenchmarkBackend</code> with a single device of one input and one output
+   * let, each with the given number of channels, and initializes <code>JCoreAudio</code> with it.
+   */
+  public static void open(int numChannels, int blockSize, float sampleRate) {
+    open(numChannels, blockSize, sampleRate, false);
+  }
+  
+  /** As {@link #open(int, int, float)}, optionally in interleaved mode. */
+  public static void open(int numChannels, int blockSize, float sampleRate, boolean isInterleaved) {
+    JCoreAudio jca = JCoreAudio.getInstance();
+    jca.uninitialize();
+    BenchmarkBackend backend = new BenchmarkBackend();
+    backend.addDevice("Benchmark Device", new int[] {numChannels}, new int[] {numChannels});
+    backend.setBufferSizes(blockSize, 1, 1 << 16);
+    backend.setSampleRates(sampleRate, sampleRate);
+    jca.setBackend(backend);
+    List<AudioDevice> devices = JCoreAudio.getAudioDeviceList();
+    jca.initialize(devices.get(0).getInputSet(), devices.get(0).getOutputSet(), blockSize, sampleRate,
+        isInterleaved);
+  }
+  
+  /** Uninitializes <code>JCoreAudio</code>. */
+  public static void close() {
+    JCoreAudio.getInstance().uninitialize();
+  }
+  
+  /** Makes an input callback on the calling thread. */
+  public static void input(double timestamp) {
+    fireOnCoreAudioInput(timestamp);
+  }
+  
+  /** Makes an output callback on the calling thread. */
+  public static void output(double timestamp) {
+    fireOnCoreAudioOutput(timestamp);
+  }
+}
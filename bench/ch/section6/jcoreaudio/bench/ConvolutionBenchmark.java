@@ -0,0 +1,141 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio.bench;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import ch.section6.jcoreaudio.PartitionedConvolver;
+import ch.section6.jcoreaudio.bench.Microbenchmark.Options;
+
+/**
+ * <code>ConvolutionBenchmark</code> measures the CPU time per channel of the
+ * <code>PartitionedConvolver</code> for impulse responses of several lengths:
+ * <ul>
+ *   <li>uniform partitions, all computed in the callback.</li>
+ *   <li>non-uniform partitions, all computed in the callback, split into the head and the tail.</li>
+ *   <li>non-uniform partitions with worker threads, called in real time for a few seconds, which
+ *       reports the mean and largest time spent in the callback and any deadline misses.</li>
+ * </ul>
+ * Usage:
+ * <pre>
+ * java -cp JCoreAudio.jar:bench ch.section6.jcoreaudio.bench.ConvolutionBenchmark \
+ *     [-s 1,5,10] [-b 64] [-c 2] [-t threads] [-w warmupMs] [-i iterationMs] [-n iterations]
+ * </pre>
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class ConvolutionBenchmark {
+  
+  private static final float SAMPLE_RATE = 48000.0f;
+  
+  public static void main(String[] args) {
+    Options options = Options.parse(args);
+    int[] seconds = Microbenchmark.parseIntList(args, "-s", new int[] {1, 5, 10});
+    int[] blockSizes = Microbenchmark.parseIntList(args, "-b", new int[] {64});
+    int numChannels = Microbenchmark.parseIntList(args, "-c", new int[] {2})[0];
+    int numThreads = Microbenchmark.parseIntList(args, "-t",
+        new int[] {Math.max(1, Runtime.getRuntime().availableProcessors() - 1)})[0];
+    
+    for (int blockSize : blockSizes) {
+      for (int s : seconds) {
+        System.out.println("# " + s + "s impulse response, " + blockSize + "x" + numChannels + "ch (per sample and channel)");
+        float[][] impulseResponses = createImpulseResponses(numChannels, (int) (s * SAMPLE_RATE));
+        measure("uniform", new PartitionedConvolver(impulseResponses, blockSize, blockSize, 0), options);
+        measure("non-uniform", new PartitionedConvolver(impulseResponses, blockSize,
+            PartitionedConvolver.DEFAULT_MAX_PARTITION_SIZE, 0), options);
+        measureRealTime(new PartitionedConvolver(impulseResponses, blockSize,
+            PartitionedConvolver.DEFAULT_MAX_PARTITION_SIZE, numThreads), 2.0);
+      }
+    }
+  }
+  
+  /** Returns exponentially decaying noise, as a stand-in for the impulse response of a room. */
+  private static float[][] createImpulseResponses(int numChannels, int length) {
+    Random random = new Random(0L);
+    float[][] impulseResponses = new float[numChannels][length];
+    for (int c = 0; c < numChannels; c++) {
+      for (int i = 0; i < length; i++) {
+        impulseResponses[c][i] = (float) (random.nextGaussian() * Math.exp(-6.9 * i / length));
+      }
+    }
+    return impulseResponses;
+  }
+  
+  private static FloatBuffer[] createBuffers(int numChannels, int blockSize) {
+    FloatBuffer[] buffers = new FloatBuffer[numChannels];
+    Random random = new Random(1L);
+    for (int c = 0; c < numChannels; c++) {
+      buffers[c] = ByteBuffer.allocateDirect(4 * blockSize).order(ByteOrder.nativeOrder()).asFloatBuffer();
+      for (int i = 0; i < blockSize; i++) {
+        buffers[c].put(i, (float) random.nextGaussian());
+      }
+    }
+    return buffers;
+  }
+  
+  private static void measure(String name, final PartitionedConvolver convolver, Options options) {
+    final FloatBuffer[] inputs = createBuffers(convolver.getNumChannels(), convolver.getBlockSize());
+    final FloatBuffer[] outputs = createBuffers(convolver.getNumChannels(), convolver.getBlockSize());
+    final int samplesPerRun = convolver.getNumChannels() * convolver.getBlockSize();
+    Microbenchmark.Result result = Microbenchmark.measure(name + " [" + convolver.getLayout() + "]",
+        new Microbenchmark() {
+      @Override public int getOperationsPerRun() { return samplesPerRun; }
+      @Override public long run() {
+        convolver.process(inputs, outputs);
+        return Float.floatToRawIntBits(outputs[0].get(0));
+      }
+    }, options);
+    double tailShare = (double) convolver.getTailNanos() / convolver.getCallbackNanos();
+    System.out.printf("    %.2f%% of a core per channel at %.0fHz, %.0f%% of it in the tail%n",
+        100.0 * result.nanosPerOp * SAMPLE_RATE / 1.0e9, SAMPLE_RATE, 100.0 * tailShare);
+    convolver.close();
+  }
+  
+  /** Calls the convolver once per block period, as the audio callback would. */
+  private static void measureRealTime(PartitionedConvolver convolver, double seconds) {
+    FloatBuffer[] inputs = createBuffers(convolver.getNumChannels(), convolver.getBlockSize());
+    FloatBuffer[] outputs = createBuffers(convolver.getNumChannels(), convolver.getBlockSize());
+    double periodNanos = 1.0e9 * convolver.getBlockSize() / SAMPLE_RATE;
+    int numBlocks = (int) (seconds * SAMPLE_RATE / convolver.getBlockSize());
+    long maxNanos = 0L;
+    long startNanos = System.nanoTime();
+    for (int i = 0; i < numBlocks; i++) {
+      long deadline = startNanos + (long) (i * periodNanos);
+      long remaining;
+      while ((remaining = deadline - System.nanoTime()) > 0L) {
+        if (remaining > 100000L) LockSupport.parkNanos(remaining - 100000L);
+      }
+      long callbackNanos = System.nanoTime();
+      convolver.process(inputs, outputs);
+      maxNanos = Math.max(maxNanos, System.nanoTime() - callbackNanos);
+    }
+    double samples = (double) numBlocks * convolver.getBlockSize() * convolver.getNumChannels();
+    System.out.printf("%-60s %10.3f ns/op in the callback, max %.1f us per block, %.3f ns/op in %d workers, " +
+        "%d deadline misses%n", "real time [" + convolver.getNumThreads() + " workers]",
+        convolver.getCallbackNanos() / samples, maxNanos / 1000.0, convolver.getTailNanos() / samples,
+        convolver.getNumThreads(), convolver.getDeadlineMisses());
+    convolver.close();
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio.bench;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import ch.section6.jcoreaudio.PartitionedConvolver;
+
+/**
+ * <code>ConvolverCheck</code> checks the output of the <code>PartitionedConvolver</code> against
+ * convolution by brute force in double precision. The impulse responses are decaying noise with
+ * unit impulses on either side of every boundary between partitions, so that a sample which is
+ * lost or counted twice where the partitions meet shows as a large error. Each case is computed
+ * without worker threads, so that no result misses its deadline:
+ * <ul>
+ *   <li>uniform partitions.</li>
+ *   <li>non-uniform partitions, with impulse responses which end inside and at the end of a
+ *       partition.</li>
+ *   <li>non-uniform partitions, with the input and output in the same buffers.</li>
+ *   <li>non-uniform partitions, with two channels which share the same impulse response.</li>
+ * </ul>
+ * The largest error of each case, relative to the largest sample of the reference, must be below
+ * {@value #MAX_ERROR}. It exits with an <code>IllegalStateException</code> if a check fails. Usage:
+ * <pre>
+ * java -cp JCoreAudio.jar:bench ch.section6.jcoreaudio.bench.ConvolverCheck
+ * </pre>
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class ConvolverCheck {
+  
+  /** The largest error relative to the largest sample of the reference. */
+  private static final double MAX_ERROR = 1.0e-5;
+  
+  /** The frames of output which are checked beyond the end of the impulse response. */
+  private static final int EXTRA_FRAMES = 2048;
+  
+  public static void main(String[] args) {
+    int failures = 0;
+    Random random = new Random(0L);
+    failures += check("uniform", createImpulseResponses(random, 2, 3000, 64, 64), 64, 64, false);
+    failures += check("non-uniform", createImpulseResponses(random, 2, 9000, 64, 1024), 64, 1024, false);
+    failures += check("non-uniform, ends at a boundary",
+        createImpulseResponses(random, 1, 4608, 128, 512), 128, 512, false);
+    failures += check("non-uniform, in place",
+        createImpulseResponses(random, 2, 9000, 64, 1024), 64, 1024, true);
+    float[] shared = createImpulseResponses(random, 1, 5000, 32, 256)[0];
+    failures += check("non-uniform, shared", new float[][] {shared, shared}, 32, 256, false);
+    if (failures > 0) {
+      throw new IllegalStateException(failures + " cases differ from convolution by brute force.");
+    }
+  }
+  
+  /**
+   * Returns decaying noise with unit impulses on either side of each boundary between the
+   * partitions of a convolver with the given sizes.
+   */
+  private static float[][] createImpulseResponses(Random random, int numChannels, int length,
+      int blockSize, int maxPartitionSize) {
+    float[][] impulseResponses = new float[numChannels][length];
+    for (int c = 0; c < numChannels; c++) {
+      for (int i = 0; i < length; i++) {
+        impulseResponses[c][i] = (float) (0.1 * random.nextGaussian() * Math.exp(-6.9 * i / length));
+      }
+    }
+    PartitionedConvolver convolver =
+        new PartitionedConvolver(impulseResponses, blockSize, maxPartitionSize, 0);
+    String layout = convolver.getLayout();
+    convolver.close();
+    int boundary = 0;
+    for (String segment : layout.split(" \\+ ")) {
+      String[] parts = segment.split("x");
+      int count = Integer.parseInt(parts[0]);
+      int size = Integer.parseInt(parts[1]);
+      for (int i = 0; i < count; i++) {
+        boundary += size;
+        for (int c = 0; c < numChannels; c++) {
+          if (boundary - 1 < length) impulseResponses[c][boundary - 1] = 1.0f;
+          if (boundary < length) impulseResponses[c][boundary] = -1.0f;
+        }
+      }
+    }
+    return impulseResponses;
+  }
+  
+  private static int check(String name, float[][] impulseResponses, int blockSize,
+      int maxPartitionSize, boolean isInPlace) {
+    PartitionedConvolver convolver =
+        new PartitionedConvolver(impulseResponses, blockSize, maxPartitionSize, 0);
+    int numChannels = impulseResponses.length;
+    int numBlocks = (convolver.getLength() + EXTRA_FRAMES) / blockSize + 1;
+    int numFrames = numBlocks * blockSize;
+    
+    Random random = new Random(1L);
+    float[][] input = new float[numChannels][numFrames];
+    float[][] output = new float[numChannels][numFrames];
+    for (int c = 0; c < numChannels; c++) {
+      for (int i = 0; i < numFrames; i++) {
+        input[c][i] = (float) random.nextGaussian();
+      }
+    }
+    FloatBuffer[] inputs = createBuffers(numChannels, blockSize);
+    FloatBuffer[] outputs = isInPlace ? inputs : createBuffers(numChannels, blockSize);
+    for (int b = 0; b < numBlocks; b++) {
+      for (int c = 0; c < numChannels; c++) {
+        inputs[c].clear();
+        inputs[c].put(input[c], b * blockSize, blockSize);
+      }
+      convolver.process(inputs, outputs);
+      for (int c = 0; c < numChannels; c++) {
+        outputs[c].clear();
+        outputs[c].get(output[c], b * blockSize, blockSize);
+      }
+    }
+    convolver.close();
+    
+    double maxError = 0.0;
+    double maxReference = 0.0;
+    int worstFrame = 0;
+    for (int c = 0; c < numChannels; c++) {
+      float[] h = impulseResponses[c];
+      for (int i = 0; i < numFrames; i++) {
+        double reference = 0.0;
+        for (int k = Math.max(0, i - h.length + 1); k <= i; k++) {
+          reference += (double) input[c][k] * h[i - k];
+        }
+        double error = Math.abs(output[c][i] - reference);
+        if (error > maxError) {
+          maxError = error;
+          worstFrame = i;
+        }
+        maxReference = Math.max(maxReference, Math.abs(reference));
+      }
+    }
+    double relativeError = maxError / maxReference;
+    boolean isMet = relativeError < MAX_ERROR;
+    System.out.printf("%-34s [%s]: relative error %.2e at frame %d%s%n", name, convolver.getLayout(),
+        relativeError, worstFrame, isMet ? "" : "  FAILED");
+    return isMet ? 0 : 1;
+  }
+  
+  private static FloatBuffer[] createBuffers(int numChannels, int blockSize) {
+    FloatBuffer[] buffers = new FloatBuffer[numChannels];
+    for (int c = 0; c < numChannels; c++) {
+      buffers[c] = ByteBuffer.allocateDirect(4 * blockSize).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+    return buffers;
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio.bench;
+
+import ch.section6.jcoreaudio.bench.DeviceModelCheck.CountingBackend;
+import ch.section6.jcoreaudio.bench.Microbenchmark.Options;
+
+/**
+ * <code>DeviceModelBenchmark</code> measures the time to list all devices and read their
+ * properties, with and without the cache, using the counting backend of
+ * {@link DeviceModelCheck}. Usage:
+ * <pre>
+ * java -cp JCoreAudio.jar:bench ch.section6.jcoreaudio.bench.DeviceModelBenchmark \
+ *     [-d 4,32] [-l 8] [-w warmupMs] [-i iterationMs] [-n iterations]
+ * </pre>
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class DeviceModelBenchmark {
+  
+  public static void main(String[] args) {
+    Options options = Options.parse(args);
+    int[] deviceCounts = Microbenchmark.parseIntList(args, "-d", new int[] {4, 32});
+    int[] letCounts = Microbenchmark.parseIntList(args, "-l", new int[] {8});
+    
+    for (int numDevices : deviceCounts) {
+      for (int numLets : letCounts) {
+        System.out.println("# " + numDevices + " devices x " + numLets + " lets");
+        measure(numDevices, numLets, options);
+      }
+    }
+  }
+  
+  private static void measure(final int numDevices, int numLets, Options options) {
+    final CountingBackend backend = DeviceModelCheck.install(numDevices, numLets, true);
+    Microbenchmark.measure("cached listing", new Microbenchmark() {
+      @Override public long run() { return DeviceModelCheck.touchAll(); }
+    }, options);
+    Microbenchmark.measure("uncached listing", new Microbenchmark() {
+      @Override public long run() {
+        backend.notifyDevicesChanged();
+        for (int id = 1; id <= numDevices; id++) {
+          backend.notifyDeviceChanged(id);
+        }
+        return DeviceModelCheck.touchAll();
+      }
+    }, options);
+  }
+}
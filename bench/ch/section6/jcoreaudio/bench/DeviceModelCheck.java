@@ -0,0 +1,239 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio.bench;
+
+import java.util.List;
+import java.util.Set;
+
+import ch.section6.jcoreaudio.AudioBackend;
+import ch.section6.jcoreaudio.AudioDevice;
+import ch.section6.jcoreaudio.AudioLet;
+import ch.section6.jcoreaudio.JCoreAudio;
+
+/**
+ * <code>DeviceModelCheck</code> checks the caching of device and let properties. It installs a
+ * fake backend which counts its queries, each of which stands for a native call into Core Audio,
+ * and:
+ * <ul>
+ *   <li>counts the queries needed to list all devices and read all of their properties, first
+ *       and then repeatedly. Once cached, no further queries may be made.</li>
+ *   <li>checks that a device change notification causes exactly that device to be queried
+ *       again, and that a device list notification keeps the identity of the devices.</li>
+ *   <li>checks that nothing is cached by a backend which does not report changes, as when the
+ *       native library cannot register property listeners.</li>
+ * </ul>
+ * {@link DeviceModelBenchmark} measures the listing with and without the cache. It exits with an
+ * <code>IllegalStateException</code> if a check fails. Usage:
+ * <pre>
+ * java -cp JCoreAudio.jar:bench ch.section6.jcoreaudio.bench.DeviceModelCheck [-d 4,32] [-l 8]
+ * </pre>
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class DeviceModelCheck {
+  
+  private static final float[] SAMPLE_RATES = {44100.0f, 48000.0f, 88200.0f, 96000.0f, 176400.0f, 192000.0f};
+  
+  public static void main(String[] args) {
+    int[] deviceCounts = Microbenchmark.parseIntList(args, "-d", new int[] {4, 32});
+    int[] letCounts = Microbenchmark.parseIntList(args, "-l", new int[] {8});
+    
+    for (int numDevices : deviceCounts) {
+      for (int numLets : letCounts) {
+        System.out.println("# " + numDevices + " devices x " + numLets + " lets");
+        checkQueries(numDevices, numLets);
+        checkUncached(numDevices, numLets);
+      }
+    }
+  }
+  
+  private static void checkQueries(int numDevices, int numLets) {
+    CountingBackend backend = install(numDevices, numLets, true);
+    
+    touchAll();
+    // one device list, and per device two let sets and four properties, and the rates of each let
+    long expected = 1 + numDevices * (6 + 2 * numLets);
+    check("first listing", backend.getQueries(), expected);
+    
+    for (int i = 0; i < 100; i++) {
+      touchAll();
+    }
+    check("100 further listings", backend.getQueries(), expected);
+    
+    AudioDevice changed = JCoreAudio.getAudioDeviceList().get(numDevices - 1);
+    backend.notifyDeviceChanged(changed.getId());
+    touchAll();
+    expected += 6 + 2 * numLets;
+    check("listing after a device change", backend.getQueries(), expected);
+    
+    backend.notifyDevicesChanged();
+    touchAll();
+    expected += 1;
+    check("listing after a device list change", backend.getQueries(), expected);
+    if (JCoreAudio.getAudioDeviceList().get(numDevices - 1) != changed) {
+      throw new IllegalStateException("The device list change did not preserve the identity of the devices.");
+    }
+  }
+  
+  private static void checkUncached(int numDevices, int numLets) {
+    CountingBackend backend = install(numDevices, numLets, false);
+    for (int i = 0; i < 10; i++) {
+      touchAll();
+    }
+    check("10 listings without notifications", backend.getQueries(),
+        10L * (1 + numDevices * (6 + 2 * numLets)));
+  }
+  
+  private static void check(String name, long queries, long expected) {
+    System.out.printf("%-34s %6d queries%n", name, queries);
+    if (queries != expected) {
+      throw new IllegalStateException("Expected " + expected + " queries after the " + name + ".");
+    }
+  }
+  
+  /**
+   * Installs a new <code>CountingBackend</code>.
+   * @param isReportingChanges  Whether the backend reports changes, so that devices may be cached.
+   */
+  static CountingBackend install(int numDevices, int numLets, boolean isReportingChanges) {
+    CountingBackend backend = new CountingBackend(numDevices, numLets, isReportingChanges);
+    JCoreAudio jca = JCoreAudio.getInstance();
+    jca.uninitialize();
+    jca.setBackend(backend);
+    return backend;
+  }
+  
+  /** Lists all devices and reads all of their properties, as when choosing a configuration. */
+  static long touchAll() {
+    long sum = 0L;
+    List<AudioDevice> devices = JCoreAudio.getAudioDeviceList();
+    for (AudioDevice device : devices) {
+      sum += device.getCurrentBufferSize() + device.getMinimumBufferSize() +
+          device.getMaximumBufferSize() + (long) device.getCurrentSampleRate();
+      Set<AudioLet> inputs = device.getInputSet();
+      Set<AudioLet> outputs = device.getOutputSet();
+      for (AudioLet let : inputs) {
+        sum += let.canSamplerate(48000.0f) ? 1 : 0;
+      }
+      for (AudioLet let : outputs) {
+        sum += let.canSamplerate(48000.0f) ? 1 : 0;
+      }
+    }
+    return sum;
+  }
+  
+  /**
+   * <code>CountingBackend</code> provides devices with the given number of stereo input and output
+   * lets, and counts every query. It cannot be initialized.
+   */
+  static class CountingBackend extends AudioBackend {
+    
+    private final int numDevices;
+    private final int numLets;
+    private final boolean isReportingChanges;
+    private long queries;
+    
+    private CountingBackend(int numDevices, int numLets, boolean isReportingChanges) {
+      this.numDevices = numDevices;
+      this.numLets = numLets;
+      this.isReportingChanges = isReportingChanges;
+    }
+    
+    synchronized long getQueries() {
+      return queries;
+    }
+    
+    void notifyDevicesChanged() {
+      devicesChanged();
+    }
+    
+    void notifyDeviceChanged(int deviceId) {
+      deviceChanged(deviceId);
+    }
+    
+    @Override
+    protected boolean isReportingChanges() {
+      return isReportingChanges;
+    }
+    
+    @Override
+    protected synchronized void fillAudioDeviceList(List<AudioDevice> list) {
+      queries++;
+      for (int id = 1; id <= numDevices; id++) {
+        list.add(newAudioDevice(id, "Counting Device " + id, "JCoreAudio"));
+      }
+    }
+    
+    @Override
+    protected synchronized void queryLetSet(AudioDevice device, boolean isInput, Set<AudioLet> set) {
+      queries++;
+      for (int i = 0; i < numLets; i++) {
+        set.add(newAudioLet(device, i, 2 * i, (isInput ? "Input " : "Output ") + (i+1), isInput, 2));
+      }
+    }
+    
+    @Override
+    protected synchronized void queryAvailableSamplerates(AudioDevice device, int letIndex,
+        boolean isInput, Set<Float> set) {
+      queries++;
+      for (float sampleRate : SAMPLE_RATES) {
+        set.add(sampleRate);
+      }
+    }
+    
+    @Override
+    protected synchronized int getCurrentBufferSize(AudioDevice device) {
+      queries++;
+      return 512;
+    }
+    
+    @Override
+    protected synchronized int getMinimumBufferSize(AudioDevice device) {
+      queries++;
+      return 14;
+    }
+    
+    @Override
+    protected synchronized int getMaximumBufferSize(AudioDevice device) {
+      queries++;
+      return 4096;
+    }
+    
+    @Override
+    protected synchronized float getCurrentSampleRate(AudioDevice device) {
+      queries++;
+      return 48000.0f;
+    }
+    
+    @Override
+    protected long initialize(AudioLet[] inputLets, int numChannelsInput, AudioDevice inputDevice,
+        AudioLet[] outputLets, int numChannelsOutput, AudioDevice outputDevice, int blockSize,
+        float sampleRate) {
+      throw new UnsupportedOperationException("The CountingBackend cannot be initialized.");
+    }
+    
+    @Override
+    protected void uninitialize(long ptr) {}
+    
+    @Override
+    protected void play(boolean shouldPlay, long ptr) {}
+  }
+}
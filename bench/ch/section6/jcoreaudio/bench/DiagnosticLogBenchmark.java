@@ -0,0 +1,99 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio.bench;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import ch.section6.jcoreaudio.DiagnosticLog;
+import ch.section6.jcoreaudio.LatencyHistogram;
+
+/**
+ * <code>DiagnosticLogBenchmark</code> measures the cost to the audio thread of logging a record
+ * to a <code>DiagnosticLog</code>:
+ * <ul>
+ *   <li>while there is room in the ring, in bursts of half its capacity between which the ring is
+ *       forwarded to a <code>Logger</code> without handlers. The mean is that of the whole burst,
+ *       and the distribution that of single calls, including the cost of reading the clock.</li>
+ *   <li>while the ring is full, so that every record is dropped.</li>
+ * </ul>
+ * Usage:
+ * <pre>
+ * java -cp JCoreAudio.jar:bench ch.section6.jcoreaudio.bench.DiagnosticLogBenchmark [-r rounds]
+ * </pre>
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class DiagnosticLogBenchmark {
+  
+  private static final int CAPACITY = 4096;
+  
+  public static void main(String[] args) {
+    int rounds = Microbenchmark.parseIntList(args, "-r", new int[] {2000})[0];
+    
+    Logger logger = Logger.getAnonymousLogger();
+    logger.setUseParentHandlers(false);
+    DiagnosticLog log = new DiagnosticLog(CAPACITY);
+    log.setLogger(logger);
+    int code = log.register(Level.INFO, "%.0f samples clipped on channel %.0f");
+    
+    int burst = CAPACITY / 2;
+    LatencyHistogram calls = new LatencyHistogram();
+    long burstNanos = 0L;
+    double timestamp = 0.0;
+    for (int round = 0; round < rounds; round++) {
+      log.flush();
+      boolean isTimingCalls = (round % 2 == 1); // alternate, so that the clock is not in the mean
+      long start = System.nanoTime();
+      for (int i = 0; i < burst; i++, timestamp += 256.0) {
+        if (isTimingCalls) {
+          long t = System.nanoTime();
+          log.log(code, timestamp, 3.0, 1.0);
+          calls.record(System.nanoTime() - t);
+        } else {
+          log.log(code, timestamp, 3.0, 1.0);
+        }
+      }
+      if (!isTimingCalls && round >= rounds / 2) burstNanos += System.nanoTime() - start;
+    }
+    System.out.printf("log: mean %.1f ns; single calls 50%% %d ns, 99.99%% %d ns, max %d ns%n",
+        burstNanos / (double) (rounds / 4 * burst), calls.getValueAtPercentile(50.0),
+        calls.getValueAtPercentile(99.99), calls.getMax());
+    if (log.getDroppedRecords() > 0L) {
+      throw new IllegalStateException(log.getDroppedRecords() + " records were dropped although the ring had room.");
+    }
+    
+    // fill the ring, then measure the drops in rounds which are much shorter than a poll period
+    long dropNanos = 0L;
+    long drops = 0L;
+    for (int round = 0; round < rounds; round++) {
+      log.flush();
+      while (log.log(code, timestamp, 3.0, 1.0)) {}
+      long start = System.nanoTime();
+      for (int i = 0; i < 1000; i++) {
+        log.log(code, timestamp, 3.0, 1.0);
+      }
+      dropNanos += System.nanoTime() - start;
+      drops += 1000;
+    }
+    System.out.printf("log, ring full: mean %.1f ns%n", dropNanos / (double) drops);
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio.bench;
+
+import java.util.Random;
+
+import ch.section6.jcoreaudio.AudioChannels;
+import ch.section6.jcoreaudio.CoreAudioDuplexListener;
+import ch.section6.jcoreaudio.DuplexAligner;
+import ch.section6.jcoreaudio.JCoreAudio;
+
+/**
+ * <code>DuplexAlignerCheck</code> checks the pairing of input and output blocks by the
+ * {@link DuplexAligner}, with synthetic callback timestamps. Each input block is filled with its
+ * own timestamp, so that the duplex listener can check which input it was given. For each
+ * schedule of callbacks, the check asserts the added latency and the number of slips, and that
+ * every output block once settled receives the input from exactly the reported latency before it,
+ * which may never be negative:
+ * <ul>
+ *   <li>input before output: no latency and no slips.</li>
+ *   <li>output before input: one block of latency, after one slip.</li>
+ *   <li>the order of input and output chosen at random in each cycle: one block of latency, after
+ *       one slip, however often the order changes.</li>
+ *   <li>timestamps with sub-sample jitter: no latency and no slips.</li>
+ *   <li>both of the above: one block of latency, after one slip.</li>
+ *   <li>a missing input block: it cannot be told apart from a late one, so silence for that block
+ *       and the gap behind it, and one block of latency after one slip.</li>
+ *   <li>input timestamps which run a block ahead of the output: the input is held back by a
+ *       block, so no latency and no slips, and silence only for the first block.</li>
+ * </ul>
+ * It exits with an <code>IllegalStateException</code> if a check fails. Usage:
+ * <pre>
+ * java -cp JCoreAudio.jar:bench ch.section6.jcoreaudio.bench.DuplexAlignerCheck
+ * </pre>
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class DuplexAlignerCheck {
+  
+  private static final int BLOCK_SIZE = 64;
+  private static final float SAMPLE_RATE = 48000.0f;
+  private static final int NUM_BLOCKS = 10000;
+  
+  /** The blocks which are allowed to be wrong while the latency settles. */
+  private static final int SETTLING_BLOCKS = 2;
+  
+  /** Checks the input delivered with each output block against the expected latency. */
+  private static class Listener implements CoreAudioDuplexListener {
+    DuplexAligner aligner;
+    long mismatches;
+    long silentBlocks;
+    long negativeBlocks;
+    long blocks;
+    
+    @Override
+    public void process(double timestamp, AudioChannels inputs, AudioChannels outputs) {
+      blocks++;
+      if (aligner.getAddedLatency() < 0L) negativeBlocks++;
+      float first = inputs.get(0, 0);
+      if (first == 0.0f && inputs.get(0, BLOCK_SIZE - 1) == 0.0f) {
+        silentBlocks++;
+      } else if (first != (float) (Math.round(timestamp) - aligner.getAddedLatency())) {
+        mismatches++;
+      }
+    }
+  }
+  
+  public static void main(String[] args) {
+    check("input before output", 0L, 0L, new Schedule() {
+      @Override void cycle(long n, long t) { input(t); output(t); }
+    });
+    check("output before input", BLOCK_SIZE, 1L, new Schedule() {
+      @Override void cycle(long n, long t) { output(t); input(t); }
+    });
+    final Random order = new Random(1L);
+    check("random order", BLOCK_SIZE, 1L, new Schedule() {
+      @Override void cycle(long n, long t) {
+        if (n == 1L || order.nextBoolean()) {
+          output(t);
+          input(t);
+        } else {
+          input(t);
+          output(t);
+        }
+      }
+    });
+    final Random jitter = new Random(2L);
+    check("sub-sample jitter", 0L, 0L, new Schedule() {
+      @Override void cycle(long n, long t) {
+        input(t + 0.8 * (jitter.nextDouble() - 0.5));
+        output(t + 0.8 * (jitter.nextDouble() - 0.5));
+      }
+    });
+    check("random order and jitter", BLOCK_SIZE, 1L, new Schedule() {
+      @Override void cycle(long n, long t) {
+        double inputTime = t + 0.8 * (jitter.nextDouble() - 0.5);
+        double outputTime = t + 0.8 * (jitter.nextDouble() - 0.5);
+        if (n == 1L || order.nextBoolean()) {
+          output(outputTime);
+          input(inputTime);
+        } else {
+          input(inputTime);
+          output(outputTime);
+        }
+      }
+    });
+    Listener listener = check("missing input block", BLOCK_SIZE, 1L, new Schedule() {
+      @Override void cycle(long n, long t) {
+        if (n != NUM_BLOCKS / 2) input(t);
+        output(t);
+      }
+    });
+    if (listener.silentBlocks != 2L) {
+      throw new IllegalStateException("Expected two silent blocks for the missing input, not " +
+          listener.silentBlocks + ".");
+    }
+    check("input ahead of output", 0L, 0L, new Schedule() {
+      @Override void cycle(long n, long t) { input(t + BLOCK_SIZE); output(t); }
+    });
+  }
+  
+  /** The order and timestamps of the callbacks of each cycle. */
+  private static abstract class Schedule {
+    /** Makes the callbacks of cycle <code>n</code>, which nominally begins at time <code>t</code>. */
+    abstract void cycle(long n, long t);
+    
+    void input(double timestamp) {
+      // the input is stamped with its time, shifted by one so that no stamp is silence
+      AudioChannels inputs = JCoreAudio.getInstance().getInputChannels();
+      for (int c = 0; c < inputs.getNumChannels(); c++) {
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+          inputs.set(c, i, (float) (Math.round(timestamp) + i));
+        }
+      }
+      BenchmarkBackend.input(timestamp);
+    }
+    
+    void output(double timestamp) {
+      BenchmarkBackend.output(timestamp);
+    }
+  }
+  
+  private static Listener check(String name, long expectedLatency, long expectedSlips,
+      Schedule schedule) {
+    BenchmarkBackend.open(2, BLOCK_SIZE, SAMPLE_RATE);
+    JCoreAudio jca = JCoreAudio.getInstance();
+    Listener listener = new Listener();
+    jca.setDuplexListener(listener);
+    DuplexAligner aligner = jca.getDuplexAligner();
+    listener.aligner = aligner;
+    
+    // the first cycles at time 64, so that no input is stamped with zero
+    for (long n = 1L; n <= SETTLING_BLOCKS; n++) {
+      schedule.cycle(n, n * BLOCK_SIZE);
+    }
+    listener.mismatches = 0L;
+    listener.silentBlocks = 0L;
+    for (long n = SETTLING_BLOCKS + 1; n <= NUM_BLOCKS; n++) {
+      schedule.cycle(n, n * BLOCK_SIZE);
+    }
+    BenchmarkBackend.close();
+    
+    System.out.printf("%-24s latency %4d, %d slips, %d mismatched and %d silent blocks of %d%n", name,
+        aligner.getAddedLatency(), aligner.getSlips(), listener.mismatches, listener.silentBlocks,
+        listener.blocks);
+    if (listener.negativeBlocks != 0L) {
+      throw new IllegalStateException(name + ": the latency was negative for " +
+          listener.negativeBlocks + " blocks.");
+    }
+    if (aligner.getAddedLatency() != expectedLatency) {
+      throw new IllegalStateException(name + ": expected a latency of " + expectedLatency +
+          " samples, not " + aligner.getAddedLatency() + ".");
+    }
+    if (aligner.getSlips() != expectedSlips) {
+      throw new IllegalStateException(name + ": expected " + expectedSlips + " slips, not " +
+          aligner.getSlips() + ".");
+    }
+    if (listener.mismatches != 0L) {
+      throw new IllegalStateException(name + ": " + listener.mismatches +
+          " blocks received input from the wrong time.");
+    }
+    return listener;
+  }
+}
@@ -0,0 +1,219 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio.bench;
+
+import java.util.Random;
+
+import ch.section6.jcoreaudio.AudioChannels;
+import ch.section6.jcoreaudio.JCoreAudio;
+import ch.section6.jcoreaudio.ProcessingGraph;
+import ch.section6.jcoreaudio.ProcessingNode;
+import ch.section6.jcoreaudio.bench.Microbenchmark.Options;
+
+/**
+ * <code>GraphBenchmark</code> measures how the processing of a {@link ProcessingGraph} scales with
+ * the number of worker threads. The graph is that of a mixing console: each channel is read from
+ * a table of noise, equalised by four peaking filters and compressed, and so is independent of the
+ * others. The graph is run through the output callback of <code>JCoreAudio</code>, once without
+ * workers and then with each number of workers, and the speedup is given relative to the first.
+ * <br/>
+ * Usage:
+ * <pre>
+ * java -cp JCoreAudio.jar:bench ch.section6.jcoreaudio.bench.GraphBenchmark \
+ *     [-c 64] [-b 64,256] [-t 0,1,2,3] [-w warmupMs] [-i iterationMs] [-n iterations]
+ * </pre>
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class GraphBenchmark {
+  
+  private static final float SAMPLE_RATE = 48000.0f;
+  
+  /** Copies the next block from a table of noise into a buffer. */
+  private static class SourceNode implements ProcessingNode {
+    private final float[] table;
+    private final int buffer;
+    private int position;
+    
+    SourceNode(float[] table, int buffer, int position) {
+      this.table = table;
+      this.buffer = buffer;
+      this.position = position;
+    }
+    
+    @Override
+    public void process(double timestamp, float[][] buffers) {
+      float[] x = buffers[buffer];
+      if (position + x.length > table.length) position = 0;
+      System.arraycopy(table, position, x, 0, x.length);
+      position += x.length;
+    }
+  }
+  
+  /** Four peaking filters in series, in transposed direct form II. */
+  private static class EqualiserNode implements ProcessingNode {
+    private static final int NUM_BANDS = 4;
+    private final int buffer;
+    private final float[] b0 = new float[NUM_BANDS];
+    private final float[] b1 = new float[NUM_BANDS];
+    private final float[] b2 = new float[NUM_BANDS];
+    private final float[] a1 = new float[NUM_BANDS];
+    private final float[] a2 = new float[NUM_BANDS];
+    private final float[] z1 = new float[NUM_BANDS];
+    private final float[] z2 = new float[NUM_BANDS];
+    
+    EqualiserNode(int buffer, Random random) {
+      this.buffer = buffer;
+      for (int k = 0; k < NUM_BANDS; k++) {
+        double frequency = 100.0 * Math.pow(4.0, k) * (0.8 + 0.4 * random.nextDouble());
+        double gain = Math.pow(10.0, (random.nextDouble() * 12.0 - 6.0) / 40.0);
+        double w = 2.0 * Math.PI * frequency / SAMPLE_RATE;
+        double alpha = Math.sin(w) / (2.0 * 0.7);
+        double a0 = 1.0 + alpha / gain;
+        b0[k] = (float) ((1.0 + alpha * gain) / a0);
+        b1[k] = (float) (-2.0 * Math.cos(w) / a0);
+        b2[k] = (float) ((1.0 - alpha * gain) / a0);
+        a1[k] = b1[k];
+        a2[k] = (float) ((1.0 - alpha / gain) / a0);
+      }
+    }
+    
+    @Override
+    public void process(double timestamp, float[][] buffers) {
+      float[] x = buffers[buffer];
+      for (int k = 0; k < NUM_BANDS; k++) {
+        float c0 = b0[k], c1 = b1[k], c2 = b2[k], d1 = a1[k], d2 = a2[k];
+        float s1 = z1[k], s2 = z2[k];
+        for (int i = 0; i < x.length; i++) {
+          float in = x[i];
+          float out = c0 * in + s1;
+          s1 = c1 * in - d1 * out + s2;
+          s2 = c2 * in - d2 * out;
+          x[i] = out;
+        }
+        z1[k] = s1;
+        z2[k] = s2;
+      }
+    }
+  }
+  
+  /**
+   * A feed-forward compressor with a ratio of 4:1. The target gain is computed every 16 samples,
+   * and the gain follows it smoothly.
+   */
+  private static class CompressorNode implements ProcessingNode {
+    private static final int CONTROL_FRAMES = 16;
+    private static final float THRESHOLD = 0.1f;
+    private final int buffer;
+    private final float attack = (float) Math.exp(-1.0 / (0.001 * SAMPLE_RATE));
+    private final float release = (float) Math.exp(-1.0 / (0.1 * SAMPLE_RATE));
+    private final float smoothing = (float) (1.0 - Math.exp(-1.0 / (0.002 * SAMPLE_RATE)));
+    private float envelope;
+    private float gain = 1.0f;
+    
+    CompressorNode(int buffer) {
+      this.buffer = buffer;
+    }
+    
+    @Override
+    public void process(double timestamp, float[][] buffers) {
+      float[] x = buffers[buffer];
+      float e = envelope, g = gain, target = 1.0f;
+      for (int i = 0; i < x.length; i++) {
+        float level = Math.abs(x[i]);
+        float k = (level > e) ? attack : release;
+        e = k * e + (1.0f - k) * level;
+        if (i % CONTROL_FRAMES == 0) {
+          target = (e > THRESHOLD) ? (float) Math.pow(THRESHOLD / e, 0.75) : 1.0f;
+        }
+        g += (target - g) * smoothing;
+        x[i] *= g;
+      }
+      envelope = e;
+      gain = g;
+    }
+  }
+  
+  public static void main(String[] args) {
+    Options options = Options.parse(args);
+    int numChannels = Microbenchmark.parseIntList(args, "-c", new int[] {64})[0];
+    int[] blockSizes = Microbenchmark.parseIntList(args, "-b", new int[] {64, 256});
+    int[] defaultThreads = new int[Math.max(2, Runtime.getRuntime().availableProcessors())];
+    for (int i = 0; i < defaultThreads.length; i++) defaultThreads[i] = i;
+    int[] threadCounts = Microbenchmark.parseIntList(args, "-t", defaultThreads);
+    
+    float[] table = new float[48000];
+    Random random = new Random(0L);
+    for (int i = 0; i < table.length; i++) {
+      table[i] = (float) random.nextGaussian() * 0.2f;
+    }
+    for (int blockSize : blockSizes) {
+      BenchmarkBackend.open(numChannels, blockSize, SAMPLE_RATE);
+      System.out.println("# " + numChannels + " channels, " + blockSize + " frames, " +
+          Runtime.getRuntime().availableProcessors() + " cores");
+      double serialNanos = 0.0;
+      for (int numThreads : threadCounts) {
+        ProcessingGraph graph = createGraph(numChannels, blockSize, numThreads, table);
+        double nanos = measure(graph, options);
+        if (serialNanos == 0.0) serialNanos = nanos;
+        double periodNanos = 1.0e9 * blockSize / SAMPLE_RATE;
+        System.out.printf("    %.1f%% of the block period, %.2fx speedup, %d of %d blocks serial, %d incomplete%n",
+            100.0 * nanos / periodNanos, serialNanos / nanos, graph.getSerialBlocks(),
+            graph.getSerialBlocks() + graph.getParallelBlocks(), graph.getIncompleteBlocks());
+        graph.close();
+      }
+      BenchmarkBackend.close();
+    }
+  }
+  
+  private static ProcessingGraph createGraph(int numChannels, int blockSize, int numThreads,
+      float[] table) {
+    ProcessingGraph graph = new ProcessingGraph(0, numChannels, 0, blockSize, SAMPLE_RATE, numThreads);
+    Random random = new Random(1L);
+    int[] none = new int[0];
+    for (int c = 0; c < numChannels; c++) {
+      int[] channel = new int[] {graph.getOutputBuffer(c)};
+      graph.addNode(new SourceNode(table, channel[0], random.nextInt(table.length)), none, channel);
+      graph.addNode(new EqualiserNode(channel[0], random), none, channel);
+      graph.addNode(new CompressorNode(channel[0]), none, channel);
+    }
+    return graph;
+  }
+  
+  /** Returns the time of one output callback in nanoseconds. */
+  private static double measure(ProcessingGraph graph, Options options) {
+    JCoreAudio.getInstance().setChannelListener(graph);
+    final AudioChannels outputs = JCoreAudio.getInstance().getOutputChannels();
+    final int blockSize = graph.getBlockSize();
+    Microbenchmark.Result result = Microbenchmark.measure("graph [" + graph.getNumThreads() +
+        " workers] (per block)", new Microbenchmark() {
+      private double timestamp;
+      @Override public int getOperationsPerRun() { return 1; }
+      @Override public long run() {
+        BenchmarkBackend.output(timestamp);
+        timestamp += blockSize;
+        return Float.floatToRawIntBits(outputs.get(0, 0));
+      }
+    }, options);
+    JCoreAudio.getInstance().setChannelListener(null);
+    return result.nanosPerOp;
+  }
+}
@@ -0,0 +1,209 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio.bench;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Set;
+
+import ch.section6.jcoreaudio.AudioChannels;
+import ch.section6.jcoreaudio.AudioLet;
+import ch.section6.jcoreaudio.CoreAudioChannelListener;
+import ch.section6.jcoreaudio.CoreAudioListener;
+import ch.section6.jcoreaudio.JCoreAudio;
+import ch.section6.jcoreaudio.LatencyHistogram;
+import ch.section6.jcoreaudio.bench.Microbenchmark.Options;
+
+/**
+ * <code>HotPathBenchmark</code> measures the callback dispatch of <code>JCoreAudio</code> and the
+ * ways in which a listener can write samples into <code>AudioLet</code> buffers:
+ * <ul>
+ *   <li>dispatch of <code>fireOnCoreAudioOutput</code> into a <code>CoreAudioListener</code>
+ *       (with and without iterating the let set) and into a <code>CoreAudioChannelListener</code>.</li>
+ *   <li>recording a callback duration into a <code>LatencyHistogram</code>, as done for every
+ *       callback by the <code>AudioSessionMonitor</code>.</li>
+ *   <li>per-sample relative <code>FloatBuffer.put(float)</code>, as in <code>ExampleJca</code>.</li>
+ *   <li>per-sample absolute <code>FloatBuffer.put(int, float)</code>.</li>
+ *   <li>bulk <code>FloatBuffer.put(float[])</code> from a heap scratch array.</li>
+ *   <li>per-sample absolute <code>ByteBuffer.putFloat(int, float)</code> on
+ *       <code>getChannelByteBuffer</code>.</li>
+ * </ul>
+ * Buffer access is reported per sample, dispatch per callback. Usage:
+ * <pre>
+ * java -cp JCoreAudio.jar:bench ch.section6.jcoreaudio.bench.HotPathBenchmark \
+ *     [-b 32,64,...,4096] [-c 1,2,8,32,64] [-w warmupMs] [-i iterationMs] [-n iterations]
+ * </pre>
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class HotPathBenchmark {
+  
+  private static final float SAMPLE_RATE = 48000.0f;
+  
+  public static void main(String[] args) {
+    Options options = Options.parse(args);
+    int[] blockSizes = Microbenchmark.parseIntList(args, "-b",
+        new int[] {32, 64, 128, 256, 512, 1024, 2048, 4096});
+    int[] channelCounts = Microbenchmark.parseIntList(args, "-c", new int[] {1, 2, 8, 32, 64});
+    
+    System.out.println("# instrumentation (per callback)");
+    measureInstrumentation(options);
+    
+    System.out.println("# dispatch (per callback, block size " + blockSizes[0] + ")");
+    for (int numChannels : channelCounts) {
+      BenchmarkBackend.open(numChannels, blockSizes[0], SAMPLE_RATE);
+      measureDispatch(numChannels, options);
+      BenchmarkBackend.close();
+    }
+    
+    System.out.println("# buffer access (per sample)");
+    for (int blockSize : blockSizes) {
+      for (int numChannels : channelCounts) {
+        BenchmarkBackend.open(numChannels, blockSize, SAMPLE_RATE);
+        measureBufferAccess(numChannels, blockSize, options);
+        BenchmarkBackend.close();
+      }
+    }
+    System.out.println("# MemorySegment access is not measured: java.lang.foreign is not available " +
+        "on the Java versions targeted by JCoreAudio.");
+  }
+  
+  private static void measureInstrumentation(Options options) {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    Microbenchmark.measure("LatencyHistogram.record + 2x System.nanoTime", new Microbenchmark() {
+      @Override public long run() {
+        long start = System.nanoTime();
+        histogram.record(System.nanoTime() - start);
+        return histogram.getCount();
+      }
+    }, options);
+  }
+  
+  private static void measureDispatch(int numChannels, Options options) {
+    final JCoreAudio jca = JCoreAudio.getInstance();
+    String suffix = " [" + numChannels + "ch]";
+    
+    jca.setListener(new CoreAudioListener() {
+      @Override public void onCoreAudioInput(double timestamp, Set<AudioLet> inputLets) { }
+      @Override public void onCoreAudioOutput(double timestamp, Set<AudioLet> outputLets) { }
+    });
+    Microbenchmark.measure("dispatch CoreAudioListener" + suffix, new Microbenchmark() {
+      private double timestamp;
+      @Override public long run() {
+        BenchmarkBackend.output(timestamp += 64.0);
+        return 1L;
+      }
+    }, options);
+    
+    final long[] counter = new long[1];
+    jca.setListener(new CoreAudioListener() {
+      @Override public void onCoreAudioInput(double timestamp, Set<AudioLet> inputLets) { }
+      @Override public void onCoreAudioOutput(double timestamp, Set<AudioLet> outputLets) {
+        for (AudioLet let : outputLets) {
+          counter[0] += let.numChannels;
+        }
+      }
+    });
+    Microbenchmark.measure("dispatch CoreAudioListener + Set iteration" + suffix, new Microbenchmark() {
+      private double timestamp;
+      @Override public long run() {
+        BenchmarkBackend.output(timestamp += 64.0);
+        return counter[0];
+      }
+    }, options);
+    
+    jca.setChannelListener(new CoreAudioChannelListener() {
+      @Override public void onCoreAudioInput(double timestamp, AudioChannels inputs) { }
+      @Override public void onCoreAudioOutput(double timestamp, AudioChannels outputs) {
+        counter[0] += outputs.getNumChannels();
+      }
+    });
+    Microbenchmark.measure("dispatch CoreAudioChannelListener" + suffix, new Microbenchmark() {
+      private double timestamp;
+      @Override public long run() {
+        BenchmarkBackend.output(timestamp += 64.0);
+        return counter[0];
+      }
+    }, options);
+  }
+  
+  private static void measureBufferAccess(final int numChannels, final int blockSize, Options options) {
+    final AudioChannels outputs = JCoreAudio.getInstance().getOutputChannels();
+    final float[] source = new float[blockSize];
+    for (int i = 0; i < blockSize; i++) {
+      source[i] = (float) Math.sin(2.0 * Math.PI * i * 440.0 / SAMPLE_RATE);
+    }
+    final int samplesPerRun = numChannels * blockSize;
+    String suffix = " [" + blockSize + "x" + numChannels + "ch]";
+    
+    Microbenchmark.measure("FloatBuffer.put(float)" + suffix, new Microbenchmark() {
+      @Override public int getOperationsPerRun() { return samplesPerRun; }
+      @Override public long run() {
+        for (int c = 0; c < numChannels; c++) {
+          FloatBuffer buffer = outputs.getFloatBuffer(c);
+          buffer.rewind();
+          for (int i = 0; i < blockSize; i++) {
+            buffer.put(source[i]);
+          }
+        }
+        return outputs.getFloatBuffer(0).position();
+      }
+    }, options);
+    
+    Microbenchmark.measure("FloatBuffer.put(int, float)" + suffix, new Microbenchmark() {
+      @Override public int getOperationsPerRun() { return samplesPerRun; }
+      @Override public long run() {
+        for (int c = 0; c < numChannels; c++) {
+          FloatBuffer buffer = outputs.getFloatBuffer(c);
+          for (int i = 0; i < blockSize; i++) {
+            buffer.put(i, source[i]);
+          }
+        }
+        return Float.floatToRawIntBits(outputs.get(0, blockSize - 1));
+      }
+    }, options);
+    
+    Microbenchmark.measure("FloatBuffer.put(float[])" + suffix, new Microbenchmark() {
+      @Override public int getOperationsPerRun() { return samplesPerRun; }
+      @Override public long run() {
+        for (int c = 0; c < numChannels; c++) {
+          FloatBuffer buffer = outputs.getFloatBuffer(c);
+          buffer.rewind();
+          buffer.put(source);
+        }
+        return outputs.getFloatBuffer(0).position();
+      }
+    }, options);
+    
+    Microbenchmark.measure("ByteBuffer.putFloat(int, float)" + suffix, new Microbenchmark() {
+      @Override public int getOperationsPerRun() { return samplesPerRun; }
+      @Override public long run() {
+        for (int c = 0; c < numChannels; c++) {
+          ByteBuffer buffer = outputs.getByteBuffer(c);
+          for (int i = 0, j = 0; i < blockSize; i++, j += 4) {
+            buffer.putFloat(j, source[i]);
+          }
+        }
+        return Float.floatToRawIntBits(outputs.get(0, blockSize - 1));
+      }
+    }, options);
+  }
+}
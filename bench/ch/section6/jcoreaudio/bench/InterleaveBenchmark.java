@@ -0,0 +1,228 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio.bench;
+
+import java.nio.FloatBuffer;
+
+import ch.section6.jcoreaudio.AudioChannels;
+import ch.section6.jcoreaudio.AudioLet;
+import ch.section6.jcoreaudio.CoreAudioChannelListener;
+import ch.section6.jcoreaudio.JCoreAudio;
+import ch.section6.jcoreaudio.SampleKernels;
+import ch.section6.jcoreaudio.bench.Microbenchmark.Options;
+
+/**
+ * <code>InterleaveBenchmark</code> compares per-channel (planar) and interleaved buffers for
+ * multichannel processing, in order to choose a layout:
+ * <ul>
+ *   <li>a per-sample gain, which touches every sample once in either layout.</li>
+ *   <li>a downmix of all channels into one, which works across channels frame by frame.</li>
+ *   <li>the cost of the <code>SampleKernels</code> interleave and deinterleave kernels, compared
+ *       with the channel-by-channel strided loop used by the native output callback.</li>
+ *   <li>a whole output callback which applies the gain, in planar mode and in interleaved mode,
+ *       where the latter includes deinterleaving the output after the listener.</li>
+ * </ul>
+ * All figures are per sample. Usage:
+ * <pre>
+ * java -cp JCoreAudio.jar:bench ch.section6.jcoreaudio.bench.InterleaveBenchmark \
+ *     [-b 64,256,...] [-c 2,8,32,64] [-w warmupMs] [-i iterationMs] [-n iterations]
+ * </pre>
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class InterleaveBenchmark {
+  
+  private static final float SAMPLE_RATE = 48000.0f;
+  
+  public static void main(String[] args) {
+    Options options = Options.parse(args);
+    int[] blockSizes = Microbenchmark.parseIntList(args, "-b", new int[] {256});
+    int[] channelCounts = Microbenchmark.parseIntList(args, "-c", new int[] {2, 8, 32, 64});
+    
+    for (int blockSize : blockSizes) {
+      for (int numChannels : channelCounts) {
+        System.out.println("# " + blockSize + "x" + numChannels + "ch (per sample)");
+        BenchmarkBackend.open(numChannels, blockSize, SAMPLE_RATE, true);
+        measureProcessing(numChannels, blockSize, options);
+        measureKernels(numChannels, blockSize, options);
+        measureCallback(numChannels, blockSize, false, options);
+        measureCallback(numChannels, blockSize, true, options);
+        BenchmarkBackend.close();
+      }
+    }
+  }
+  
+  private static void measureProcessing(final int numChannels, final int blockSize, Options options) {
+    AudioChannels outputs = JCoreAudio.getInstance().getOutputChannels();
+    final FloatBuffer[] planar = new FloatBuffer[numChannels];
+    for (int c = 0; c < numChannels; c++) {
+      planar[c] = outputs.getFloatBuffer(c);
+    }
+    final FloatBuffer interleaved = outputs.getLetAt(0).getInterleavedFloatBuffer();
+    final float[] mix = new float[blockSize];
+    final int samplesPerRun = numChannels * blockSize;
+    String suffix = " [" + blockSize + "x" + numChannels + "ch]";
+    
+    Microbenchmark.measure("gain, planar" + suffix, new Microbenchmark() {
+      @Override public int getOperationsPerRun() { return samplesPerRun; }
+      @Override public long run() {
+        for (int c = 0; c < numChannels; c++) {
+          FloatBuffer buffer = planar[c];
+          for (int i = 0; i < blockSize; i++) {
+            buffer.put(i, buffer.get(i) * 0.5f + 0.25f);
+          }
+        }
+        return Float.floatToRawIntBits(planar[0].get(0));
+      }
+    }, options);
+    
+    Microbenchmark.measure("gain, interleaved" + suffix, new Microbenchmark() {
+      @Override public int getOperationsPerRun() { return samplesPerRun; }
+      @Override public long run() {
+        for (int k = 0; k < samplesPerRun; k++) {
+          interleaved.put(k, interleaved.get(k) * 0.5f + 0.25f);
+        }
+        return Float.floatToRawIntBits(interleaved.get(0));
+      }
+    }, options);
+    
+    Microbenchmark.measure("downmix, planar" + suffix, new Microbenchmark() {
+      @Override public int getOperationsPerRun() { return samplesPerRun; }
+      @Override public long run() {
+        for (int i = 0; i < blockSize; i++) {
+          mix[i] = 0.0f;
+        }
+        for (int c = 0; c < numChannels; c++) {
+          FloatBuffer buffer = planar[c];
+          for (int i = 0; i < blockSize; i++) {
+            mix[i] += buffer.get(i);
+          }
+        }
+        return Float.floatToRawIntBits(mix[0]);
+      }
+    }, options);
+    
+    Microbenchmark.measure("downmix, interleaved" + suffix, new Microbenchmark() {
+      @Override public int getOperationsPerRun() { return samplesPerRun; }
+      @Override public long run() {
+        for (int i = 0, k = 0; i < blockSize; i++) {
+          float sum = 0.0f;
+          for (int c = 0; c < numChannels; c++, k++) {
+            sum += interleaved.get(k);
+          }
+          mix[i] = sum;
+        }
+        return Float.floatToRawIntBits(mix[0]);
+      }
+    }, options);
+  }
+  
+  private static void measureKernels(final int numChannels, final int blockSize, Options options) {
+    AudioLet let = JCoreAudio.getInstance().getOutputChannels().getLetAt(0);
+    final FloatBuffer[] planar = new FloatBuffer[numChannels];
+    for (int c = 0; c < numChannels; c++) {
+      planar[c] = let.getChannelFloatBuffer(c);
+    }
+    final FloatBuffer interleaved = let.getInterleavedFloatBuffer();
+    final float[][] planarArrays = new float[numChannels][blockSize];
+    final float[] interleavedArray = new float[numChannels * blockSize];
+    final int samplesPerRun = numChannels * blockSize;
+    String suffix = " [" + blockSize + "x" + numChannels + "ch]";
+    
+    Microbenchmark.measure("interleave, SampleKernels, FloatBuffer" + suffix, new Microbenchmark() {
+      @Override public int getOperationsPerRun() { return samplesPerRun; }
+      @Override public long run() {
+        SampleKernels.interleave(planar, interleaved, blockSize);
+        return Float.floatToRawIntBits(interleaved.get(1));
+      }
+    }, options);
+    
+    Microbenchmark.measure("interleave, strided by channel, FloatBuffer" + suffix, new Microbenchmark() {
+      @Override public int getOperationsPerRun() { return samplesPerRun; }
+      @Override public long run() {
+        for (int c = 0; c < numChannels; c++) {
+          FloatBuffer channel = planar[c];
+          for (int i = 0, k = c; i < blockSize; i++, k += numChannels) {
+            interleaved.put(k, channel.get(i));
+          }
+        }
+        return Float.floatToRawIntBits(interleaved.get(1));
+      }
+    }, options);
+    
+    Microbenchmark.measure("deinterleave, SampleKernels, FloatBuffer" + suffix, new Microbenchmark() {
+      @Override public int getOperationsPerRun() { return samplesPerRun; }
+      @Override public long run() {
+        SampleKernels.deinterleave(interleaved, planar, blockSize);
+        return Float.floatToRawIntBits(planar[0].get(1));
+      }
+    }, options);
+    
+    Microbenchmark.measure("interleave, SampleKernels, float[]" + suffix, new Microbenchmark() {
+      @Override public int getOperationsPerRun() { return samplesPerRun; }
+      @Override public long run() {
+        SampleKernels.interleave(planarArrays, 0, interleavedArray, 0, blockSize);
+        return Float.floatToRawIntBits(interleavedArray[1]);
+      }
+    }, options);
+    
+    Microbenchmark.measure("deinterleave, SampleKernels, float[]" + suffix, new Microbenchmark() {
+      @Override public int getOperationsPerRun() { return samplesPerRun; }
+      @Override public long run() {
+        SampleKernels.deinterleave(interleavedArray, 0, planarArrays, 0, blockSize);
+        return Float.floatToRawIntBits(planarArrays[0][1]);
+      }
+    }, options);
+  }
+  
+  private static void measureCallback(final int numChannels, final int blockSize,
+      final boolean isInterleaved, Options options) {
+    BenchmarkBackend.open(numChannels, blockSize, SAMPLE_RATE, isInterleaved);
+    JCoreAudio.getInstance().setChannelListener(new CoreAudioChannelListener() {
+      @Override public void onCoreAudioInput(double timestamp, AudioChannels inputs) { }
+      @Override public void onCoreAudioOutput(double timestamp, AudioChannels outputs) {
+        if (isInterleaved) {
+          FloatBuffer buffer = outputs.getLetAt(0).getInterleavedFloatBuffer();
+          for (int k = 0, n = numChannels * blockSize; k < n; k++) {
+            buffer.put(k, buffer.get(k) * 0.5f + 0.25f);
+          }
+        } else {
+          for (int c = 0; c < numChannels; c++) {
+            FloatBuffer buffer = outputs.getFloatBuffer(c);
+            for (int i = 0; i < blockSize; i++) {
+              buffer.put(i, buffer.get(i) * 0.5f + 0.25f);
+            }
+          }
+        }
+      }
+    });
+    final int samplesPerRun = numChannels * blockSize;
+    Microbenchmark.measure("output callback with gain, " + (isInterleaved ? "interleaved" : "planar") +
+        " [" + blockSize + "x" + numChannels + "ch]", new Microbenchmark() {
+      private double timestamp;
+      @Override public int getOperationsPerRun() { return samplesPerRun; }
+      @Override public long run() {
+        BenchmarkBackend.output(timestamp += blockSize);
+        return (long) timestamp;
+      }
+    }, options);
+  }
+}
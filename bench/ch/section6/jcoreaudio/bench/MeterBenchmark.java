@@ -0,0 +1,170 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio.bench;
+
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import ch.section6.jcoreaudio.AudioChannels;
+import ch.section6.jcoreaudio.JCoreAudio;
+import ch.section6.jcoreaudio.LevelMeter;
+import ch.section6.jcoreaudio.MeterSnapshot;
+import ch.section6.jcoreaudio.bench.Microbenchmark.Options;
+
+/**
+ * <code>MeterBenchmark</code> measures the <code>LevelMeter</code>:
+ * <ul>
+ *   <li>its accuracy, with sines whose levels are known: the RMS level and momentary loudness of
+ *       a 997Hz sine at -20dBFS, and the true peak of a full-scale sine at a quarter of the
+ *       sample rate, whose samples fall 3dB below its peaks.</li>
+ *   <li>the time taken to meter a block of noise in the calling thread, per block and as a share
+ *       of a core.</li>
+ *   <li>the meter with its worker thread, called in real time for a few seconds, which reports
+ *       the mean and largest time spent in the callback as a share of the block period, and the
+ *       blocks metered and skipped.</li>
+ * </ul>
+ * Usage:
+ * <pre>
+ * java -cp JCoreAudio.jar:bench ch.section6.jcoreaudio.bench.MeterBenchmark \
+ *     [-b 64,...] [-c 2,64] [-w warmupMs] [-i iterationMs] [-n iterations]
+ * </pre>
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class MeterBenchmark {
+  
+  private static final float SAMPLE_RATE = 48000.0f;
+  
+  public static void main(String[] args) {
+    Options options = Options.parse(args);
+    int[] blockSizes = Microbenchmark.parseIntList(args, "-b", new int[] {64, 256});
+    int[] channelCounts = Microbenchmark.parseIntList(args, "-c", new int[] {2, 64});
+    
+    measureAccuracy();
+    for (int blockSize : blockSizes) {
+      for (int numChannels : channelCounts) {
+        measureCost(numChannels, blockSize, options);
+        measureRealTime(numChannels, blockSize, 2.0);
+      }
+    }
+  }
+  
+  private static void measureAccuracy() {
+    int blockSize = 64;
+    BenchmarkBackend.open(1, blockSize, SAMPLE_RATE);
+    AudioChannels outputs = JCoreAudio.getInstance().getOutputChannels();
+    LevelMeter meter = new LevelMeter(false, 1, blockSize, SAMPLE_RATE, 0.3, false);
+    MeterSnapshot levels = new MeterSnapshot(1);
+    
+    double amplitude = Math.pow(10.0, -20.0 / 20.0) * Math.sqrt(2.0); // -20dBFS RMS
+    for (long t = 0; t < 2 * (long) SAMPLE_RATE; t += blockSize) {
+      for (int i = 0; i < blockSize; i++) {
+        outputs.set(0, i, (float) (amplitude * Math.sin(2.0 * Math.PI * 997.0 * (t + i) / SAMPLE_RATE)));
+      }
+      meter.process(t, outputs);
+    }
+    meter.read(levels);
+    System.out.printf("997Hz at -20dBFS: RMS %.2f dBFS, loudness %.2f LUFS (expected -20.00 and -20.00)%n",
+        MeterSnapshot.toDecibels(levels.getRms(0)), levels.getLoudness(0));
+    
+    meter = new LevelMeter(false, 1, blockSize, SAMPLE_RATE, 0.3, false);
+    for (long t = 0; t < 4 * blockSize; t += blockSize) {
+      for (int i = 0; i < blockSize; i++) {
+        outputs.set(0, i, (float) Math.sin(2.0 * Math.PI * (t + i) / 4.0 + Math.PI / 4.0));
+      }
+      meter.process(t, outputs);
+    }
+    meter.read(levels);
+    System.out.printf("12kHz at 0dBFS, samples at -3dBFS: peak %.2f dBFS, true peak %.2f dBFS%n",
+        MeterSnapshot.toDecibels(levels.getPeak(0)), MeterSnapshot.toDecibels(levels.getTruePeak(0)));
+    BenchmarkBackend.close();
+  }
+  
+  /** Measures the metering of one block in the calling thread. */
+  private static void measureCost(int numChannels, final int blockSize, Options options) {
+    final AudioChannels outputs = openNoise(numChannels, blockSize);
+    final LevelMeter meter = new LevelMeter(false, numChannels, blockSize, SAMPLE_RATE, 0.3, false);
+    Microbenchmark.Result result = Microbenchmark.measure("meter [" + blockSize + "x" + numChannels +
+        "ch] (per block)", new Microbenchmark() {
+      private double timestamp;
+      @Override public long run() {
+        meter.process(timestamp, outputs);
+        timestamp += blockSize;
+        return (long) timestamp;
+      }
+    }, options);
+    System.out.printf("    %.2f%% of a core%n", 100.0 * result.nanosPerOp * SAMPLE_RATE / (1.0e9 * blockSize));
+    BenchmarkBackend.close();
+  }
+  
+  /**
+   * Calls a meter with its worker once per block period, as the audio callback would. The first
+   * second warms up the compiler, and is not counted.
+   */
+  private static void measureRealTime(int numChannels, int blockSize, double seconds) {
+    AudioChannels outputs = openNoise(numChannels, blockSize);
+    LevelMeter meter = new LevelMeter(false, numChannels, blockSize, SAMPLE_RATE);
+    double periodNanos = 1.0e9 * blockSize / SAMPLE_RATE;
+    int warmupBlocks = (int) (SAMPLE_RATE / blockSize);
+    int numBlocks = (int) (seconds * SAMPLE_RATE / blockSize);
+    long totalNanos = 0L;
+    long maxNanos = 0L;
+    long meteringNanos = 0L;
+    long startNanos = System.nanoTime();
+    for (int i = -warmupBlocks; i < numBlocks; i++) {
+      if (i == 0) meteringNanos = meter.getMeteringNanos();
+      long deadline = startNanos + (long) ((i + warmupBlocks) * periodNanos);
+      long remaining;
+      while ((remaining = deadline - System.nanoTime()) > 0L) {
+        if (remaining > 100000L) LockSupport.parkNanos(remaining - 100000L);
+      }
+      long callbackNanos = System.nanoTime();
+      meter.process((i + warmupBlocks) * (double) blockSize, outputs);
+      long nanos = System.nanoTime() - callbackNanos;
+      if (i >= 0) {
+        totalNanos += nanos;
+        maxNanos = Math.max(maxNanos, nanos);
+      }
+    }
+    meter.close();
+    MeterSnapshot levels = new MeterSnapshot(numChannels);
+    meter.read(levels);
+    System.out.printf("%-60s %10.3f us per block in the callback, max %.1f us, %d blocks metered, " +
+        "%d skipped%n", "real time [" + blockSize + "x" + numChannels + "ch]",
+        totalNanos / 1000.0 / numBlocks, maxNanos / 1000.0, levels.getBlocks(), meter.getSkippedBlocks());
+    System.out.printf("    %.2f%% of the block period in the callback, %.2f%% of a core in the worker%n",
+        100.0 * totalNanos / (numBlocks * periodNanos), 100.0 * (meter.getMeteringNanos() - meteringNanos) / (numBlocks * periodNanos));
+    BenchmarkBackend.close();
+  }
+  
+  /** Opens the benchmark backend, and fills its output channels with noise. */
+  private static AudioChannels openNoise(int numChannels, int blockSize) {
+    BenchmarkBackend.open(numChannels, blockSize, SAMPLE_RATE);
+    AudioChannels outputs = JCoreAudio.getInstance().getOutputChannels();
+    Random random = new Random(0);
+    for (int c = 0; c < numChannels; c++) {
+      for (int i = 0; i < blockSize; i++) {
+        outputs.set(c, i, (float) random.nextGaussian() * 0.25f);
+      }
+    }
+    return outputs;
+  }
+}
@@ -0,0 +1,177 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ *
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+/**
+ * <code>Microbenchmark</code> is a small, dependency-free harness for timing hot paths. Each
+ * benchmark is warmed up, and then timed over a number of fixed-length iterations in which the
+ * operation is repeated in batches. It reports the mean and standard deviation of the time per
+ * operation and, where the JVM supports it, the number of bytes allocated per operation.<br/>
+ * <br/>
+ * Operations return a value which is accumulated into a sink, so that the JIT cannot remove
+ * them as dead code.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public abstract class Microbenchmark {
+
+  /** The operation to measure. The return value is consumed by the harness. */
+  public abstract long run();
+
+  /** The number of logical operations performed by each call to {@link #run()}, e.g. samples. */
+  public int getOperationsPerRun() {
+    return 1;
+  }
+
+  /** Called once before warmup. */
+  public void setUp() {
+    // nothing to do
+  }
+
+  /** Called once after measurement. */
+  public void tearDown() {
+    // nothing to do
+  }
+
+  /** Timing parameters, shared by all benchmarks of a run. */
+  public static class Options {
+    public long warmupMillis = 500L;
+    public long iterationMillis = 200L;
+    public int iterations = 5;
+
+    /** Parses <code>-w ms</code>, <code>-i ms</code> and <code>-n count</code> from the arguments. */
+    public static Options parse(String[] args) {
+      Options options = new Options();
+      for (int i = 0; i + 1 < args.length; i++) {
+        if (args[i].equals("-w")) options.warmupMillis = Long.parseLong(args[++i]);
+        else if (args[i].equals("-i")) options.iterationMillis = Long.parseLong(args[++i]);
+        else if (args[i].equals("-n")) options.iterations = Integer.parseInt(args[++i]);
+      }
+      return options;
+    }
+  }
+
+  /** The result of measuring a benchmark. */
+  public static class Result {
+    public final String name;
+    public final double nanosPerOp;
+    public final double stdevNanosPerOp;
+    public final double bytesPerOp;
+
+    Result(String name, double nanosPerOp, double stdevNanosPerOp, double bytesPerOp) {
+      this.name = name;
+      this.nanosPerOp = nanosPerOp;
+      this.stdevNanosPerOp = stdevNanosPerOp;
+      this.bytesPerOp = bytesPerOp;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%-56s %12.3f ns/op  +- %8.3f  %10s B/op", name, nanosPerOp,
+          stdevNanosPerOp, Double.isNaN(bytesPerOp) ? "n/a" : String.format("%.3f", bytesPerOp));
+    }
+  }
+
+  private static volatile long sink;
+
+  /** Measures the given benchmark and prints its result to standard out. */
+  public static Result measure(String name, Microbenchmark benchmark, Options options) {
+    benchmark.setUp();
+    try {
+      // find a batch size which takes roughly a millisecond, so that timer overhead is negligible
+      int batch = 1;
+      long accumulator = 0L;
+      while (true) {
+        long start = System.nanoTime();
+        for (int i = 0; i < batch; i++) accumulator += benchmark.run();
+        if (System.nanoTime() - start > 1000000L || batch >= (1 << 24)) break;
+        batch <<= 1;
+      }
+
+      long warmupEnd = System.nanoTime() + options.warmupMillis * 1000000L;
+      while (System.nanoTime() < warmupEnd) {
+        for (int i = 0; i < batch; i++) accumulator += benchmark.run();
+      }
+
+      ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+      long threadId = Thread.currentThread().getId();
+      double[] nanosPerOp = new double[options.iterations];
+      long totalOps = 0L;
+      long allocatedBefore = getAllocatedBytes(mx, threadId);
+      for (int n = 0; n < options.iterations; n++) {
+        long ops = 0L;
+        long start = System.nanoTime();
+        long end = start + options.iterationMillis * 1000000L;
+        long now;
+        do {
+          for (int i = 0; i < batch; i++) accumulator += benchmark.run();
+          ops += (long) batch * benchmark.getOperationsPerRun();
+        } while ((now = System.nanoTime()) < end);
+        nanosPerOp[n] = (now - start) / (double) ops;
+        totalOps += ops;
+      }
+      long allocatedAfter = getAllocatedBytes(mx, threadId);
+      sink += accumulator;
+
+      double mean = 0.0;
+      for (double d : nanosPerOp) mean += d;
+      mean /= nanosPerOp.length;
+      double variance = 0.0;
+      for (double d : nanosPerOp) variance += (d - mean) * (d - mean);
+      double stdev = (nanosPerOp.length > 1) ? Math.sqrt(variance / (nanosPerOp.length - 1)) : 0.0;
+      double bytesPerOp = (allocatedBefore < 0L) ? Double.NaN :
+          (allocatedAfter - allocatedBefore) / (double) totalOps;
+
+      Result result = new Result(name, mean, stdev, bytesPerOp);
+      System.out.println(result);
+      return result;
+    } finally {
+      benchmark.tearDown();
+    }
+  }
+
+  /** Returns the bytes allocated by the thread so far, or -1 if this is not supported. */
+  private static long getAllocatedBytes(ThreadMXBean mx, long threadId) {
+    if (mx instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) mx).getThreadAllocatedBytes(threadId);
+    }
+    return -1L;
+  }
+
+  /** Parses a comma-separated list of integers, e.g. <code>32,64,128</code>. */
+  public static int[] parseIntList(String[] args, String flag, int[] defaults) {
+    for (int i = 0; i + 1 < args.length; i++) {
+      if (args[i].equals(flag)) {
+        String[] parts = args[i+1].split(",");
+        int[] values = new int[parts.length];
+        for (int j = 0; j < parts.length; j++) {
+          values[j] = Integer.parseInt(parts[j].trim());
+        }
+        return values;
+      }
+    }
+    return Arrays.copyOf(defaults, defaults.length);
+  }
+}
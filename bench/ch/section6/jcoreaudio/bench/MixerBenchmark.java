@@ -0,0 +1,136 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package ch.section6.jcoreaudio.bench;
+
+import java.util.Random;
+
+import ch.section6.jcoreaudio.AudioChannels;
+import ch.section6.jcoreaudio.JCoreAudio;
+import ch.section6.jcoreaudio.Mixer;
+import ch.section6.jcoreaudio.bench.Microbenchmark.Options;
+
+/**
+ * <code>MixerBenchmark</code> measures the number of voices which one core can mix in real time,
+ * for each block size. The voices loop over a shared table of samples, as those of a sampler
+ * would, and are spread over the sub-buses of a stereo mixer:
+ * <ul>
+ *   <li>static voices, whose gain and pan are constant.</li>
+ *   <li>ramped voices, whose gain is always ramping.</li>
+ *   <li>static voices with the sub-buses rendered in parallel by worker threads.</li>
+ * </ul>
+ * Usage:
+ * <pre>
+ * java -cp JCoreAudio.jar:bench ch.section6.jcoreaudio.bench.MixerBenchmark \
+ *     [-b 64,256] [-v 1024,4096] [-u 8] [-t threads] [-w warmupMs] [-i iterationMs] [-n iterations]
+ * </pre>
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class MixerBenchmark {
+  
+  private static final float SAMPLE_RATE = 48000.0f;
+  
+  /** A voice which loops over a table of samples. */
+  private static class LoopSource implements Mixer.Source {
+    private final float[] table;
+    private int position;
+    
+    LoopSource(float[] table, int position) {
+      this.table = table;
+      this.position = position;
+    }
+    
+    @Override
+    public boolean render(float[] buffer, int numFrames) {
+      for (int i = 0; i < numFrames; ) {
+        int n = Math.min(numFrames - i, table.length - position);
+        System.arraycopy(table, position, buffer, i, n);
+        i += n;
+        position += n;
+        if (position == table.length) position = 0;
+      }
+      return true;
+    }
+  }
+  
+  public static void main(String[] args) {
+    Options options = Options.parse(args);
+    int[] blockSizes = Microbenchmark.parseIntList(args, "-b", new int[] {64, 256});
+    int[] voiceCounts = Microbenchmark.parseIntList(args, "-v", new int[] {1024, 4096});
+    int numBuses = Microbenchmark.parseIntList(args, "-u", new int[] {8})[0];
+    int numThreads = Microbenchmark.parseIntList(args, "-t",
+        new int[] {Math.max(1, Runtime.getRuntime().availableProcessors() - 1)})[0];
+    
+    float[] table = new float[48000];
+    Random random = new Random(0L);
+    for (int i = 0; i < table.length; i++) {
+      table[i] = (float) random.nextGaussian() * 0.1f;
+    }
+    for (int blockSize : blockSizes) {
+      BenchmarkBackend.open(2, blockSize, SAMPLE_RATE);
+      AudioChannels outputs = JCoreAudio.getInstance().getOutputChannels();
+      for (int numVoices : voiceCounts) {
+        System.out.println("# " + numVoices + " voices, " + blockSize + " frames, " + numBuses + " sub-buses");
+        measure("static", createMixer(blockSize, numVoices, numBuses, 0, false, table), outputs, options);
+        measure("ramped", createMixer(blockSize, numVoices, numBuses, 0, true, table), outputs, options);
+        if (numBuses > 0) {
+          measure("static [" + numThreads + " workers]",
+              createMixer(blockSize, numVoices, numBuses, numThreads, false, table), outputs, options);
+        }
+      }
+      BenchmarkBackend.close();
+    }
+  }
+  
+  private static Mixer createMixer(int blockSize, int numVoices, int numBuses, int numThreads,
+      boolean isRamped, float[] table) {
+    Mixer mixer = new Mixer(2, blockSize, SAMPLE_RATE, numVoices, numBuses, numThreads);
+    Random random = new Random(1L);
+    for (int i = 0; i < numVoices; i++) {
+      int bus = (numBuses == 0) ? Mixer.MASTER : i % numBuses;
+      long voice = mixer.play(new LoopSource(table, random.nextInt(table.length)), bus, 0,
+          1.0f / numVoices, random.nextFloat() * 2.0f - 1.0f);
+      if (isRamped) {
+        // a ramp which will not end during the benchmark
+        mixer.setGain(voice, 0.0f, Integer.MAX_VALUE);
+      }
+    }
+    return mixer;
+  }
+  
+  private static void measure(String name, final Mixer mixer, final AudioChannels outputs,
+      Options options) {
+    final int numVoices = mixer.getMaxVoices();
+    Microbenchmark.Result result = Microbenchmark.measure(name + " (per voice)", new Microbenchmark() {
+      @Override public int getOperationsPerRun() { return numVoices; }
+      @Override public long run() {
+        mixer.render(outputs);
+        return Float.floatToRawIntBits(outputs.get(0, 0));
+      }
+    }, options);
+    double periodNanos = 1.0e9 * mixer.getBlockSize() / SAMPLE_RATE;
+    System.out.printf("    %.0f voices per core, %d active, %d deadline misses, %d late blocks%n",
+        periodNanos / result.nanosPerOp, mixer.getActiveVoices(), mixer.getDeadlineMisses(),
+        mixer.getLateBlocks());
+    mixer.close();
+  }
+}
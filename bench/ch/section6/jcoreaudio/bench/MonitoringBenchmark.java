@@ -0,0 +1,221 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio.bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.locks.LockSupport;
+
+import ch.section6.jcoreaudio.AudioChannels;
+import ch.section6.jcoreaudio.CoreAudioChannelListener;
+import ch.section6.jcoreaudio.JCoreAudio;
+import ch.section6.jcoreaudio.MonitoringServer;
+
+/**
+ * <code>MonitoringBenchmark</code> measures the {@link MonitoringServer} over the loopback
+ * interface. The clients connect from one thread with a selector, and check the framing and the
+ * sequence numbers of everything they receive. The callbacks are made twice:
+ * <ul>
+ *   <li>at the pace of real time, when every client should receive every block, and the cost of
+ *   the handoff in the callback is reported.</li>
+ *   <li>as fast as possible, which shows the throughput of the server, and how it decimates the
+ *   clients which cannot keep up.</li>
+ * </ul>
+ * Usage:
+ * <pre>
+ * java -cp JCoreAudio.jar:bench ch.section6.jcoreaudio.bench.MonitoringBenchmark \
+ *     [-l 100] [-c 8] [-b 64] [-s seconds]
+ * </pre>
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class MonitoringBenchmark {
+  
+  private static final float SAMPLE_RATE = 48000.0f;
+  
+  /** Receives the frames of all clients on one thread. */
+  private static class Clients implements Runnable {
+    private final Selector selector;
+    private final SocketChannel[] channels;
+    private final ByteBuffer[] buffers;
+    private final long[] frames;
+    
+    /** The last sequence number received by each client, of the output and the input frames. */
+    private final long[][] lastSequences;
+    private volatile boolean isRunning;
+    private volatile long errors;
+    private volatile long bytes;
+    
+    Clients(int numClients, int port) throws IOException {
+      selector = Selector.open();
+      channels = new SocketChannel[numClients];
+      buffers = new ByteBuffer[numClients];
+      frames = new long[numClients];
+      lastSequences = new long[numClients][2];
+      InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+      for (int i = 0; i < numClients; i++) {
+        channels[i] = SocketChannel.open(address);
+        channels[i].configureBlocking(false);
+        channels[i].register(selector, SelectionKey.OP_READ, i);
+        buffers[i] = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        lastSequences[i][0] = -1L;
+        lastSequences[i][1] = -1L;
+      }
+      isRunning = true;
+    }
+    
+    /** Returns the number of frames received by the client which has received the fewest. */
+    long getMinFrames() {
+      long min = Long.MAX_VALUE;
+      for (long f : frames) min = Math.min(min, f);
+      return min;
+    }
+    
+    long getTotalFrames() {
+      long total = 0L;
+      for (long f : frames) total += f;
+      return total;
+    }
+    
+    @Override
+    public void run() {
+      try {
+        while (isRunning) {
+          selector.select(10L);
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            receive((Integer) key.attachment());
+          }
+        }
+        for (SocketChannel channel : channels) channel.close();
+        selector.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+    
+    private void receive(int i) throws IOException {
+      ByteBuffer buffer = buffers[i];
+      int n = channels[i].read(buffer);
+      if (n < 0) {
+        errors++; // the server closed the connection
+        channels[i].close();
+        return;
+      }
+      bytes += n;
+      buffer.flip();
+      while (buffer.remaining() >= 4 && buffer.remaining() >= buffer.getInt(buffer.position())) {
+        int p = buffer.position();
+        int length = buffer.getInt(p);
+        long sequence = buffer.getLong(p + 8);
+        int direction = buffer.getInt(p + 36) & 1;
+        if (buffer.getInt(p + 4) != 0x5341434A || sequence <= lastSequences[i][direction]) errors++;
+        lastSequences[i][direction] = sequence;
+        frames[i]++;
+        buffer.position(p + length);
+      }
+      buffer.compact();
+    }
+  }
+  
+  public static void main(String[] args) throws Exception {
+    int numClients = Microbenchmark.parseIntList(args, "-l", new int[] {100})[0];
+    int numChannels = Microbenchmark.parseIntList(args, "-c", new int[] {8})[0];
+    int blockSize = Microbenchmark.parseIntList(args, "-b", new int[] {64})[0];
+    int seconds = Microbenchmark.parseIntList(args, "-s", new int[] {5})[0];
+    
+    BenchmarkBackend.open(numChannels, blockSize, SAMPLE_RATE);
+    JCoreAudio jca = JCoreAudio.getInstance();
+    jca.setChannelListener(new CoreAudioChannelListener() {
+      @Override public void onCoreAudioInput(double timestamp, AudioChannels inputs) {}
+      @Override public void onCoreAudioOutput(double timestamp, AudioChannels outputs) {
+        // a ramp, so that the frames are not silent
+        for (int c = 0; c < outputs.getNumChannels(); c++) {
+          for (int i = 0; i < outputs.getBlockSize(); i++) outputs.set(c, i, i / 64.0f);
+        }
+      }
+    });
+    System.out.println("# " + numClients + " clients, " + numChannels + " channels, " + blockSize +
+        " frames at " + SAMPLE_RATE + "Hz");
+    measure("real time", numClients, blockSize, seconds, true, jca);
+    measure("as fast as possible", numClients, blockSize, seconds, false, jca);
+    BenchmarkBackend.close();
+  }
+  
+  private static void measure(String name, int numClients, int blockSize, int seconds,
+      boolean isRealTime, JCoreAudio jca) throws Exception {
+    MonitoringServer server = new MonitoringServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    server.addLet(jca.getOutputChannels().getLetAt(0));
+    server.start();
+    Clients clients = new Clients(numClients, server.getPort());
+    Thread clientThread = new Thread(clients, "Clients");
+    clientThread.setDaemon(true);
+    clientThread.start();
+    while (server.getNumClients() < numClients) {
+      Thread.sleep(10L);
+    }
+    
+    double periodNanos = 1.0e9 * blockSize / SAMPLE_RATE;
+    long callbackNanos = 0L;
+    long maxNanos = 0L;
+    long numBlocks = 0L;
+    long startNanos = System.nanoTime();
+    long endNanos = startNanos + seconds * 1000000000L;
+    for (long now = startNanos; now < endNanos; numBlocks++) {
+      if (isRealTime) {
+        long deadline = startNanos + (long) (numBlocks * periodNanos);
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0L) {
+          if (remaining > 100000L) LockSupport.parkNanos(remaining - 100000L);
+        }
+      }
+      long t = System.nanoTime();
+      BenchmarkBackend.input(numBlocks * blockSize);
+      BenchmarkBackend.output(numBlocks * blockSize);
+      now = System.nanoTime();
+      callbackNanos += now - t;
+      maxNanos = Math.max(maxNanos, now - t);
+    }
+    double elapsed = (System.nanoTime() - startNanos) / 1.0e9;
+    Thread.sleep(500L); // let the clients receive what has been sent
+    
+    System.out.printf("%-20s %d blocks (%.1fx real time), %.1f ns per callback, max %.1f us%n", name,
+        numBlocks, numBlocks * periodNanos / 1.0e9 / elapsed, (double) callbackNanos / numBlocks,
+        maxNanos / 1000.0);
+    System.out.printf("%-20s %.1f MB/s to %d clients, each received at least %.1f%% of the blocks, " +
+        "%d dropped, %d skipped, %d disconnected, %d errors%n", "",
+        clients.bytes / elapsed / 1.0e6, server.getNumClients(),
+        100.0 * clients.getMinFrames() / numBlocks, server.getDroppedBlocks(),
+        server.getSkippedBlocks(), server.getDisconnectedClients(), clients.errors);
+    server.stop();
+    clients.isRunning = false;
+    clientThread.join();
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio.bench;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import ch.section6.jcoreaudio.LatencyHistogram;
+import ch.section6.jcoreaudio.ParameterQueue;
+import ch.section6.jcoreaudio.bench.Microbenchmark.Options;
+
+/**
+ * <code>ParameterQueueBenchmark</code> measures the <code>ParameterQueue</code>:
+ * <ul>
+ *   <li>the cost of sending and applying one message, on a single thread.</li>
+ *   <li>a real-time run in which several control threads together send a given number of updates
+ *       per second, while a simulated audio thread processes the queue once per block period. It
+ *       reports the messages sent, applied and dropped, and the distribution of the time taken by
+ *       <code>process</code> in each block.</li>
+ * </ul>
+ * Usage:
+ * <pre>
+ * java -cp JCoreAudio.jar:bench ch.section6.jcoreaudio.bench.ParameterQueueBenchmark \
+ *     [-p 1,4] [-r 100000] [-s seconds] [-b 256] [-w warmupMs] [-i iterationMs] [-n iterations]
+ * </pre>
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class ParameterQueueBenchmark {
+  
+  private static final float SAMPLE_RATE = 48000.0f;
+  private static final int NUM_PARAMETERS = 64;
+  private static final int CAPACITY = 4096;
+  
+  public static void main(String[] args) throws InterruptedException {
+    Options options = Options.parse(args);
+    int[] producerCounts = Microbenchmark.parseIntList(args, "-p", new int[] {1, 4});
+    int rate = Microbenchmark.parseIntList(args, "-r", new int[] {100000})[0];
+    int seconds = Microbenchmark.parseIntList(args, "-s", new int[] {5})[0];
+    int blockSize = Microbenchmark.parseIntList(args, "-b", new int[] {256})[0];
+    
+    measureSingleThread(blockSize, options);
+    for (int numProducers : producerCounts) {
+      runRealTime(numProducers, rate, seconds, blockSize);
+    }
+  }
+  
+  private static void measureSingleThread(final int blockSize, Options options) {
+    final ParameterQueue queue = new ParameterQueue(new float[NUM_PARAMETERS], CAPACITY, blockSize);
+    Microbenchmark.measure("send and apply [" + blockSize + " per block]", new Microbenchmark() {
+      @Override public int getOperationsPerRun() { return blockSize; }
+      @Override public long run() {
+        for (int i = 0; i < blockSize; i++) {
+          queue.set(i % NUM_PARAMETERS, i);
+        }
+        queue.process(blockSize);
+        return Float.floatToRawIntBits(queue.getValue(0, blockSize - 1));
+      }
+    }, options);
+  }
+  
+  private static void runRealTime(int numProducers, final int rate, int seconds, final int blockSize)
+      throws InterruptedException {
+    final ParameterQueue queue = new ParameterQueue(new float[NUM_PARAMETERS], CAPACITY, blockSize);
+    final AtomicLong sent = new AtomicLong();
+    final LatencyHistogram processNanos = new LatencyHistogram();
+    final long endNanos = System.nanoTime() + seconds * 1000000000L;
+    
+    // each producer sends its share of the rate in bursts every millisecond
+    final int perMillisecond = Math.max(1, rate / numProducers / 1000);
+    Thread[] producers = new Thread[numProducers];
+    for (int p = 0; p < numProducers; p++) {
+      final int first = p;
+      producers[p] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          long next = System.nanoTime();
+          for (int n = 0; System.nanoTime() < endNanos; ) {
+            for (int i = 0; i < perMillisecond; i++, n++) {
+              if (queue.set((first + n) % NUM_PARAMETERS, n)) sent.incrementAndGet();
+            }
+            next += 1000000L;
+            LockSupport.parkNanos(next - System.nanoTime());
+          }
+        }
+      }, "Parameter Sender " + p);
+    }
+    Thread audio = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        long period = (long) (1.0e9 * blockSize / SAMPLE_RATE);
+        long next = System.nanoTime();
+        while (System.nanoTime() < endNanos) {
+          long start = System.nanoTime();
+          queue.process(blockSize);
+          processNanos.record(System.nanoTime() - start);
+          next += period;
+          LockSupport.parkNanos(next - System.nanoTime());
+        }
+        queue.process(blockSize); // apply the last messages
+      }
+    }, "Simulated Audio Thread");
+    audio.setPriority(Thread.MAX_PRIORITY);
+    audio.start();
+    for (Thread producer : producers) producer.start();
+    for (Thread producer : producers) producer.join();
+    audio.join();
+    
+    System.out.printf("%d senders at %d/s: %d sent, %d applied, %d dropped%n", numProducers,
+        numProducers * perMillisecond * 1000, sent.get(), queue.getAppliedMessages(),
+        queue.getDroppedMessages());
+    System.out.printf("    process per block: mean %.1f us, 99.9%% %.1f us, max %.1f us%n",
+        processNanos.getMean() / 1000.0, processNanos.getValueAtPercentile(99.9) / 1000.0,
+        processNanos.getMax() / 1000.0);
+  }
+}
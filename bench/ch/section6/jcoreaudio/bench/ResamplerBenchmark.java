@@ -0,0 +1,86 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio.bench;
+
+import ch.section6.jcoreaudio.SampleRateConverter;
+import ch.section6.jcoreaudio.SampleRateConverter.Quality;
+import ch.section6.jcoreaudio.bench.Microbenchmark.Options;
+
+/**
+ * <code>ResamplerBenchmark</code> measures the throughput of the <code>SampleRateConverter</code>
+ * at each quality and for common pairs of rates, per output sample and as the number of channels
+ * which one core can convert in real time. Its accuracy is checked by {@link ResamplerCheck}.
+ * Usage:
+ * <pre>
+ * java -cp JCoreAudio.jar:bench ch.section6.jcoreaudio.bench.ResamplerBenchmark \
+ *     [-b 256,...] [-c 2,64] [-w warmupMs] [-i iterationMs] [-n iterations]
+ * </pre>
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class ResamplerBenchmark {
+  
+  private static final float[][] RATES = {
+    {44100.0f, 48000.0f}, {48000.0f, 44100.0f}, {96000.0f, 44100.0f}, {48000.0f, 96000.0f}
+  };
+  
+  public static void main(String[] args) {
+    Options options = Options.parse(args);
+    int[] blockSizes = Microbenchmark.parseIntList(args, "-b", new int[] {256});
+    int[] channelCounts = Microbenchmark.parseIntList(args, "-c", new int[] {2, 64});
+    
+    for (int blockSize : blockSizes) {
+      for (int numChannels : channelCounts) {
+        System.out.println("# " + blockSize + "x" + numChannels + "ch (per output sample)");
+        for (Quality quality : Quality.values()) {
+          for (float[] rates : RATES) {
+            measureThroughput(quality, rates[0], rates[1], numChannels, blockSize, options);
+          }
+        }
+      }
+    }
+  }
+  
+  private static void measureThroughput(Quality quality, float inputRate, float outputRate,
+      final int numChannels, final int blockSize, Options options) {
+    final SampleRateConverter converter =
+        new SampleRateConverter(numChannels, inputRate, outputRate, quality, blockSize);
+    final float[][] input = new float[numChannels][blockSize];
+    final float[][] output = new float[numChannels][converter.getMaxOutputFrames(blockSize)];
+    for (int c = 0; c < numChannels; c++) {
+      for (int i = 0; i < blockSize; i++) {
+        input[c][i] = (float) Math.sin(0.01 * (i + c));
+      }
+    }
+    // the number of output frames varies from block to block, so count the average
+    final int outputFramesPerRun = (int) Math.round((double) blockSize * outputRate / inputRate);
+    
+    Microbenchmark.Result result = Microbenchmark.measure(quality + " " + (int) inputRate + "->" +
+        (int) outputRate + " [" + blockSize + "x" + numChannels + "ch]", new Microbenchmark() {
+      @Override public int getOperationsPerRun() { return numChannels * outputFramesPerRun; }
+      @Override public long run() {
+        converter.process(input, 0, blockSize, output, 0);
+        return Float.floatToRawIntBits(output[0][0]);
+      }
+    }, options);
+    System.out.printf("    %.0f channels x real time per core%n", 1.0e9 / (result.nanosPerOp * outputRate));
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio.bench;
+
+import ch.section6.jcoreaudio.SampleRateConverter;
+import ch.section6.jcoreaudio.SampleRateConverter.Quality;
+
+/**
+ * <code>ResamplerCheck</code> checks the accuracy of the <code>SampleRateConverter</code> at each
+ * quality and for common pairs of rates, against the design targets of the quality:
+ * <ul>
+ *   <li>the passband ripple, i.e. the largest deviation from unity gain of sines in the passband.
+ *       It may not exceed the ripple of a filter with the stopband attenuation of the quality.</li>
+ *   <li>the imaging, i.e. the level of everything but the sine itself in the output of sines in
+ *       the passband. When interpolating, these are the images of the sine above the input
+ *       Nyquist frequency. It must be attenuated by at least the stopband attenuation.</li>
+ *   <li>the aliasing when decimating, i.e. the level of the output of sines between the output and
+ *       input Nyquist frequencies. It must be attenuated by at least the stopband attenuation.</li>
+ * </ul>
+ * Levels are given relative to a full-scale sine. It exits with an
+ * <code>IllegalStateException</code> if a check fails. Usage:
+ * <pre>
+ * java -cp JCoreAudio.jar:bench ch.section6.jcoreaudio.bench.ResamplerCheck
+ * </pre>
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class ResamplerCheck {
+  
+  private static final float[][] RATES = {
+    {44100.0f, 48000.0f}, {48000.0f, 44100.0f}, {96000.0f, 44100.0f}, {48000.0f, 96000.0f}
+  };
+  
+  /** The number of sines measured in each band. */
+  private static final int NUM_SINES = 24;
+  
+  /** The output frames which are measured, after the filter has settled. */
+  private static final int NUM_FRAMES = 32768;
+  
+  /** The allowance of the measured levels for the rounding of the filter and the samples, in dB. */
+  private static final double TOLERANCE_DB = 1.0;
+  
+  public static void main(String[] args) {
+    int failures = 0;
+    for (Quality quality : Quality.values()) {
+      for (float[] rates : RATES) {
+        if (!check(quality, rates[0], rates[1])) failures++;
+      }
+    }
+    if (failures > 0) {
+      throw new IllegalStateException(failures + " conversions do not meet their design targets.");
+    }
+  }
+  
+  private static boolean check(Quality quality, float inputRate, float outputRate) {
+    SampleRateConverter converter = new SampleRateConverter(1, inputRate, outputRate, quality, 512);
+    double nyquist = Math.min(inputRate, outputRate) / 2.0;
+    double edge = converter.getPassband() * nyquist;
+    double attenuation = quality.getAttenuation();
+    double maxRipple = 20.0 * Math.log10(1.0 + Math.pow(10.0, -attenuation / 20.0));
+    
+    double ripple = 0.0;
+    double imaging = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < NUM_SINES; i++) {
+      double f = 20.0 + (edge - 20.0) * i / (NUM_SINES - 1);
+      double[] response = measureSine(converter, f, inputRate, outputRate);
+      ripple = Math.max(ripple, Math.abs(20.0 * Math.log10(response[0])));
+      imaging = Math.max(imaging, 20.0 * Math.log10(response[1] * Math.sqrt(2.0)));
+    }
+    double alias = Double.NEGATIVE_INFINITY;
+    if (inputRate > outputRate) {
+      // every sine between the output and input Nyquist frequencies must be rejected
+      double step = (inputRate / 2.0 - nyquist) / NUM_SINES;
+      for (double f = nyquist + 50.0; f < inputRate / 2.0; f += step) {
+        double[] response = measureSine(converter, f, inputRate, outputRate);
+        alias = Math.max(alias, 20.0 * Math.log10(response[2] * Math.sqrt(2.0)));
+      }
+    }
+    
+    boolean isRippleMet = ripple <= maxRipple * Math.pow(10.0, TOLERANCE_DB / 20.0);
+    boolean isImagingMet = imaging <= -attenuation + TOLERANCE_DB;
+    boolean isAliasMet = alias <= -attenuation + TOLERANCE_DB;
+    System.out.printf("%-12s %6.0f->%6.0f: ripple %.5f dB of %.5f, imaging %.1f dB, " +
+        "alias %s of -%.0f dB%s%n", quality, inputRate, outputRate, ripple, maxRipple, imaging,
+        (inputRate > outputRate) ? String.format("%.1f dB", alias) : "-", attenuation,
+        (isRippleMet && isImagingMet && isAliasMet) ? "" : "  FAILED");
+    return isRippleMet && isImagingMet && isAliasMet;
+  }
+  
+  /**
+   * Converts a full-scale sine of the given frequency and fits a sine of the same frequency to the
+   * output, after the filter has settled. Returns the amplitude of the fitted sine, and the RMS
+   * level of the rest of the output and of the whole output.
+   */
+  private static double[] measureSine(SampleRateConverter converter, double frequency,
+      float inputRate, float outputRate) {
+    int blockSize = 512;
+    float[][] input = new float[1][blockSize];
+    float[][] output = new float[1][converter.getMaxOutputFrames(blockSize)];
+    int start = 2 * converter.getTaps() * (int) Math.ceil(outputRate / inputRate);
+    double[] samples = new double[start + NUM_FRAMES + output[0].length];
+    int numSamples = 0;
+    converter.reset();
+    for (long t = 0; numSamples < start + NUM_FRAMES; t += blockSize) {
+      for (int i = 0; i < blockSize; i++) {
+        input[0][i] = (float) Math.sin(2.0 * Math.PI * frequency * (t + i) / inputRate);
+      }
+      int n = converter.process(input, 0, blockSize, output, 0);
+      for (int i = 0; i < n; i++) {
+        samples[numSamples++] = output[0][i];
+      }
+    }
+    
+    // the least-squares fit of a sin + b cos, which removes the sine however many periods are measured
+    double ss = 0.0, sc = 0.0, cc = 0.0, sy = 0.0, cy = 0.0, energy = 0.0;
+    for (int i = start; i < start + NUM_FRAMES; i++) {
+      double w = 2.0 * Math.PI * frequency * i / outputRate;
+      double s = Math.sin(w);
+      double c = Math.cos(w);
+      double y = samples[i];
+      ss += s * s;
+      sc += s * c;
+      cc += c * c;
+      sy += s * y;
+      cy += c * y;
+      energy += y * y;
+    }
+    double determinant = ss * cc - sc * sc;
+    double a = (sy * cc - cy * sc) / determinant;
+    double b = (cy * ss - sy * sc) / determinant;
+    double residual = Math.max(0.0, energy - (a * sy + b * cy));
+    return new double[] {Math.sqrt(a * a + b * b), Math.sqrt(residual / NUM_FRAMES),
+        Math.sqrt(energy / NUM_FRAMES)};
+  }
+}
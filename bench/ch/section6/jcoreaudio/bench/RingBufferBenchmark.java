@@ -0,0 +1,99 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio.bench;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ch.section6.jcoreaudio.FloatRingBuffer;
+
+/**
+ * <code>RingBufferBenchmark</code> measures the sustained throughput of a {@link FloatRingBuffer}
+ * between a producer thread, which writes blocks from direct channel buffers as an input callback
+ * would, and a consumer thread, which reads them into heap arrays as a worker would. Both threads
+ * run flat out and yield only when the ring is full or empty, so the result is the maximum
+ * throughput rather than the cost at a given rate.
+ * Usage:
+ * <pre>
+ * java -cp JCoreAudio.jar:bench ch.section6.jcoreaudio.bench.RingBufferBenchmark \
+ *     [-c 2,32,64] [-b 64] [-s seconds]
+ * </pre>
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class RingBufferBenchmark {
+  
+  public static void main(String[] args) throws InterruptedException {
+    int[] channelCounts = Microbenchmark.parseIntList(args, "-c", new int[] {2, 32, 64});
+    int blockSize = Microbenchmark.parseIntList(args, "-b", new int[] {64})[0];
+    int seconds = Microbenchmark.parseIntList(args, "-s", new int[] {2})[0];
+    for (int numChannels : channelCounts) {
+      run(numChannels, blockSize, seconds);
+    }
+  }
+  
+  private static void run(final int numChannels, final int blockSize, int seconds)
+      throws InterruptedException {
+    final FloatRingBuffer ring = new FloatRingBuffer(numChannels, 16 * blockSize);
+    final FloatBuffer[] inputs = new FloatBuffer[numChannels];
+    for (int i = 0; i < numChannels; i++) {
+      inputs[i] = ByteBuffer.allocateDirect(4 * blockSize).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+    final float[][] outputs = new float[numChannels][blockSize];
+    final long[] counts = new long[2];
+    final AtomicBoolean isRunning = new AtomicBoolean(true);
+    
+    Thread producer = new Thread(new Runnable() {
+      @Override public void run() {
+        long n = 0L;
+        while (isRunning.get()) {
+          if (ring.write(inputs, blockSize)) n++;
+          else Thread.yield();
+        }
+        counts[0] = n;
+      }
+    });
+    Thread consumer = new Thread(new Runnable() {
+      @Override public void run() {
+        long n = 0L;
+        while (isRunning.get()) {
+          if (ring.read(outputs, 0, blockSize)) n++;
+          else Thread.yield();
+        }
+        counts[1] = n;
+      }
+    });
+    long start = System.nanoTime();
+    producer.start();
+    consumer.start();
+    Thread.sleep(seconds * 1000L);
+    isRunning.set(false);
+    producer.join();
+    consumer.join();
+    double elapsed = (System.nanoTime() - start) / 1e9;
+    double framesPerSecond = counts[1] * blockSize / elapsed;
+    System.out.println(String.format("%3d ch x %4d frames: %8.2f Mframes/s (%.0fx real time at 96kHz), " +
+        "%d overruns, %d underruns", numChannels, blockSize, framesPerSecond / 1e6,
+        framesPerSecond / 96000.0, ring.getOverruns(), ring.getUnderruns()));
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package ch.section6.jcoreaudio.bench;
+
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import ch.section6.jcoreaudio.AudioChannels;
+import ch.section6.jcoreaudio.JCoreAudio;
+import ch.section6.jcoreaudio.SpectrumAnalyser;
+import ch.section6.jcoreaudio.bench.Microbenchmark.Options;
+
+/**
+ * <code>SpectrumBenchmark</code> measures the throughput of the <code>SpectrumAnalyser</code>:
+ * <ul>
+ *   <li>the frames per second which one core sustains, for each FFT size and window, with the
+ *       frames analysed in the calling thread.</li>
+ *   <li>the analyser with worker threads, called in real time for a few seconds, which reports the
+ *       mean and largest time spent in the callback, and the frames analysed and skipped.</li>
+ * </ul>
+ * Usage:
+ * <pre>
+ * java -cp JCoreAudio.jar:bench ch.section6.jcoreaudio.bench.SpectrumBenchmark \
+ *     [-f 1024,4096] [-b 64] [-c 64] [-o 4] [-d 1] [-t threads] [-w warmupMs] [-i iterationMs] [-n iterations]
+ * </pre>
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class SpectrumBenchmark {
+  
+  private static final float SAMPLE_RATE = 48000.0f;
+  
+  public static void main(String[] args) {
+    Options options = Options.parse(args);
+    int[] fftSizes = Microbenchmark.parseIntList(args, "-f", new int[] {1024, 4096});
+    int blockSize = Microbenchmark.parseIntList(args, "-b", new int[] {64})[0];
+    int numChannels = Microbenchmark.parseIntList(args, "-c", new int[] {64})[0];
+    int overlap = Microbenchmark.parseIntList(args, "-o", new int[] {4})[0];
+    int decimation = Microbenchmark.parseIntList(args, "-d", new int[] {1})[0];
+    int numThreads = Microbenchmark.parseIntList(args, "-t",
+        new int[] {Math.max(1, Runtime.getRuntime().availableProcessors() - 1)})[0];
+    
+    BenchmarkBackend.open(numChannels, blockSize, SAMPLE_RATE);
+    AudioChannels inputs = JCoreAudio.getInstance().getOutputChannels();
+    Random random = new Random(0L);
+    for (int c = 0; c < numChannels; c++) {
+      for (int i = 0; i < blockSize; i++) {
+        inputs.set(c, i, (float) random.nextGaussian() * 0.25f);
+      }
+    }
+    for (int fftSize : fftSizes) {
+      System.out.println("# " + fftSize + "-point frames, " + blockSize + "x" + numChannels + "ch, overlap " +
+          overlap + ", decimation " + decimation);
+      for (SpectrumAnalyser.Window window : SpectrumAnalyser.Window.values()) {
+        measure(new SpectrumAnalyser(true, numChannels, blockSize, SAMPLE_RATE, fftSize, overlap,
+            window, decimation, 0), inputs, options);
+      }
+      measureRealTime(new SpectrumAnalyser(true, numChannels, blockSize, SAMPLE_RATE, fftSize,
+          overlap, SpectrumAnalyser.Window.HANN, decimation, numThreads), inputs, 2.0);
+    }
+    BenchmarkBackend.close();
+  }
+  
+  /** Measures the frames per second of one core, with the frames analysed in the calling thread. */
+  private static void measure(final SpectrumAnalyser analyser, final AudioChannels inputs, Options options) {
+    long startFrames = analyser.getAnalysedFrames();
+    long startNanos = analyser.getAnalysisNanos();
+    Microbenchmark.Result result = Microbenchmark.measure("analysis [" + analyser.getWindow() +
+        "] (per block)", new Microbenchmark() {
+      @Override public long run() {
+        analyser.process(inputs);
+        return analyser.getAnalysedFrames();
+      }
+    }, options);
+    long frames = analyser.getAnalysedFrames() - startFrames;
+    double seconds = (analyser.getAnalysisNanos() - startNanos) / 1.0e9;
+    double framesPerChannel = SAMPLE_RATE / analyser.getHopSize() / analyser.getDecimation();
+    System.out.printf("    %.0f frames/s per core, %.1f%% of a core for %.0f frames/s of each channel%n",
+        frames / seconds, 100.0 * result.nanosPerOp * SAMPLE_RATE / (1.0e9 * analyser.getBlockSize()),
+        framesPerChannel);
+    analyser.close();
+  }
+  
+  /** Calls the analyser once per block period, as the audio callback would. */
+  private static void measureRealTime(SpectrumAnalyser analyser, AudioChannels inputs, double seconds) {
+    double periodNanos = 1.0e9 * analyser.getBlockSize() / SAMPLE_RATE;
+    int numBlocks = (int) (seconds * SAMPLE_RATE / analyser.getBlockSize());
+    long totalNanos = 0L;
+    long maxNanos = 0L;
+    long startNanos = System.nanoTime();
+    for (int i = 0; i < numBlocks; i++) {
+      long deadline = startNanos + (long) (i * periodNanos);
+      long remaining;
+      while ((remaining = deadline - System.nanoTime()) > 0L) {
+        if (remaining > 100000L) LockSupport.parkNanos(remaining - 100000L);
+      }
+      long callbackNanos = System.nanoTime();
+      analyser.process(inputs);
+      long nanos = System.nanoTime() - callbackNanos;
+      totalNanos += nanos;
+      maxNanos = Math.max(maxNanos, nanos);
+    }
+    analyser.close();
+    long frames = analyser.getAnalysedFrames();
+    System.out.printf("%-60s %10.3f us per block in the callback, max %.1f us, %d frames analysed, " +
+        "%d skipped, %.0f frames/s per core%n", "real time [" + analyser.getNumThreads() + " workers]",
+        totalNanos / 1000.0 / numBlocks, maxNanos / 1000.0, frames, analyser.getSkippedFrames(),
+        frames / (analyser.getAnalysisNanos() / 1.0e9));
+  }
+}
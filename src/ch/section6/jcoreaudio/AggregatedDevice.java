@@ -0,0 +1,213 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package ch.section6.jcoreaudio;
+
+/**
+ * An <code>AggregatedDevice</code> is an {@link AudioDevice} whose lets are combined with those of
+ * the clock device into one session. If the input or output lets given to
+ * {@link JCoreAudio#initialize(java.util.Set, java.util.Set, int, float)} belong to several
+ * devices, the callbacks are driven by the clock device, and every other device runs its own
+ * session on its own clock.<br/>
+ * <br/>
+ * The lets of an aggregated device are given to the listener like those of the clock device, with
+ * buffers of their own. Each aggregated device measures its clock against the clock device with
+ * a {@link DelayLockedLoop}, and its input and output pass through a {@link DriftCompensator},
+ * which resamples them by the measured ratio. The result is a few blocks of added latency
+ * instead of the clicks which would otherwise occur whenever the clocks slip by a sample.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class AggregatedDevice {
+  
+  private final AudioDevice device;
+  private final DelayLockedLoop clock;
+  private final DelayLockedLoop sessionClock;
+  
+  /** The lets as seen by the listener, and the lets as seen by the device session. */
+  private final AudioChannels inputChannels;
+  private final AudioChannels outputChannels;
+  private final AudioChannels deviceInputChannels;
+  private final AudioChannels deviceOutputChannels;
+  
+  /** From the device to the session, and from the session to the device. */
+  private final DriftCompensator input;
+  private final DriftCompensator output;
+  
+  /** The handle of the device session. */
+  final long ptr;
+  
+  /**
+   * @param ptr  The handle of the device session, which has assigned the buffers of the device lets.
+   * @param inputLets  The input lets of the device, as given to the listener. Their buffers are
+   *     allocated here.
+   * @param deviceInputLets  Copies of the same lets, whose buffers are assigned by the backend.
+   */
+  AggregatedDevice(long ptr, AudioDevice device, AudioLet[] inputLets, AudioLet[] deviceInputLets,
+      AudioLet[] outputLets, AudioLet[] deviceOutputLets, int blockSize, float sampleRate,
+      DelayLockedLoop sessionClock) {
+    this.ptr = ptr;
+    this.device = device;
+    this.clock = new DelayLockedLoop(blockSize, sampleRate);
+    this.sessionClock = sessionClock;
+    for (AudioLet let : inputLets) {
+      for (int i = 0; i < let.numChannels; i++) {
+        let.setChannelBuffer(i, AudioBackend.allocateChannelBuffer(blockSize));
+      }
+    }
+    for (AudioLet let : outputLets) {
+      for (int i = 0; i < let.numChannels; i++) {
+        let.setChannelBuffer(i, AudioBackend.allocateChannelBuffer(blockSize));
+      }
+    }
+    this.inputChannels = new AudioChannels(inputLets, blockSize);
+    this.outputChannels = new AudioChannels(outputLets, blockSize);
+    this.deviceInputChannels = new AudioChannels(deviceInputLets, blockSize);
+    this.deviceOutputChannels = new AudioChannels(deviceOutputLets, blockSize);
+    this.input = (inputChannels.getNumChannels() > 0) ?
+        new DriftCompensator(inputChannels.getNumChannels(), blockSize, sampleRate) : null;
+    this.output = (outputChannels.getNumChannels() > 0) ?
+        new DriftCompensator(outputChannels.getNumChannels(), blockSize, sampleRate) : null;
+  }
+  
+  /** Returns the aggregated device. */
+  public AudioDevice getDevice() {
+    return device;
+  }
+  
+  /** Returns the number of input channels of this device in the session. */
+  public int getNumInputChannels() {
+    return inputChannels.getNumChannels();
+  }
+  
+  /** Returns the number of output channels of this device in the session. */
+  public int getNumOutputChannels() {
+    return outputChannels.getNumChannels();
+  }
+  
+  /**
+   * Returns the drift of this device's clock relative to the clock device in parts per million.
+   * It is positive if this device runs faster.
+   */
+  public double getDriftPpm() {
+    return (sessionClock.getPeriod() / clock.getPeriod() - 1.0) * 1000000.0;
+  }
+  
+  /** Returns the sample rate of this device as measured against <code>System.nanoTime()</code>. */
+  public double getMeasuredSampleRate() {
+    return clock.getSampleRate();
+  }
+  
+  /** Returns the average latency added to the input of this device, in frames. */
+  public double getInputLatency() {
+    return (input != null) ? input.getLatency() : 0.0;
+  }
+  
+  /** Returns the average latency added to the output of this device, in frames. */
+  public double getOutputLatency() {
+    return (output != null) ? output.getLatency() : 0.0;
+  }
+  
+  /**
+   * Returns the average time spent resampling one block of one channel, in nanoseconds. Input and
+   * output are counted together.
+   */
+  public double getResamplerNanosPerChannel() {
+    long nanos = 0L;
+    long channelBlocks = 0L;
+    if (input != null) {
+      nanos += input.getTotalNanos();
+      channelBlocks += input.getNumReads() * input.getNumChannels();
+    }
+    if (output != null) {
+      nanos += output.getTotalNanos();
+      channelBlocks += output.getNumReads() * output.getNumChannels();
+    }
+    return (channelBlocks > 0L) ? (double) nanos / channelBlocks : 0.0;
+  }
+  
+  /**
+   * Returns the number of blocks which were delivered as silence because the other clock had not
+   * yet delivered enough audio, e.g. while starting. Input and output are counted together.
+   */
+  public long getSilentBlocks() {
+    return ((input != null) ? input.getSilentBlocks() : 0L) +
+        ((output != null) ? output.getSilentBlocks() : 0L);
+  }
+  
+  /**
+   * Returns the number of times that the buffered audio had to be discarded or primed again,
+   * e.g. after a dropout of either device.
+   */
+  public long getResyncs() {
+    return ((input != null) ? input.getResyncs() + input.getOverruns() : 0L) +
+        ((output != null) ? output.getResyncs() + output.getOverruns() : 0L);
+  }
+  
+  @Override
+  public String toString() {
+    return String.format("%s: %+.2f ppm, %.0f ns per channel per block", device.getName(),
+        getDriftPpm(), getResamplerNanosPerChannel());
+  }
+  
+  /** Resets the clock and the compensators. Only while no callbacks are made. */
+  void reset() {
+    clock.reset();
+    if (input != null) input.reset();
+    if (output != null) output.reset();
+  }
+  
+  
+  // ------ Session Side ------
+  
+  /** Fills the input lets with the input of this device. Called by the session's input callback. */
+  void pullInput() {
+    if (input != null) {
+      input.read(inputChannels.getFloatBuffers(), sessionClock.getPeriod() / clock.getPeriod());
+    }
+  }
+  
+  /** Sends the output lets to this device. Called by the session's output callback. */
+  void pushOutput() {
+    if (output != null) {
+      output.write(outputChannels.getFloatBuffers());
+    }
+  }
+  
+  
+  // ------ Device Side ------
+  
+  /** Called by the input callback of the device session. */
+  void onDeviceInput(double timestamp, long nanos) {
+    if (output == null) clock.update(timestamp, nanos);
+    if (input != null) {
+      input.write(deviceInputChannels.getFloatBuffers());
+    }
+  }
+  
+  /** Called by the output callback of the device session. */
+  void onDeviceOutput(double timestamp, long nanos) {
+    clock.update(timestamp, nanos);
+    if (output != null) {
+      output.read(deviceOutputChannels.getFloatBuffers(), clock.getPeriod() / sessionClock.getPeriod());
+    }
+  }
+}
@@ -0,0 +1,300 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ *
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+
+/**
+ * An <code>AudioBackend</code> is the service provider behind {@link JCoreAudio},
+ * {@link AudioDevice} and {@link AudioLet}. It enumerates devices and lets, allocates the channel
+ * buffers of a session and drives the audio callbacks. The default backend is
+ * {@link CoreAudioBackend}, which talks to Core Audio through <code>libJCoreAudio.jnilib</code>.<br/>
+ * <br/>
+ * Unless one has been set with {@link JCoreAudio#setBackend(AudioBackend)}, the backend used by
+ * {@link JCoreAudio} is chosen when it is first needed, in this order:
+ * <ol>
+ *   <li>the system property <code>jcoreaudio.backend</code>, which is either <code>coreaudio</code>,
+ *       <code>simulated</code> or the fully qualified name of an <code>AudioBackend</code> subclass
+ *       with a public no-argument constructor.</li>
+ *   <li>the first provider of <code>ch.section6.jcoreaudio.AudioBackend</code> registered with
+ *       <code>java.util.ServiceLoader</code>.</li>
+ *   <li>{@link CoreAudioBackend}.</li>
+ * </ol>
+ * The device list, and the properties of each device and let, are queried from the backend only
+ * when first needed, and are then cached. A backend must call {@link #devicesChanged()} when
+ * devices are added or removed, and {@link #deviceChanged(int)} when the lets, sample rates or
+ * buffer sizes of a device change, so that they are queried again. It must not hold any lock of
+ * its own while doing so. A backend which cannot report changes returns <code>false</code> from
+ * {@link #isReportingChanges()}, and is then queried every time.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public abstract class AudioBackend {
+
+  /** The system property used to select the default backend. */
+  public static final String BACKEND_PROPERTY = "jcoreaudio.backend";
+  
+  private final Object deviceLock = new Object();
+  
+  /** The cached device list, or <code>null</code> if it must be queried. */
+  private AudioDevice[] devices;
+  
+  /** The most recently queried device list, whose devices are reused when it is queried again. */
+  private AudioDevice[] previousDevices;
+
+  /** Fills the given <code>List</code> with all devices made available by this backend. */
+  protected abstract void fillAudioDeviceList(List<AudioDevice> list);
+
+  /**
+   * Fills the given <code>Set</code> with the input or output lets of a device. Lets should be
+   * created with {@link #newAudioLet(AudioDevice, int, int, String, boolean, int)}.
+   */
+  protected abstract void queryLetSet(AudioDevice device, boolean isInput, Set<AudioLet> set);
+
+  /** Fills the given <code>Set</code> with the sample rates supported by the given let. */
+  protected abstract void queryAvailableSamplerates(AudioDevice device, int letIndex, boolean isInput,
+      Set<Float> set);
+
+  /** Returns the current buffer size of the device, or zero if it is unknown. */
+  protected abstract int getCurrentBufferSize(AudioDevice device);
+
+  /** Returns the minimum buffer size of the device, or zero if it is unknown. */
+  protected abstract int getMinimumBufferSize(AudioDevice device);
+
+  /** Returns the maximum buffer size of the device, or zero if it is unknown. */
+  protected abstract int getMaximumBufferSize(AudioDevice device);
+
+  /** Returns the current sample rate of the device, or zero if it is unknown. */
+  protected abstract float getCurrentSampleRate(AudioDevice device);
+
+  /**
+   * Configures a new audio session. The backend must assign a buffer of <code>blockSize</code>
+   * samples to every channel of every let with
+   * {@link #setChannelBuffer(AudioLet, int, ByteBuffer)}. At least one of the input or output
+   * arrays is non-empty.
+   * @param inputLets  The input lets. Never <code>null</code>.
+   * @param numChannelsInput  The total number of input channels.
+   * @param inputDevice  The input device, or <code>null</code> if there is no input.
+   * @param outputLets  The output lets. Never <code>null</code>.
+   * @param numChannelsOutput  The total number of output channels.
+   * @param outputDevice  The output device, or <code>null</code> if there is no output.
+   * @return  An opaque handle identifying the session. It is passed back to
+   *     {@link #play(boolean, long)} and {@link #uninitialize(long)}.
+   */
+  protected abstract long initialize(AudioLet[] inputLets, int numChannelsInput, AudioDevice inputDevice,
+      AudioLet[] outputLets, int numChannelsOutput, AudioDevice outputDevice,
+      int blockSize, float sampleRate);
+
+  /**
+   * Configures a session for a further device which is aggregated with the session created by
+   * {@link #initialize(AudioLet[], int, AudioDevice, AudioLet[], int, AudioDevice, int, float)}.
+   * It is configured in the same way, except that it runs on the clock of its own device and its
+   * callbacks are delivered with {@link #fireOnStreamInput(long, double)} and
+   * {@link #fireOnStreamOutput(long, double)}, together with the returned handle. The default
+   * implementation does not support aggregation and throws an
+   * <code>UnsupportedOperationException</code>.
+   * @param device  The device of all input and output lets.
+   * @return  An opaque handle identifying the session. It must be different from the handles of
+   *     all other sessions.
+   */
+  protected long initializeStream(AudioLet[] inputLets, int numChannelsInput, AudioLet[] outputLets,
+      int numChannelsOutput, AudioDevice device, int blockSize, float sampleRate) {
+    throw new UnsupportedOperationException(getClass().getSimpleName() +
+        " cannot aggregate several devices.");
+  }
+
+  /** Releases all resources belonging to the session. */
+  protected abstract void uninitialize(long ptr);
+
+  /**
+   * Starts or stops the audio callbacks of the session. While started, the backend calls
+   * {@link #fireOnCoreAudioInput(double)} and {@link #fireOnCoreAudioOutput(double)} once per block.
+   */
+  protected abstract void play(boolean shouldPlay, long ptr);
+
+  /**
+   * Waits until the callbacks of the sessions which have been stopped or uninitialized have
+   * returned. <code>JCoreAudio</code> calls this after {@link #play(boolean, long)} and
+   * {@link #uninitialize(long)}, once it no longer holds its lock, so that a callback which calls
+   * into <code>JCoreAudio</code> can complete. The default does nothing.
+   */
+  protected void awaitStopped() {
+    // the callbacks of the backend stop before it returns from play() or uninitialize()
+  }
+
+
+  /**
+   * Returns the devices of this backend. The list is queried with
+   * {@link #fillAudioDeviceList(List)} the first time, and again only after
+   * {@link #devicesChanged()}. Devices which are still present keep their identity, and with it
+   * their cached properties.
+   */
+  final AudioDevice[] getAudioDevices() {
+    synchronized (deviceLock) {
+      if (devices == null || !isReportingChanges()) {
+        ArrayList<AudioDevice> list = new ArrayList<AudioDevice>();
+        fillAudioDeviceList(list);
+        Map<Integer, AudioDevice> previous = new HashMap<Integer, AudioDevice>();
+        if (previousDevices != null) {
+          for (AudioDevice device : previousDevices) {
+            previous.put(device.getId(), device);
+          }
+        }
+        devices = new AudioDevice[list.size()];
+        for (int i = 0; i < devices.length; i++) {
+          AudioDevice device = previous.get(list.get(i).getId());
+          devices[i] = (device == null) ? list.get(i) : device;
+        }
+        previousDevices = devices;
+      }
+      return devices;
+    }
+  }
+  
+  /** Returns the cached device with the given id, or <code>null</code> if there is none. */
+  private AudioDevice findDevice(int deviceId) {
+    synchronized (deviceLock) {
+      if (previousDevices != null) {
+        for (AudioDevice device : previousDevices) {
+          if (device.getId() == deviceId) return device;
+        }
+      }
+      return null;
+    }
+  }
+
+
+  // ------ Helpers for Backend Implementations ------
+  
+  /**
+   * Returns whether this backend calls {@link #devicesChanged()} and {@link #deviceChanged(int)}
+   * whenever its devices change. If not, nothing is cached and every request is queried from the
+   * backend. The default is <code>true</code>.
+   */
+  protected boolean isReportingChanges() {
+    return true;
+  }
+  
+  /**
+   * Notifies that devices have been added or removed. The device list is queried again when it
+   * is next requested.
+   */
+  protected final void devicesChanged() {
+    synchronized (deviceLock) {
+      devices = null;
+    }
+  }
+  
+  /**
+   * Notifies that the properties of a device have changed, e.g. its sample rate, buffer size or
+   * stream configuration. All of its cached properties are queried again when they are next
+   * requested.
+   */
+  protected final void deviceChanged(int deviceId) {
+    AudioDevice device = findDevice(deviceId);
+    if (device != null) {
+      device.invalidate();
+    }
+  }
+
+  /** Creates a new <code>AudioDevice</code> belonging to this backend. */
+  protected final AudioDevice newAudioDevice(int id, String name, String manufacturer) {
+    return new AudioDevice(this, id, name, manufacturer);
+  }
+
+  /**
+   * Creates a new <code>AudioLet</code>.
+   * @param index  The index of the let on its device.
+   * @param channelIndex  The device index of the first channel of the let.
+   */
+  protected final AudioLet newAudioLet(AudioDevice device, int index, int channelIndex, String name,
+      boolean isInput, int numChannels) {
+    return new AudioLet(device, index, channelIndex, name, isInput, numChannels);
+  }
+
+  /** Returns the index of the given let on its device. */
+  protected static int getLetIndex(AudioLet let) {
+    return let.getIndex();
+  }
+
+  /** Returns the device index of the first channel of the given let. */
+  protected static int getChannelIndex(AudioLet let) {
+    return let.getChannelIndex();
+  }
+
+  /** Assigns the backing buffer of a channel. Its byte order is set to the native order. */
+  protected static void setChannelBuffer(AudioLet let, int channelIndex, ByteBuffer buffer) {
+    let.setChannelBuffer(channelIndex, buffer);
+  }
+
+  /** Allocates a direct, natively ordered buffer large enough for <code>blockSize</code> samples. */
+  protected static ByteBuffer allocateChannelBuffer(int blockSize) {
+    return ByteBuffer.allocateDirect(blockSize * 4).order(ByteOrder.nativeOrder());
+  }
+
+  /** Delivers a block of input to the registered listener. */
+  protected static void fireOnCoreAudioInput(double timestamp) {
+    JCoreAudio.fireOnCoreAudioInput(timestamp);
+  }
+
+  /** Requests a block of output from the registered listener. */
+  protected static void fireOnCoreAudioOutput(double timestamp) {
+    JCoreAudio.fireOnCoreAudioOutput(timestamp);
+  }
+
+  /** Delivers a block of input from the device of an aggregated session. */
+  protected static void fireOnStreamInput(long ptr, double timestamp) {
+    JCoreAudio.fireOnStreamInput(ptr, timestamp);
+  }
+
+  /** Requests a block of output for the device of an aggregated session. */
+  protected static void fireOnStreamOutput(long ptr, double timestamp) {
+    JCoreAudio.fireOnStreamOutput(ptr, timestamp);
+  }
+
+  /** Creates the default backend as described in the class documentation. */
+  static AudioBackend createDefault() {
+    String name = System.getProperty(BACKEND_PROPERTY);
+    if (name == null || name.isEmpty()) {
+      Iterator<AudioBackend> providers = ServiceLoader.load(AudioBackend.class).iterator();
+      return providers.hasNext() ? providers.next() : new CoreAudioBackend();
+    } else if (name.equals("coreaudio")) {
+      return new CoreAudioBackend();
+    } else if (name.equals("simulated")) {
+      return new SimulatedAudioBackend();
+    } else {
+      try {
+        return Class.forName(name).asSubclass(AudioBackend.class).getConstructor().newInstance();
+      } catch (Exception e) {
+        throw new IllegalStateException("The AudioBackend " + name + " given by the system property " +
+            BACKEND_PROPERTY + " could not be instantiated.", e);
+      }
+    }
+  }
+}
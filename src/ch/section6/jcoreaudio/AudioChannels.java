@@ -0,0 +1,190 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * <code>AudioChannels</code> is an immutable, array-indexed view of the channels of a set of
+ * <code>AudioLet</code>s. It is built once when <code>JCoreAudio</code> is initialized, so that
+ * accessing it from an audio callback never allocates.<br/>
+ * <br/>
+ * Channels are numbered from zero. The lets are ordered by the index of their first channel on
+ * the device, and the channels of each let follow each other in order. This is the same order as
+ * the channel map given to Core Audio, i.e. channel <code>i</code> of this view is the
+ * <code>i</code>th channel of the device which has been selected.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public final class AudioChannels {
+  
+  private final AudioLet[] lets;
+  private final AudioLet[] channelLets;
+  private final int[] letChannels;
+  private final FloatBuffer[] floatBuffers;
+  private final ByteBuffer[] byteBuffers;
+  private final int blockSize;
+  
+  /** Creates a view of the given lets, which must already be ordered and have their buffers. */
+  AudioChannels(AudioLet[] lets, int blockSize) {
+    int numChannels = 0;
+    for (AudioLet let : lets) {
+      numChannels += let.numChannels;
+    }
+    this.lets = lets.clone();
+    this.channelLets = new AudioLet[numChannels];
+    this.letChannels = new int[numChannels];
+    this.floatBuffers = new FloatBuffer[numChannels];
+    this.byteBuffers = new ByteBuffer[numChannels];
+    this.blockSize = blockSize;
+    for (int i = 0, k = 0; i < lets.length; i++) {
+      for (int j = 0; j < lets[i].numChannels; j++, k++) {
+        channelLets[k] = lets[i];
+        letChannels[k] = j;
+        floatBuffers[k] = lets[i].getChannelFloatBuffer(j);
+        byteBuffers[k] = lets[i].getChannelByteBuffer(j);
+      }
+    }
+  }
+  
+  /** Creates a view of the same lets as <code>template</code>, but with buffers of its own. */
+  private AudioChannels(AudioChannels template) {
+    int numChannels = template.floatBuffers.length;
+    this.lets = template.lets;
+    this.channelLets = template.channelLets;
+    this.letChannels = template.letChannels;
+    this.floatBuffers = new FloatBuffer[numChannels];
+    this.byteBuffers = new ByteBuffer[numChannels];
+    this.blockSize = template.blockSize;
+    for (int i = 0; i < numChannels; i++) {
+      byteBuffers[i] = AudioBackend.allocateChannelBuffer(blockSize);
+      floatBuffers[i] = byteBuffers[i].asFloatBuffer();
+    }
+  }
+  
+  /**
+   * Returns a view with the same lets and channels as this one, but with newly allocated
+   * buffers. It is used to hold a copy of a block, e.g. one which is delivered later.
+   */
+  AudioChannels copyLayout() {
+    return new AudioChannels(this);
+  }
+  
+  /** Returns the total number of channels. */
+  public int getNumChannels() {
+    return floatBuffers.length;
+  }
+  
+  /** Returns the number of samples in each channel buffer. */
+  public int getBlockSize() {
+    return blockSize;
+  }
+  
+  /** Returns the number of lets in this view. */
+  public int getNumLets() {
+    return lets.length;
+  }
+  
+  /** Returns the let at the given index, in the order described above. */
+  public AudioLet getLetAt(int index) {
+    return lets[index];
+  }
+  
+  /** Returns the let to which the given channel belongs. */
+  public AudioLet getLet(int channel) {
+    return channelLets[channel];
+  }
+  
+  /** Returns the index of the given channel within its let. */
+  public int getLetChannel(int channel) {
+    return letChannels[channel];
+  }
+  
+  /**
+   * Returns the <code>FloatBuffer</code> of the given channel. The buffers are rewound before
+   * every callback.
+   */
+  public FloatBuffer getFloatBuffer(int channel) {
+    return floatBuffers[channel];
+  }
+  
+  /**
+   * Returns the <code>ByteBuffer</code> of the given channel. Note that the underlying bytes
+   * represent 32-bit <code>float</code>s in native byte order.
+   */
+  public ByteBuffer getByteBuffer(int channel) {
+    return byteBuffers[channel];
+  }
+  
+  /** Returns a sample of the given channel. */
+  public float get(int channel, int index) {
+    return floatBuffers[channel].get(index);
+  }
+  
+  /** Sets a sample of the given channel. */
+  public void set(int channel, int index, float sample) {
+    floatBuffers[channel].put(index, sample);
+  }
+  
+  /**
+   * Copies a whole block from the given channel into the array. The position of the channel
+   * buffer is left at its beginning.
+   */
+  public void read(int channel, float[] samples, int offset) {
+    FloatBuffer buffer = floatBuffers[channel];
+    buffer.rewind();
+    buffer.get(samples, offset, blockSize);
+    buffer.rewind();
+  }
+  
+  /**
+   * Copies a whole block from the array into the given channel. The position of the channel
+   * buffer is left at its beginning.
+   */
+  public void write(int channel, float[] samples, int offset) {
+    FloatBuffer buffer = floatBuffers[channel];
+    buffer.rewind();
+    buffer.put(samples, offset, blockSize);
+    buffer.rewind();
+  }
+  
+  /** Sets all channels to zero. */
+  public void clear() {
+    for (FloatBuffer buffer : floatBuffers) {
+      for (int i = 0; i < blockSize; i++) {
+        buffer.put(i, 0.0f);
+      }
+    }
+  }
+  
+  /** Rewinds all channel buffers. */
+  void rewind() {
+    for (FloatBuffer buffer : floatBuffers) {
+      buffer.rewind();
+    }
+  }
+  
+  /** Returns the internal array of channel buffers. It must not be modified. */
+  FloatBuffer[] getFloatBuffers() {
+    return floatBuffers;
+  }
+}
@@ -21,12 +21,17 @@
 
 package ch.section6.jcoreaudio;
 
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Set;
 
 /**
  * An <code>AudioDevice</code> represents a system device capable of processing audio, either
- * as an input, an output, or both.
+ * as an input, an output, or both.<br/>
+ * <br/>
+ * The lets and properties of a device are queried from its backend when they are first requested,
+ * and are then cached until the backend reports that the device has changed.
  * @author Martin Roth (mhroth@gmail.com)
  */
 public class AudioDevice {
@@ -40,25 +45,96 @@ public class AudioDevice {
   /** The system-assigned identifier of this device. */
   public final int id;
   
-  /** A set of all available input lets. */
-  private final Set<AudioLet> inputLetSet;
+  /** The {@link AudioBackend} which provides this device. */
+  final AudioBackend backend;
   
-  /** A set of all available output lets. */
-  private final Set<AudioLet> outputLetSet;
+  // the bits of validProperties
+  private static final int CURRENT_BUFFER_SIZE = 1;
+  private static final int MINIMUM_BUFFER_SIZE = 2;
+  private static final int MAXIMUM_BUFFER_SIZE = 4;
+  private static final int CURRENT_SAMPLE_RATE = 8;
+  private static final int INPUT_LETS = 16;
+  private static final int OUTPUT_LETS = 32;
   
+  /**
+   * The properties whose cached values are valid. A value is written before its bit is set, so
+   * that a reader which sees the bit also sees the value.
+   */
+  private volatile int validProperties;
+  
+  private int currentBufferSize;
+  private int minimumBufferSize;
+  private int maximumBufferSize;
+  private float currentSampleRate;
+  
+  /** All available input lets, ordered by index. */
+  private AudioLet[] inputLets;
+  
+  /** All available output lets, ordered by index. */
+  private AudioLet[] outputLets;
+  
+  // called from native code
   private AudioDevice(int id, String name, String manufacturer) {
+    this(JCoreAudio.jcoreaudio.getBackend(), id, name, manufacturer);
+  }
+  
+  AudioDevice(AudioBackend backend, int id, String name, String manufacturer) {
+    this.backend = backend;
     this.id = id;
     this.name = name;
     this.manufacturer = manufacturer;
-    
-    this.inputLetSet = new HashSet<AudioLet>();
-    queryLetSet(this, id, true, inputLetSet);
-    
-    this.outputLetSet = new HashSet<AudioLet>();
-    queryLetSet(this, id, false, outputLetSet);
   }
   
-  private static native void queryLetSet(AudioDevice device, int deviceId, boolean isInput,
+  /** Queries the given property from the backend, unless its cached value is valid. */
+  private void validate(int property) {
+    if ((validProperties & property) == 0) {
+      synchronized (this) {
+        if ((validProperties & property) == 0) {
+          switch (property) {
+            case CURRENT_BUFFER_SIZE: currentBufferSize = backend.getCurrentBufferSize(this); break;
+            case MINIMUM_BUFFER_SIZE: minimumBufferSize = backend.getMinimumBufferSize(this); break;
+            case MAXIMUM_BUFFER_SIZE: maximumBufferSize = backend.getMaximumBufferSize(this); break;
+            case CURRENT_SAMPLE_RATE: currentSampleRate = backend.getCurrentSampleRate(this); break;
+            case INPUT_LETS: inputLets = queryLets(true); break;
+            case OUTPUT_LETS: outputLets = queryLets(false); break;
+            default: throw new IllegalArgumentException();
+          }
+          if (backend.isReportingChanges()) {
+            validProperties |= property;
+          }
+        }
+      }
+    }
+  }
+  
+  private AudioLet[] queryLets(boolean isInput) {
+    Set<AudioLet> set = new HashSet<AudioLet>();
+    backend.queryLetSet(this, isInput, set);
+    AudioLet[] lets = set.toArray(new AudioLet[set.size()]);
+    Arrays.sort(lets, new Comparator<AudioLet>() {
+      @Override
+      public int compare(AudioLet a, AudioLet b) {
+        return a.getIndex() - b.getIndex();
+      }
+    });
+    return lets;
+  }
+  
+  /**
+   * Discards all cached properties of this device and its lets, so that they are queried again
+   * when they are next requested. Called when the backend reports a change of the device.
+   */
+  synchronized void invalidate() {
+    validProperties = 0;
+    if (inputLets != null) {
+      for (AudioLet let : inputLets) let.invalidate();
+    }
+    if (outputLets != null) {
+      for (AudioLet let : outputLets) let.invalidate();
+    }
+  }
+  
+  static native void queryLetSet(AudioDevice device, int deviceId, boolean isInput,
       Set<AudioLet> set);
   
   /** Returns the numerical system id of this device. */
@@ -81,8 +157,8 @@ public class AudioDevice {
    * the <code>Set</code> is empty.
    */
   public Set<AudioLet> getInputSet() {
-    // return a defensive copy of the inputLetSet
-    return new HashSet<AudioLet>(inputLetSet);
+    validate(INPUT_LETS);
+    return new HashSet<AudioLet>(Arrays.asList(inputLets));
   }
   
   /**
@@ -90,7 +166,8 @@ public class AudioDevice {
    * the <code>Set</code> is empty.
    */
   public Set<AudioLet> getOutputSet() {
-    return new HashSet<AudioLet>(outputLetSet);
+    validate(OUTPUT_LETS);
+    return new HashSet<AudioLet>(Arrays.asList(outputLets));
   }
   
   /**
@@ -101,9 +178,10 @@ public class AudioDevice {
    * panel or the Audio Midi Setup utility.
    */
   public int getCurrentBufferSize() {
-    return getCurrentBufferSize(id);
+    validate(CURRENT_BUFFER_SIZE);
+    return currentBufferSize;
   }
-  private native static int getCurrentBufferSize(int id);
+  native static int getCurrentBufferSize(int id);
   
   /**
    * Returns the minimum buffer size of this device.<br/>
@@ -113,9 +191,10 @@ public class AudioDevice {
    * panel or the Audio Midi Setup utility.
    */
   public int getMinimumBufferSize() {
-    return getMinimumBufferSize(id);
+    validate(MINIMUM_BUFFER_SIZE);
+    return minimumBufferSize;
   }
-  private static native int getMinimumBufferSize(int audioDeviceId);
+  static native int getMinimumBufferSize(int audioDeviceId);
   
   /**
    * Returns the maximum buffer size of this device.<br/>
@@ -125,9 +204,10 @@ public class AudioDevice {
    * panel or the Audio Midi Setup utility.
    */
   public int getMaximumBufferSize() {
-    return getMaximumBufferSize(id);
+    validate(MAXIMUM_BUFFER_SIZE);
+    return maximumBufferSize;
   }
-  private static native int getMaximumBufferSize(int audioDeviceid);
+  static native int getMaximumBufferSize(int audioDeviceid);
   
   /**
    * Returns the current sample rate of this <code>AudioDevice</code>.<br/>
@@ -137,9 +217,10 @@ public class AudioDevice {
    * panel or the Audio Midi Setup utility.
    */
   public float getCurrentSampleRate() {
-    return getCurrentSampleRate(id);
+    validate(CURRENT_SAMPLE_RATE);
+    return currentSampleRate;
   }
-  private static native float getCurrentSampleRate(int id);
+  static native float getCurrentSampleRate(int id);
   
   @Override
   public String toString() {
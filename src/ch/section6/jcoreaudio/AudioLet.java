@@ -24,6 +24,7 @@ package ch.section6.jcoreaudio;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -56,7 +57,11 @@ public class AudioLet {
   /** The number of channels associated with this let. */
   public final int numChannels;
   
-  private final Set<Float> availableSamplerates;
+  /**
+   * The sorted sample rates supported by this let, or <code>null</code> if they have not yet been
+   * queried since the device last changed.
+   */
+  private volatile float[] availableSamplerates;
   
   /** An array containing this let's buffers. */
   private ByteBuffer[] byteBuffers;
@@ -64,7 +69,10 @@ public class AudioLet {
   /** An array containing this let's buffers, represented as <code>FloatBuffer</code>s. */
   private FloatBuffer[] floatBuffers;
   
-  private AudioLet(AudioDevice device, int index, int channelIndex, String name, boolean isInput, int numChannels) {
+  /** The frames of this let, if <code>JCoreAudio</code> is initialized in interleaved mode. */
+  private FloatBuffer interleavedBuffer;
+  
+  AudioLet(AudioDevice device, int index, int channelIndex, String name, boolean isInput, int numChannels) {
     this.device = device;
     this.index = index;
     this.channelIndex = channelIndex;
@@ -73,12 +81,42 @@ public class AudioLet {
     this.numChannels = numChannels;
     floatBuffers = new FloatBuffer[numChannels];
     byteBuffers = new ByteBuffer[numChannels];
-    
-    availableSamplerates = new HashSet<Float>();
-    queryAvailableSamplerates(device.getId(), index, isInput, availableSamplerates);
   }
   
-  private static native void queryAvailableSamplerates(int deviceId, int letIndex, boolean isInput,
+  /** Returns the sorted sample rates of this let, querying them from the backend if necessary. */
+  private float[] getSamplerates() {
+    float[] samplerates = availableSamplerates;
+    if (samplerates == null) {
+      // the device lock orders the query with invalidate()
+      synchronized (device) {
+        samplerates = availableSamplerates;
+        if (samplerates == null) {
+          Set<Float> set = new HashSet<Float>();
+          device.backend.queryAvailableSamplerates(device, index, isInput, set);
+          samplerates = new float[set.size()];
+          int i = 0;
+          for (Float samplerate : set) {
+            samplerates[i++] = samplerate;
+          }
+          Arrays.sort(samplerates);
+          if (device.backend.isReportingChanges()) {
+            availableSamplerates = samplerates;
+          }
+        }
+      }
+    }
+    return samplerates;
+  }
+  
+  /**
+   * Discards the cached sample rates, so that they are queried again when next requested. Called
+   * by the device while holding its lock.
+   */
+  void invalidate() {
+    availableSamplerates = null;
+  }
+  
+  static native void queryAvailableSamplerates(int deviceId, int letIndex, boolean isInput,
       Set<Float> formats);
   
   public String getName() {
@@ -115,19 +153,56 @@ public class AudioLet {
     return floatBuffers[channelIndex];
   }
   
-  private void setChannelBuffer(int channelIndex, ByteBuffer buffer) {
+  void setChannelBuffer(int channelIndex, ByteBuffer buffer) {
     // set the endianness of the ByteBuffer, otherwise the samples are not correctly represented
     byteBuffers[channelIndex] = buffer.order(ByteOrder.nativeOrder());
     floatBuffers[channelIndex] = byteBuffers[channelIndex].asFloatBuffer();
   }
   
+  /**
+   * Returns a buffer containing the samples of all channels of this let, interleaved frame by
+   * frame, i.e. sample <code>i</code> of channel <code>c</code> is at index
+   * <code>i * numChannels + c</code>. It is only available if <code>JCoreAudio</code> has been
+   * initialized in interleaved mode, and <code>null</code> otherwise.<br/>
+   * <br/>
+   * For an input let, the buffer holds the current input when the listener is called. For an
+   * output let, the listener writes its output into the buffer. The per-channel buffers are kept
+   * in step with it, so taps see the same samples.
+   */
+  public FloatBuffer getInterleavedFloatBuffer() {
+    return interleavedBuffer;
+  }
+  
+  /** Indicates if this let has an interleaved buffer. */
+  public boolean isInterleaved() {
+    return interleavedBuffer != null;
+  }
+  
+  void setInterleavedBuffer(FloatBuffer buffer) {
+    interleavedBuffer = buffer;
+  }
+  
+  /** Returns the per-channel buffers of this let. The array must not be modified. */
+  FloatBuffer[] getChannelFloatBuffers() {
+    return floatBuffers;
+  }
+  
   /** Returns the index of the first channel in this let. Used for configuring the channel map. */
-  private int getChannelIndex() {
+  int getChannelIndex() {
     return channelIndex;
   }
   
+  /** Returns the system-assigned index of this let on its device. */
+  int getIndex() {
+    return index;
+  }
+  
   public Set<Float> getAvailableSamplerates() {
-    return new HashSet<Float>(availableSamplerates);
+    Set<Float> set = new HashSet<Float>();
+    for (float samplerate : getSamplerates()) {
+      set.add(samplerate);
+    }
+    return set;
   }
   
   /**
@@ -135,7 +210,7 @@ public class AudioLet {
    * Otherwise <code>false</code>.
    */
   public boolean canSamplerate(float samplerate) {
-    return availableSamplerates.contains(new Float(samplerate)); 
+    return Arrays.binarySearch(getSamplerates(), samplerate) >= 0;
   }
 
   @Override
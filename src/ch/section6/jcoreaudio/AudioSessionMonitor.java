@@ -0,0 +1,274 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * <code>AudioSessionMonitor</code> measures how much of the block deadline the listener consumes
+ * in each direction. A new monitor is created whenever <code>JCoreAudio</code> is initialized, and
+ * it is registered with the platform <code>MBeanServer</code> as
+ * <code>ch.section6.jcoreaudio:type=AudioSession,id=&lt;n&gt;</code> until
+ * <code>JCoreAudio</code> is uninitialized.<br/>
+ * <br/>
+ * Timing is recorded on the audio thread without locks or allocation. The DSP load is the
+ * listener's execution time as a percentage of the block period. A deadline overrun is counted
+ * whenever a single callback takes longer than the block period. Discontinuities of the callback
+ * timestamps are tracked by a {@link DropoutDetector} for each direction.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class AudioSessionMonitor implements AudioSessionMonitorMBean {
+  
+  private static final AtomicInteger sessionCounter = new AtomicInteger();
+  
+  private final int blockSize;
+  private final float sampleRate;
+  final CallbackTimer inputTimer;
+  final CallbackTimer outputTimer;
+  final DropoutDetector inputDropouts;
+  final DropoutDetector outputDropouts;
+  private ObjectName objectName;
+  
+  AudioSessionMonitor(int blockSize, float sampleRate) {
+    this(blockSize, sampleRate, blockSize, sampleRate);
+  }
+  
+  /**
+   * @param deviceBlockSize  The block size of the device callbacks, which differs from that of the
+   *     listener when the block size is adapted.
+   * @param deviceSampleRate  The sample rate of the device, which differs from that of the
+   *     listener when the sample rate is converted.
+   */
+  AudioSessionMonitor(int blockSize, float sampleRate, int deviceBlockSize, float deviceSampleRate) {
+    this.blockSize = blockSize;
+    this.sampleRate = sampleRate;
+    inputTimer = new CallbackTimer(blockSize, sampleRate);
+    outputTimer = new CallbackTimer(blockSize, sampleRate);
+    inputDropouts = new DropoutDetector(true, blockSize, deviceBlockSize, deviceSampleRate);
+    outputDropouts = new DropoutDetector(false, blockSize, deviceBlockSize, deviceSampleRate);
+  }
+  
+  /** Registers this monitor with the platform <code>MBeanServer</code>. */
+  void register() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      objectName = new ObjectName("ch.section6.jcoreaudio:type=AudioSession,id=" +
+          sessionCounter.incrementAndGet());
+      server.registerMBean(this, objectName);
+    } catch (JMException e) {
+      objectName = null;
+      System.err.println("WARNING (JCoreAudio): The AudioSessionMonitor could not be registered " +
+          "with JMX: " + e.getMessage());
+    }
+  }
+  
+  /** Unregisters this monitor from the platform <code>MBeanServer</code>, if it is registered. */
+  void unregister() {
+    if (objectName == null) return;
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    } catch (JMException e) {
+      // the monitor has already been unregistered
+    }
+    objectName = null;
+  }
+  
+  /** Returns the name under which this monitor is registered, or <code>null</code>. */
+  public ObjectName getObjectName() {
+    return objectName;
+  }
+  
+  /** Returns the histogram of input listener execution times. */
+  public LatencyHistogram getInputHistogram() {
+    return inputTimer.histogram;
+  }
+  
+  /** Returns the histogram of output listener execution times. */
+  public LatencyHistogram getOutputHistogram() {
+    return outputTimer.histogram;
+  }
+  
+  /** Returns the detector of discontinuities in the input callback timestamps. */
+  public DropoutDetector getInputDropoutDetector() {
+    return inputDropouts;
+  }
+  
+  /** Returns the detector of discontinuities in the output callback timestamps. */
+  public DropoutDetector getOutputDropoutDetector() {
+    return outputDropouts;
+  }
+  
+  @Override
+  public int getBlockSize() {
+    return blockSize;
+  }
+  
+  @Override
+  public float getSampleRate() {
+    return sampleRate;
+  }
+  
+  @Override
+  public double getBlockPeriodMicros() {
+    return outputTimer.deadlineNanos / 1000.0;
+  }
+  
+  @Override
+  public long getInputCallbackCount() {
+    return inputTimer.histogram.getCount();
+  }
+  
+  @Override
+  public long getInputDeadlineOverruns() {
+    return inputTimer.getOverruns();
+  }
+  
+  @Override
+  public double getInputMeanMicros() {
+    return inputTimer.histogram.getMean() / 1000.0;
+  }
+  
+  @Override
+  public double getInputP50Micros() {
+    return inputTimer.histogram.getValueAtPercentile(50.0) / 1000.0;
+  }
+  
+  @Override
+  public double getInputP99Micros() {
+    return inputTimer.histogram.getValueAtPercentile(99.0) / 1000.0;
+  }
+  
+  @Override
+  public double getInputP999Micros() {
+    return inputTimer.histogram.getValueAtPercentile(99.9) / 1000.0;
+  }
+  
+  @Override
+  public double getInputMaxMicros() {
+    return inputTimer.histogram.getMax() / 1000.0;
+  }
+  
+  @Override
+  public double getInputDspLoadPercent() {
+    return inputTimer.toLoadPercent(inputTimer.histogram.getMean());
+  }
+  
+  @Override
+  public double getInputPeakDspLoadPercent() {
+    return inputTimer.toLoadPercent(inputTimer.histogram.getMax());
+  }
+  
+  @Override
+  public long getInputSkippedBlocks() {
+    return inputDropouts.getSkippedBlocks();
+  }
+  
+  @Override
+  public long getInputLateCallbacks() {
+    return inputDropouts.getLateCallbacks();
+  }
+  
+  @Override
+  public long getOutputCallbackCount() {
+    return outputTimer.histogram.getCount();
+  }
+  
+  @Override
+  public long getOutputDeadlineOverruns() {
+    return outputTimer.getOverruns();
+  }
+  
+  @Override
+  public double getOutputMeanMicros() {
+    return outputTimer.histogram.getMean() / 1000.0;
+  }
+  
+  @Override
+  public double getOutputP50Micros() {
+    return outputTimer.histogram.getValueAtPercentile(50.0) / 1000.0;
+  }
+  
+  @Override
+  public double getOutputP99Micros() {
+    return outputTimer.histogram.getValueAtPercentile(99.0) / 1000.0;
+  }
+  
+  @Override
+  public double getOutputP999Micros() {
+    return outputTimer.histogram.getValueAtPercentile(99.9) / 1000.0;
+  }
+  
+  @Override
+  public double getOutputMaxMicros() {
+    return outputTimer.histogram.getMax() / 1000.0;
+  }
+  
+  @Override
+  public double getOutputDspLoadPercent() {
+    return outputTimer.toLoadPercent(outputTimer.histogram.getMean());
+  }
+  
+  @Override
+  public double getOutputPeakDspLoadPercent() {
+    return outputTimer.toLoadPercent(outputTimer.histogram.getMax());
+  }
+  
+  @Override
+  public long getOutputSkippedBlocks() {
+    return outputDropouts.getSkippedBlocks();
+  }
+  
+  @Override
+  public long getOutputLateCallbacks() {
+    return outputDropouts.getLateCallbacks();
+  }
+  
+  @Override
+  public long getClockResets() {
+    return inputDropouts.getClockResets() + outputDropouts.getClockResets();
+  }
+  
+  @Override
+  public double getDspLoadPercent() {
+    return getInputDspLoadPercent() + getOutputDspLoadPercent();
+  }
+  
+  @Override
+  public void reset() {
+    inputTimer.reset();
+    outputTimer.reset();
+  }
+  
+  @Override
+  public String toString() {
+    return String.format("AudioSession %d@%.0fHz: output p50 %.1fus p99 %.1fus p99.9 %.1fus " +
+        "max %.1fus, load %.1f%%, %d overruns, %d skipped blocks", blockSize, sampleRate, getOutputP50Micros(),
+        getOutputP99Micros(), getOutputP999Micros(), getOutputMaxMicros(), getDspLoadPercent(),
+        getInputDeadlineOverruns() + getOutputDeadlineOverruns(),
+        getInputSkippedBlocks() + getOutputSkippedBlocks());
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio;
+
+/**
+ * The JMX management interface of {@link AudioSessionMonitor}. All durations are in microseconds
+ * and all loads are percentages of the block period.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public interface AudioSessionMonitorMBean {
+  
+  public int getBlockSize();
+  public float getSampleRate();
+  
+  /** The time available to each callback, <code>blockSize / sampleRate</code>. */
+  public double getBlockPeriodMicros();
+  
+  public long getInputCallbackCount();
+  public long getInputDeadlineOverruns();
+  public double getInputMeanMicros();
+  public double getInputP50Micros();
+  public double getInputP99Micros();
+  public double getInputP999Micros();
+  public double getInputMaxMicros();
+  public double getInputDspLoadPercent();
+  public double getInputPeakDspLoadPercent();
+  public long getInputSkippedBlocks();
+  public long getInputLateCallbacks();
+  
+  public long getOutputCallbackCount();
+  public long getOutputDeadlineOverruns();
+  public double getOutputMeanMicros();
+  public double getOutputP50Micros();
+  public double getOutputP99Micros();
+  public double getOutputP999Micros();
+  public double getOutputMaxMicros();
+  public double getOutputDspLoadPercent();
+  public double getOutputPeakDspLoadPercent();
+  public long getOutputSkippedBlocks();
+  public long getOutputLateCallbacks();
+  
+  /** The number of times that the input or output timestamps jumped backwards. */
+  public long getClockResets();
+  
+  /** The mean combined load of the input and output listeners. */
+  public double getDspLoadPercent();
+  
+  /** Clears the timing statistics. Dropout counts are not cleared. */
+  public void reset();
+}
@@ -0,0 +1,330 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package ch.section6.jcoreaudio;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <code>BlockSizeAdapter</code> presents a constant block size to the listener, whatever the
+ * buffer size of the device. Input from the device is queued until a whole block is available,
+ * and output is queued until the device requests it. Both queues are allocated once, when
+ * <code>JCoreAudio</code> is initialized.<br/>
+ * <br/>
+ * With <i>B</i> the block size of the listener, <i>D</i> that of the device and <i>g</i> their
+ * greatest common divisor, the adapter adds the following latencies, which are exact:
+ * <ul>
+ *   <li>{@link Mode#DIRECT}: the listener is called from the device callbacks, as soon as its
+ *       output is needed. If there is both input and output, the input is delayed by
+ *       <i>B - g</i> frames, so that a whole block of input has always arrived. Otherwise nothing
+ *       is added. A device callback makes as many listener callbacks as are due, so that the CPU
+ *       load comes in bursts if <i>B</i> is larger than <i>D</i>.</li>
+ *   <li>{@link Mode#SPREAD}: the listener is called from a worker thread of maximum priority,
+ *       as soon as its input is complete and there is room for its output. The output is delayed
+ *       by a further <i>B</i> frames, so that the listener has a whole block period to run in,
+ *       and its load is spread over all of the device callbacks in that period. Output which is
+ *       not ready in time is played as silence and counted as a late block. An exception thrown
+ *       by the listener is reported to the {@link DiagnosticLog}, and the worker carries on.</li>
+ * </ul>
+ * The timestamps given to the listener count its frames from zero, and follow any
+ * discontinuities of the device timestamps. Its input was captured
+ * {@link #getInputLatency()} frames before, and its output is played
+ * {@link #getOutputLatency()} frames after, the corresponding device timestamps.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class BlockSizeAdapter {
+  
+  /** How the listener is called. */
+  public enum Mode {
+    /** From the device callbacks. Adds the least latency. */
+    DIRECT,
+    
+    /** From a worker thread, one block ahead. Spreads the load of large blocks evenly. */
+    SPREAD
+  }
+  
+  /** How long the worker waits for a callback before checking the queues again. */
+  private static final long POLL_NANOS = 1000000L;
+  
+  private final Mode mode;
+  private final int blockSize;
+  private final int deviceBlockSize;
+  private final int inputLatency;
+  private final int outputLatency;
+  private final boolean hasInput;
+  private final boolean hasOutput;
+  
+  private final FloatBuffer[] deviceInputs;
+  private final FloatBuffer[] inputs;
+  private final FloatRingBuffer inputQueue;
+  
+  private final FloatBuffer[] outputs;
+  private final FloatBuffer[] deviceOutputs;
+  private final FloatRingBuffer outputQueue;
+  
+  /** The listener runs while the output queue holds fewer frames than this. */
+  private final int outputThreshold;
+  
+  // written by the callback which drives the session
+  private double expectedDeviceTime;
+  private boolean isTimed;
+  private volatile long timeSkew;
+  
+  // written by the thread which calls the listener
+  private long processingTime;
+  
+  private volatile boolean isRunning;
+  private Thread worker;
+  
+  private final AtomicLong inputUnderruns;
+  private final AtomicLong lateBlocks;
+  
+  /**
+   * @param inputLets  The input lets as given to the listener. Their buffers are allocated here.
+   * @param deviceInputLets  Copies of the same lets, whose buffers have been assigned by the backend.
+   */
+  BlockSizeAdapter(Mode mode, AudioLet[] inputLets, AudioLet[] deviceInputLets, AudioLet[] outputLets,
+      AudioLet[] deviceOutputLets, int blockSize, int deviceBlockSize) {
+    if (mode == null) {
+      throw new IllegalArgumentException("The mode may not be null.");
+    }
+    this.mode = mode;
+    this.blockSize = blockSize;
+    this.deviceBlockSize = deviceBlockSize;
+    this.inputs = allocateBuffers(inputLets, blockSize);
+    this.deviceInputs = new AudioChannels(deviceInputLets, deviceBlockSize).getFloatBuffers();
+    this.outputs = allocateBuffers(outputLets, blockSize);
+    this.deviceOutputs = new AudioChannels(deviceOutputLets, deviceBlockSize).getFloatBuffers();
+    this.hasInput = inputs.length > 0;
+    this.hasOutput = outputs.length > 0;
+    
+    int gcd = gcd(blockSize, deviceBlockSize);
+    inputLatency = (hasInput && hasOutput) ? blockSize - gcd : 0;
+    outputLatency = (hasOutput && mode == Mode.SPREAD) ? blockSize : 0;
+    outputThreshold = deviceBlockSize + outputLatency;
+    int capacity = 4 * (blockSize + deviceBlockSize);
+    inputQueue = hasInput ? new FloatRingBuffer(inputs.length, capacity) : null;
+    outputQueue = hasOutput ? new FloatRingBuffer(outputs.length, capacity) : null;
+    inputUnderruns = new AtomicLong();
+    lateBlocks = new AtomicLong();
+  }
+  
+  private static FloatBuffer[] allocateBuffers(AudioLet[] lets, int blockSize) {
+    for (AudioLet let : lets) {
+      for (int i = 0; i < let.numChannels; i++) {
+        let.setChannelBuffer(i, AudioBackend.allocateChannelBuffer(blockSize));
+      }
+    }
+    return new AudioChannels(lets, blockSize).getFloatBuffers();
+  }
+  
+  private static int gcd(int a, int b) {
+    while (b != 0) {
+      int t = a % b;
+      a = b;
+      b = t;
+    }
+    return a;
+  }
+  
+  public Mode getMode() {
+    return mode;
+  }
+  
+  /** Returns the block size of the listener. */
+  public int getBlockSize() {
+    return blockSize;
+  }
+  
+  /** Returns the buffer size of the device. */
+  public int getDeviceBlockSize() {
+    return deviceBlockSize;
+  }
+  
+  /** Returns the number of frames by which the input is delayed before it reaches the listener. */
+  public int getInputLatency() {
+    return inputLatency;
+  }
+  
+  /** Returns the number of frames by which the output of the listener is delayed. */
+  public int getOutputLatency() {
+    return outputLatency;
+  }
+  
+  /** Returns the number of frames which the adapter adds to the round trip from input to output. */
+  public int getLatency() {
+    return inputLatency + outputLatency;
+  }
+  
+  /** Returns the number of listener blocks whose input had not yet arrived and was silent. */
+  public long getInputUnderruns() {
+    return inputUnderruns.get();
+  }
+  
+  /** Returns the number of device blocks which were played as silence, as the listener was late. */
+  public long getLateBlocks() {
+    return lateBlocks.get();
+  }
+  
+  /** Empties the queues and fills them with the silence of the latencies. Only while stopped. */
+  void reset() {
+    if (hasInput) {
+      inputQueue.reset();
+      writeSilence(inputQueue, inputs, inputLatency);
+    }
+    if (hasOutput) {
+      outputQueue.reset();
+      writeSilence(outputQueue, outputs, outputLatency);
+    }
+    isTimed = false;
+    timeSkew = 0L;
+    processingTime = 0L;
+    inputUnderruns.set(0L);
+    lateBlocks.set(0L);
+  }
+  
+  private void writeSilence(FloatRingBuffer queue, FloatBuffer[] buffers, int numFrames) {
+    for (FloatBuffer buffer : buffers) {
+      for (int i = 0; i < blockSize; i++) {
+        buffer.put(i, 0.0f);
+      }
+    }
+    for (int n = numFrames; n > 0; n -= blockSize) {
+      queue.write(buffers, Math.min(n, blockSize));
+    }
+  }
+  
+  /** Starts the worker thread in spread mode. Called before the device is started. */
+  void start() {
+    if (mode != Mode.SPREAD || worker != null) return;
+    isRunning = true;
+    worker = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (isRunning) {
+          if (isReady()) {
+            try {
+              process();
+            } catch (RuntimeException e) {
+              // the worker would otherwise end, and with it the output of the session. Printing the
+              // exception would lock and allocate, so it is only reported.
+              JCoreAudio.jcoreaudio.diagnostics.log(DiagnosticLog.LISTENER_EXCEPTION,
+                  processingTime - blockSize + timeSkew);
+            }
+          } else {
+            LockSupport.parkNanos(POLL_NANOS);
+          }
+        }
+      }
+    }, "JCoreAudio Block Adapter");
+    worker.setDaemon(true);
+    worker.setPriority(Thread.MAX_PRIORITY);
+    worker.start();
+  }
+  
+  /** Stops the worker thread. Called after the device has been stopped. */
+  void stop() {
+    if (worker == null) return;
+    isRunning = false;
+    LockSupport.unpark(worker);
+    try {
+      worker.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    worker = null;
+  }
+  
+  /** Called by the input callback of the device. */
+  void onDeviceInput(double timestamp) {
+    inputQueue.write(deviceInputs, deviceBlockSize);
+    if (!hasOutput) {
+      updateTime(timestamp);
+      if (mode == Mode.SPREAD) {
+        LockSupport.unpark(worker);
+      } else {
+        while (inputQueue.availableToRead() >= blockSize) {
+          process();
+        }
+      }
+    }
+  }
+  
+  /** Called by the output callback of the device. */
+  void onDeviceOutput(double timestamp) {
+    updateTime(timestamp);
+    if (mode == Mode.SPREAD) {
+      if (!outputQueue.read(deviceOutputs, deviceBlockSize)) {
+        lateBlocks.lazySet(lateBlocks.get() + 1L);
+        JCoreAudio.jcoreaudio.diagnostics.log(DiagnosticLog.LATE_BLOCK, timestamp);
+      }
+      LockSupport.unpark(worker);
+    } else {
+      while (outputQueue.getCapacity() - outputQueue.availableToWrite() < outputThreshold) {
+        process();
+      }
+      outputQueue.read(deviceOutputs, deviceBlockSize);
+    }
+  }
+  
+  /** Follows discontinuities of the device clock in the timestamps of the listener. */
+  private void updateTime(double timestamp) {
+    if (isTimed && timestamp != expectedDeviceTime) {
+      timeSkew = timeSkew + Math.round(timestamp - expectedDeviceTime);
+    }
+    expectedDeviceTime = timestamp + deviceBlockSize;
+    isTimed = true;
+  }
+  
+  /** Indicates that the input of the next block is complete and there is room for its output. */
+  private boolean isReady() {
+    return (!hasInput || inputQueue.availableToRead() >= blockSize) &&
+        (!hasOutput || outputQueue.getCapacity() - outputQueue.availableToWrite() < outputThreshold);
+  }
+  
+  /**
+   * Runs one block of the listener. The block is queued and the time advanced even if the
+   * listener throws, so that the queues stay in step with the device.
+   */
+  private void process() {
+    double timestamp = processingTime + timeSkew;
+    try {
+      if (hasInput) {
+        if (!inputQueue.read(inputs, blockSize)) {
+          inputUnderruns.lazySet(inputUnderruns.get() + 1L);
+          JCoreAudio.jcoreaudio.diagnostics.log(DiagnosticLog.INPUT_UNDERRUN, timestamp);
+        }
+        JCoreAudio.processInput(timestamp);
+      }
+      if (hasOutput) {
+        JCoreAudio.processOutput(timestamp);
+      }
+    } finally {
+      if (hasOutput) {
+        outputQueue.write(outputs, blockSize);
+      }
+      processingTime += blockSize;
+    }
+  }
+}
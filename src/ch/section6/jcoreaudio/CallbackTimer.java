@@ -0,0 +1,84 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <code>CallbackTimer</code> records the execution time of the listener in one direction (input
+ * or output) and compares it to the block deadline, <code>blockSize / sampleRate</code>.
+ * {@link #record(long)} is called by the audio thread after every callback and never blocks
+ * or allocates.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+class CallbackTimer {
+  
+  final LatencyHistogram histogram;
+  
+  /** The block period in nanoseconds. */
+  final long deadlineNanos;
+  
+  private final AtomicLong overruns;
+  private final AtomicLong lastNanos;
+  private volatile boolean isResetRequested;
+  
+  CallbackTimer(int blockSize, float sampleRate) {
+    histogram = new LatencyHistogram();
+    deadlineNanos = (sampleRate > 0.0f) ? (long) (1000000000.0 * blockSize / sampleRate) : Long.MAX_VALUE;
+    overruns = new AtomicLong();
+    lastNanos = new AtomicLong();
+  }
+  
+  /** Records the execution time of one callback. May only be called by the audio thread. */
+  void record(long elapsedNanos) {
+    if (isResetRequested) {
+      overruns.lazySet(0L);
+      isResetRequested = false;
+    }
+    histogram.record(elapsedNanos);
+    lastNanos.lazySet(elapsedNanos);
+    if (elapsedNanos > deadlineNanos) {
+      overruns.lazySet(overruns.get() + 1L);
+    }
+  }
+  
+  /** The number of callbacks which took longer than the block period. */
+  long getOverruns() {
+    return overruns.get();
+  }
+  
+  /** Returns the given duration as a percentage of the block period. */
+  double toLoadPercent(double nanos) {
+    return 100.0 * nanos / deadlineNanos;
+  }
+  
+  /** The execution time of the most recent callback in nanoseconds. */
+  long getLastNanos() {
+    return lastNanos.get();
+  }
+  
+  /** Requests that all statistics be cleared before the next callback is recorded. */
+  void reset() {
+    histogram.reset();
+    isResetRequested = true;
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ *
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <code>CoreAudioBackend</code> is the default {@link AudioBackend}. It forwards all requests to
+ * Core Audio via <code>libJCoreAudio.jnilib</code>, which is loaded when the backend is created.
+ * The native callbacks enter Java through <code>JCoreAudio.fireOnCoreAudioInput</code> and
+ * <code>JCoreAudio.fireOnCoreAudioOutput</code>, or through <code>JCoreAudio.fireOnStreamInput</code>
+ * and <code>JCoreAudio.fireOnStreamOutput</code> for the sessions of aggregated devices.<br/>
+ * <br/>
+ * The backend registers Core Audio property listeners for the device list of the system and for
+ * each device which it has listed, so that cached devices are refreshed when they change. If the
+ * native library cannot register them, nothing is cached and every request goes to Core Audio.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class CoreAudioBackend extends AudioBackend {
+
+  /** The ids of the devices whose property listeners have been registered. */
+  private final Set<Integer> listenedDeviceIds;
+  
+  /** Whether the property listener of the device list could be registered. */
+  private final boolean isListening;
+
+  public CoreAudioBackend() {
+    System.loadLibrary("JCoreAudio");
+    listenedDeviceIds = new HashSet<Integer>();
+    isListening = addPropertyListener(0);
+  }
+  
+  /**
+   * Registers the property listener of a device, or of the device list if the id is zero.
+   * Returns <code>false</code> if the native library cannot register listeners.
+   */
+  private boolean addPropertyListener(int deviceId) {
+    try {
+      JCoreAudio.addPropertyListener(this, deviceId);
+      return true;
+    } catch (UnsatisfiedLinkError e) {
+      // libJCoreAudio.jnilib was built before property listeners were added
+      return false;
+    }
+  }
+  
+  @Override
+  protected boolean isReportingChanges() {
+    return isListening;
+  }
+
+  @Override
+  protected void fillAudioDeviceList(List<AudioDevice> list) {
+    JCoreAudio.fillAudioDeviceList(list);
+    if (isListening) {
+      synchronized (listenedDeviceIds) {
+        for (AudioDevice device : list) {
+          if (listenedDeviceIds.add(device.getId())) {
+            addPropertyListener(device.getId());
+          }
+        }
+      }
+    }
+  }
+  
+  // called from native code, on a Core Audio notification thread
+  private void onDevicesChanged() {
+    devicesChanged();
+  }
+  
+  // called from native code, on a Core Audio notification thread
+  private void onDeviceChanged(int deviceId) {
+    deviceChanged(deviceId);
+  }
+
+  @Override
+  protected void queryLetSet(AudioDevice device, boolean isInput, Set<AudioLet> set) {
+    AudioDevice.queryLetSet(device, device.getId(), isInput, set);
+  }
+
+  @Override
+  protected void queryAvailableSamplerates(AudioDevice device, int letIndex, boolean isInput,
+      Set<Float> set) {
+    AudioLet.queryAvailableSamplerates(device.getId(), letIndex, isInput, set);
+  }
+
+  @Override
+  protected int getCurrentBufferSize(AudioDevice device) {
+    return AudioDevice.getCurrentBufferSize(device.getId());
+  }
+
+  @Override
+  protected int getMinimumBufferSize(AudioDevice device) {
+    return AudioDevice.getMinimumBufferSize(device.getId());
+  }
+
+  @Override
+  protected int getMaximumBufferSize(AudioDevice device) {
+    return AudioDevice.getMaximumBufferSize(device.getId());
+  }
+
+  @Override
+  protected float getCurrentSampleRate(AudioDevice device) {
+    return AudioDevice.getCurrentSampleRate(device.getId());
+  }
+
+  @Override
+  protected long initialize(AudioLet[] inputLets, int numChannelsInput, AudioDevice inputDevice,
+      AudioLet[] outputLets, int numChannelsOutput, AudioDevice outputDevice,
+      int blockSize, float sampleRate) {
+    return JCoreAudio.initialize(
+        inputLets, numChannelsInput, (inputDevice == null) ? 0 : inputDevice.getId(),
+        outputLets, numChannelsOutput, (outputDevice == null) ? 0 : outputDevice.getId(),
+        blockSize, sampleRate);
+  }
+
+  @Override
+  protected long initializeStream(AudioLet[] inputLets, int numChannelsInput, AudioLet[] outputLets,
+      int numChannelsOutput, AudioDevice device, int blockSize, float sampleRate) {
+    try {
+      return JCoreAudio.initializeStream(inputLets, numChannelsInput, outputLets, numChannelsOutput,
+          device.getId(), blockSize, sampleRate);
+    } catch (UnsatisfiedLinkError e) {
+      // libJCoreAudio.jnilib was built before aggregation was added
+      throw new UnsupportedOperationException("The native library cannot aggregate several " +
+          "devices. Rebuild libJCoreAudio.jnilib from the Xcode project in JCoreAudio/.", e);
+    }
+  }
+
+  @Override
+  protected void uninitialize(long ptr) {
+    JCoreAudio.uninitialize(ptr);
+  }
+
+  @Override
+  protected void play(boolean shouldPlay, long ptr) {
+    JCoreAudio.play(shouldPlay, ptr);
+  }
+}
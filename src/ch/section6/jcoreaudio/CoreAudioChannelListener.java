@@ -0,0 +1,48 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio;
+
+/**
+ * <code>CoreAudioChannelListener</code> is an alternative to {@link CoreAudioListener} which
+ * receives the channels of the current lets as an array-indexed {@link AudioChannels} view.
+ * The views are built when <code>JCoreAudio</code> is initialized and are the same objects on
+ * every callback, so that no allocation is necessary on the audio thread. It is registered with
+ * {@link JCoreAudio#setChannelListener(CoreAudioChannelListener)}.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public interface CoreAudioChannelListener {
+  
+  /**
+   * This callback is called when new audio input is available.
+   * @param timestamp  The time in samples at the beginning of the block.
+   * @param inputs  The channels of the input lets with which Core Audio was initialized.
+   */
+  public void onCoreAudioInput(double timestamp, AudioChannels inputs);
+  
+  /**
+   * This callback is called when new audio output is required.
+   * @param timestamp  The time in samples at the beginning of the block.
+   * @param outputs  The channels of the output lets with which Core Audio was initialized.
+   */
+  public void onCoreAudioOutput(double timestamp, AudioChannels outputs);
+  
+}
@@ -0,0 +1,44 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio;
+
+/**
+ * <code>CoreAudioDuplexListener</code> receives input and output in a single callback, for
+ * processing such as live effects which turns each block of input into a block of output. The
+ * input block is matched to the output block by sample time by a {@link DuplexAligner}, even
+ * though Core Audio delivers input and output in separate callbacks. It is registered with
+ * {@link JCoreAudio#setDuplexListener(CoreAudioDuplexListener)}.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public interface CoreAudioDuplexListener {
+  
+  /**
+   * This callback is called when new audio output is required.
+   * @param timestamp  The time in samples at the beginning of the output block.
+   * @param inputs  The input block which begins at <code>timestamp</code> minus the added
+   *     latency reported by the <code>DuplexAligner</code>. It is silent if no input was available
+   *     in time.
+   * @param outputs  The channels of the output lets, into which the output is written.
+   */
+  public void process(double timestamp, AudioChannels inputs, AudioChannels outputs);
+  
+}
@@ -0,0 +1,132 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package ch.section6.jcoreaudio;
+
+/**
+ * <code>DelayLockedLoop</code> estimates the true block period of a device clock from the times
+ * at which its callbacks arrive. It is the second order loop described by Fons Adriaensen in
+ * <i>Using a DLL to filter time</i>: the callback times, which are subject to scheduling jitter,
+ * are filtered into a smooth time line whose slope is the period of the device clock measured in
+ * <code>System.nanoTime()</code>. Comparing the periods of two devices gives their relative
+ * drift.<br/>
+ * <br/>
+ * The loop is updated by the callback thread of its device. The filtered period may be read from
+ * any thread.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+final class DelayLockedLoop {
+  
+  /** The bandwidth of the loop while it locks, in Hz. */
+  private static final double LOCKING_BANDWIDTH = 1.0;
+  
+  /** The bandwidth of the loop once it has locked, in Hz. */
+  private static final double LOCKED_BANDWIDTH = 0.1;
+  
+  /** The time after which the loop is considered to be locked, in seconds. */
+  private static final double LOCKING_SECONDS = 4.0;
+  
+  /** The largest timing error which is fed to the loop, as a fraction of the period. */
+  private static final double MAX_ERROR = 0.1;
+  
+  private final int blockSize;
+  private final double nominalPeriod;
+  private final long lockingUpdates;
+  private final double maxError;
+  
+  // loop state, only used by the callback thread
+  private double b;
+  private double c;
+  private long baseNanos;
+  private double t1;
+  private double e2;
+  private double lastSampleTime;
+  private long numUpdates;
+  private boolean isRunning;
+  
+  /** The filtered block period in nanoseconds. */
+  private volatile double period;
+  
+  DelayLockedLoop(int blockSize, float sampleRate) {
+    this.blockSize = blockSize;
+    this.nominalPeriod = 1000000000.0 * blockSize / sampleRate;
+    this.lockingUpdates = (long) (LOCKING_SECONDS * sampleRate / blockSize);
+    this.maxError = MAX_ERROR * nominalPeriod;
+    reset();
+  }
+  
+  /** Returns to the nominal period. Only while no callbacks are made. */
+  void reset() {
+    setBandwidth(LOCKING_BANDWIDTH);
+    e2 = nominalPeriod;
+    period = nominalPeriod;
+    numUpdates = 0L;
+    isRunning = false;
+  }
+  
+  private void setBandwidth(double bandwidth) {
+    double omega = 2.0 * Math.PI * bandwidth * nominalPeriod / 1000000000.0;
+    b = Math.sqrt(2.0) * omega;
+    c = omega * omega;
+  }
+  
+  /**
+   * Updates the loop with a callback.
+   * @param sampleTime  The sample timestamp of the callback.
+   * @param nanos  The value of <code>System.nanoTime()</code> when the callback arrived.
+   */
+  void update(double sampleTime, long nanos) {
+    if (!isRunning || sampleTime != lastSampleTime + blockSize) {
+      // the first callback or a discontinuity. Restart the time line, but keep the period.
+      baseNanos = nanos;
+      t1 = e2;
+      isRunning = true;
+    } else {
+      // a callback which is very late says more about the scheduler than about the clock
+      double e = (nanos - baseNanos) - t1;
+      if (e > maxError) e = maxError;
+      else if (e < -maxError) e = -maxError;
+      t1 += b * e + e2;
+      e2 += c * e;
+      if (++numUpdates == lockingUpdates) {
+        setBandwidth(LOCKED_BANDWIDTH);
+      }
+      period = e2;
+    }
+    lastSampleTime = sampleTime;
+  }
+  
+  /** Returns the filtered block period in nanoseconds. */
+  double getPeriod() {
+    return period;
+  }
+  
+  /** Returns the nominal block period in nanoseconds. */
+  double getNominalPeriod() {
+    return nominalPeriod;
+  }
+  
+  /** Returns the sample rate of the device as measured against <code>System.nanoTime()</code>. */
+  double getSampleRate() {
+    return 1000000000.0 * blockSize / period;
+  }
+}
@@ -0,0 +1,284 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio;
+
+import java.util.Arrays;
+import java.util.IllegalFormatException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * <code>DiagnosticLog</code> lets the audio thread report events without locks, allocation or
+ * formatting. An event is logged as a fixed-size binary record of an event code, the sample
+ * timestamp of the callback, the <code>System.nanoTime()</code> at which it was logged, and up to
+ * four numeric arguments. A background thread formats the records and forwards them to a
+ * <code>java.util.logging.Logger</code>, by default <code>ch.section6.jcoreaudio</code>.<br/>
+ * <br/>
+ * Event codes are registered beforehand with a level and a <code>java.util.Formatter</code>
+ * pattern, to which the arguments are passed as <code>Double</code>s:
+ * <pre>
+ * DiagnosticLog log = JCoreAudio.getInstance().getDiagnosticLog();
+ * int clipped = log.register(Level.WARNING, "%.0f samples clipped on channel %.0f");
+ * ...
+ * // in the listener
+ * log.log(clipped, timestamp, numClipped, channel);
+ * </pre>
+ * Records are kept in a bounded ring of preallocated slots. Any number of threads may log at
+ * once; each claims a slot with a single compare-and-set, so logging takes a bounded number of
+ * steps unless other threads are logging at the same instant. If the ring is full the record is
+ * dropped and counted, and the forwarding thread logs how many were lost. The forwarding thread
+ * is never signalled by the audio thread; it polls the ring.<br/>
+ * <br/>
+ * <code>JCoreAudio</code> logs dropouts, the underruns and late blocks of sample rate conversion
+ * and block size adaptation, and exceptions thrown by the listener on the worker thread of block
+ * size adaptation, with the predefined codes of this class.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class DiagnosticLog implements Runnable {
+  
+  /** A callback began later than the expected timestamp. Args: expected time, skipped samples. */
+  public static final int SKIPPED_BLOCKS = 0;
+  
+  /** The timestamps jumped backwards or restarted. Args: expected time. */
+  public static final int CLOCK_RESET = 1;
+  
+  /** A callback was made long after the previous one. Args: interval in microseconds. */
+  public static final int LATE_CALLBACK = 2;
+  
+  /** Input was not available for a block of the listener. Args: none. */
+  public static final int INPUT_UNDERRUN = 3;
+  
+  /** Output of the listener was not ready for the device. Args: none. */
+  public static final int LATE_BLOCK = 4;
+  
+  /** The listener threw an exception on the worker thread of block size adaptation. Args: none. */
+  public static final int LISTENER_EXCEPTION = 5;
+  
+  /** The number of longs in a record: code, timestamp, nanoTime and four arguments, padded. */
+  private static final int RECORD_LONGS = 8;
+  
+  /** The interval at which the ring is polled. */
+  private static final long POLL_MILLIS = 20L;
+  
+  /** A registered event code. */
+  private static class Event {
+    private final Level level;
+    private final String format;
+    
+    private Event(Level level, String format) {
+      this.level = level;
+      this.format = format;
+    }
+  }
+  
+  // the record slots, of which the next to be forwarded is only taken while holding the lock
+  private final MpscRing ring;
+  private final long[] records;
+  
+  /** The registered events, indexed by code. Replaced, never modified, when an event is added. */
+  private volatile Event[] events;
+  
+  private volatile Logger logger;
+  
+  private final AtomicLong droppedRecords;
+  
+  /** The number of dropped records which have been reported. Only used while holding the lock. */
+  private long reportedDrops;
+  
+  private Thread thread;
+  
+  /**
+   * @param minCapacity  The minimum number of records which may be pending at once. It is rounded
+   *     up to the next power of two.
+   */
+  public DiagnosticLog(int minCapacity) {
+    ring = new MpscRing(minCapacity);
+    records = new long[RECORD_LONGS * ring.getCapacity()];
+    logger = Logger.getLogger("ch.section6.jcoreaudio");
+    droppedRecords = new AtomicLong();
+    events = new Event[] {
+      new Event(Level.WARNING, "%2$.0f samples were skipped, expected the callback at %1$.0f"),
+      new Event(Level.WARNING, "The clock was reset, expected the callback at %1$.0f"),
+      new Event(Level.INFO, "The callback was made %1$.0f us after the previous one"),
+      new Event(Level.WARNING, "Input was not available for a block of the listener"),
+      new Event(Level.WARNING, "The output of the listener was late for the device"),
+      new Event(Level.SEVERE, "The listener threw an exception, which was discarded")
+    };
+  }
+  
+  /**
+   * Registers a new event. The arguments of a record are formatted with the given pattern, in
+   * the manner of <code>String.format</code>, as <code>Double</code>s.
+   * @return  The code with which the event is logged.
+   */
+  public synchronized int register(Level level, String format) {
+    if (level == null || format == null) {
+      throw new IllegalArgumentException("The level and format may not be null.");
+    }
+    Event[] newEvents = Arrays.copyOf(events, events.length + 1);
+    newEvents[events.length] = new Event(level, format);
+    events = newEvents;
+    start();
+    return events.length - 1;
+  }
+  
+  /** Sets the <code>Logger</code> to which records are forwarded. */
+  public void setLogger(Logger logger) {
+    if (logger == null) {
+      throw new IllegalArgumentException("The Logger may not be null.");
+    }
+    this.logger = logger;
+  }
+  
+  public Logger getLogger() {
+    return logger;
+  }
+  
+  /** Returns the number of records which may be pending at once. */
+  public int getCapacity() {
+    return ring.getCapacity();
+  }
+  
+  /** Returns the number of records which were logged, including those not yet forwarded. */
+  public long getLoggedRecords() {
+    return ring.getClaimed();
+  }
+  
+  /** Returns the number of records which were dropped because the ring was full. */
+  public long getDroppedRecords() {
+    return droppedRecords.get();
+  }
+  
+  
+  // ------ Logging ------
+  
+  public boolean log(int code, double timestamp) {
+    return log(code, timestamp, 0.0, 0.0, 0.0, 0.0);
+  }
+  
+  public boolean log(int code, double timestamp, double arg0) {
+    return log(code, timestamp, arg0, 0.0, 0.0, 0.0);
+  }
+  
+  public boolean log(int code, double timestamp, double arg0, double arg1) {
+    return log(code, timestamp, arg0, arg1, 0.0, 0.0);
+  }
+  
+  /**
+   * Logs a record. It never blocks or allocates, and may be called from any thread.
+   * @param code  The code of a predefined or registered event.
+   * @param timestamp  The sample timestamp of the callback.
+   * @return  <code>true</code> if the record was logged, <code>false</code> if the ring was full.
+   */
+  public boolean log(int code, double timestamp, double arg0, double arg1, double arg2, double arg3) {
+    long index = ring.claim();
+    if (index < 0L) {
+      droppedRecords.incrementAndGet();
+      return false;
+    }
+    int offset = RECORD_LONGS * ring.slot(index);
+    records[offset] = code;
+    records[offset + 1] = Double.doubleToRawLongBits(timestamp);
+    records[offset + 2] = System.nanoTime();
+    records[offset + 3] = Double.doubleToRawLongBits(arg0);
+    records[offset + 4] = Double.doubleToRawLongBits(arg1);
+    records[offset + 5] = Double.doubleToRawLongBits(arg2);
+    records[offset + 6] = Double.doubleToRawLongBits(arg3);
+    ring.publish(index);
+    return true;
+  }
+  
+  
+  // ------ Forwarding ------
+  
+  /** Starts the forwarding thread, if it is not running. */
+  synchronized void start() {
+    if (thread == null) {
+      thread = new Thread(this, "JCoreAudio Diagnostics");
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+  
+  @Override
+  public void run() {
+    while (true) {
+      try {
+        Thread.sleep(POLL_MILLIS);
+      } catch (InterruptedException e) {
+        return;
+      }
+      flush();
+    }
+  }
+  
+  /** Formats and forwards all published records on the calling thread. */
+  public synchronized void flush() {
+    Event[] events = this.events;
+    Logger logger = this.logger;
+    long nanoOffset = System.currentTimeMillis() * 1000000L - System.nanoTime();
+    for (int n = 0, capacity = ring.getCapacity(); n < capacity; n++) {
+      int slot = ring.peek();
+      if (slot < 0) break; // empty, or not yet published
+      int offset = RECORD_LONGS * slot;
+      int code = (int) records[offset];
+      double timestamp = Double.longBitsToDouble(records[offset + 1]);
+      long nanoTime = records[offset + 2];
+      Object[] args = {
+        Double.longBitsToDouble(records[offset + 3]), Double.longBitsToDouble(records[offset + 4]),
+        Double.longBitsToDouble(records[offset + 5]), Double.longBitsToDouble(records[offset + 6])
+      };
+      ring.release();
+      
+      Event event = (code >= 0 && code < events.length) ? events[code] : null;
+      if (event == null || !logger.isLoggable(event.level)) continue;
+      String message;
+      try {
+        message = String.format(event.format, args);
+      } catch (IllegalFormatException e) {
+        message = event.format + " " + Arrays.toString(args);
+      }
+      LogRecord record = new LogRecord(event.level, "[" + (long) timestamp + "] " + message);
+      setMillis(record, (nanoTime + nanoOffset) / 1000000L);
+      record.setLoggerName(logger.getName());
+      record.setSourceClassName(null); // the record was not logged by this thread
+      record.setSourceMethodName(null);
+      logger.log(record);
+    }
+    long drops = droppedRecords.get();
+    if (drops > reportedDrops) {
+      logger.warning((drops - reportedDrops) + " diagnostic records were dropped because the ring was full.");
+      reportedDrops = drops;
+    }
+  }
+  
+  /**
+   * Sets the time of a record. <code>LogRecord.setInstant()</code> replaces this in Java 9, but
+   * the library is built for Java 7.
+   */
+  @SuppressWarnings("deprecation")
+  private static void setMillis(LogRecord record, long millis) {
+    record.setMillis(millis);
+  }
+}
@@ -0,0 +1,261 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package ch.section6.jcoreaudio;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <code>DriftCompensator</code> moves audio between two devices whose clocks are not
+ * synchronised. The producer writes blocks at the rate of its own clock into a
+ * {@link FloatRingBuffer}. The consumer reads blocks at the rate of its clock through an adaptive
+ * resampler, which consumes <i>ratio</i> input frames for every output frame.<br/>
+ * <br/>
+ * The ratio is given by the consumer, usually from the {@link DelayLockedLoop}s of the two clocks.
+ * It is corrected by a small proportional term which holds the fill level of the ring at its
+ * target, so that an error in the estimate does not accumulate. The resampler interpolates with a
+ * four-point cubic Hermite polynomial. The read positions are computed once per block and shared
+ * by all channels, so that each sample costs only a few multiply-adds.<br/>
+ * <br/>
+ * The producer and consumer may be different threads. Neither locks or allocates.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+final class DriftCompensator {
+  
+  /** The target fill level of the ring before each read, in blocks. */
+  private static final double TARGET_BLOCKS = 2.0;
+  
+  /** The capacity of the ring, in blocks. */
+  private static final int CAPACITY_BLOCKS = 16;
+  
+  /** The time in which the fill level is brought back to its target, in seconds. */
+  private static final double FILL_CORRECTION_SECONDS = 2.0;
+  
+  /** The time constant with which the fill level is smoothed, in seconds. */
+  private static final double FILL_SMOOTHING_SECONDS = 0.25;
+  
+  /** The largest correction of the ratio by the fill level, e.g. 0.001 for 1000ppm. */
+  private static final double MAX_CORRECTION = 0.001;
+  
+  private final int numChannels;
+  private final int blockSize;
+  private final FloatRingBuffer ring;
+  private final double targetFill;
+  private final double fillGain;
+  private final double fillSmoothing;
+  
+  // consumer state
+  private final float[][] history;
+  private int historyLength;
+  private double position;
+  private final int[] indices;
+  private final float[] fractions;
+  private final float[] scratch;
+  private double averageFill;
+  private boolean isPrimed;
+  
+  private final AtomicLong silentBlocks;
+  private final AtomicLong resyncs;
+  private final AtomicLong overruns;
+  private final AtomicLong numReads;
+  private final AtomicLong totalNanos;
+  private volatile double latency;
+  
+  DriftCompensator(int numChannels, int blockSize, float sampleRate) {
+    this.numChannels = numChannels;
+    this.blockSize = blockSize;
+    this.ring = new FloatRingBuffer(numChannels, CAPACITY_BLOCKS * blockSize);
+    this.targetFill = TARGET_BLOCKS * blockSize;
+    this.fillGain = 1.0 / (FILL_CORRECTION_SECONDS * sampleRate);
+    this.fillSmoothing = 1.0 - Math.exp(-blockSize / (FILL_SMOOTHING_SECONDS * sampleRate));
+    // the history holds at most one block at the largest ratio, the interpolation taps and the
+    // unconsumed fraction of the previous block
+    this.history = new float[numChannels][2 * blockSize + 8];
+    this.indices = new int[blockSize];
+    this.fractions = new float[blockSize];
+    this.scratch = new float[blockSize];
+    this.silentBlocks = new AtomicLong();
+    this.resyncs = new AtomicLong();
+    this.overruns = new AtomicLong();
+    this.numReads = new AtomicLong();
+    this.totalNanos = new AtomicLong();
+    reset();
+  }
+  
+  /** Empties the compensator and resets its counters. Only while no callbacks are made. */
+  void reset() {
+    ring.reset();
+    historyLength = 1; // one frame of silence before the first frame of input
+    position = 1.0;
+    for (int i = 0; i < numChannels; i++) {
+      history[i][0] = 0.0f;
+    }
+    averageFill = targetFill;
+    isPrimed = false;
+    silentBlocks.set(0L);
+    resyncs.set(0L);
+    overruns.set(0L);
+    numReads.set(0L);
+    totalNanos.set(0L);
+    latency = 0.0;
+  }
+  
+  /** Writes one block at the producer's clock. Called by the producer. */
+  void write(FloatBuffer[] channels) {
+    if (!ring.write(channels, blockSize)) {
+      overruns.lazySet(overruns.get() + 1L);
+    }
+  }
+  
+  /**
+   * Reads one block at the consumer's clock. Called by the consumer.
+   * @param ratio  The estimated number of producer frames per consumer frame.
+   */
+  void read(FloatBuffer[] channels, double ratio) {
+    long startNanos = System.nanoTime();
+    int available = ring.availableToRead();
+    if (!isPrimed) {
+      if (available < targetFill) {
+        silence(channels);
+        return;
+      }
+      isPrimed = true;
+      averageFill = available;
+    } else if (available > targetFill + (CAPACITY_BLOCKS / 2) * blockSize) {
+      // the consumer has fallen far behind, e.g. after the producer's clock was reset
+      ring.skip((int) (available - targetFill));
+      available = ring.availableToRead();
+      averageFill = available;
+      resyncs.lazySet(resyncs.get() + 1L);
+    }
+    
+    // hold the fill level at its target
+    double fill = available + historyLength - position;
+    averageFill += fillSmoothing * (fill - averageFill);
+    double correction = fillGain * (averageFill - targetFill);
+    if (correction > MAX_CORRECTION) correction = MAX_CORRECTION;
+    else if (correction < -MAX_CORRECTION) correction = -MAX_CORRECTION;
+    double step = ratio * (1.0 + correction);
+    
+    // compute the read positions, which are shared by all channels
+    double p = position;
+    for (int i = 0; i < blockSize; i++) {
+      int index = (int) p;
+      indices[i] = index;
+      fractions[i] = (float) (p - index);
+      p += step;
+    }
+    int needed = indices[blockSize - 1] + 3 - historyLength; // four taps around the last position
+    if (needed > 0) {
+      if (needed > history[0].length - historyLength || !ring.read(history, historyLength, needed)) {
+        // the producer has not kept up. Deliver silence and start again from the target fill.
+        silence(channels);
+        historyLength = 1;
+        position = 1.0;
+        isPrimed = false;
+        resyncs.lazySet(resyncs.get() + 1L);
+        return;
+      }
+      historyLength += needed;
+    }
+    
+    float[] y = scratch;
+    for (int c = 0; c < numChannels; c++) {
+      float[] h = history[c];
+      for (int i = 0; i < blockSize; i++) {
+        int k = indices[i];
+        float f = fractions[i];
+        float xm1 = h[k-1];
+        float x0 = h[k];
+        float x1 = h[k+1];
+        float x2 = h[k+2];
+        float c1 = 0.5f * (x1 - xm1);
+        float c2 = xm1 - 2.5f * x0 + 2.0f * x1 - 0.5f * x2;
+        float c3 = 0.5f * (x2 - xm1) + 1.5f * (x0 - x1);
+        y[i] = ((c3 * f + c2) * f + c1) * f + x0;
+      }
+      FloatBuffer target = channels[c];
+      target.clear();
+      target.put(y, 0, blockSize);
+      target.clear();
+    }
+    
+    // keep only the frame before the next position and those after it
+    position = p;
+    int discard = (int) position - 1;
+    if (discard > 0) {
+      for (int c = 0; c < numChannels; c++) {
+        System.arraycopy(history[c], discard, history[c], 0, historyLength - discard);
+      }
+      historyLength -= discard;
+      position -= discard;
+    }
+    latency = averageFill;
+    numReads.lazySet(numReads.get() + 1L);
+    totalNanos.lazySet(totalNanos.get() + (System.nanoTime() - startNanos));
+  }
+  
+  private void silence(FloatBuffer[] channels) {
+    for (int c = 0; c < numChannels; c++) {
+      FloatBuffer target = channels[c];
+      for (int i = 0; i < blockSize; i++) {
+        target.put(i, 0.0f);
+      }
+    }
+    silentBlocks.lazySet(silentBlocks.get() + 1L);
+  }
+  
+  int getNumChannels() {
+    return numChannels;
+  }
+  
+  /** Returns the number of blocks which were delivered as silence, while priming or after an underrun. */
+  long getSilentBlocks() {
+    return silentBlocks.get();
+  }
+  
+  /** Returns the number of times that the fill level had to be reset. */
+  long getResyncs() {
+    return resyncs.get();
+  }
+  
+  /** Returns the number of blocks which were dropped because the ring was full. */
+  long getOverruns() {
+    return overruns.get();
+  }
+  
+  /** Returns the average number of frames buffered, i.e. the latency added by the compensator. */
+  double getLatency() {
+    return latency;
+  }
+  
+  /** Returns the number of blocks which have been resampled. */
+  long getNumReads() {
+    return numReads.get();
+  }
+  
+  /** Returns the total time spent resampling, in nanoseconds. */
+  long getTotalNanos() {
+    return totalNanos.get();
+  }
+}
@@ -0,0 +1,236 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <code>DropoutDetector</code> checks the continuity of the callback timestamps in one direction.
+ * Each callback is expected to begin exactly one block after the previous one. Discontinuities are
+ * counted and classified as a {@link DropoutType}, and the most recent events are kept in a
+ * bounded ring. The timestamps are checked per block of the listener, but lateness is measured per
+ * callback of the device, as rate conversion and block size adaptation may make several blocks of
+ * the listener in one device callback, or none.<br/>
+ * <br/>
+ * {@link #check(double, long)} is called by the audio thread and never blocks or allocates. Events
+ * are only turned into {@link DropoutEvent} objects by readers, e.g. by the background thread which
+ * notifies <code>DropoutListener</code>s.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class DropoutDetector {
+  
+  /** The number of events kept in the ring. Must be a power of two. */
+  static final int RING_SIZE = 256;
+  
+  /** Timestamps which differ by less than this many samples are considered continuous. */
+  private static final double TOLERANCE = 1.0;
+  
+  private final boolean isInput;
+  private final int blockSize;
+  private final int deviceBlockSize;
+  private final long devicePeriodNanos;
+  private volatile double lateThreshold;
+  
+  // written only by the audio thread
+  private double expectedSampleTime;
+  private long previousNanos;
+  private boolean hasPrevious;
+  private volatile boolean isRestarted;
+  
+  // the device callbacks, written only by the audio thread
+  private double expectedDeviceTime;
+  private long previousDeviceNanos;
+  private volatile boolean isDeviceRestarted;
+  
+  private final AtomicLong lateCallbacks;
+  private final AtomicLong skippedBlocks;
+  private final AtomicLong skippedSamples;
+  private final AtomicLong clockResets;
+  
+  // the event ring. Slots are written before the sequence number is published.
+  private final int[] eventTypes;
+  private final double[] eventSampleTimes;
+  private final double[] eventExpectedSampleTimes;
+  private final long[] eventIntervals;
+  private final long[] eventNanoTimes;
+  private final AtomicLong eventSequence;
+  
+  /** The number of events already passed to listeners. Only used by the notifying thread. */
+  long notifiedSequence;
+  
+  /**
+   * @param blockSize  The block size of the listener.
+   * @param deviceBlockSize  The block size of the device callbacks.
+   * @param deviceSampleRate  The sample rate of the device.
+   */
+  DropoutDetector(boolean isInput, int blockSize, int deviceBlockSize, float deviceSampleRate) {
+    this.isInput = isInput;
+    this.blockSize = blockSize;
+    this.deviceBlockSize = deviceBlockSize;
+    this.devicePeriodNanos = (deviceSampleRate > 0.0f) ?
+        (long) (1000000000.0 * deviceBlockSize / deviceSampleRate) : 0L;
+    this.lateThreshold = 2.0;
+    this.isRestarted = true;
+    this.isDeviceRestarted = true;
+    lateCallbacks = new AtomicLong();
+    skippedBlocks = new AtomicLong();
+    skippedSamples = new AtomicLong();
+    clockResets = new AtomicLong();
+    eventTypes = new int[RING_SIZE];
+    eventSampleTimes = new double[RING_SIZE];
+    eventExpectedSampleTimes = new double[RING_SIZE];
+    eventIntervals = new long[RING_SIZE];
+    eventNanoTimes = new long[RING_SIZE];
+    eventSequence = new AtomicLong();
+  }
+  
+  /**
+   * Sets the interval between two device callbacks, in device block periods, above which a
+   * callback is considered late. The default is 2.
+   */
+  public void setLateCallbackThreshold(double periods) {
+    this.lateThreshold = periods;
+  }
+  
+  /** Indicates that the clock is about to be restarted, i.e. that playback is starting. */
+  void restart() {
+    isRestarted = true;
+    isDeviceRestarted = true;
+  }
+  
+  /** Checks the timestamp of a block of the listener. May only be called by the audio thread. */
+  void check(double sampleTime, long nanoTime) {
+    long interval = nanoTime - previousNanos;
+    double expected = expectedSampleTime;
+    previousNanos = nanoTime;
+    expectedSampleTime = sampleTime + blockSize;
+    
+    if (isRestarted) {
+      // the first callback after play() is never late, but its timestamp may have been reset
+      isRestarted = false;
+      if (hasPrevious && Math.abs(sampleTime - expected) >= TOLERANCE) {
+        clockResets.lazySet(clockResets.get() + 1L);
+        addEvent(DropoutType.CLOCK_RESET, sampleTime, expected, interval, nanoTime);
+        JCoreAudio.jcoreaudio.diagnostics.log(DiagnosticLog.CLOCK_RESET, sampleTime, expected);
+      }
+      hasPrevious = true;
+    } else if (sampleTime - expected >= TOLERANCE) {
+      long samples = (long) (sampleTime - expected + 0.5);
+      skippedSamples.lazySet(skippedSamples.get() + samples);
+      skippedBlocks.lazySet(skippedBlocks.get() + (samples + blockSize - 1) / blockSize);
+      addEvent(DropoutType.SKIPPED_BLOCKS, sampleTime, expected, interval, nanoTime);
+      JCoreAudio.jcoreaudio.diagnostics.log(DiagnosticLog.SKIPPED_BLOCKS, sampleTime, expected, samples);
+    } else if (expected - sampleTime >= TOLERANCE) {
+      clockResets.lazySet(clockResets.get() + 1L);
+      addEvent(DropoutType.CLOCK_RESET, sampleTime, expected, interval, nanoTime);
+      JCoreAudio.jcoreaudio.diagnostics.log(DiagnosticLog.CLOCK_RESET, sampleTime, expected);
+    }
+  }
+  
+  /**
+   * Checks the interval since the previous callback of the device, whose timestamp is given. A
+   * callback whose timestamp is discontinuous is not also counted as late, as the blocks of the
+   * listener report the discontinuity. May only be called by the audio thread.
+   */
+  void checkDeviceCallback(double deviceTime, long nanoTime) {
+    long interval = nanoTime - previousDeviceNanos;
+    boolean isContinuous = Math.abs(deviceTime - expectedDeviceTime) < TOLERANCE;
+    previousDeviceNanos = nanoTime;
+    expectedDeviceTime = deviceTime + deviceBlockSize;
+    if (isDeviceRestarted) {
+      // the first callback after play() is never late
+      isDeviceRestarted = false;
+    } else if (isContinuous && interval > lateThreshold * devicePeriodNanos) {
+      lateCallbacks.lazySet(lateCallbacks.get() + 1L);
+      addEvent(DropoutType.LATE_CALLBACK, deviceTime, deviceTime, interval, nanoTime);
+      JCoreAudio.jcoreaudio.diagnostics.log(DiagnosticLog.LATE_CALLBACK, deviceTime, interval / 1000L);
+    }
+  }
+  
+  private void addEvent(DropoutType type, double sampleTime, double expected, long interval,
+      long nanoTime) {
+    long sequence = eventSequence.get();
+    int slot = (int) sequence & (RING_SIZE - 1);
+    eventTypes[slot] = type.ordinal();
+    eventSampleTimes[slot] = sampleTime;
+    eventExpectedSampleTimes[slot] = expected;
+    eventIntervals[slot] = interval;
+    eventNanoTimes[slot] = nanoTime;
+    eventSequence.lazySet(sequence + 1L); // publishes the slot
+  }
+  
+  /** Returns the total number of events recorded, including those no longer in the ring. */
+  public long getEventCount() {
+    return eventSequence.get();
+  }
+  
+  public long getLateCallbacks() {
+    return lateCallbacks.get();
+  }
+  
+  /** Returns the number of whole or partial blocks which were skipped. */
+  public long getSkippedBlocks() {
+    return skippedBlocks.get();
+  }
+  
+  public long getSkippedSamples() {
+    return skippedSamples.get();
+  }
+  
+  public long getClockResets() {
+    return clockResets.get();
+  }
+  
+  /** Returns the events still in the ring, oldest first. */
+  public List<DropoutEvent> getRecentEvents() {
+    ArrayList<DropoutEvent> events = new ArrayList<DropoutEvent>();
+    long end = eventSequence.get();
+    readEvents(Math.max(0L, end - RING_SIZE + 1L), end, events);
+    return events;
+  }
+  
+  /**
+   * Reads the events with sequence numbers in [from, to) into the list. Events which were
+   * overwritten while being read are discarded.
+   * @return  The sequence number of the first event which was read successfully.
+   */
+  long readEvents(long from, long to, List<DropoutEvent> events) {
+    int start = events.size();
+    for (long sequence = from; sequence < to; sequence++) {
+      int slot = (int) sequence & (RING_SIZE - 1);
+      events.add(new DropoutEvent(isInput, DropoutType.values()[eventTypes[slot]],
+          eventSampleTimes[slot], eventExpectedSampleTimes[slot], eventIntervals[slot],
+          eventNanoTimes[slot]));
+    }
+    // any slot which the writer may have reused in the meantime is unreliable, including the slot
+    // of the next event, which is written before its sequence number is published
+    long oldestValid = eventSequence.get() - RING_SIZE + 1L;
+    if (oldestValid > from) {
+      int discard = (int) Math.min(to - from, oldestValid - from);
+      events.subList(start, start + discard).clear();
+      return from + discard;
+    }
+    return from;
+  }
+}
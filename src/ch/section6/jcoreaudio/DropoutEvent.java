@@ -0,0 +1,72 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio;
+
+/**
+ * A <code>DropoutEvent</code> describes a single discontinuity detected by a
+ * {@link DropoutDetector}.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class DropoutEvent {
+  
+  /** Indicates if the event was detected on the input or the output callbacks. */
+  public final boolean isInput;
+  
+  public final DropoutType type;
+  
+  /** The timestamp in samples of the callback at which the event was detected. */
+  public final double sampleTime;
+  
+  /** The timestamp in samples that was expected for this callback. */
+  public final double expectedSampleTime;
+  
+  /** The time since the previous callback, in nanoseconds. */
+  public final long intervalNanos;
+  
+  /** The value of <code>System.nanoTime()</code> when the event was detected. */
+  public final long nanoTime;
+  
+  DropoutEvent(boolean isInput, DropoutType type, double sampleTime, double expectedSampleTime,
+      long intervalNanos, long nanoTime) {
+    this.isInput = isInput;
+    this.type = type;
+    this.sampleTime = sampleTime;
+    this.expectedSampleTime = expectedSampleTime;
+    this.intervalNanos = intervalNanos;
+    this.nanoTime = nanoTime;
+  }
+  
+  /**
+   * Returns the number of samples lost (positive) or repeated (negative) at this event, i.e. the
+   * difference between the actual and the expected timestamp.
+   */
+  public double getSampleDiscontinuity() {
+    return sampleTime - expectedSampleTime;
+  }
+  
+  @Override
+  public String toString() {
+    return (isInput ? "input " : "output ") + type + " at sample " + (long) sampleTime +
+        " (expected " + (long) expectedSampleTime + ", " + (intervalNanos / 1000L) +
+        "us since previous callback)";
+  }
+}
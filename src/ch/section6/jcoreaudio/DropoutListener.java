@@ -0,0 +1,34 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio;
+
+/**
+ * A <code>DropoutListener</code> is notified of discontinuities in the audio callbacks. It is
+ * called from a background thread, never from the audio thread, and so may block, allocate or
+ * perform I/O. It is registered with {@link JCoreAudio#addDropoutListener(DropoutListener)}.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public interface DropoutListener {
+  
+  public void onDropout(DropoutEvent event);
+  
+}
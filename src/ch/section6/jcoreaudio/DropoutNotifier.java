@@ -0,0 +1,94 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * <code>DropoutNotifier</code> polls the <code>DropoutDetector</code>s of the current session from
+ * a background thread and passes new events to the registered <code>DropoutListener</code>s. The
+ * audio thread never signals it, so that detection remains wait-free.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+class DropoutNotifier implements Runnable {
+  
+  /** The interval at which the detectors are polled. */
+  private static final long POLL_MILLIS = 20L;
+  
+  private final JCoreAudio jca;
+  private final CopyOnWriteArrayList<DropoutListener> listeners;
+  private Thread thread;
+  
+  DropoutNotifier(JCoreAudio jca) {
+    this.jca = jca;
+    this.listeners = new CopyOnWriteArrayList<DropoutListener>();
+  }
+  
+  synchronized void addListener(DropoutListener listener) {
+    listeners.addIfAbsent(listener);
+    if (thread == null) {
+      thread = new Thread(this, "JCoreAudio Dropout Notifier");
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+  
+  synchronized void removeListener(DropoutListener listener) {
+    listeners.remove(listener);
+  }
+  
+  @Override
+  public void run() {
+    ArrayList<DropoutEvent> events = new ArrayList<DropoutEvent>();
+    while (true) {
+      try {
+        Thread.sleep(POLL_MILLIS);
+      } catch (InterruptedException e) {
+        return;
+      }
+      AudioSessionMonitor monitor = jca.getMonitor();
+      poll(monitor.inputDropouts, events);
+      poll(monitor.outputDropouts, events);
+      for (DropoutEvent event : events) {
+        for (DropoutListener listener : listeners) {
+          try {
+            listener.onDropout(event);
+          } catch (RuntimeException e) {
+            e.printStackTrace(System.err);
+          }
+        }
+      }
+      events.clear();
+    }
+  }
+  
+  private static void poll(DropoutDetector detector, List<DropoutEvent> events) {
+    long end = detector.getEventCount();
+    long from = Math.max(detector.notifiedSequence, end - DropoutDetector.RING_SIZE);
+    if (from < end) {
+      detector.readEvents(from, end, events);
+    }
+    detector.notifiedSequence = end;
+  }
+}
@@ -0,0 +1,48 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio;
+
+/**
+ * <code>DropoutType</code> classifies a discontinuity in the callback timestamps detected by a
+ * {@link DropoutDetector}.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public enum DropoutType {
+  
+  /**
+   * The timestamp is continuous, but the device callback arrived much later than one period after
+   * the previous one. No audio was lost, but the system came close to a dropout.
+   */
+  LATE_CALLBACK,
+  
+  /**
+   * The timestamp jumped forward by more than one block. The hardware dropped audio, usually
+   * because the previous callback overran its deadline.
+   */
+  SKIPPED_BLOCKS,
+  
+  /**
+   * The timestamp jumped backwards, e.g. because the device clock was restarted by
+   * <code>pause()</code> and <code>play()</code>.
+   */
+  CLOCK_RESET
+}
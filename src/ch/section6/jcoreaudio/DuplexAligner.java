@@ -0,0 +1,245 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <code>DuplexAligner</code> pairs the blocks of the input callback with those of the output
+ * callback by sample time, so that a {@link CoreAudioDuplexListener} receives both at once. Input
+ * and output are driven separately by Core Audio, and the input of a cycle may arrive before or
+ * after the output is requested.<br/>
+ * <br/>
+ * Input blocks are queued in a small {@link FloatRingBuffer}, together with the mapping from
+ * ring frames to sample time. Gaps in the input timestamps are filled with silence so that the
+ * queue stays contiguous in time. The output callback at time <i>t</i> receives the input which
+ * begins at <i>t - L</i>, where <i>L</i> is the added latency. <i>L</i> starts at zero and is
+ * increased to the least value at which the input has arrived in time, so that it settles at the
+ * lowest deterministic round-trip latency for the order and jitter of the callbacks. Each change
+ * of <i>L</i> is counted as a slip, as is any block which has to be delivered as silence. <i>L</i>
+ * is never negative: if the input timestamps run ahead of the output, the input is held back
+ * until the output reaches its time.<br/>
+ * <br/>
+ * Neither side locks or allocates. The input side is only used by the input callback, and the
+ * output side only by the output callback.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class DuplexAligner {
+  
+  /** The minimum number of blocks which the queue can hold. */
+  private static final int MIN_QUEUE_BLOCKS = 16;
+  
+  private final int blockSize;
+  private final FloatRingBuffer queue;
+  private final AudioChannels alignedInputs;
+  private final FloatBuffer[] alignedBuffers;
+  private final float[][] silence;
+  
+  // input state
+  private long framesWritten;
+  private long expectedInputTime;
+  private boolean hasInput;
+  
+  /**
+   * The sample time of ring frame zero. Valid for the frames from <code>remapFrame</code> on. Both
+   * are guarded by <code>epoch</code> as a seqlock: it is odd while they are being changed, and
+   * increases by two with each remapping.
+   */
+  private volatile long timeOffset;
+  private volatile long remapFrame;
+  private volatile long epoch;
+  
+  // output state
+  private long framesRead;
+  private long outputEpoch;
+  private long latency;
+  
+  private final AtomicLong publishedLatency;
+  private final AtomicLong maxLatency;
+  private final AtomicLong slips;
+  private final AtomicLong silentBlocks;
+  
+  /**
+   * @param inputs  The channels of the input lets. The aligner delivers the input in a view with the
+   *     same layout.
+   */
+  DuplexAligner(AudioChannels inputs) {
+    this.blockSize = inputs.getBlockSize();
+    this.queue = new FloatRingBuffer(Math.max(1, inputs.getNumChannels()),
+        Math.max(1, MIN_QUEUE_BLOCKS * blockSize));
+    this.alignedInputs = inputs.copyLayout();
+    this.alignedBuffers = alignedInputs.getFloatBuffers();
+    this.silence = new float[queue.getNumChannels()][blockSize];
+    this.publishedLatency = new AtomicLong();
+    this.maxLatency = new AtomicLong();
+    this.slips = new AtomicLong();
+    this.silentBlocks = new AtomicLong();
+  }
+  
+  /**
+   * Returns the current added latency in samples, i.e. how much earlier the input block began than
+   * the output block with which it is delivered. It is never negative.
+   */
+  public long getAddedLatency() {
+    return publishedLatency.get();
+  }
+  
+  /** Returns the largest added latency since playback was started. */
+  public long getMaxAddedLatency() {
+    return maxLatency.get();
+  }
+  
+  /** Returns the number of times that the alignment of input and output has changed. */
+  public long getSlips() {
+    return slips.get();
+  }
+  
+  /** Returns the number of output blocks for which no input was available, and silence was delivered. */
+  public long getSilentBlocks() {
+    return silentBlocks.get();
+  }
+  
+  /** Returns the largest added latency which the queue can absorb, in samples. */
+  public int getCapacity() {
+    return queue.getCapacity() - blockSize;
+  }
+  
+  /** Empties the queue and resets the latency and counters. Only while no callbacks are made. */
+  void reset() {
+    queue.reset();
+    framesWritten = 0L;
+    hasInput = false;
+    remapFrame = 0L;
+    epoch = 0L;
+    framesRead = 0L;
+    outputEpoch = 0L;
+    latency = 0L;
+    publishedLatency.set(0L);
+    maxLatency.set(0L);
+    slips.set(0L);
+    silentBlocks.set(0L);
+  }
+  
+  /** Queues a block of input. Called by the input callback. */
+  void pushInput(double timestamp, AudioChannels inputs) {
+    long time = Math.round(timestamp);
+    boolean isMapped = hasInput && time >= expectedInputTime &&
+        time - expectedInputTime <= getCapacity();
+    if (isMapped) {
+      // fill any gap with silence, so that the queue stays contiguous in time
+      for (long gap = time - expectedInputTime; gap > 0L; ) {
+        int n = (int) Math.min(gap, blockSize);
+        if (!queue.write(silence, 0, n)) {
+          isMapped = false;
+          break;
+        }
+        framesWritten += n;
+        gap -= n;
+      }
+    }
+    if (!isMapped) {
+      // the first block, a clock reset or a gap which cannot be filled: remap the queue
+      long e = epoch;
+      epoch = e + 1L; // odd, so that the output side retries until both fields are written
+      timeOffset = time - framesWritten;
+      remapFrame = framesWritten;
+      epoch = e + 2L;
+    }
+    if (queue.write(inputs.getFloatBuffers(), blockSize)) {
+      framesWritten += blockSize;
+      hasInput = true;
+    } else {
+      hasInput = false; // the output side is not consuming, so remap when it does again
+    }
+    expectedInputTime = time + blockSize;
+  }
+  
+  /**
+   * Returns the block of input which belongs to the output block at the given time. Called by the
+   * output callback.
+   */
+  AudioChannels pullInput(double timestamp) {
+    long e;
+    long offset;
+    long remap;
+    do {
+      // retry while the mapping is being changed, or was changed while it was read
+      e = epoch;
+      offset = timeOffset;
+      remap = remapFrame;
+    } while ((e & 1L) != 0L || e != epoch);
+    if (e == 0L) {
+      // no input has been mapped yet, so its latency is not known
+      alignedInputs.clear();
+      silentBlocks.lazySet(silentBlocks.get() + 1L);
+      return alignedInputs;
+    }
+    if (e != outputEpoch) {
+      // the queue has been remapped; frames from before the remapping have no valid time
+      outputEpoch = e;
+      if (remap > framesRead) {
+        framesRead += queue.skip((int) (remap - framesRead));
+      }
+    }
+    int available = queue.availableToRead();
+    long availableStart = framesRead + offset;
+    long needed = Math.round(timestamp) - latency;
+    
+    if (needed > availableStart) {
+      // discard input which is older than any output will need
+      int n = (int) Math.min(needed - availableStart, available);
+      framesRead += queue.skip(n);
+      availableStart += n;
+      available -= n;
+    }
+    if (needed < availableStart) {
+      // the input runs ahead of the output: the input for this time never arrived, and the queued
+      // input is held back until the output reaches it
+      alignedInputs.clear();
+      silentBlocks.lazySet(silentBlocks.get() + 1L);
+      return alignedInputs;
+    }
+    if (needed == availableStart && available >= blockSize) {
+      queue.read(alignedBuffers, blockSize);
+      framesRead += blockSize;
+      return alignedInputs;
+    }
+    
+    // the input has not yet arrived, so it will be later than this from now on
+    long late = needed + blockSize - (availableStart + available);
+    if (late > 0L) {
+      changeLatency(Math.min(latency + late, getCapacity()));
+    }
+    alignedInputs.clear();
+    silentBlocks.lazySet(silentBlocks.get() + 1L);
+    return alignedInputs;
+  }
+  
+  private void changeLatency(long newLatency) {
+    if (newLatency == latency) return;
+    latency = newLatency;
+    publishedLatency.lazySet(newLatency);
+    if (newLatency > maxLatency.get()) maxLatency.lazySet(newLatency);
+    slips.lazySet(slips.get() + 1L);
+  }
+}
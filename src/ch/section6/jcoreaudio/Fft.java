@@ -0,0 +1,192 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package ch.section6.jcoreaudio;
+
+/**
+ * <code>Fft</code> is a fast Fourier transform of real signals whose length is a power of two. A
+ * signal of <i>N</i> samples is transformed by a complex radix-2 transform of <i>N/2</i> points,
+ * into the <i>N/2 + 1</i> bins from DC to Nyquist, which are kept in separate arrays of real and
+ * imaginary parts. All tables are computed when the transform is created, so that it neither
+ * allocates nor locks. A transform may only be used by one thread at a time.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+final class Fft {
+  
+  private final int size;
+  private final int half;
+  
+  // twiddles of the complex transform, and of the split into the real spectrum
+  private final float[] cos;
+  private final float[] sin;
+  private final float[] splitCos;
+  private final float[] splitSin;
+  private final int[] bitReversed;
+  
+  // the complex signal of half the size
+  private final float[] zr;
+  private final float[] zi;
+  
+  /** @param size  The number of real samples, a power of two of at least four. */
+  Fft(int size) {
+    if (size < 4 || Integer.bitCount(size) != 1) {
+      throw new IllegalArgumentException("The size must be a power of two of at least four: " + size);
+    }
+    this.size = size;
+    this.half = size / 2;
+    cos = new float[half / 2];
+    sin = new float[half / 2];
+    for (int k = 0; k < half / 2; k++) {
+      cos[k] = (float) Math.cos(2.0 * Math.PI * k / half);
+      sin[k] = (float) Math.sin(2.0 * Math.PI * k / half);
+    }
+    splitCos = new float[half / 2 + 1];
+    splitSin = new float[half / 2 + 1];
+    for (int k = 0; k <= half / 2; k++) {
+      splitCos[k] = (float) Math.cos(Math.PI * k / half);
+      splitSin[k] = (float) Math.sin(Math.PI * k / half);
+    }
+    bitReversed = new int[half];
+    int bits = Integer.numberOfTrailingZeros(half);
+    for (int i = 0; i < half; i++) {
+      bitReversed[i] = (bits == 0) ? 0 : Integer.reverse(i) >>> (32 - bits);
+    }
+    zr = new float[half];
+    zi = new float[half];
+  }
+  
+  /** Returns the number of real samples. */
+  int getSize() {
+    return size;
+  }
+  
+  /** Returns the number of bins of the spectrum, <code>size/2 + 1</code>. */
+  int getNumBins() {
+    return half + 1;
+  }
+  
+  /**
+   * Transforms <code>size</code> real samples into the spectrum. The input is not modified.
+   * @param re  The real parts of the bins.
+   * @param im  The imaginary parts of the bins. Those of DC and Nyquist are zero.
+   */
+  void forward(float[] input, float[] re, float[] im) {
+    for (int n = 0; n < half; n++) {
+      int r = bitReversed[n];
+      zr[r] = input[2*n];
+      zi[r] = input[2*n + 1];
+    }
+    transform(-1.0f);
+    
+    // split the transform of the even and odd samples into that of the real signal
+    re[0] = zr[0] + zi[0];
+    im[0] = 0.0f;
+    re[half] = zr[0] - zi[0];
+    im[half] = 0.0f;
+    for (int k = 1, j = half - 1; k < j; k++, j--) {
+      float evenRe = 0.5f * (zr[k] + zr[j]);
+      float evenIm = 0.5f * (zi[k] - zi[j]);
+      float oddRe = 0.5f * (zi[k] + zi[j]);
+      float oddIm = -0.5f * (zr[k] - zr[j]);
+      // w = exp(-i pi k / half)
+      float wr = splitCos(k);
+      float wi = -splitSin(k);
+      float tr = wr * oddRe - wi * oddIm;
+      float ti = wr * oddIm + wi * oddRe;
+      re[k] = evenRe + tr;
+      im[k] = evenIm + ti;
+      re[j] = evenRe - tr;
+      im[j] = -(evenIm - ti);
+    }
+    re[half / 2] = zr[half / 2];
+    im[half / 2] = -zi[half / 2];
+  }
+  
+  /**
+   * Transforms a spectrum back into <code>size</code> real samples. The transform is not
+   * normalised, i.e. the samples are scaled by <code>size</code>. The spectrum is not modified.
+   */
+  void inverse(float[] re, float[] im, float[] output) {
+    zr[0] = re[0] + re[half];
+    zi[0] = re[0] - re[half];
+    for (int k = 1, j = half - 1; k < j; k++, j--) {
+      float evenRe = re[k] + re[j];
+      float evenIm = im[k] - im[j];
+      float dr = re[k] - re[j];
+      float di = im[k] + im[j];
+      // odd = d * conj(w), with w = exp(-i pi k / half)
+      float wr = splitCos(k);
+      float wi = splitSin(k);
+      float oddRe = dr * wr - di * wi;
+      float oddIm = dr * wi + di * wr;
+      zr[k] = evenRe - oddIm;
+      zi[k] = evenIm + oddRe;
+      zr[j] = evenRe + oddIm;
+      zi[j] = -evenIm + oddRe;
+    }
+    zr[half / 2] = 2.0f * re[half / 2];
+    zi[half / 2] = -2.0f * im[half / 2];
+    
+    // bit-reverse in place, then transform
+    for (int i = 0; i < half; i++) {
+      int r = bitReversed[i];
+      if (r > i) {
+        float t = zr[i]; zr[i] = zr[r]; zr[r] = t;
+        t = zi[i]; zi[i] = zi[r]; zi[r] = t;
+      }
+    }
+    transform(1.0f);
+    for (int n = 0; n < half; n++) {
+      output[2*n] = zr[n];
+      output[2*n + 1] = zi[n];
+    }
+  }
+  
+  private float splitCos(int k) {
+    return (k <= half / 2) ? splitCos[k] : -splitCos[half - k];
+  }
+  
+  private float splitSin(int k) {
+    return (k <= half / 2) ? splitSin[k] : splitSin[half - k];
+  }
+  
+  /** The iterative radix-2 transform of the bit-reversed complex signal, in the given direction. */
+  private void transform(float sign) {
+    for (int length = 2; length <= half; length <<= 1) {
+      int halfLength = length >> 1;
+      int step = half / length;
+      for (int k = 0; k < halfLength; k++) {
+        float wr = cos[k * step];
+        float wi = sign * sin[k * step];
+        for (int i = k; i < half; i += length) {
+          int j = i + halfLength;
+          float tr = wr * zr[j] - wi * zi[j];
+          float ti = wr * zi[j] + wi * zr[j];
+          zr[j] = zr[i] - tr;
+          zi[j] = zi[i] - ti;
+          zr[i] += tr;
+          zi[i] += ti;
+        }
+      }
+    }
+  }
+}
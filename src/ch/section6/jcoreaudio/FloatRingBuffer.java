@@ -0,0 +1,336 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <code>FloatRingBuffer</code> is a wait-free, single-producer/single-consumer ring buffer of
+ * multichannel float samples. It is intended to move audio between the audio thread and worker
+ * threads, e.g. from an input let to a disk writer or from a synthesiser to an output let, without
+ * locks or allocation on either side.<br/>
+ * <br/>
+ * The samples are stored off-heap in a single direct buffer, one contiguous region per channel.
+ * The capacity is rounded up to a power of two. The read and write indices count frames since the
+ * buffer was created, and each is kept on its own cache line. Each side also caches the other
+ * side's index, so that the shared line is only read when the cached value is insufficient.<br/>
+ * <br/>
+ * Writes and reads are all-or-nothing. A write which does not fit is dropped and counted as an
+ * overrun, and a read for which not enough frames are available produces silence and is counted
+ * as an underrun. Exactly one thread may write and exactly one thread may read at any one time.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class FloatRingBuffer {
+  
+  private final int numChannels;
+  private final int capacity;
+  private final int mask;
+  
+  /** Per-channel views of the storage, used only by the producer. */
+  private final FloatBuffer[] writeViews;
+  
+  /** Per-channel views of the storage, used only by the consumer. */
+  private final FloatBuffer[] readViews;
+  
+  private final PaddedAtomicLong writeIndex;
+  private final PaddedAtomicLong readIndex;
+  
+  // producer-local state
+  private long cachedReadIndex;
+  private final AtomicLong overruns;
+  
+  // consumer-local state
+  private long cachedWriteIndex;
+  private final AtomicLong underruns;
+  
+  /**
+   * @param numChannels  The number of channels.
+   * @param minCapacity  The minimum number of frames which the buffer can hold. It is rounded up to
+   *     the next power of two.
+   * @throws IllegalArgumentException  If the samples of all channels do not fit into one buffer
+   *     of at most <code>Integer.MAX_VALUE</code> bytes.
+   */
+  public FloatRingBuffer(int numChannels, int minCapacity) {
+    if (numChannels <= 0 || minCapacity <= 0) {
+      throw new IllegalArgumentException("The number of channels and the capacity must be positive.");
+    }
+    long roundedCapacity = (minCapacity == 1) ? 1L : Long.highestOneBit(minCapacity - 1L) << 1;
+    long numBytes = 4L * numChannels * roundedCapacity;
+    if (numBytes > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("The capacity is too large for " + numChannels +
+          " channels: " + minCapacity);
+    }
+    this.numChannels = numChannels;
+    this.capacity = (int) roundedCapacity;
+    this.mask = capacity - 1;
+    
+    ByteBuffer storage = ByteBuffer.allocateDirect((int) numBytes).order(ByteOrder.nativeOrder());
+    writeViews = new FloatBuffer[numChannels];
+    readViews = new FloatBuffer[numChannels];
+    for (int i = 0; i < numChannels; i++) {
+      storage.limit(4 * (i+1) * capacity).position(4 * i * capacity);
+      writeViews[i] = storage.slice().order(ByteOrder.nativeOrder()).asFloatBuffer();
+      readViews[i] = writeViews[i].duplicate();
+    }
+    writeIndex = new PaddedAtomicLong();
+    readIndex = new PaddedAtomicLong();
+    overruns = new AtomicLong();
+    underruns = new AtomicLong();
+  }
+  
+  public int getNumChannels() {
+    return numChannels;
+  }
+  
+  /** Returns the number of frames which the buffer can hold. */
+  public int getCapacity() {
+    return capacity;
+  }
+  
+  /** Returns the number of frames which can currently be written. For use by the producer. */
+  public int availableToWrite() {
+    cachedReadIndex = readIndex.get();
+    return capacity - (int) (writeIndex.get() - cachedReadIndex);
+  }
+  
+  /** Returns the number of frames which can currently be read. For use by the consumer. */
+  public int availableToRead() {
+    cachedWriteIndex = writeIndex.get();
+    return (int) (cachedWriteIndex - readIndex.get());
+  }
+  
+  /** Returns the number of writes which were dropped because the buffer was full. */
+  public long getOverruns() {
+    return overruns.get();
+  }
+  
+  /** Returns the number of reads which produced silence because the buffer was empty. */
+  public long getUnderruns() {
+    return underruns.get();
+  }
+  
+  
+  // ------ Producer ------
+  
+  /** Reserves space for a write, or counts an overrun. Returns the write index, or -1. */
+  private long beginWrite(int numFrames) {
+    long write = writeIndex.get();
+    if (capacity - (write - cachedReadIndex) < numFrames) {
+      cachedReadIndex = readIndex.get();
+      if (capacity - (write - cachedReadIndex) < numFrames) {
+        overruns.lazySet(overruns.get() + 1L);
+        return -1L;
+      }
+    }
+    return write;
+  }
+  
+  /**
+   * Writes frames from the given channel buffers, which are read from index zero. The positions
+   * and limits of the buffers are reset when the write is complete.
+   * @return  <code>true</code> if the frames were written, <code>false</code> on overrun.
+   */
+  public boolean write(FloatBuffer[] channels, int numFrames) {
+    long write = beginWrite(numFrames);
+    if (write < 0L) return false;
+    for (int i = 0; i < numChannels; i++) {
+      copyIn(channels[i], writeViews[i], (int) write & mask, numFrames);
+    }
+    writeIndex.lazySet(write + numFrames); // publishes the samples
+    return true;
+  }
+  
+  /** Copies frames from a channel buffer into the ring, wrapping around at the end. */
+  private void copyIn(FloatBuffer source, FloatBuffer target, int offset, int numFrames) {
+    int first = Math.min(numFrames, capacity - offset);
+    source.clear().limit(first);
+    target.clear().position(offset);
+    target.put(source);
+    if (first < numFrames) {
+      source.limit(numFrames);
+      target.clear();
+      target.put(source);
+    }
+    source.clear();
+  }
+  
+  /**
+   * Writes frames from the given arrays, one per channel.
+   * @return  <code>true</code> if the frames were written, <code>false</code> on overrun.
+   */
+  public boolean write(float[][] channels, int offset, int numFrames) {
+    long write = beginWrite(numFrames);
+    if (write < 0L) return false;
+    int index = (int) write & mask;
+    int first = Math.min(numFrames, capacity - index);
+    for (int i = 0; i < numChannels; i++) {
+      FloatBuffer target = writeViews[i];
+      target.clear().position(index);
+      target.put(channels[i], offset, first);
+      if (first < numFrames) {
+        target.clear();
+        target.put(channels[i], offset + first, numFrames - first);
+      }
+    }
+    writeIndex.lazySet(write + numFrames);
+    return true;
+  }
+  
+  /** Writes one block from all channels of the given view. The channel counts must match. */
+  public boolean write(AudioChannels channels) {
+    return write(channels.getFloatBuffers(), channels.getBlockSize());
+  }
+  
+  /** Writes one block from all channels of the given let. The channel counts must match. */
+  public boolean write(AudioLet let, int numFrames) {
+    long write = beginWrite(numFrames);
+    if (write < 0L) return false;
+    for (int i = 0; i < numChannels; i++) {
+      copyIn(let.getChannelFloatBuffer(i), writeViews[i], (int) write & mask, numFrames);
+    }
+    writeIndex.lazySet(write + numFrames);
+    return true;
+  }
+  
+  
+  // ------ Consumer ------
+  
+  /** Checks that enough frames are available, or counts an underrun. Returns the read index, or -1. */
+  private long beginRead(int numFrames) {
+    long read = readIndex.get();
+    if (cachedWriteIndex - read < numFrames) {
+      cachedWriteIndex = writeIndex.get();
+      if (cachedWriteIndex - read < numFrames) {
+        underruns.lazySet(underruns.get() + 1L);
+        return -1L;
+      }
+    }
+    return read;
+  }
+  
+  /**
+   * Reads frames into the given channel buffers, which are written from index zero. The
+   * positions and limits of the buffers are reset when the read is complete. On underrun, the
+   * buffers are filled with silence.
+   * @return  <code>true</code> if the frames were read, <code>false</code> on underrun.
+   */
+  public boolean read(FloatBuffer[] channels, int numFrames) {
+    long read = beginRead(numFrames);
+    if (read < 0L) {
+      for (int i = 0; i < numChannels; i++) {
+        clear(channels[i], numFrames);
+      }
+      return false;
+    }
+    for (int i = 0; i < numChannels; i++) {
+      copyOut(readViews[i], channels[i], (int) read & mask, numFrames);
+    }
+    readIndex.lazySet(read + numFrames); // releases the space
+    return true;
+  }
+  
+  /** Copies frames from the ring into a channel buffer, wrapping around at the end. */
+  private void copyOut(FloatBuffer source, FloatBuffer target, int offset, int numFrames) {
+    int first = Math.min(numFrames, capacity - offset);
+    target.clear();
+    source.limit(offset + first).position(offset);
+    target.put(source);
+    if (first < numFrames) {
+      source.limit(numFrames - first).position(0);
+      target.put(source);
+    }
+    target.clear();
+  }
+  
+  private static void clear(FloatBuffer buffer, int numFrames) {
+    for (int i = 0; i < numFrames; i++) {
+      buffer.put(i, 0.0f);
+    }
+  }
+  
+  /**
+   * Reads frames into the given arrays, one per channel.
+   * @return  <code>true</code> if the frames were read, <code>false</code> on underrun, in which
+   *     case the arrays are not modified.
+   */
+  public boolean read(float[][] channels, int offset, int numFrames) {
+    long read = beginRead(numFrames);
+    if (read < 0L) return false;
+    int index = (int) read & mask;
+    int first = Math.min(numFrames, capacity - index);
+    for (int i = 0; i < numChannels; i++) {
+      FloatBuffer source = readViews[i];
+      source.limit(index + first).position(index);
+      source.get(channels[i], offset, first);
+      if (first < numFrames) {
+        source.limit(numFrames - first).position(0);
+        source.get(channels[i], offset + first, numFrames - first);
+      }
+    }
+    readIndex.lazySet(read + numFrames);
+    return true;
+  }
+  
+  /** Reads one block into all channels of the given view. The channel counts must match. */
+  public boolean read(AudioChannels channels) {
+    return read(channels.getFloatBuffers(), channels.getBlockSize());
+  }
+  
+  /** Reads one block into all channels of the given let. The channel counts must match. */
+  public boolean read(AudioLet let, int numFrames) {
+    long read = beginRead(numFrames);
+    if (read < 0L) {
+      for (int i = 0; i < numChannels; i++) {
+        clear(let.getChannelFloatBuffer(i), numFrames);
+      }
+      return false;
+    }
+    for (int i = 0; i < numChannels; i++) {
+      copyOut(readViews[i], let.getChannelFloatBuffer(i), (int) read & mask, numFrames);
+    }
+    readIndex.lazySet(read + numFrames);
+    return true;
+  }
+  
+  /**
+   * Empties the buffer and resets its counters. It may only be called while neither the producer
+   * nor the consumer is using the buffer.
+   */
+  void reset() {
+    writeIndex.set(0L);
+    readIndex.set(0L);
+    cachedReadIndex = 0L;
+    cachedWriteIndex = 0L;
+    overruns.set(0L);
+    underruns.set(0L);
+  }
+  
+  /** Discards up to the given number of frames. Returns the number of frames discarded. */
+  public int skip(int numFrames) {
+    int n = Math.min(numFrames, availableToRead());
+    readIndex.lazySet(readIndex.get() + n);
+    return n;
+  }
+}
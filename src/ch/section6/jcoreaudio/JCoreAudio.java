@@ -21,7 +21,13 @@
 
 package ch.section6.jcoreaudio;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -51,15 +57,105 @@ public class JCoreAudio {
   /** The currently used output <code>AudioLet</code>s. */
   private final Set<AudioLet> currentOutputLets;
   
+  /** The currently used input <code>AudioLet</code>s, ordered by channel index. */
+  private AudioLet[] currentInputLetArray;
+  
+  /** The currently used output <code>AudioLet</code>s, ordered by channel index. */
+  private AudioLet[] currentOutputLetArray;
+  
+  /** The current block size. Only valid if Core Audio is at least INITIALIZED. */
+  private int blockSize;
+  
+  /** The current sample rate. Only valid if Core Audio is at least INITIALIZED. */
+  private float sampleRate;
+  
+  /** Indicates if the lets of the current session have interleaved buffers. */
+  private boolean isInterleaved;
+  
+  /** The channels of the current input lets, as given to a <code>CoreAudioChannelListener</code>. */
+  private AudioChannels inputChannels;
+  
+  /** The channels of the current output lets, as given to a <code>CoreAudioChannelListener</code>. */
+  private AudioChannels outputChannels;
+  
+  /** Records the timing of the callbacks of the current session. */
+  private AudioSessionMonitor monitor;
+  
+  /** Notifies <code>DropoutListener</code>s from a background thread. */
+  private final DropoutNotifier dropoutNotifier;
+  
+  /** Forwards events which are logged on the audio thread from a background thread. */
+  final DiagnosticLog diagnostics;
+  
   /** The currently registered <code>CoreAudioListener</code>. */
   private CoreAudioListener listener;
   
+  /** The currently registered <code>CoreAudioChannelListener</code>. */
+  private CoreAudioChannelListener channelListener;
+  
+  /** The currently registered <code>CoreAudioDuplexListener</code>. */
+  private CoreAudioDuplexListener duplexListener;
+  
+  /** Pairs input with output for the duplex listener. <code>null</code> if there is no input. */
+  private DuplexAligner duplexAligner;
+  
+  /** The device whose clock drives the callbacks if the lets span several devices, if one is chosen. */
+  private AudioDevice clockDevice;
+  
+  /** The devices whose lets are aggregated with those of the clock device. Usually empty. */
+  private AggregatedDevice[] aggregatedDevices;
+  
+  /** Measures the clock of the session, against which aggregated devices are compensated. */
+  private DelayLockedLoop clock;
+  
+  /** Indicates that the clock is measured by the input callback, as the clock device has no output. */
+  private boolean isClockedByInput;
+  
+  /** Indicates that the output (input) callback also makes the input (output) callback, as the clock device has none. */
+  private boolean isInputDrivenByOutput;
+  private boolean isOutputDrivenByInput;
+  
+  /** Indicates that aggregated devices are running. */
+  private volatile boolean isAggregating;
+  
+  /** The quality of sample rate conversion between listener and device. <code>null</code> if disabled. */
+  private SampleRateConverter.Quality conversionQuality;
+  
+  /** The sample rate at which to run the device if converting, or zero for its current rate. */
+  private float conversionSampleRate;
+  
+  /** Converts between the rates of the listener and the device. <code>null</code> if they are the same. */
+  private RateConversionStage rateStage;
+  
+  /** The sample rate of the device, which differs from <code>sampleRate</code> if converting. */
+  private float deviceSampleRate;
+  
+  /** How the block size of the listener is adapted to that of the device. <code>null</code> if disabled. */
+  private BlockSizeAdapter.Mode adapterMode;
+  
+  /** The buffer size at which to run the device if adapting, or zero for its current buffer size. */
+  private int adapterBlockSize;
+  
+  /** Adapts the block size of the listener to that of the device. <code>null</code> if they are the same. */
+  private BlockSizeAdapter blockSizeAdapter;
+  
+  /** The buffer size of the device, which differs from <code>blockSize</code> if adapting. */
+  private int deviceBlockSize;
+  
+  /** Passes parameter changes to the listener. Processed at the start of each block, if set. */
+  private volatile ParameterQueue parameterQueue;
+  
+  /** Taps which observe the channels after the listener. Replaced, never modified, when changed. */
+  private volatile CoreAudioChannelListener[] taps;
+  
   /** A reference to the native data structure belonging to this object. */
   private long nativePtr;
+  
+  /** The <code>AudioBackend</code> which provides devices and drives the audio callbacks. */
+  private AudioBackend backend;
  
   
   static {
-    System.loadLibrary("JCoreAudio");
     jcoreaudio = new JCoreAudio(); // create the singleton instance of JCoreAudio
   }
   
@@ -68,6 +164,15 @@ public class JCoreAudio {
     nativePtr = 0;
     currentInputLets = new HashSet<AudioLet>();
     currentOutputLets = new HashSet<AudioLet>();
+    currentInputLetArray = new AudioLet[0];
+    currentOutputLetArray = new AudioLet[0];
+    inputChannels = new AudioChannels(currentInputLetArray, 0);
+    outputChannels = new AudioChannels(currentOutputLetArray, 0);
+    monitor = new AudioSessionMonitor(0, 0.0f);
+    dropoutNotifier = new DropoutNotifier(this);
+    diagnostics = new DiagnosticLog(1024);
+    taps = new CoreAudioChannelListener[0];
+    aggregatedDevices = new AggregatedDevice[0];
   }
   
   @Override
@@ -87,15 +192,46 @@ public class JCoreAudio {
   
   /**
    * Returns a <code>List</code> of available <code>AudioDevice</code>s. The audio system may
-   * then be configured to use selected ones for input and output.
+   * then be configured to use selected ones for input and output. The devices are cached by the
+   * backend, and the same objects are returned until the devices of the system change.
    * @return A <code>List</code> of available <code>AudioDevice</code>s.
    */
   public static List<AudioDevice> getAudioDeviceList() {
-    ArrayList<AudioDevice> list = new ArrayList<AudioDevice>();
-    fillAudioDeviceList(list);
-    return list;
+    return new ArrayList<AudioDevice>(Arrays.asList(jcoreaudio.getBackend().getAudioDevices()));
+  }
+  static native void fillAudioDeviceList(List<AudioDevice> list);
+  
+  /**
+   * Registers the given backend to be notified of changes of the device list, if the device id is
+   * zero, or otherwise of the sample rate, buffer size and stream configuration of the device.
+   */
+  static native void addPropertyListener(CoreAudioBackend backend, int deviceId);
+  
+  /**
+   * Returns the <code>AudioBackend</code> currently in use. If none has been set, the default
+   * backend is created, as described in {@link AudioBackend}.
+   */
+  public synchronized AudioBackend getBackend() {
+    if (backend == null) {
+      backend = AudioBackend.createDefault();
+    }
+    return backend;
+  }
+  
+  /**
+   * Replaces the <code>AudioBackend</code>. <code>AudioDevice</code>s and <code>AudioLet</code>s
+   * obtained from the previous backend may not be used with the new one.
+   * @throws IllegalStateException  If <code>JCoreAudio</code> is not UNINITIALIZED.
+   */
+  public synchronized void setBackend(AudioBackend backend) {
+    if (backend == null) {
+      throw new IllegalArgumentException("The AudioBackend may not be null.");
+    }
+    if (state != CoreAudioState.UNINITIALIZED) {
+      throw new IllegalStateException("The AudioBackend may only be changed while JCoreAudio is UNINITIALIZED.");
+    }
+    this.backend = backend;
   }
-  private static native void fillAudioDeviceList(List<AudioDevice> list);
   
   /**
    * Initialize <code>JCoreAudio</code> with the given input and output <code>AudioLet</code>s.
@@ -137,43 +273,54 @@ public class JCoreAudio {
    */
   public synchronized JCoreAudio initialize(Set<AudioLet> inputLets, Set<AudioLet> outputLets,
       int blockSize, float sampleRate) {
+    return initialize(inputLets, outputLets, blockSize, sampleRate, false);
+  }
+  
+  /**
+   * Initialize JCoreAudio as with {@link #initialize(Set, Set, int, float)}, optionally in
+   * interleaved mode. In interleaved mode, every let additionally has a single buffer in which the
+   * samples of all of its channels are interleaved, see
+   * {@link AudioLet#getInterleavedFloatBuffer()}. It suits processing which works on whole frames,
+   * at the cost of interleaving the input before and deinterleaving the output after each
+   * callback.
+   * @param isInterleaved  <code>true</code> to use interleaved mode.
+   * @return  Returns the singleton <code>JCoreAudio</code> object.
+   */
+  public synchronized JCoreAudio initialize(Set<AudioLet> inputLets, Set<AudioLet> outputLets,
+      int blockSize, float sampleRate, boolean isInterleaved) {
     if (state != CoreAudioState.UNINITIALIZED) {
       throw new IllegalStateException();
     }
-    if (!verifyLetSet(inputLets)) {
-      throw new IllegalArgumentException("The input AudioLet set does not contain lets from only one AudioDevice.");
+    if (!verifyLetSet(inputLets, true)) {
+      throw new IllegalArgumentException("The input AudioLet set does not contain only input lets.");
     }
-    if (!verifyLetSet(outputLets)) {
-      throw new IllegalArgumentException("The output AudioLet set does not contain lets from only one AudioDevice.");
+    if (!verifyLetSet(outputLets, false)) {
+      throw new IllegalArgumentException("The output AudioLet set does not contain only output lets.");
     }
     if ((inputLets == null || inputLets.isEmpty()) && (outputLets == null || outputLets.isEmpty())) {
       throw new IllegalArgumentException("At least one of the input or output sets must be non-empty.");
     }
+    
+    // if converting, the device runs at a rate of its own and the listener at sampleRate
+    float deviceSampleRate = sampleRate;
+    if (conversionQuality != null && sampleRate != 0.0f) {
+      deviceSampleRate = selectDeviceSampleRate(inputLets, outputLets, sampleRate);
+    }
+    // likewise, if adapting, the device runs at a buffer size of its own
+    int deviceBlockSize = blockSize;
+    if (adapterMode != null) {
+      if (blockSize <= 0) {
+        throw new IllegalArgumentException("The block size must be positive: " + blockSize);
+      }
+      deviceBlockSize = selectDeviceBlockSize(inputLets, outputLets, blockSize);
+    }
+    boolean isAdapting = (deviceBlockSize != blockSize) || (adapterMode == BlockSizeAdapter.Mode.SPREAD);
 
-    int inputDeviceId = 0;
     int numInputChannels = 0;
     currentInputLets.clear();
-    if (inputLets == null || inputLets.isEmpty()) {
-      currentInputDevice = null;
-    } else {
-      AudioDevice device = inputLets.iterator().next().device;
-      if (device.getMinimumBufferSize() == 0) {
-        System.err.println("WARNING (JCoreAudio): The minimum buffer size of " + device.getName() +
-            " is reported as zero. This is an indication that the device is not responding correctly " +
-            "to the Core Audio API. It may be necessary to adjust the device's settings using a " +
-            "proprietary control panel or the Audio Midi Setup application.");
-      } else if (blockSize < device.getMinimumBufferSize()) {
-        throw new IllegalArgumentException("The given blocksize is less than the minimum supported amount: " +
-            blockSize +  " < " + device.getMinimumBufferSize());
-      }
-      if (device.getMaximumBufferSize() == 0) {
-        System.err.println("WARNING (JCoreAudio): The maximum buffer size of " + device.getName() +
-            " is reported as zero. This is an indication that the device is not responding correctly " +
-            "to the Core Audio API. It may be necessary to adjust the device's settings using a " +
-            "proprietary control panel or the Audio Midi Setup application.");
-      } else if (blockSize > device.getMaximumBufferSize()) {
-        throw new IllegalArgumentException("The given blocksize is greater than the maximum supported amount: " +
-            blockSize +  " < " + device.getMaximumBufferSize());
+    if (inputLets != null && !inputLets.isEmpty()) {
+      for (AudioDevice device : getDevices(inputLets)) {
+        verifyBufferSize(device, deviceBlockSize);
       }
       if (sampleRate == 0) {
         System.err.println("WARNING (JCoreAudio): A sample rate of zero is requested. If you got " +
@@ -183,14 +330,12 @@ public class JCoreAudio {
         sampleRate = 44100.0f;
       } else {
         for (AudioLet let : inputLets) {
-          if (!let.canSamplerate(sampleRate)) {
-            throw new IllegalArgumentException("The requested sample rate " + sampleRate + "Hz is not supported. " +
+          if (!let.canSamplerate(deviceSampleRate)) {
+            throw new IllegalArgumentException("The requested sample rate " + deviceSampleRate + "Hz is not supported. " +
                 "It must be one of " + let.getAvailableSamplerates().toString() + "Hz.");
           }
         }
       }
-      currentInputDevice = device;
-      inputDeviceId = device.getId();
       
       // defensive copy of letset
       currentInputLets.addAll(inputLets);
@@ -199,30 +344,11 @@ public class JCoreAudio {
       }
     }
     
-    int outputDeviceId = 0;
     int numOutputChannels = 0;
     currentOutputLets.clear();
-    if (outputLets == null || outputLets.isEmpty()) {
-      currentOutputDevice = null;
-    } else {
-      AudioDevice device = outputLets.iterator().next().device;
-      if (device.getMinimumBufferSize() == 0) {
-        System.err.println("WARNING (JCoreAudio): The minimum buffer size of " + device.getName() +
-            " is reported as zero. This is an indication that the device is not responding correctly " +
-            "to the Core Audio API. It may be necessary to adjust the device's settings using a " +
-            "proprietary control panel or the Audio Midi Setup application.");
-      } else if (blockSize < device.getMinimumBufferSize()) {
-        throw new IllegalArgumentException("The given blocksize is less than the minimum supported amount: " +
-            blockSize +  " < " + device.getMinimumBufferSize());
-      }
-      if (device.getMaximumBufferSize() == 0) {
-        System.err.println("WARNING (JCoreAudio): The maximum buffer size of " + device.getName() +
-            " is reported as zero. This is an indication that the device is not responding correctly " +
-            "to the Core Audio API. It may be necessary to adjust the device's settings using a " +
-            "proprietary control panel or the Audio Midi Setup application.");
-      } else if (blockSize > device.getMaximumBufferSize()) {
-        throw new IllegalArgumentException("The given blocksize is greater than the maximum supported amount: " +
-            blockSize +  " < " + device.getMaximumBufferSize());
+    if (outputLets != null && !outputLets.isEmpty()) {
+      for (AudioDevice device : getDevices(outputLets)) {
+        verifyBufferSize(device, deviceBlockSize);
       }
       if (sampleRate == 0.0f) {
         System.err.println("WARNING (JCoreAudio): A sample rate of zero is requested. If you got " +
@@ -232,24 +358,71 @@ public class JCoreAudio {
         sampleRate = 44100.0f;
       } else {
         for (AudioLet let : outputLets) {
-          if (!let.canSamplerate(sampleRate)) {
-            throw new IllegalArgumentException("The requested sample rate " + sampleRate + "Hz is not supported. " +
+          if (!let.canSamplerate(deviceSampleRate)) {
+            throw new IllegalArgumentException("The requested sample rate " + deviceSampleRate + "Hz is not supported. " +
                 "It must be one of: " + let.getAvailableSamplerates().toString());
           }
         }
       }
-      currentOutputDevice = device;
-      outputDeviceId = device.getId();
       
       currentOutputLets.addAll(outputLets);
       for (AudioLet let : currentOutputLets) {
         numOutputChannels += let.numChannels;
       }
     }
-    nativePtr = initialize(
-        currentInputLets.toArray(), numInputChannels, inputDeviceId,
-        currentOutputLets.toArray(), numOutputChannels, outputDeviceId,
-        blockSize, sampleRate);
+    
+    // if either set spans several devices, the lets of the clock device come first and the other
+    // devices are aggregated with it
+    boolean isAggregate = getDevices(currentInputLets).size() > 1 ||
+        getDevices(currentOutputLets).size() > 1;
+    if (deviceSampleRate == 0.0f) deviceSampleRate = sampleRate;
+    boolean isConverting = (deviceSampleRate != sampleRate);
+    if (isAggregate && isConverting) {
+      throw new IllegalArgumentException("Sample rate conversion cannot be combined with lets of several devices.");
+    }
+    if (isAdapting && (isAggregate || isConverting)) {
+      throw new IllegalArgumentException("Block size adaptation cannot be combined with lets of several " +
+          "devices or with sample rate conversion.");
+    }
+    clock = new DelayLockedLoop(blockSize, sampleRate);
+    AudioDevice sessionDevice = isAggregate ? selectClockDevice() : null;
+    currentInputLetArray = toChannelOrderedArray(currentInputLets, sessionDevice);
+    currentOutputLetArray = toChannelOrderedArray(currentOutputLets, sessionDevice);
+    currentInputDevice = (currentInputLetArray.length > 0) ? currentInputLetArray[0].device : null;
+    currentOutputDevice = (currentOutputLetArray.length > 0) ? currentOutputLetArray[0].device : null;
+    rateStage = null;
+    blockSizeAdapter = null;
+    if (isConverting) {
+      initializeConversion(numInputChannels, numOutputChannels, blockSize, sampleRate, deviceSampleRate);
+      aggregatedDevices = new AggregatedDevice[0];
+    } else if (isAdapting) {
+      initializeAdapter(numInputChannels, numOutputChannels, blockSize, deviceBlockSize, sampleRate);
+      aggregatedDevices = new AggregatedDevice[0];
+    } else if (!isAggregate) {
+      nativePtr = getBackend().initialize(
+          currentInputLetArray, numInputChannels, currentInputDevice,
+          currentOutputLetArray, numOutputChannels, currentOutputDevice,
+          blockSize, sampleRate);
+      aggregatedDevices = new AggregatedDevice[0];
+    } else {
+      initializeAggregate(sessionDevice, blockSize, sampleRate);
+    }
+    this.blockSize = blockSize;
+    this.sampleRate = sampleRate;
+    this.deviceSampleRate = deviceSampleRate;
+    this.deviceBlockSize = deviceBlockSize;
+    this.isInterleaved = isInterleaved;
+    for (AudioLet let : currentInputLetArray) {
+      let.setInterleavedBuffer(isInterleaved ? allocateInterleavedBuffer(let, blockSize) : null);
+    }
+    for (AudioLet let : currentOutputLetArray) {
+      let.setInterleavedBuffer(isInterleaved ? allocateInterleavedBuffer(let, blockSize) : null);
+    }
+    inputChannels = new AudioChannels(currentInputLetArray, blockSize);
+    outputChannels = new AudioChannels(currentOutputLetArray, blockSize);
+    duplexAligner = (numInputChannels > 0) ? new DuplexAligner(inputChannels) : null;
+    monitor = new AudioSessionMonitor(blockSize, sampleRate, deviceBlockSize, deviceSampleRate);
+    monitor.register();
     
     state = CoreAudioState.INITIALIZED;
     
@@ -257,32 +430,281 @@ public class JCoreAudio {
   }
   
   // it is guaranteed that at least one of the input or output sets is non-empty
-  private static native long initialize(Object[] inputLetArray, int numChannelsInput, int inputAudioDeviceId,
+  static native long initialize(Object[] inputLetArray, int numChannelsInput, int inputAudioDeviceId,
       Object[] outputLetArray, int numChannelsOutput, int outputAudioDeviceId, int blockSize, float sampleRate);
   
+  // as initialize(), but for an aggregated device. Callbacks are made to fireOnStreamInput/Output.
+  static native long initializeStream(Object[] inputLetArray, int numChannelsInput,
+      Object[] outputLetArray, int numChannelsOutput, int audioDeviceId, int blockSize, float sampleRate);
+  
   /**
-   * Ensure that all <code>AudioLet</code>s in the set are from the same device and are all either
-   * input or output.
+   * Ensure that all <code>AudioLet</code>s in the set are either input or output. The lets may
+   * belong to several devices, which are then aggregated.
    * @return <code>true</code> if the conditions are satisfied, <code>false</code> otherwise.
    */
-  private static boolean verifyLetSet(Set<AudioLet> letset) {
+  private static boolean verifyLetSet(Set<AudioLet> letset, boolean isInput) {
     if (letset == null || letset.isEmpty()) return true;
-    AudioDevice device = letset.iterator().next().device;
-    boolean isInput = letset.iterator().next().isInput;
     for (AudioLet let : letset) {
-      if (let.device != device || let.isInput != isInput) return false;
+      if (let.isInput != isInput) return false;
     }
     return true;
   }
   
-  public synchronized void uninitialize() {
+  /** Returns the devices of the lets in the set, ordered by id. */
+  private static List<AudioDevice> getDevices(Set<AudioLet> letset) {
+    List<AudioDevice> devices = new ArrayList<AudioDevice>();
+    for (AudioLet let : letset) {
+      if (!devices.contains(let.device)) devices.add(let.device);
+    }
+    Collections.sort(devices, new Comparator<AudioDevice>() {
+      @Override
+      public int compare(AudioDevice a, AudioDevice b) {
+        return (a.getId() < b.getId()) ? -1 : (a.getId() == b.getId()) ? 0 : 1;
+      }
+    });
+    return devices;
+  }
+  
+  private static void verifyBufferSize(AudioDevice device, int blockSize) {
+    if (device.getMinimumBufferSize() == 0) {
+      System.err.println("WARNING (JCoreAudio): The minimum buffer size of " + device.getName() +
+          " is reported as zero. This is an indication that the device is not responding correctly " +
+          "to the Core Audio API. It may be necessary to adjust the device's settings using a " +
+          "proprietary control panel or the Audio Midi Setup application.");
+    } else if (blockSize < device.getMinimumBufferSize()) {
+      throw new IllegalArgumentException("The given blocksize is less than the minimum supported amount: " +
+          blockSize +  " < " + device.getMinimumBufferSize());
+    }
+    if (device.getMaximumBufferSize() == 0) {
+      System.err.println("WARNING (JCoreAudio): The maximum buffer size of " + device.getName() +
+          " is reported as zero. This is an indication that the device is not responding correctly " +
+          "to the Core Audio API. It may be necessary to adjust the device's settings using a " +
+          "proprietary control panel or the Audio Midi Setup application.");
+    } else if (blockSize > device.getMaximumBufferSize()) {
+      throw new IllegalArgumentException("The given blocksize is greater than the maximum supported amount: " +
+          blockSize +  " < " + device.getMaximumBufferSize());
+    }
+  }
+  
+  /**
+   * Returns the clock device of an aggregate session. This is the device given to
+   * {@link #setClockDevice(AudioDevice)} if it has any of the current lets, and otherwise the
+   * device with the most output channels, or the most input channels if there is no output.
+   */
+  private AudioDevice selectClockDevice() {
+    Set<AudioLet> letset = currentOutputLets.isEmpty() ? currentInputLets : currentOutputLets;
+    if (clockDevice != null) {
+      for (AudioLet let : currentInputLets) {
+        if (let.device.equals(clockDevice)) return let.device;
+      }
+      for (AudioLet let : currentOutputLets) {
+        if (let.device.equals(clockDevice)) return let.device;
+      }
+    }
+    AudioDevice best = null;
+    int bestChannels = 0;
+    for (AudioDevice device : getDevices(letset)) {
+      int numChannels = 0;
+      for (AudioLet let : letset) {
+        if (let.device.equals(device)) numChannels += let.numChannels;
+      }
+      if (numChannels > bestChannels) {
+        best = device;
+        bestChannels = numChannels;
+      }
+    }
+    return best;
+  }
+  
+  /**
+   * Initializes the backend with one session for the clock device and one for each aggregated
+   * device. The current let arrays must already be ordered with the lets of the clock device first.
+   */
+  private void initializeAggregate(AudioDevice sessionDevice, int blockSize, float sampleRate) {
+    AudioLet[] sessionInputLets = getLets(currentInputLetArray, sessionDevice);
+    AudioLet[] sessionOutputLets = getLets(currentOutputLetArray, sessionDevice);
+    nativePtr = getBackend().initialize(
+        sessionInputLets, countChannels(sessionInputLets), (sessionInputLets.length > 0) ? sessionDevice : null,
+        sessionOutputLets, countChannels(sessionOutputLets), (sessionOutputLets.length > 0) ? sessionDevice : null,
+        blockSize, sampleRate);
+    isClockedByInput = (sessionOutputLets.length == 0);
+    isInputDrivenByOutput = (sessionInputLets.length == 0 && currentInputLetArray.length > 0);
+    isOutputDrivenByInput = (sessionOutputLets.length == 0 && currentOutputLetArray.length > 0);
+    
+    Set<AudioLet> letset = new HashSet<AudioLet>(currentInputLets);
+    letset.addAll(currentOutputLets);
+    List<AggregatedDevice> devices = new ArrayList<AggregatedDevice>();
+    try {
+      for (AudioDevice device : getDevices(letset)) {
+        if (device.equals(sessionDevice)) continue;
+        AudioLet[] inputLets = getLets(currentInputLetArray, device);
+        AudioLet[] outputLets = getLets(currentOutputLetArray, device);
+        AudioLet[] deviceInputLets = copyLets(inputLets);
+        AudioLet[] deviceOutputLets = copyLets(outputLets);
+        long ptr = backend.initializeStream(
+            deviceInputLets, countChannels(deviceInputLets), deviceOutputLets, countChannels(deviceOutputLets),
+            device, blockSize, sampleRate);
+        devices.add(new AggregatedDevice(ptr, device, inputLets, deviceInputLets,
+            outputLets, deviceOutputLets, blockSize, sampleRate, clock));
+      }
+    } catch (RuntimeException e) {
+      for (AggregatedDevice device : devices) {
+        backend.uninitialize(device.ptr);
+      }
+      backend.uninitialize(nativePtr);
+      nativePtr = 0;
+      throw e;
+    }
+    aggregatedDevices = devices.toArray(new AggregatedDevice[devices.size()]);
+  }
+  
+  /**
+   * Returns the sample rate at which to run the device if converting. This is the rate given to
+   * {@link #setSampleRateConversion(SampleRateConverter.Quality, float)}, or else the current
+   * rate of the output device, or of the input device if there is no output.
+   */
+  private float selectDeviceSampleRate(Set<AudioLet> inputLets, Set<AudioLet> outputLets, float sampleRate) {
+    if (conversionSampleRate != 0.0f) return conversionSampleRate;
+    Set<AudioLet> letset = (outputLets != null && !outputLets.isEmpty()) ? outputLets : inputLets;
+    float currentSampleRate = letset.iterator().next().device.getCurrentSampleRate();
+    return (currentSampleRate != 0.0f) ? currentSampleRate : sampleRate;
+  }
+  
+  /**
+   * Initializes the backend at the sample rate of the device, with copies of the current lets.
+   * The current lets are given buffers of their own, which the <code>RateConversionStage</code>
+   * feeds and drains.
+   */
+  private void initializeConversion(int numInputChannels, int numOutputChannels, int blockSize,
+      float sampleRate, float deviceSampleRate) {
+    AudioLet[] deviceInputLets = copyLets(currentInputLetArray);
+    AudioLet[] deviceOutputLets = copyLets(currentOutputLetArray);
+    nativePtr = getBackend().initialize(
+        deviceInputLets, numInputChannels, currentInputDevice,
+        deviceOutputLets, numOutputChannels, currentOutputDevice,
+        blockSize, deviceSampleRate);
+    try {
+      rateStage = new RateConversionStage(currentInputLetArray, deviceInputLets,
+          currentOutputLetArray, deviceOutputLets, blockSize, sampleRate, deviceSampleRate, conversionQuality);
+    } catch (RuntimeException e) {
+      backend.uninitialize(nativePtr);
+      nativePtr = 0;
+      throw e;
+    }
+  }
+  
+  /**
+   * Returns the buffer size at which to run the device if adapting. This is the size given to
+   * {@link #setBlockSizeAdaptation(BlockSizeAdapter.Mode, int)}, or else the current buffer size
+   * of the output device, or of the input device if there is no output.
+   */
+  private int selectDeviceBlockSize(Set<AudioLet> inputLets, Set<AudioLet> outputLets, int blockSize) {
+    if (adapterBlockSize != 0) return adapterBlockSize;
+    Set<AudioLet> letset = (outputLets != null && !outputLets.isEmpty()) ? outputLets : inputLets;
+    int currentBufferSize = letset.iterator().next().device.getCurrentBufferSize();
+    return (currentBufferSize > 0) ? currentBufferSize : blockSize;
+  }
+  
+  /**
+   * Initializes the backend at the buffer size of the device, with copies of the current lets.
+   * The current lets are given buffers of the listener's block size, which the
+   * <code>BlockSizeAdapter</code> feeds and drains.
+   */
+  private void initializeAdapter(int numInputChannels, int numOutputChannels, int blockSize,
+      int deviceBlockSize, float sampleRate) {
+    AudioLet[] deviceInputLets = copyLets(currentInputLetArray);
+    AudioLet[] deviceOutputLets = copyLets(currentOutputLetArray);
+    nativePtr = getBackend().initialize(
+        deviceInputLets, numInputChannels, currentInputDevice,
+        deviceOutputLets, numOutputChannels, currentOutputDevice,
+        deviceBlockSize, sampleRate);
+    blockSizeAdapter = new BlockSizeAdapter(adapterMode, currentInputLetArray, deviceInputLets,
+        currentOutputLetArray, deviceOutputLets, blockSize, deviceBlockSize);
+  }
+  
+  /** Returns the lets of the given device, in the order of the array. */
+  private static AudioLet[] getLets(AudioLet[] lets, AudioDevice device) {
+    List<AudioLet> list = new ArrayList<AudioLet>();
+    for (AudioLet let : lets) {
+      if (let.device.equals(device)) list.add(let);
+    }
+    return list.toArray(new AudioLet[list.size()]);
+  }
+  
+  /** Returns copies of the lets, without buffers, for a backend session which feeds the originals. */
+  private static AudioLet[] copyLets(AudioLet[] lets) {
+    AudioLet[] copies = new AudioLet[lets.length];
+    for (int i = 0; i < lets.length; i++) {
+      copies[i] = new AudioLet(lets[i].device, lets[i].getIndex(), lets[i].getChannelIndex(),
+          lets[i].name, lets[i].isInput, lets[i].numChannels);
+    }
+    return copies;
+  }
+  
+  private static int countChannels(AudioLet[] lets) {
+    int numChannels = 0;
+    for (AudioLet let : lets) {
+      numChannels += let.numChannels;
+    }
+    return numChannels;
+  }
+  
+  private static FloatBuffer allocateInterleavedBuffer(AudioLet let, int blockSize) {
+    return AudioBackend.allocateChannelBuffer(blockSize * let.numChannels).asFloatBuffer();
+  }
+  
+  /**
+   * Returns the lets of the set as an array, ordered by the index of their first channel. If the
+   * lets belong to several devices, those of the clock device come first, followed by those of
+   * the other devices in the order of their ids.
+   */
+  private static AudioLet[] toChannelOrderedArray(Set<AudioLet> letset, final AudioDevice clockDevice) {
+    AudioLet[] lets = letset.toArray(new AudioLet[letset.size()]);
+    Arrays.sort(lets, new Comparator<AudioLet>() {
+      @Override
+      public int compare(AudioLet a, AudioLet b) {
+        long keyA = ((a.device.equals(clockDevice) ? -1L : (long) a.device.getId()) << 32) + a.getChannelIndex();
+        long keyB = ((b.device.equals(clockDevice) ? -1L : (long) b.device.getId()) << 32) + b.getChannelIndex();
+        return (keyA < keyB) ? -1 : (keyA == keyB) ? 0 : 1;
+      }
+    });
+    return lets;
+  }
+  
+  public void uninitialize() {
+    synchronized (this) {
+      uninitializeSessions();
+    }
+    awaitStopped();
+  }
+  
+  private synchronized void uninitializeSessions() {
     switch (state) {
-      case RUNNING: pause(); // allow fallthrough
+      case RUNNING: pauseSessions(); // allow fallthrough
       case INITIALIZED: {
-        uninitialize(nativePtr);
+        backend.uninitialize(nativePtr);
         nativePtr = 0;
+        for (AggregatedDevice device : aggregatedDevices) {
+          backend.uninitialize(device.ptr);
+        }
+        aggregatedDevices = new AggregatedDevice[0];
+        rateStage = null;
+        blockSizeAdapter = null;
+        for (AudioLet let : currentInputLetArray) {
+          let.setInterleavedBuffer(null);
+        }
+        for (AudioLet let : currentOutputLetArray) {
+          let.setInterleavedBuffer(null);
+        }
+        isInterleaved = false;
         currentInputLets.clear();
         currentOutputLets.clear();
+        currentInputLetArray = new AudioLet[0];
+        currentOutputLetArray = new AudioLet[0];
+        inputChannels = new AudioChannels(currentInputLetArray, 0);
+        outputChannels = new AudioChannels(currentOutputLetArray, 0);
+        duplexAligner = null;
+        monitor.unregister();
         currentInputDevice = null;
         currentOutputDevice = null;
         state = CoreAudioState.UNINITIALIZED;
@@ -292,7 +714,7 @@ public class JCoreAudio {
       case UNINITIALIZED: break; // nothing to do
     }
   }
-  private static native void uninitialize(long nativePtr);
+  static native void uninitialize(long nativePtr);
   
   public synchronized AudioDevice getCurrentInputDevice() {
     return currentInputDevice;
@@ -312,6 +734,159 @@ public class JCoreAudio {
     return new HashSet<AudioLet>(currentOutputLets);
   }
   
+  /** The channels of the current input lets. The return value is never <code>null</code>. */
+  public synchronized AudioChannels getInputChannels() {
+    return inputChannels;
+  }
+  
+  /** The channels of the current output lets. The return value is never <code>null</code>. */
+  public synchronized AudioChannels getOutputChannels() {
+    return outputChannels;
+  }
+  
+  /**
+   * Chooses the device whose clock drives the callbacks when the lets span several devices. It
+   * takes effect when <code>JCoreAudio</code> is next initialized. If it is <code>null</code>, or
+   * has none of the lets, the device with the most output channels is chosen, or the one with the
+   * most input channels if there is no output.
+   */
+  public synchronized void setClockDevice(AudioDevice device) {
+    clockDevice = device;
+  }
+  
+  /**
+   * Enables sample rate conversion between the listener and the device, so that the listener runs
+   * at the sample rate given to <code>initialize()</code> whatever the rate of the device. It takes
+   * effect when <code>JCoreAudio</code> is next initialized. The listener still receives blocks of
+   * <code>blockSize</code> frames, but a callback of the device may then result in zero, one or two
+   * callbacks of the listener. The conversion adds a latency which depends on the quality, see
+   * {@link SampleRateConverter}. It cannot be combined with lets of several devices.
+   * @param quality  The quality of the conversion, or <code>null</code> to disable it.
+   * @param deviceSampleRate  The sample rate at which to run the device, or zero for its current
+   *     sample rate. The ratio of the two rates must be reducible to at most
+   *     {@link SampleRateConverter#MAX_PHASES} phases, e.g. 44100Hz and 48000Hz.
+   */
+  public synchronized void setSampleRateConversion(SampleRateConverter.Quality quality, float deviceSampleRate) {
+    if (deviceSampleRate < 0.0f) {
+      throw new IllegalArgumentException("The sample rate of the device may not be negative.");
+    }
+    conversionQuality = quality;
+    conversionSampleRate = deviceSampleRate;
+  }
+  
+  /**
+   * Enables block size adaptation, so that the listener receives blocks of the size given to
+   * <code>initialize()</code> whatever the buffer size of the device, e.g. blocks of 1024 frames
+   * from a device which runs at 441. It takes effect when <code>JCoreAudio</code> is next
+   * initialized. The latency which it adds is reported by the {@link BlockSizeAdapter}. It cannot
+   * be combined with sample rate conversion or with lets of several devices.
+   * @param mode  How the listener is called, or <code>null</code> to disable adaptation.
+   * @param deviceBlockSize  The buffer size at which to run the device, or zero for its current
+   *     buffer size.
+   */
+  public synchronized void setBlockSizeAdaptation(BlockSizeAdapter.Mode mode, int deviceBlockSize) {
+    if (deviceBlockSize < 0) {
+      throw new IllegalArgumentException("The buffer size of the device may not be negative.");
+    }
+    adapterMode = mode;
+    adapterBlockSize = deviceBlockSize;
+  }
+  
+  /**
+   * Returns the <code>BlockSizeAdapter</code> of the current session, which reports the latency
+   * that it adds. It is <code>null</code> unless block size adaptation is enabled and in use.
+   */
+  public synchronized BlockSizeAdapter getBlockSizeAdapter() {
+    return blockSizeAdapter;
+  }
+  
+  /**
+   * Returns the devices which are aggregated with the clock device, i.e. those of the current
+   * lets other than <code>getCurrentInputDevice()</code> and <code>getCurrentOutputDevice()</code>.
+   * The list is empty unless the lets span several devices.
+   */
+  public synchronized List<AggregatedDevice> getAggregatedDevices() {
+    return Collections.unmodifiableList(Arrays.asList(aggregatedDevices.clone()));
+  }
+  
+  /**
+   * Returns the <code>DuplexAligner</code> of the current session, which reports the latency added
+   * by pairing input with output for a <code>CoreAudioDuplexListener</code>. It is
+   * <code>null</code> if there are no input lets.
+   */
+  public synchronized DuplexAligner getDuplexAligner() {
+    return duplexAligner;
+  }
+  
+  /**
+   * Returns the <code>AudioSessionMonitor</code> of the current session, which reports the
+   * execution time and DSP load of the listener. The same monitor is available via JMX.
+   */
+  public synchronized AudioSessionMonitor getMonitor() {
+    return monitor;
+  }
+  
+  /**
+   * Registers a <code>DropoutListener</code>, which is notified from a background thread of
+   * discontinuities in the callback timestamps of any session. The events are detected without
+   * blocking the audio thread, and are delivered within a few tens of milliseconds.
+   */
+  public void addDropoutListener(DropoutListener listener) {
+    dropoutNotifier.addListener(listener);
+  }
+  
+  /** Removes a registered <code>DropoutListener</code>. */
+  public void removeDropoutListener(DropoutListener listener) {
+    dropoutNotifier.removeListener(listener);
+  }
+  
+  /**
+   * Returns the <code>DiagnosticLog</code> to which dropouts and the underruns of the session are
+   * logged. Listeners may log their own events to it from the audio thread.
+   */
+  public DiagnosticLog getDiagnosticLog() {
+    return diagnostics;
+  }
+  
+  /** Returns the current block size in samples. Only valid if Core Audio is at least INITIALIZED. */
+  public synchronized int getBlockSize() {
+    return blockSize;
+  }
+  
+  /** Returns the current sample rate in Hz. Only valid if Core Audio is at least INITIALIZED. */
+  public synchronized float getSampleRate() {
+    return sampleRate;
+  }
+  
+  /**
+   * Returns the buffer size of the device in samples. It differs from <code>getBlockSize()</code>
+   * only if block size adaptation is enabled. Only valid if Core Audio is at least INITIALIZED.
+   */
+  public synchronized int getDeviceBlockSize() {
+    return deviceBlockSize;
+  }
+  
+  /**
+   * Returns the sample rate of the device in Hz. It differs from <code>getSampleRate()</code> only
+   * if sample rate conversion is enabled. Only valid if Core Audio is at least INITIALIZED.
+   */
+  public synchronized float getDeviceSampleRate() {
+    return deviceSampleRate;
+  }
+  
+  /**
+   * Returns the latency added by sample rate conversion, in frames at the rate of the device. This
+   * is the sum of the input and output paths. It is zero if the rates are the same.
+   */
+  public synchronized double getConversionLatency() {
+    return (rateStage != null) ? rateStage.getLatency() : 0.0;
+  }
+  
+  /** Indicates if the current session is in interleaved mode. */
+  public synchronized boolean isInterleaved() {
+    return isInterleaved;
+  }
+  
   /** Returns the current <code>CoreAudioState</code>. */
   public CoreAudioState getState() {
     return state;
@@ -339,21 +914,53 @@ public class JCoreAudio {
       throw new IllegalStateException("JCoreAudio must be in the INITIALIZED state to start playback. " +
       		"It is currently UNINITIALIZED.");
     }
-    if (listener == null) {
+    if (listener == null && channelListener == null && duplexListener == null) {
       throw new IllegalStateException("A CoreAudioListener must be registered before beginning playback.");
     }
     state = CoreAudioState.RUNNING;
     
-    play(true, nativePtr);
+    diagnostics.start();
+    if (duplexAligner != null) duplexAligner.reset();
+    if (rateStage != null) rateStage.reset();
+    if (blockSizeAdapter != null) {
+      blockSizeAdapter.reset();
+      blockSizeAdapter.start();
+    }
+    monitor.inputDropouts.restart();
+    monitor.outputDropouts.restart();
+    if (aggregatedDevices.length > 0) {
+      // start the aggregated devices first, so that their input is buffered when the session starts
+      clock.reset();
+      for (AggregatedDevice device : aggregatedDevices) {
+        device.reset();
+      }
+      isAggregating = true;
+      for (AggregatedDevice device : aggregatedDevices) {
+        backend.play(true, device.ptr);
+      }
+    }
+    backend.play(true, nativePtr);
   }
-  private static native void play(boolean shouldPlay, long ptr);
+  static native void play(boolean shouldPlay, long ptr);
   
   /** Pause playback. */
-  public synchronized void pause() {
+  public void pause() {
+    synchronized (this) {
+      pauseSessions();
+    }
+    awaitStopped();
+  }
+  
+  private synchronized void pauseSessions() {
     if (state != CoreAudioState.RUNNING) return;
     state = CoreAudioState.INITIALIZED;
     
-    play(false, nativePtr);
+    backend.play(false, nativePtr);
+    for (AggregatedDevice device : aggregatedDevices) {
+      backend.play(false, device.ptr);
+    }
+    isAggregating = false;
+    if (blockSizeAdapter != null) blockSizeAdapter.stop();
   }
   
   /** Indicates if JCoreAudio is currently configured with an input. */
@@ -367,35 +974,346 @@ public class JCoreAudio {
   }
   
   /** Return <code>JCoreAudio</code> to the specified state. */
-  public synchronized void returnToState(CoreAudioState newState) {
-    if (state.ordinal() <= newState.ordinal()) return;
-    switch (state) {
-      case RUNNING: {
-        pause();
-        if (newState == CoreAudioState.INITIALIZED) break;
-        // allow fallthrough
+  public void returnToState(CoreAudioState newState) {
+    synchronized (this) {
+      if (state.ordinal() <= newState.ordinal()) return;
+      switch (state) {
+        case RUNNING: {
+          pauseSessions();
+          if (newState == CoreAudioState.INITIALIZED) break;
+          // allow fallthrough
+        }
+        case INITIALIZED: uninitializeSessions(); // allow fallthrough
+        default:
+        case UNINITIALIZED: break;
       }
-      case INITIALIZED: uninitialize(); // allow fallthrough
-      default:
-      case UNINITIALIZED: break;
+      state = newState;
+    }
+    awaitStopped();
+  }
+  
+  /**
+   * Waits for the callbacks of the sessions which were just stopped to return. This is done
+   * without holding the lock, as a callback may be blocked on it. If the caller holds the lock
+   * itself, the callbacks are not waited for.
+   */
+  private void awaitStopped() {
+    AudioBackend backend;
+    synchronized (this) {
+      backend = this.backend;
+    }
+    if (backend != null && !Thread.holdsLock(this)) backend.awaitStopped();
+  }
+  
+  /**
+   * Renders audio offline, as fast as possible, instead of in real time. The registered
+   * <code>CoreAudioListener</code> receives exactly the same callbacks as during playback, on the
+   * calling thread and with timestamps increasing by one block per callback from zero. The input
+   * lets are fed from <code>inputFile</code> and the output lets are written to
+   * <code>outputFile</code>. Channels are assigned to lets in the order of their channel index.
+   * The audio hardware is not used, and <code>JCoreAudio</code> remains INITIALIZED.
+   * @param inputFile  A WAV file to feed to the input lets. If <code>null</code>, or if it has
+   *     ended, the input lets receive silence.
+   * @param outputFile  The file to which the output lets are written as 32-bit float WAV. If the
+   *     file name ends in <code>.raw</code>, only interleaved little-endian floats are written.
+   *     May be <code>null</code> if there are no output lets.
+   * @param numFrames  The number of frames to render. If negative, rendering continues until the
+   *     input file has ended.
+   * @return  Statistics about the render, including the achieved real-time factor.
+   */
+  public synchronized RenderStatistics renderOffline(File inputFile, File outputFile, long numFrames)
+      throws IOException {
+    if (state != CoreAudioState.INITIALIZED) {
+      throw new IllegalStateException("JCoreAudio must be in the INITIALIZED state to render offline. " +
+          "It is currently " + state + ".");
+    }
+    if (listener == null && channelListener == null && duplexListener == null) {
+      throw new IllegalStateException("A CoreAudioListener must be registered before rendering.");
+    }
+    if (numFrames < 0 && inputFile == null) {
+      throw new IllegalArgumentException("The number of frames must be given if there is no input file.");
+    }
+    if (outputFile == null && currentOutputLetArray.length > 0) {
+      throw new IllegalArgumentException("An output file must be given if there are output lets.");
+    }
+    FloatBuffer[] inputBuffers = inputChannels.getFloatBuffers();
+    FloatBuffer[] outputBuffers = outputChannels.getFloatBuffers();
+    
+    WaveFileReader reader = null;
+    WaveFileWriter writer = null;
+    try {
+      if (inputFile != null) {
+        reader = new WaveFileReader(inputFile);
+        if (reader.getSampleRate() != sampleRate) {
+          System.err.println("WARNING (JCoreAudio): The sample rate of " + inputFile + " is " +
+              reader.getSampleRate() + "Hz, but JCoreAudio is running at " + sampleRate + "Hz. " +
+              "The input will not be resampled.");
+        }
+      }
+      if (outputBuffers.length > 0) {
+        writer = new WaveFileWriter(outputFile, outputBuffers.length, sampleRate,
+            outputFile.getName().endsWith(".raw"), WaveFileWriter.DEFAULT_BUFFER_SIZE);
+      }
+      
+      long frame = 0;
+      if (duplexAligner != null) duplexAligner.reset();
+      monitor.inputDropouts.restart();
+      monitor.outputDropouts.restart();
+      long startNanos = System.nanoTime();
+      while (numFrames < 0 || frame < numFrames) {
+        int length = (numFrames < 0) ? blockSize : (int) Math.min(blockSize, numFrames - frame);
+        if (reader != null) {
+          int numRead = reader.read(inputBuffers, blockSize);
+          if (numFrames < 0) {
+            if (numRead == 0) break;
+            length = numRead;
+          }
+        } else {
+          inputChannels.clear();
+        }
+        if (inputBuffers.length > 0) processInput(frame);
+        if (writer != null) {
+          processOutput(frame);
+          writer.write(outputBuffers, length);
+        }
+        frame += length;
+      }
+      if (writer != null) writer.flush();
+      return new RenderStatistics(frame, sampleRate, System.nanoTime() - startNanos);
+    } finally {
+      if (reader != null) reader.close();
+      if (writer != null) writer.close();
     }
-    state = newState;
   }
   
-  /** Sets a new <code>CoreAudioListener</code>. Only one listener may be registered at a time. */
+  /**
+   * Sets a new <code>CoreAudioListener</code>. Only one listener may be registered at a time, and
+   * registering it replaces any <code>CoreAudioChannelListener</code>.
+   */
   public synchronized void setListener(CoreAudioListener listener) {
     this.listener = listener;
+    this.channelListener = null;
+    this.duplexListener = null;
+  }
+  
+  /**
+   * Sets a new <code>CoreAudioChannelListener</code>. Only one listener may be registered at a
+   * time, and registering it replaces any <code>CoreAudioListener</code>.
+   */
+  public synchronized void setChannelListener(CoreAudioChannelListener listener) {
+    this.channelListener = listener;
+    this.listener = null;
+    this.duplexListener = null;
+  }
+  
+  /**
+   * Sets a new <code>CoreAudioDuplexListener</code>, which receives input and output in one
+   * callback. Only one listener may be registered at a time, and registering it replaces any other
+   * listener. The duplex listener is called from the output callback, or from the input callback if
+   * there are no output lets.
+   */
+  public synchronized void setDuplexListener(CoreAudioDuplexListener listener) {
+    this.duplexListener = listener;
+    this.listener = null;
+    this.channelListener = null;
+  }
+  
+  
+  /**
+   * Registers a <code>ParameterQueue</code>, which is processed at the start of every block before
+   * the listener is called: before the output callback, or before the input callback if there are
+   * no output lets. It may be changed at any time, and may be <code>null</code>.
+   */
+  public void setParameterQueue(ParameterQueue queue) {
+    this.parameterQueue = queue;
+  }
+  
+  /** Returns the registered <code>ParameterQueue</code>, or <code>null</code> if there is none. */
+  public ParameterQueue getParameterQueue() {
+    return parameterQueue;
+  }
+  
+  /**
+   * Adds a tap, which receives the input and output channels of every callback after the
+   * registered listener has been called, e.g. to record or meter them. Taps are called on the audio
+   * thread and are subject to the same restrictions as listeners. They should not modify the input
+   * channels, and they see the output channels as they will be sent to the device. Taps may be
+   * added and removed at any time, and are independent of the registered listener.
+   */
+  public synchronized void addTap(CoreAudioChannelListener tap) {
+    if (tap == null) {
+      throw new IllegalArgumentException("The tap may not be null.");
+    }
+    CoreAudioChannelListener[] newTaps = Arrays.copyOf(taps, taps.length + 1);
+    newTaps[taps.length] = tap;
+    taps = newTaps;
+  }
+  
+  /** Removes a tap. It may still receive a callback which is already in progress. */
+  public synchronized void removeTap(CoreAudioChannelListener tap) {
+    List<CoreAudioChannelListener> list = new ArrayList<CoreAudioChannelListener>(Arrays.asList(taps));
+    if (list.remove(tap)) {
+      taps = list.toArray(new CoreAudioChannelListener[list.size()]);
+    }
   }
   
   
   // ------ CoreAudioListener Callbacks ------
   
-  private static void fireOnCoreAudioInput(double timestamp) {
-    jcoreaudio.listener.onCoreAudioInput(timestamp, jcoreaudio.currentInputLets);
+  // NOTE(mhroth): nothing in these methods may allocate, as they are called on the audio thread
+  static void fireOnCoreAudioInput(double timestamp) {
+    jcoreaudio.monitor.inputDropouts.checkDeviceCallback(timestamp, System.nanoTime());
+    RateConversionStage stage = jcoreaudio.rateStage;
+    BlockSizeAdapter adapter = jcoreaudio.blockSizeAdapter;
+    if (stage != null) {
+      stage.onDeviceInput(timestamp);
+    } else if (adapter != null) {
+      adapter.onDeviceInput(timestamp);
+    } else {
+      processInput(timestamp);
+    }
+  }
+  
+  static void fireOnCoreAudioOutput(double timestamp) {
+    jcoreaudio.monitor.outputDropouts.checkDeviceCallback(timestamp, System.nanoTime());
+    RateConversionStage stage = jcoreaudio.rateStage;
+    BlockSizeAdapter adapter = jcoreaudio.blockSizeAdapter;
+    if (stage != null) {
+      stage.onDeviceOutput(timestamp);
+    } else if (adapter != null) {
+      adapter.onDeviceOutput(timestamp);
+    } else {
+      processOutput(timestamp);
+    }
+  }
+  
+  /** Makes the input callback of the listener, at its own sample rate. */
+  static void processInput(double timestamp) {
+    long startNanos = System.nanoTime();
+    AudioSessionMonitor monitor = jcoreaudio.monitor;
+    monitor.inputDropouts.check(timestamp, startNanos);
+    boolean isAggregating = jcoreaudio.isAggregating;
+    if (jcoreaudio.currentOutputLetArray.length == 0 || (isAggregating && jcoreaudio.isOutputDrivenByInput)) {
+      processParameters();
+    }
+    if (isAggregating) {
+      if (jcoreaudio.isClockedByInput) jcoreaudio.clock.update(timestamp, startNanos);
+      AggregatedDevice[] devices = jcoreaudio.aggregatedDevices;
+      for (int i = 0; i < devices.length; i++) {
+        devices[i].pullInput();
+      }
+    }
+    if (jcoreaudio.isInterleaved) {
+      AudioLet[] lets = jcoreaudio.currentInputLetArray;
+      for (int i = 0; i < lets.length; i++) {
+        SampleKernels.interleave(lets[i].getChannelFloatBuffers(), lets[i].getInterleavedFloatBuffer(),
+            jcoreaudio.blockSize);
+      }
+    }
+    CoreAudioChannelListener channelListener = jcoreaudio.channelListener;
+    CoreAudioDuplexListener duplexListener = jcoreaudio.duplexListener;
+    if (channelListener != null) {
+      AudioChannels inputChannels = jcoreaudio.inputChannels;
+      inputChannels.rewind();
+      channelListener.onCoreAudioInput(timestamp, inputChannels);
+    } else if (duplexListener != null) {
+      AudioChannels inputChannels = jcoreaudio.inputChannels;
+      if (jcoreaudio.currentOutputLetArray.length > 0) {
+        jcoreaudio.duplexAligner.pushInput(timestamp, inputChannels);
+      } else {
+        inputChannels.rewind();
+        duplexListener.process(timestamp, inputChannels, jcoreaudio.outputChannels);
+      }
+    } else {
+      jcoreaudio.listener.onCoreAudioInput(timestamp, jcoreaudio.currentInputLets);
+    }
+    CoreAudioChannelListener[] taps = jcoreaudio.taps;
+    if (taps.length > 0) {
+      AudioChannels inputChannels = jcoreaudio.inputChannels;
+      for (int i = 0; i < taps.length; i++) {
+        inputChannels.rewind();
+        taps[i].onCoreAudioInput(timestamp, inputChannels);
+      }
+    }
+    monitor.inputTimer.record(System.nanoTime() - startNanos);
+    if (isAggregating && jcoreaudio.isOutputDrivenByInput) processOutput(timestamp);
+  }
+  
+  /** Makes the output callback of the listener, at its own sample rate. */
+  static void processOutput(double timestamp) {
+    boolean isAggregating = jcoreaudio.isAggregating;
+    if (!(isAggregating && jcoreaudio.isOutputDrivenByInput)) processParameters();
+    if (isAggregating && jcoreaudio.isInputDrivenByOutput) processInput(timestamp);
+    long startNanos = System.nanoTime();
+    AudioSessionMonitor monitor = jcoreaudio.monitor;
+    monitor.outputDropouts.check(timestamp, startNanos);
+    if (isAggregating && !jcoreaudio.isClockedByInput) jcoreaudio.clock.update(timestamp, startNanos);
+    CoreAudioChannelListener channelListener = jcoreaudio.channelListener;
+    CoreAudioDuplexListener duplexListener = jcoreaudio.duplexListener;
+    if (channelListener != null) {
+      AudioChannels outputChannels = jcoreaudio.outputChannels;
+      outputChannels.rewind();
+      channelListener.onCoreAudioOutput(timestamp, outputChannels);
+    } else if (duplexListener != null) {
+      DuplexAligner aligner = jcoreaudio.duplexAligner;
+      AudioChannels inputs = (aligner != null) ? aligner.pullInput(timestamp) : jcoreaudio.inputChannels;
+      AudioChannels outputChannels = jcoreaudio.outputChannels;
+      inputs.rewind();
+      outputChannels.rewind();
+      duplexListener.process(timestamp, inputs, outputChannels);
+    } else {
+      jcoreaudio.listener.onCoreAudioOutput(timestamp, jcoreaudio.currentOutputLets);
+    }
+    if (jcoreaudio.isInterleaved) {
+      AudioLet[] lets = jcoreaudio.currentOutputLetArray;
+      for (int i = 0; i < lets.length; i++) {
+        SampleKernels.deinterleave(lets[i].getInterleavedFloatBuffer(), lets[i].getChannelFloatBuffers(),
+            jcoreaudio.blockSize);
+      }
+    }
+    if (isAggregating) {
+      AggregatedDevice[] devices = jcoreaudio.aggregatedDevices;
+      for (int i = 0; i < devices.length; i++) {
+        devices[i].pushOutput();
+      }
+    }
+    CoreAudioChannelListener[] taps = jcoreaudio.taps;
+    if (taps.length > 0) {
+      AudioChannels outputChannels = jcoreaudio.outputChannels;
+      for (int i = 0; i < taps.length; i++) {
+        outputChannels.rewind();
+        taps[i].onCoreAudioOutput(timestamp, outputChannels);
+      }
+    }
+    monitor.outputTimer.record(System.nanoTime() - startNanos);
+  }
+  
+  /** Applies the pending parameter changes at the start of a block. */
+  private static void processParameters() {
+    ParameterQueue queue = jcoreaudio.parameterQueue;
+    if (queue != null) queue.process(jcoreaudio.blockSize);
   }
   
-  private static void fireOnCoreAudioOutput(double timestamp) {
-    jcoreaudio.listener.onCoreAudioOutput(timestamp, jcoreaudio.currentOutputLets);
+  static void fireOnStreamInput(long ptr, double timestamp) {
+    long nanos = System.nanoTime();
+    AggregatedDevice[] devices = jcoreaudio.aggregatedDevices;
+    for (int i = 0; i < devices.length; i++) {
+      if (devices[i].ptr == ptr) {
+        devices[i].onDeviceInput(timestamp, nanos);
+        return;
+      }
+    }
+  }
+  
+  static void fireOnStreamOutput(long ptr, double timestamp) {
+    long nanos = System.nanoTime();
+    AggregatedDevice[] devices = jcoreaudio.aggregatedDevices;
+    for (int i = 0; i < devices.length; i++) {
+      if (devices[i].ptr == ptr) {
+        devices[i].onDeviceOutput(timestamp, nanos);
+        return;
+      }
+    }
   }
 
 }
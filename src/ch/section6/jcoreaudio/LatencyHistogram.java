@@ -0,0 +1,144 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <code>LatencyHistogram</code> is a fixed-memory, log-linear histogram of durations in
+ * nanoseconds. Every power of two is divided into 32 linear buckets, so that recorded values are
+ * resolved to within about 3%. Values up to about 18 minutes are represented, and larger values
+ * are clamped.<br/>
+ * <br/>
+ * The histogram has a single writer, usually the audio thread, for which {@link #record(long)}
+ * never blocks or allocates. Any number of other threads may read it at the same time. Readers see
+ * each counter atomically, but not necessarily all counters at the same instant.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class LatencyHistogram {
+  
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int MAX_EXPONENT = 40;
+  private static final int NUM_BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+  private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1L;
+  
+  private final AtomicLongArray buckets;
+  private final AtomicLong count;
+  private final AtomicLong sum;
+  private final AtomicLong max;
+  private volatile boolean isResetRequested;
+  
+  public LatencyHistogram() {
+    buckets = new AtomicLongArray(NUM_BUCKETS);
+    count = new AtomicLong();
+    sum = new AtomicLong();
+    max = new AtomicLong();
+  }
+  
+  /** Records a value. May only be called by the writing thread. */
+  public void record(long nanos) {
+    if (isResetRequested) clear();
+    if (nanos < 0L) nanos = 0L;
+    else if (nanos > MAX_VALUE) nanos = MAX_VALUE;
+    
+    // there is only one writer, so plain increments published with lazySet are sufficient
+    int index = getBucketIndex(nanos);
+    buckets.lazySet(index, buckets.get(index) + 1L);
+    sum.lazySet(sum.get() + nanos);
+    if (nanos > max.get()) max.lazySet(nanos);
+    count.lazySet(count.get() + 1L);
+  }
+  
+  /**
+   * Requests that the histogram be cleared. The writing thread clears it before it next records
+   * a value, so that the reset never races with a recording.
+   */
+  public void reset() {
+    isResetRequested = true;
+  }
+  
+  private void clear() {
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      buckets.lazySet(i, 0L);
+    }
+    count.lazySet(0L);
+    sum.lazySet(0L);
+    max.lazySet(0L);
+    isResetRequested = false;
+  }
+  
+  static int getBucketIndex(long value) {
+    if (value < SUB_BUCKETS) return (int) value;
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int mantissa = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + mantissa;
+  }
+  
+  /** Returns the middle of the range of values represented by the given bucket. */
+  static long getBucketValue(int index) {
+    if (index < SUB_BUCKETS) return index;
+    int exponent = (index - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+    int mantissa = (index - SUB_BUCKETS) % SUB_BUCKETS;
+    int shift = exponent - SUB_BUCKET_BITS;
+    long lower = ((long) (SUB_BUCKETS + mantissa)) << shift;
+    return lower + ((1L << shift) >> 1);
+  }
+  
+  /** Returns the number of recorded values. */
+  public long getCount() {
+    return count.get();
+  }
+  
+  /** Returns the largest recorded value in nanoseconds. */
+  public long getMax() {
+    return max.get();
+  }
+  
+  /** Returns the mean of the recorded values in nanoseconds, or zero if there are none. */
+  public double getMean() {
+    long n = count.get();
+    return (n > 0L) ? sum.get() / (double) n : 0.0;
+  }
+  
+  /**
+   * Returns the value below which the given percentage of recorded values fall, in nanoseconds.
+   * @param percentile  A percentage between 0 and 100, e.g. 99.9.
+   */
+  public long getValueAtPercentile(double percentile) {
+    long total = 0L;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      total += buckets.get(i);
+    }
+    if (total == 0L) return 0L;
+    long rank = Math.max(1L, (long) Math.ceil(total * Math.min(100.0, percentile) / 100.0));
+    long cumulative = 0L;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      cumulative += buckets.get(i);
+      if (cumulative >= rank) {
+        return Math.min(getBucketValue(i), max.get());
+      }
+    }
+    return max.get();
+  }
+}
@@ -0,0 +1,751 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <code>LevelMeter</code> measures the sample peak, true peak, RMS level and momentary loudness of
+ * every channel in one direction. It is a tap, and is registered with
+ * {@link JCoreAudio#addTap(CoreAudioChannelListener)}:
+ * <pre>
+ * LevelMeter meter = new LevelMeter(false, jca.getOutputChannels().getNumChannels(),
+ *     jca.getBlockSize(), jca.getSampleRate());
+ * jca.addTap(meter);
+ * ...
+ * // on any thread, e.g. at the frame rate of the display
+ * MeterSnapshot levels = new MeterSnapshot(meter.getNumChannels());
+ * meter.read(levels);
+ * </pre>
+ * The measures are:
+ * <ul>
+ *   <li>the sample peak and the true peak, which fall back by 20dB in 1.7s once the signal has
+ *       passed. The true peak is that of the signal interpolated to four times the sample rate,
+ *       as in ITU-R BS.1770. To keep its cost low, it is only interpolated next to the local
+ *       maxima within 3dB of the peak of the block, or of the held true peak if that is higher,
+ *       which is where the peaks between samples which can raise the meter occur. It lags the
+ *       signal by 6 samples.</li>
+ *   <li>the RMS level over a sliding window, 300ms by default.</li>
+ *   <li>the momentary loudness over a sliding window of 400ms, after the K-weighting filter of
+ *       ITU-R BS.1770, of each channel and of all channels together. The filter runs across the
+ *       channels one frame at a time, so that its loops are vectorised, if there are at least
+ *       eight of them.</li>
+ * </ul>
+ * The audio thread only copies each block into a queue of the last 100ms, which a worker thread
+ * meters. It neither waits nor allocates, and never wakes the worker, which polls the queue every
+ * millisecond. A worker which falls more than the length of the queue behind skips to the oldest
+ * block which is still queued, and counts the blocks which it skipped. A meter without a worker
+ * meters each block in the callback, e.g. for offline rendering.<br/>
+ * <br/>
+ * The sliding windows advance by whole blocks. After each block, the levels are published
+ * together under a sequence number, in the manner of a seqlock: the number is odd while they are
+ * being written. {@link #read(MeterSnapshot)} copies them and retries if the number has changed
+ * meanwhile, so that any number of threads may read without locks and without seeing a mix of
+ * two blocks. The meter never waits for readers. Mean squares are published as they are, and
+ * converted to RMS levels and loudness by the readers, so that the meter takes no logarithms.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class LevelMeter implements CoreAudioChannelListener {
+  
+  /** The number of samples before and after a point from which the true peak is interpolated. */
+  private static final int HALF_TAPS = 6;
+  
+  /** The number of samples kept from the previous block, for the interpolation. */
+  private static final int HISTORY = 2 * HALF_TAPS;
+  
+  /**
+   * The number of frames which are gathered from the windows at once, for the K-weighting filter,
+   * so that each window is looked up once for all of them.
+   */
+  private static final int GATHERED_FRAMES = 4;
+  
+  /**
+   * The K-weighting filter of a meter of at least this many channels runs across a multiple of
+   * it, the extra ones silent. The compiler only vectorises loops which it has seen run long
+   * enough, and its profile is shared by all meters, so that a meter of a few more channels would
+   * otherwise slow down one of many. Fewer channels would gain nothing from the vectors, and are
+   * filtered one at a time by a loop of their own, which leaves the profile alone.
+   */
+  private static final int LANES = 8;
+  
+  /** The length of the queue of blocks between the audio thread and the worker. */
+  private static final double QUEUE_SECONDS = 0.1;
+  
+  /** How long an idle worker waits before checking the queue again. */
+  private static final long POLL_NANOS = 1000000L;
+  
+  /** The oversampling factor of the true peak. */
+  private static final int OVERSAMPLING = 4;
+  
+  /** Local maxima below this fraction of the block peak are not interpolated. */
+  private static final float CANDIDATE_THRESHOLD = 0.70710677f;
+  
+  private static final double MOMENTARY_SECONDS = 0.4;
+  
+  // the published fields of each channel. Mean squares are converted to levels by the readers.
+  private static final int PEAK = 0;
+  private static final int TRUE_PEAK = 1;
+  private static final int MAX_TRUE_PEAK = 2;
+  private static final int MEAN_SQUARE = 3;
+  private static final int WEIGHTED_MEAN_SQUARE = 4;
+  private static final int NUM_FIELDS = 5;
+  
+  private final boolean isInput;
+  private final int numChannels;
+  private final int blockSize;
+  private final float sampleRate;
+  
+  /** The blocks of each channel which have not been metered yet, written by the audio thread. */
+  private final float[][] queue;
+  private final double[] queuedTimestamps;
+  private final int queueBlocks;
+  
+  /** The number of blocks which the audio thread has written to the queue. */
+  private volatile long written;
+  
+  /** The number of blocks which have been metered or skipped. Only used by the worker. */
+  private long metered;
+  
+  private final Thread worker;
+  private volatile boolean isOpen;
+  
+  /**
+   * The interpolation filters of the three fractional positions, folded about their centre. The
+   * filter of 3/4 is that of 1/4 reversed, and that of 1/2 is symmetric, so each is applied to the
+   * sums and differences of the pairs of samples at the same distance from the centre:
+   * <code>outerSums</code> and <code>outerDifferences</code> give the half sum and half
+   * difference of the outputs at 1/4 and 3/4, and <code>centreSums</code> the output at 1/2.
+   */
+  private final float[] outerSums;
+  private final float[] outerDifferences;
+  private final float[] centreSums;
+  
+  /** The coefficients of the two K-weighting biquads: b0, b1, b2, a1, a2 each. */
+  private final double[] shelf;
+  private final double[] highpass;
+  
+  /** The factor by which the peaks fall back in each block. */
+  private final float release;
+  
+  // the state of each channel, only used by the worker
+  private final float[][] windows;
+  
+  /**
+   * The frames gathered from the windows across all channels, for the K-weighting filter, after
+   * the two frames which precede them.
+   */
+  private final double[][] frames;
+  
+  /**
+   * The last three outputs of the shelf and states of the high pass across all channels. The
+   * arrays of each take turns as the newest, so that no values are moved.
+   */
+  private final double[][] shelfOutputs;
+  private final double[][] highpassStates;
+  private final float[] peaks;
+  
+  /** The peak of the last samples of the window, which the next block searches for the true peak. */
+  private final float[] tailPeaks;
+  private final float[] truePeaks;
+  private final float[] maxTruePeaks;
+  private final SlidingSum[] squares;
+  private final SlidingSum[] weightedSquares;
+  private final double[] meanSquares;
+  private final double[] weightedSums;
+  private volatile boolean isResetRequested;
+  private long blocks;
+  
+  // the published levels
+  private final AtomicLong sequence;
+  private final AtomicLongArray levels;
+  private final AtomicLong publishedTotalMeanSquare;
+  private final AtomicLong publishedTimestamp;
+  private final AtomicLong publishedBlocks;
+  
+  private final AtomicLong skippedBlocks;
+  private final AtomicLong meteringNanos;
+  
+  /**
+   * Creates a meter with an RMS integration time of 300ms, and a worker thread.
+   * @param isInput  If the meter measures the input channels, otherwise the output channels.
+   */
+  public LevelMeter(boolean isInput, int numChannels, int blockSize, float sampleRate) {
+    this(isInput, numChannels, blockSize, sampleRate, 0.3, true);
+  }
+  
+  /**
+   * Creates a meter with a worker thread.
+   * @param isInput  If the meter measures the input channels, otherwise the output channels.
+   * @param rmsSeconds  The length of the window over which the RMS level is measured.
+   */
+  public LevelMeter(boolean isInput, int numChannels, int blockSize, float sampleRate,
+      double rmsSeconds) {
+    this(isInput, numChannels, blockSize, sampleRate, rmsSeconds, true);
+  }
+  
+  /**
+   * @param isInput  If the meter measures the input channels, otherwise the output channels.
+   * @param rmsSeconds  The length of the window over which the RMS level is measured.
+   * @param isThreaded  If the blocks are metered on a worker thread. Otherwise they are metered in
+   *     the callback, e.g. for offline rendering.
+   */
+  public LevelMeter(boolean isInput, int numChannels, int blockSize, float sampleRate,
+      double rmsSeconds, boolean isThreaded) {
+    if (numChannels <= 0 || blockSize <= 0 || sampleRate <= 0.0f) {
+      throw new IllegalArgumentException("The number of channels, block size and sample rate must be positive.");
+    }
+    if (rmsSeconds <= 0.0) {
+      throw new IllegalArgumentException("The RMS integration time must be positive: " + rmsSeconds);
+    }
+    this.isInput = isInput;
+    this.numChannels = numChannels;
+    this.blockSize = blockSize;
+    this.sampleRate = sampleRate;
+    float[][] phases = createPhases();
+    this.outerSums = new float[HALF_TAPS];
+    this.outerDifferences = new float[HALF_TAPS];
+    this.centreSums = new float[HALF_TAPS];
+    float[] h = phases[0];
+    for (int k = 0; k < HALF_TAPS; k++) {
+      outerSums[k] = 0.5f * (h[k] + h[2 * HALF_TAPS - 1 - k]);
+      outerDifferences[k] = 0.5f * (h[k] - h[2 * HALF_TAPS - 1 - k]);
+      centreSums[k] = phases[1][k];
+    }
+    this.shelf = createShelf(sampleRate);
+    this.highpass = createHighpass(sampleRate);
+    this.release = (float) Math.pow(10.0, -20.0 / 20.0 * blockSize / sampleRate / 1.7);
+    
+    int rmsBlocks = Math.max(1, (int) Math.round(rmsSeconds * sampleRate / blockSize));
+    int momentaryBlocks = Math.max(1, (int) Math.round(MOMENTARY_SECONDS * sampleRate / blockSize));
+    queueBlocks = isThreaded ?
+        Math.max(2, (int) Math.ceil(QUEUE_SECONDS * sampleRate / blockSize)) : 1;
+    queue = new float[numChannels][queueBlocks * blockSize];
+    queuedTimestamps = new double[queueBlocks];
+    windows = new float[numChannels][HISTORY + blockSize];
+    int lanes = (numChannels < LANES) ? numChannels : (numChannels + LANES - 1) / LANES * LANES;
+    frames = new double[2 + GATHERED_FRAMES][lanes];
+    shelfOutputs = new double[3][lanes];
+    highpassStates = new double[3][lanes];
+    peaks = new float[numChannels];
+    tailPeaks = new float[numChannels];
+    truePeaks = new float[numChannels];
+    maxTruePeaks = new float[numChannels];
+    squares = new SlidingSum[numChannels];
+    weightedSquares = new SlidingSum[numChannels];
+    for (int c = 0; c < numChannels; c++) {
+      squares[c] = new SlidingSum(rmsBlocks);
+      weightedSquares[c] = new SlidingSum(momentaryBlocks);
+    }
+    meanSquares = new double[numChannels];
+    weightedSums = new double[lanes];
+    
+    sequence = new AtomicLong();
+    levels = new AtomicLongArray(NUM_FIELDS * numChannels);
+    publishedTotalMeanSquare = new AtomicLong();
+    publishedTimestamp = new AtomicLong();
+    publishedBlocks = new AtomicLong();
+    skippedBlocks = new AtomicLong();
+    meteringNanos = new AtomicLong();
+    
+    isOpen = true;
+    if (isThreaded) {
+      worker = new Thread(new Worker(), "JCoreAudio Meter");
+      worker.setDaemon(true);
+      worker.start();
+    } else {
+      worker = null;
+    }
+  }
+  
+  /** The sum of the last few values added, kept without drift. */
+  private static class SlidingSum {
+    private final double[] values;
+    private int index;
+    private double sum;
+    
+    private SlidingSum(int length) {
+      values = new double[length];
+    }
+    
+    private double add(double value) {
+      sum += value - values[index];
+      values[index] = value;
+      if (++index == values.length) {
+        // start each round afresh, so that rounding errors do not accumulate
+        index = 0;
+        sum = 0.0;
+        for (double v : values) sum += v;
+      }
+      return Math.max(0.0, sum);
+    }
+    
+    private int getLength() {
+      return values.length;
+    }
+  }
+  
+  public boolean isInput() {
+    return isInput;
+  }
+  
+  public int getNumChannels() {
+    return numChannels;
+  }
+  
+  public int getBlockSize() {
+    return blockSize;
+  }
+  
+  public float getSampleRate() {
+    return sampleRate;
+  }
+  
+  /** Returns whether the blocks are metered on a worker thread, rather than in the callback. */
+  public boolean isThreaded() {
+    return worker != null;
+  }
+  
+  /**
+   * Returns the number of blocks which were not metered, because the worker had fallen behind
+   * and they had been overwritten in the queue.
+   */
+  public long getSkippedBlocks() {
+    return skippedBlocks.get();
+  }
+  
+  /** Returns the total time spent metering blocks, in nanoseconds. */
+  public long getMeteringNanos() {
+    return meteringNanos.get();
+  }
+  
+  /** Resets the largest true peak of every channel. It takes effect at the next block. */
+  public void resetMaxTruePeak() {
+    isResetRequested = true;
+  }
+  
+  /** Stops the worker thread. The meter may no longer be used. */
+  public void close() {
+    if (!isOpen) return;
+    isOpen = false;
+    if (worker != null) {
+      LockSupport.unpark(worker);
+      try {
+        worker.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+  
+  
+  // ------ Audio Thread ------
+  
+  @Override
+  public void onCoreAudioInput(double timestamp, AudioChannels inputs) {
+    if (isInput) process(timestamp, inputs);
+  }
+  
+  @Override
+  public void onCoreAudioOutput(double timestamp, AudioChannels outputs) {
+    if (!isInput) process(timestamp, outputs);
+  }
+  
+  /**
+   * Copies one block of the given channels into the queue of the worker, or meters it if there is
+   * no worker. Called on the audio thread, by <code>JCoreAudio</code> if the meter is registered
+   * as a tap. Channels beyond those of the meter are ignored, and missing ones are metered as
+   * silence.
+   */
+  public void process(double timestamp, AudioChannels channels) {
+    long block = written;
+    int slot = (int) (block % queueBlocks);
+    int offset = slot * blockSize;
+    int available = Math.min(numChannels, channels.getNumChannels());
+    for (int c = 0; c < numChannels; c++) {
+      float[] samples = queue[c];
+      if (c < available) {
+        channels.read(c, samples, offset);
+      } else {
+        for (int i = offset; i < offset + blockSize; i++) samples[i] = 0.0f;
+      }
+    }
+    queuedTimestamps[slot] = timestamp;
+    written = block + 1L; // publishes the block
+    if (worker == null) meterQueued();
+  }
+  
+  
+  // ------ Worker ------
+  
+  /** Meters the queued blocks in turn, skipping those which have been overwritten. */
+  private void meterQueued() {
+    long end = written;
+    while (metered < end) {
+      long startNanos = System.nanoTime();
+      // the oldest queued block, but for the one which the audio thread may be overwriting
+      long block = Math.max(metered, (worker == null) ? end - 1L : end - queueBlocks + 1L);
+      int slot = (int) (block % queueBlocks);
+      int offset = slot * blockSize;
+      for (int c = 0; c < numChannels; c++) {
+        System.arraycopy(queue[c], offset, windows[c], HISTORY, blockSize);
+      }
+      double timestamp = queuedTimestamps[slot];
+      if (worker != null && written >= block + queueBlocks) {
+        // the audio thread may have overwritten the block while it was being copied
+        skippedBlocks.lazySet(skippedBlocks.get() + block + 1L - metered);
+        metered = block + 1L;
+        end = written;
+        continue;
+      }
+      if (block > metered) skippedBlocks.lazySet(skippedBlocks.get() + block - metered);
+      meter(timestamp);
+      metered = block + 1L;
+      meteringNanos.lazySet(meteringNanos.get() + System.nanoTime() - startNanos);
+      if (metered == end) end = written;
+    }
+  }
+  
+  /** Meters the block in the windows and publishes the levels. */
+  private void meter(double timestamp) {
+    if (isResetRequested) {
+      isResetRequested = false;
+      for (int c = 0; c < numChannels; c++) maxTruePeaks[c] = 0.0f;
+    }
+    for (int c = 0; c < numChannels; c++) {
+      measure(c, windows[c]);
+    }
+    if (numChannels < LANES) {
+      kWeightEach();
+    } else {
+      kWeight();
+    }
+    for (int c = 0; c < numChannels; c++) {
+      // keep the end of the block for the interpolation of the next one
+      float[] window = windows[c];
+      System.arraycopy(window, blockSize, window, 0, HISTORY);
+    }
+    
+    sequence.set(sequence.get() + 1L); // odd: the levels are being written
+    double totalSquares = 0.0;
+    for (int c = 0, field = 0; c < numChannels; c++, field += NUM_FIELDS) {
+      double weightedSum = weightedSquares[c].add(weightedSums[c]);
+      totalSquares += weightedSum;
+      double weightedMeanSquare = weightedSum / (weightedSquares[c].getLength() * blockSize);
+      levels.lazySet(field + PEAK, Float.floatToRawIntBits(peaks[c]));
+      levels.lazySet(field + TRUE_PEAK, Float.floatToRawIntBits(truePeaks[c]));
+      levels.lazySet(field + MAX_TRUE_PEAK, Float.floatToRawIntBits(maxTruePeaks[c]));
+      levels.lazySet(field + MEAN_SQUARE, Double.doubleToRawLongBits(meanSquares[c]));
+      levels.lazySet(field + WEIGHTED_MEAN_SQUARE, Double.doubleToRawLongBits(weightedMeanSquare));
+    }
+    double totalMeanSquare = totalSquares / (weightedSquares[0].getLength() * blockSize);
+    publishedTotalMeanSquare.lazySet(Double.doubleToRawLongBits(totalMeanSquare));
+    publishedTimestamp.lazySet(Double.doubleToRawLongBits(timestamp));
+    publishedBlocks.lazySet(++blocks);
+    sequence.lazySet(sequence.get() + 1L); // even: the levels are complete
+  }
+  
+  /**
+   * Measures the peaks and the mean square of the block in the given window, of channel
+   * <code>c</code>. The peak and the sum of squares are taken in one pass, with four
+   * accumulators each so that the additions do not wait on one another.
+   */
+  private void measure(int c, float[] window) {
+    float p0 = 0.0f, p1 = 0.0f, p2 = 0.0f, p3 = 0.0f;
+    float s0 = 0.0f, s1 = 0.0f, s2 = 0.0f, s3 = 0.0f;
+    int i = HISTORY;
+    int end = HISTORY + blockSize;
+    for (; i <= end - 4; i += 4) {
+      float x0 = window[i], x1 = window[i+1], x2 = window[i+2], x3 = window[i+3];
+      s0 += x0 * x0; s1 += x1 * x1; s2 += x2 * x2; s3 += x3 * x3;
+      // not Math.max, whose handling of NaN and -0 costs branches in the loop
+      x0 = Math.abs(x0); p0 = (x0 > p0) ? x0 : p0;
+      x1 = Math.abs(x1); p1 = (x1 > p1) ? x1 : p1;
+      x2 = Math.abs(x2); p2 = (x2 > p2) ? x2 : p2;
+      x3 = Math.abs(x3); p3 = (x3 > p3) ? x3 : p3;
+    }
+    for (; i < end; i++) {
+      float x = window[i];
+      s0 += x * x;
+      x = Math.abs(x); p0 = (x > p0) ? x : p0;
+    }
+    float blockPeak = Math.max(Math.max(p0, p1), Math.max(p2, p3));
+    
+    peaks[c] = Math.max(blockPeak, peaks[c] * release);
+    float windowPeak = Math.max(blockPeak, tailPeaks[c]);
+    float tailPeak = 0.0f;
+    for (int k = end - HALF_TAPS; k < end; k++) tailPeak = Math.max(tailPeak, Math.abs(window[k]));
+    tailPeaks[c] = tailPeak;
+    truePeaks[c] = interpolatePeak(window, windowPeak, Math.max(blockPeak, truePeaks[c] * release));
+    maxTruePeaks[c] = Math.max(maxTruePeaks[c], truePeaks[c]);
+    meanSquares[c] = squares[c].add((double) s0 + s1 + s2 + s3) / (squares[c].getLength() * blockSize);
+  }
+  
+  /**
+   * Returns the true peak of the samples from <code>HALF_TAPS</code> to
+   * <code>HALF_TAPS + blockSize</code> of the window, which are those whose neighbours are all
+   * known, or the given floor if that is higher. Only the local maxima within 3dB of the floor are
+   * interpolated, since no others can raise the meter, and the window is not searched at all if
+   * its peak is lower than that.
+   */
+  private float interpolatePeak(float[] window, float windowPeak, float floor) {
+    int end = HALF_TAPS + blockSize;
+    float threshold = floor * CANDIDATE_THRESHOLD;
+    float truePeak = floor;
+    if (windowPeak < threshold) {
+      return truePeak; // no sample is a candidate
+    }
+    float[] hs = outerSums, hd = outerDifferences, hc = centreSums;
+    for (int n = HALF_TAPS; n < end; n++) {
+      float x = Math.abs(window[n]);
+      if (x < threshold) continue;
+      float before = Math.abs(window[n - 1]);
+      float after = Math.abs(window[n + 1]);
+      if (x < before || x < after) continue;
+      // a local maximum: the peak lies between it and its larger neighbour
+      truePeak = Math.max(truePeak, x);
+      int first = ((after >= before) ? n : n - 1) - HALF_TAPS + 1;
+      int last = first + 2 * HALF_TAPS - 1;
+      // the folded filters together, so that their sums do not wait on one another
+      float outerSum = 0.0f, outerDifference = 0.0f, centre = 0.0f;
+      for (int k = 0; k < HALF_TAPS; k++) {
+        float a = window[first + k];
+        float b = window[last - k];
+        outerSum += hs[k] * (a + b);
+        outerDifference += hd[k] * (a - b);
+        centre += hc[k] * (a + b);
+      }
+      // the larger of the outputs at 1/4 and 3/4 is |sum + difference| or |sum - difference|
+      float outer = Math.abs(outerSum) + Math.abs(outerDifference);
+      truePeak = Math.max(truePeak, Math.max(outer, Math.abs(centre)));
+    }
+    return truePeak;
+  }
+  
+  /**
+   * Filters the block of every channel with the K-weighting filter, and stores the sum of squares
+   * of each in <code>weightedSums</code>. The recursion of one channel alone would leave the
+   * processor waiting on the previous sample, so all channels are filtered together, one frame at
+   * a time. The shelf and the high pass are separate loops over the channels, which index every
+   * array by the channel alone, since that is the form of loop that the compiler vectorises.
+   */
+  private void kWeight() {
+    double[] s = shelf;
+    double b0 = s[0], b1 = s[1], b2 = s[2], a1 = s[3], a2 = s[4];
+    double c1 = highpass[3], c2 = highpass[4];
+    double[][] frames = this.frames;
+    double[] sums = weightedSums;
+    int n = sums.length;
+    double[] y0 = shelfOutputs[0], y1 = shelfOutputs[1], y2 = shelfOutputs[2];
+    double[] z0 = highpassStates[0], z1 = highpassStates[1], z2 = highpassStates[2];
+    for (int c = 0; c < n; c++) sums[c] = 0.0;
+    for (int start = HISTORY, end = HISTORY + blockSize; start < end; start += GATHERED_FRAMES) {
+      int count = Math.min(GATHERED_FRAMES, end - start);
+      gatherFrames(start, count);
+      for (int i = 2; i < 2 + count; i++) {
+        double[] x0 = frames[i], x1 = frames[i - 1], x2 = frames[i - 2];
+        // the oldest values are overwritten by the newest
+        double[] swap = y2; y2 = y1; y1 = y0; y0 = swap;
+        swap = z2; z2 = z1; z1 = z0; z0 = swap;
+        // the shelf in direct form I
+        for (int c = 0; c < n; c++) {
+          y0[c] = b0 * x0[c] + b1 * x1[c] + b2 * x2[c] - a1 * y1[c] - a2 * y2[c];
+        }
+        // the high pass in direct form II, whose numerator is 1, -2, 1
+        for (int c = 0; c < n; c++) {
+          double last = z1[c], older = z2[c];
+          double z = y0[c] - c1 * last - c2 * older;
+          z0[c] = z;
+          double v = z - 2.0 * last + older;
+          sums[c] += v * v;
+        }
+      }
+      // the last two frames precede the next ones
+      double[] swap = frames[0]; frames[0] = frames[count]; frames[count] = swap;
+      swap = frames[1]; frames[1] = frames[count + 1]; frames[count + 1] = swap;
+    }
+    shelfOutputs[0] = y0; shelfOutputs[1] = y1; shelfOutputs[2] = y2;
+    highpassStates[0] = z0; highpassStates[1] = z1; highpassStates[2] = z2;
+  }
+  
+  /**
+   * Filters the block of each channel in turn with the K-weighting filter, as {@link #kWeight()}
+   * does for all of them together. The last two inputs of each channel are kept in the first two
+   * <code>frames</code>, and the last two outputs of the shelf and states of the high pass in the
+   * second and third arrays of each.
+   */
+  private void kWeightEach() {
+    double[] s = shelf;
+    double b0 = s[0], b1 = s[1], b2 = s[2], a1 = s[3], a2 = s[4];
+    double c1 = highpass[3], c2 = highpass[4];
+    for (int c = 0; c < numChannels; c++) {
+      float[] window = windows[c];
+      double x1 = frames[1][c], x2 = frames[0][c];
+      double y1 = shelfOutputs[1][c], y2 = shelfOutputs[2][c];
+      double z1 = highpassStates[1][c], z2 = highpassStates[2][c];
+      double sum = 0.0;
+      for (int i = HISTORY, end = HISTORY + blockSize; i < end; i++) {
+        double x = window[i];
+        double y = b0 * x + b1 * x1 + b2 * x2 - a1 * y1 - a2 * y2;
+        double z = y - c1 * z1 - c2 * z2;
+        double v = z - 2.0 * z1 + z2;
+        sum += v * v;
+        x2 = x1; x1 = x;
+        y2 = y1; y1 = y;
+        z2 = z1; z1 = z;
+      }
+      frames[1][c] = x1; frames[0][c] = x2;
+      shelfOutputs[1][c] = y1; shelfOutputs[2][c] = y2;
+      highpassStates[1][c] = z1; highpassStates[2][c] = z2;
+      weightedSums[c] = sum;
+    }
+  }
+  
+  /** Copies the given number of frames from the windows into <code>frames</code>, after the first two. */
+  private void gatherFrames(int start, int count) {
+    float[][] windows = this.windows;
+    int n = numChannels;
+    if (count == GATHERED_FRAMES) {
+      double[] f0 = frames[2], f1 = frames[3], f2 = frames[4], f3 = frames[5];
+      for (int c = 0; c < n; c++) {
+        float[] window = windows[c];
+        f0[c] = window[start];
+        f1[c] = window[start + 1];
+        f2[c] = window[start + 2];
+        f3[c] = window[start + 3];
+      }
+    } else {
+      for (int k = 0; k < count; k++) {
+        double[] frame = frames[2 + k];
+        for (int c = 0; c < n; c++) {
+          frame[c] = windows[c][start + k];
+        }
+      }
+    }
+  }
+  
+  /** Meters the queue whenever the audio thread has written to it. */
+  private final class Worker implements Runnable {
+    @Override
+    public void run() {
+      while (isOpen) {
+        if (metered < written) {
+          meterQueued();
+        } else {
+          LockSupport.parkNanos(POLL_NANOS);
+        }
+      }
+    }
+  }
+  
+  private static float toLoudness(double meanSquare) {
+    return (float) (-0.691 + 10.0 * Math.log10(meanSquare));
+  }
+  
+  
+  // ------ Readers ------
+  
+  /**
+   * Copies the levels of the most recent block into the given snapshot. It never blocks the audio
+   * thread, and may be called from any number of threads at once.
+   * @throws IllegalArgumentException  If the snapshot has a different number of channels.
+   */
+  public void read(MeterSnapshot snapshot) {
+    if (snapshot.getNumChannels() != numChannels) {
+      throw new IllegalArgumentException("The snapshot has " + snapshot.getNumChannels() +
+          " channels, but the meter has " + numChannels + ".");
+    }
+    while (true) {
+      long before = sequence.get();
+      if ((before & 1L) != 0L) {
+        Thread.yield(); // a block is being published
+        continue;
+      }
+      for (int c = 0, field = 0; c < numChannels; c++, field += NUM_FIELDS) {
+        snapshot.peak[c] = Float.intBitsToFloat((int) levels.get(field + PEAK));
+        snapshot.truePeak[c] = Float.intBitsToFloat((int) levels.get(field + TRUE_PEAK));
+        snapshot.maxTruePeak[c] = Float.intBitsToFloat((int) levels.get(field + MAX_TRUE_PEAK));
+        snapshot.rms[c] = (float) Math.sqrt(Double.longBitsToDouble(levels.get(field + MEAN_SQUARE)));
+        snapshot.loudness[c] = toLoudness(Double.longBitsToDouble(levels.get(field + WEIGHTED_MEAN_SQUARE)));
+      }
+      snapshot.totalLoudness = toLoudness(Double.longBitsToDouble(publishedTotalMeanSquare.get()));
+      snapshot.timestamp = Double.longBitsToDouble(publishedTimestamp.get());
+      snapshot.blocks = publishedBlocks.get();
+      if (sequence.get() == before) return;
+    }
+  }
+  
+  
+  // ------ Filter Design ------
+  
+  /**
+   * Creates the interpolation filters for the fractional positions 1/4, 2/4 and 3/4 after a
+   * sample, from the <code>2 * HALF_TAPS</code> samples around it. They are Kaiser-windowed sincs,
+   * normalised to unity gain at DC.
+   */
+  private static float[][] createPhases() {
+    float[][] phases = new float[OVERSAMPLING - 1][2 * HALF_TAPS];
+    double beta = 5.0;
+    double i0Beta = SampleRateConverter.besselI0(beta);
+    for (int p = 0; p < phases.length; p++) {
+      double fraction = (p + 1) / (double) OVERSAMPLING;
+      double sum = 0.0;
+      for (int k = 0; k < 2 * HALF_TAPS; k++) {
+        double t = (k - HALF_TAPS + 1) - fraction; // the distance of the sample from the point
+        double r = t / (HALF_TAPS + 0.5);
+        double window = SampleRateConverter.besselI0(beta * Math.sqrt(Math.max(0.0, 1.0 - r * r))) / i0Beta;
+        double sinc = (t == 0.0) ? 1.0 : Math.sin(Math.PI * t) / (Math.PI * t);
+        phases[p][k] = (float) (sinc * window);
+        sum += phases[p][k];
+      }
+      for (int k = 0; k < 2 * HALF_TAPS; k++) {
+        phases[p][k] /= sum;
+      }
+    }
+    return phases;
+  }
+  
+  /** The high shelf of the K-weighting filter, for any sample rate. */
+  private static double[] createShelf(float sampleRate) {
+    double f0 = 1681.974450955533;
+    double gain = 3.999843853973347;
+    double q = 0.7071752369554196;
+    double k = Math.tan(Math.PI * f0 / sampleRate);
+    double vh = Math.pow(10.0, gain / 20.0);
+    double vb = Math.pow(vh, 0.4996667741545416);
+    double a0 = 1.0 + k / q + k * k;
+    return new double[] {
+      (vh + vb * k / q + k * k) / a0, 2.0 * (k * k - vh) / a0, (vh - vb * k / q + k * k) / a0,
+      2.0 * (k * k - 1.0) / a0, (1.0 - k / q + k * k) / a0
+    };
+  }
+  
+  /** The high pass of the K-weighting filter, for any sample rate. */
+  private static double[] createHighpass(float sampleRate) {
+    double f0 = 38.13547087602444;
+    double q = 0.5003270373238773;
+    double k = Math.tan(Math.PI * f0 / sampleRate);
+    double a0 = 1.0 + k / q + k * k;
+    return new double[] {1.0, -2.0, 1.0, 2.0 * (k * k - 1.0) / a0, (1.0 - k / q + k * k) / a0};
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio;
+
+/**
+ * A <code>MeterSnapshot</code> holds the levels of all channels of a {@link LevelMeter} as they
+ * were at the end of one block. It is filled by {@link LevelMeter#read(MeterSnapshot)} and may be
+ * reused, so that polling a meter does not allocate. Levels are linear amplitudes, where 1.0 is
+ * full scale, and loudness is in LUFS.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class MeterSnapshot {
+  
+  final float[] peak;
+  final float[] truePeak;
+  final float[] maxTruePeak;
+  final float[] rms;
+  final float[] loudness;
+  float totalLoudness;
+  double timestamp;
+  long blocks;
+  
+  /** Creates a snapshot for the given number of channels. */
+  public MeterSnapshot(int numChannels) {
+    peak = new float[numChannels];
+    truePeak = new float[numChannels];
+    maxTruePeak = new float[numChannels];
+    rms = new float[numChannels];
+    loudness = new float[numChannels];
+  }
+  
+  public int getNumChannels() {
+    return peak.length;
+  }
+  
+  /** Returns the sample timestamp of the block at whose end the snapshot was taken. */
+  public double getTimestamp() {
+    return timestamp;
+  }
+  
+  /** Returns the number of blocks metered when the snapshot was taken. Zero if none has been. */
+  public long getBlocks() {
+    return blocks;
+  }
+  
+  /** Returns the sample peak, which falls back at the release rate of the meter. */
+  public float getPeak(int channel) {
+    return peak[channel];
+  }
+  
+  /**
+   * Returns the true peak, i.e. the peak of the signal reconstructed between the samples, which
+   * falls back at the release rate of the meter.
+   */
+  public float getTruePeak(int channel) {
+    return truePeak[channel];
+  }
+  
+  /** Returns the largest true peak since the meter was created or last reset. */
+  public float getMaxTruePeak(int channel) {
+    return maxTruePeak[channel];
+  }
+  
+  /** Returns the RMS level over the integration time of the meter. */
+  public float getRms(int channel) {
+    return rms[channel];
+  }
+  
+  /** Returns the momentary loudness of the channel alone, over the last 400ms, in LUFS. */
+  public float getLoudness(int channel) {
+    return loudness[channel];
+  }
+  
+  /**
+   * Returns the momentary loudness of all channels together, over the last 400ms, in LUFS. All
+   * channels are weighted equally.
+   */
+  public float getTotalLoudness() {
+    return totalLoudness;
+  }
+  
+  /** Converts a linear level to decibels relative to full scale. */
+  public static float toDecibels(float level) {
+    return (float) (20.0 * Math.log10(level));
+  }
+}
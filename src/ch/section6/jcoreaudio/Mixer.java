@@ -0,0 +1,746 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package ch.section6.jcoreaudio;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <code>Mixer</code> mixes a large number of voices into the output channels, through optional
+ * sub-buses. It is called from the output callback, and renders one whole block at a time:
+ * <pre>
+ * Mixer mixer = new Mixer(2, jca.getBlockSize(), jca.getSampleRate(), 4096, 8, 0);
+ * ...
+ * // on any thread
+ * long voice = mixer.play(source, DRUMS, 0, 0.8f, -0.5f);
+ * mixer.setGain(voice, 0.0f, 4800);
+ * ...
+ * // in the output callback
+ * mixer.render(outputs);
+ * </pre>
+ * Each voice is a {@link Source}, which renders a block of mono samples into a contiguous
+ * scratch array. The mixer adds it to the channels of its bus with its gain and pan, and each
+ * sub-bus is added to the master bus with the gain of the bus. The buses are also contiguous
+ * arrays, so that all of the mixing is done by the vectorisable loops of {@link SampleKernels},
+ * and each channel of the master bus is copied into the output buffer once.<br/>
+ * <br/>
+ * The voices are preallocated. {@link #play(Source, int, int, float, float)} claims a free one,
+ * and the voice is freed again when its source ends or when it has been stopped. A voice is
+ * identified by a <code>long</code> which includes a generation, so that a command for a voice
+ * which has ended is ignored, even if its slot has been reused. Gains and pans are changed with
+ * linear ramps which reach their targets on the exact frame. The commands are passed to the audio
+ * thread in a lock-free ring as in {@link ParameterQueue}, and applied at the start of the next
+ * block. Pans are equal-power, between a voice's channel and the next one.<br/>
+ * <br/>
+ * With worker threads, the sub-buses are rendered in parallel by the workers and the audio thread,
+ * which then waits for the buses still being rendered and mixes them into the master bus. The
+ * workers spin for a short while after each block so that they are ready for the next, and park
+ * otherwise. The audio thread waits for at most half of the block period. After that it renders
+ * any bus which is still free itself, and leaves any which a stalled worker is still rendering out
+ * of the block, which is counted as late. Such a bus is mixed again once it has been rendered, and
+ * commands for its voices wait until then. A block which is not complete within its period is
+ * counted as a deadline miss. The voices of the master bus are always rendered by the audio
+ * thread, and with no workers, so are all the buses.<br/>
+ * <br/>
+ * Neither the audio thread nor the workers lock or allocate.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public final class Mixer {
+  
+  /** The source of the samples of a voice. */
+  public interface Source {
+    /**
+     * Renders the next block of the voice into the buffer, from index zero. Called on the audio
+     * thread or on a worker of the mixer, so it may neither lock nor allocate.
+     * @return  <code>false</code> if the voice has ended, in which case the frames after its end
+     *     must be silent.
+     */
+    boolean render(float[] buffer, int numFrames);
+  }
+  
+  /** The index of the master bus, into which the sub-buses are mixed. */
+  public static final int MASTER = -1;
+  
+  /** How long an idle worker spins before it parks, as a fraction of the block period. */
+  private static final double SPIN_PERIODS = 2.0;
+  
+  /**
+   * How long the audio thread waits for the workers to render the sub-buses, from the start of the
+   * block, as a fraction of the block period.
+   */
+  private static final double WAIT_PERIODS = 0.5;
+  
+  /** How long a parked worker waits before checking for work again. */
+  private static final long POLL_NANOS = 1000000L;
+  
+  // the commands
+  private static final int START = 0;
+  private static final int GAIN = 1;
+  private static final int PAN = 2;
+  private static final int STOP = 3;
+  private static final int BUS_GAIN = 4;
+  
+  // the states of a voice
+  private static final int FREE = 0;
+  private static final int CLAIMED = 1;
+  private static final int PLAYING = 2;
+  
+  private final int numChannels;
+  private final int blockSize;
+  private final float sampleRate;
+  private final long periodNanos;
+  
+  private final Voice[] voices;
+  private final AtomicInteger nextVoice;
+  
+  /** The sub-buses, followed by the master bus. */
+  private final Bus[] buses;
+  private final Bus master;
+  
+  // the command slots
+  private final MpscRing ring;
+  private final int[] commandTypes;
+  private final int[] commandTargets;
+  private final int[] commandGenerations;
+  private final float[] commandValues;
+  private final int[] commandFrames;
+  
+  // the rendering of the sub-buses in parallel
+  private final Worker[] workers;
+  private final Thread[] threads;
+  private volatile boolean isOpen;
+  private volatile long cycle;
+  
+  /** The scratch array of the voices rendered by the audio thread. */
+  private final float[] buffer;
+  
+  private final AtomicLong activeVoices;
+  private final AtomicLong rejectedVoices;
+  private final AtomicLong droppedCommands;
+  private final AtomicLong deadlineMisses;
+  private final AtomicLong lateBlocks;
+  private final AtomicLong renderNanos;
+  
+  /**
+   * @param numChannels  The number of channels of every bus.
+   * @param maxVoices  The number of voices which may play at once.
+   * @param numBuses  The number of sub-buses, which may be zero.
+   * @param numThreads  The number of worker threads which render the sub-buses. If zero, they are
+   *     rendered by the audio thread.
+   */
+  public Mixer(int numChannels, int blockSize, float sampleRate, int maxVoices, int numBuses,
+      int numThreads) {
+    if (numChannels <= 0 || blockSize <= 0 || sampleRate <= 0.0f || maxVoices <= 0) {
+      throw new IllegalArgumentException("The number of channels, block size, sample rate and " +
+          "number of voices must be positive.");
+    }
+    if (numBuses < 0 || numThreads < 0) {
+      throw new IllegalArgumentException("The number of buses and threads may not be negative.");
+    }
+    this.numChannels = numChannels;
+    this.blockSize = blockSize;
+    this.sampleRate = sampleRate;
+    this.periodNanos = (long) (1.0e9 * blockSize / sampleRate);
+    
+    voices = new Voice[maxVoices];
+    for (int i = 0; i < maxVoices; i++) {
+      voices[i] = new Voice(i);
+    }
+    nextVoice = new AtomicInteger();
+    buses = new Bus[numBuses + 1];
+    for (int i = 0; i < buses.length; i++) {
+      buses[i] = new Bus();
+    }
+    master = buses[numBuses];
+    
+    ring = new MpscRing(Math.max(1024, 2 * maxVoices));
+    int capacity = ring.getCapacity();
+    commandTypes = new int[capacity];
+    commandTargets = new int[capacity];
+    commandGenerations = new int[capacity];
+    commandValues = new float[capacity];
+    commandFrames = new int[capacity];
+    
+    buffer = new float[blockSize];
+    activeVoices = new AtomicLong();
+    rejectedVoices = new AtomicLong();
+    droppedCommands = new AtomicLong();
+    deadlineMisses = new AtomicLong();
+    lateBlocks = new AtomicLong();
+    renderNanos = new AtomicLong();
+    
+    isOpen = true;
+    int n = (numBuses > 0) ? numThreads : 0;
+    workers = new Worker[n];
+    threads = new Thread[n];
+    for (int i = 0; i < n; i++) {
+      workers[i] = new Worker();
+      threads[i] = new Thread(workers[i], "JCoreAudio Mixer " + i);
+      threads[i].setDaemon(true);
+      threads[i].setPriority(Thread.MAX_PRIORITY);
+      threads[i].start();
+    }
+  }
+  
+  public int getNumChannels() {
+    return numChannels;
+  }
+  
+  public int getBlockSize() {
+    return blockSize;
+  }
+  
+  public float getSampleRate() {
+    return sampleRate;
+  }
+  
+  /** Returns the number of voices which may play at once. */
+  public int getMaxVoices() {
+    return voices.length;
+  }
+  
+  /** Returns the number of sub-buses. */
+  public int getNumBuses() {
+    return buses.length - 1;
+  }
+  
+  /** Returns the number of worker threads. */
+  public int getNumThreads() {
+    return threads.length;
+  }
+  
+  /** Returns the number of voices which were playing in the last block. */
+  public long getActiveVoices() {
+    return activeVoices.get();
+  }
+  
+  /** Returns the number of calls to <code>play()</code> which failed because no voice was free. */
+  public long getRejectedVoices() {
+    return rejectedVoices.get();
+  }
+  
+  /** Returns the number of commands which were dropped because the command ring was full. */
+  public long getDroppedCommands() {
+    return droppedCommands.get();
+  }
+  
+  /** Returns the number of blocks whose rendering took longer than the block period. */
+  public long getDeadlineMisses() {
+    return deadlineMisses.get();
+  }
+  
+  /**
+   * Returns the number of blocks from which a sub-bus was left out, because a worker was still
+   * rendering it when the audio thread stopped waiting.
+   */
+  public long getLateBlocks() {
+    return lateBlocks.get();
+  }
+  
+  /** Returns the total time spent in <code>render()</code>, in nanoseconds. */
+  public long getRenderNanos() {
+    return renderNanos.get();
+  }
+  
+  /** Stops the worker threads. The mixer may no longer be used. */
+  public void close() {
+    if (!isOpen) return;
+    isOpen = false;
+    for (Thread thread : threads) {
+      LockSupport.unpark(thread);
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+  
+  
+  // ------ Control ------
+  
+  /**
+   * Starts a voice at the next block. May be called from any thread.
+   * @param source  The source of the samples of the voice.
+   * @param bus  The sub-bus into which the voice is mixed, or {@link #MASTER}.
+   * @param channel  The channel of the bus at the left of the pan. The voice is panned between it
+   *     and the next channel, or is only played on it if it is the last channel.
+   * @param gain  The initial gain.
+   * @param pan  The initial pan, from -1 (left) to 1 (right).
+   * @return  The voice, or -1 if no voice was free or the command ring was full.
+   */
+  public long play(Source source, int bus, int channel, float gain, float pan) {
+    if (bus != MASTER && (bus < 0 || bus >= buses.length - 1)) {
+      throw new IllegalArgumentException("The bus " + bus + " does not exist.");
+    }
+    if (channel < 0 || channel >= numChannels) {
+      throw new IllegalArgumentException("The channel " + channel + " does not exist.");
+    }
+    Voice voice = claimVoice();
+    if (voice == null) {
+      rejectedVoices.incrementAndGet();
+      return -1L;
+    }
+    int generation = voice.generation + 1;
+    voice.generation = generation;
+    voice.source = source;
+    voice.bus = (bus == MASTER) ? master : buses[bus];
+    voice.channel = channel;
+    voice.initialGain = gain;
+    voice.initialPan = pan;
+    if (!send(START, voice.index, generation, 0.0f, 0)) {
+      voice.source = null;
+      voice.state.set(FREE);
+      return -1L;
+    }
+    return ((long) generation << 32) | voice.index;
+  }
+  
+  /** Claims a free voice, searching from where the last search ended. */
+  private Voice claimVoice() {
+    int start = nextVoice.get();
+    for (int i = 0; i < voices.length; i++) {
+      int index = start + i;
+      if (index >= voices.length) index -= voices.length;
+      Voice voice = voices[index];
+      if (voice.state.get() == FREE && voice.state.compareAndSet(FREE, CLAIMED)) {
+        nextVoice.lazySet((index + 1 == voices.length) ? 0 : index + 1);
+        return voice;
+      }
+    }
+    return null;
+  }
+  
+  /**
+   * Ramps the gain of a voice linearly to the given value, which is reached <code>numFrames</code>
+   * after the start of the next block. May be called from any thread.
+   * @return  <code>false</code> if the command ring was full.
+   */
+  public boolean setGain(long voice, float gain, int numFrames) {
+    return send(GAIN, voice, gain, numFrames);
+  }
+  
+  /**
+   * Ramps the pan of a voice linearly to the given value, from -1 (left) to 1 (right). May be
+   * called from any thread.
+   * @return  <code>false</code> if the command ring was full.
+   */
+  public boolean setPan(long voice, float pan, int numFrames) {
+    return send(PAN, voice, pan, numFrames);
+  }
+  
+  /**
+   * Fades a voice out over the given number of frames, after which it is freed. May be called from
+   * any thread.
+   * @return  <code>false</code> if the command ring was full.
+   */
+  public boolean stop(long voice, int numFrames) {
+    return send(STOP, voice, 0.0f, numFrames);
+  }
+  
+  /**
+   * Ramps the gain of a bus linearly to the given value. The gain of the master bus is applied to
+   * the output. May be called from any thread.
+   * @param bus  The sub-bus, or {@link #MASTER}.
+   * @return  <code>false</code> if the command ring was full.
+   */
+  public boolean setBusGain(int bus, float gain, int numFrames) {
+    if (bus != MASTER && (bus < 0 || bus >= buses.length - 1)) {
+      throw new IllegalArgumentException("The bus " + bus + " does not exist.");
+    }
+    return send(BUS_GAIN, (bus == MASTER) ? buses.length - 1 : bus, 0, gain, numFrames);
+  }
+  
+  /** Indicates if the given voice is still playing, or about to start. May be called from any thread. */
+  public boolean isPlaying(long voice) {
+    int index = (int) voice;
+    if (voice < 0L || index >= voices.length) return false;
+    Voice v = voices[index];
+    return v.generation == (int) (voice >>> 32) && v.state.get() != FREE;
+  }
+  
+  private boolean send(int type, long voice, float value, int numFrames) {
+    if (numFrames < 0) {
+      throw new IllegalArgumentException("The length of the ramp may not be negative: " + numFrames);
+    }
+    int index = (int) voice;
+    if (voice < 0L || index >= voices.length) return true; // no such voice, as if it had ended
+    return send(type, index, (int) (voice >>> 32), value, numFrames);
+  }
+  
+  private boolean send(int type, int target, int generation, float value, int numFrames) {
+    long index = ring.claim();
+    if (index < 0L) {
+      droppedCommands.incrementAndGet();
+      return false;
+    }
+    int slot = ring.slot(index);
+    commandTypes[slot] = type;
+    commandTargets[slot] = target;
+    commandGenerations[slot] = generation;
+    commandValues[slot] = value;
+    commandFrames[slot] = numFrames;
+    ring.publish(index);
+    return true;
+  }
+  
+  
+  // ------ Audio Thread ------
+  
+  /**
+   * Renders one block of all voices and writes the master bus into the given channels. Called on
+   * the audio thread. Channels beyond those of the mixer are not written.
+   */
+  public void render(AudioChannels outputs) {
+    long startNanos = System.nanoTime();
+    applyCommands();
+    
+    int numBuses = buses.length - 1;
+    if (workers.length > 0) {
+      // hand the sub-buses to the workers, and render the master bus and any sub-buses left here
+      long c = cycle + 1L;
+      cycle = c;
+      for (int i = 0; i < workers.length; i++) {
+        if (workers[i].isParked) LockSupport.unpark(threads[i]);
+      }
+      renderBus(master, buffer);
+      renderBuses(c, buffer);
+      long deadline = startNanos + (long) (WAIT_PERIODS * periodNanos);
+      while (!isRendered(c)) {
+        if (System.nanoTime() - deadline > 0L) {
+          // a worker has stalled, so render any bus which it has not begun, and leave out the rest
+          renderBuses(c, buffer);
+          if (!isRendered(c)) lateBlocks.lazySet(lateBlocks.get() + 1L);
+          break;
+        }
+        Thread.yield(); // only while the last sub-buses are being rendered
+      }
+    } else {
+      renderBus(master, buffer);
+      for (int b = 0; b < numBuses; b++) {
+        renderBus(buses[b], buffer);
+      }
+    }
+    
+    long voiceCount = master.numVoices;
+    for (int b = 0; b < numBuses; b++) {
+      Bus bus = buses[b];
+      if (workers.length > 0 && bus.state.get() != (cycle << 1)) {
+        bus.gain.advance(blockSize); // the bus is late, and is left out of this block
+        continue;
+      }
+      voiceCount += bus.numVoices;
+      int ramp = Math.min(blockSize, bus.gain.remaining);
+      float startGain = bus.gain.value;
+      float endGain = bus.gain.valueAt(ramp);
+      for (int c = 0; c < numChannels; c++) {
+        mix(bus.channels[c], master.channels[c], startGain, endGain, ramp);
+      }
+      bus.gain.advance(blockSize);
+    }
+    
+    int ramp = Math.min(blockSize, master.gain.remaining);
+    float startGain = master.gain.value;
+    float endGain = master.gain.valueAt(ramp);
+    int available = Math.min(numChannels, outputs.getNumChannels());
+    for (int c = 0; c < available; c++) {
+      float[] channel = master.channels[c];
+      if (ramp > 0) SampleKernels.scale(channel, 0, startGain, endGain, ramp);
+      if (endGain != 1.0f) SampleKernels.scale(channel, ramp, endGain, endGain, blockSize - ramp);
+      outputs.write(c, channel, 0);
+    }
+    master.gain.advance(blockSize);
+    
+    activeVoices.lazySet(voiceCount);
+    long nanos = System.nanoTime() - startNanos;
+    renderNanos.lazySet(renderNanos.get() + nanos);
+    if (nanos > periodNanos) deadlineMisses.lazySet(deadlineMisses.get() + 1L);
+  }
+  
+  private void applyCommands() {
+    for (int applied = 0, capacity = ring.getCapacity(); applied < capacity; applied++) {
+      int slot = ring.peek();
+      if (slot < 0) break; // empty, or not yet published
+      int target = commandTargets[slot];
+      int generation = commandGenerations[slot];
+      float value = commandValues[slot];
+      int numFrames = commandFrames[slot];
+      if (commandTypes[slot] != BUS_GAIN && isRendering(voices[target].bus)) {
+        break; // the voice's bus is still being rendered late, so wait until the next block
+      }
+      switch (commandTypes[slot]) {
+        case START: start(voices[target]); break;
+        case BUS_GAIN: buses[target].gain.set(value, numFrames); break;
+        default: {
+          Voice voice = voices[target];
+          if (voice.generation == generation && voice.state.get() == PLAYING && !voice.isStopping) {
+            if (commandTypes[slot] == PAN) {
+              voice.pan.set(Math.max(-1.0f, Math.min(1.0f, value)), numFrames);
+            } else {
+              voice.gain.set(value, numFrames);
+              voice.isStopping = (commandTypes[slot] == STOP);
+            }
+            voice.updateChannelGains(); // in case the change is immediate
+          }
+        }
+      }
+      ring.release();
+    }
+  }
+  
+  private void start(Voice voice) {
+    Bus bus = voice.bus;
+    if (bus.numVoices == bus.voices.length) {
+      voice.source = null;
+      voice.state.set(FREE);
+      return;
+    }
+    voice.gain.set(voice.initialGain, 0);
+    voice.pan.set(Math.max(-1.0f, Math.min(1.0f, voice.initialPan)), 0);
+    voice.isStopping = false;
+    voice.updateChannelGains();
+    voice.state.set(PLAYING);
+    bus.voices[bus.numVoices++] = voice;
+  }
+  
+  /** Renders each sub-bus which is neither rendered for the given cycle nor being rendered. */
+  private void renderBuses(long cycle, float[] buffer) {
+    for (int b = 0; b < buses.length - 1; b++) {
+      AtomicLong state = buses[b].state;
+      long s = state.get();
+      if ((s & 1L) != 0L || (s >>> 1) >= cycle || !state.compareAndSet(s, (cycle << 1) | 1L)) {
+        continue;
+      }
+      renderBus(buses[b], buffer);
+      // a bus which is finished late counts as rendered for the current cycle, so that no renderer
+      // which is still behind can claim it for a cycle which has already been mixed
+      state.set(Math.max(cycle, this.cycle) << 1);
+    }
+  }
+  
+  /** Indicates if every sub-bus has been rendered for the given cycle. */
+  private boolean isRendered(long cycle) {
+    for (int b = 0; b < buses.length - 1; b++) {
+      if (buses[b].state.get() != (cycle << 1)) return false;
+    }
+    return true;
+  }
+  
+  /** Indicates if a bus is being rendered by a worker which is late. Called by the audio thread. */
+  private boolean isRendering(Bus bus) {
+    return bus != null && (bus.state.get() & 1L) != 0L;
+  }
+  
+  /** Renders the voices of a bus into its channels, and frees those which have ended. */
+  private void renderBus(Bus bus, float[] buffer) {
+    for (float[] channel : bus.channels) {
+      Arrays.fill(channel, 0.0f);
+    }
+    Voice[] active = bus.voices;
+    for (int i = 0; i < bus.numVoices; ) {
+      Voice voice = active[i];
+      boolean isPlaying = !(voice.isStopping && voice.gain.remaining == 0);
+      if (isPlaying) {
+        isPlaying = voice.source.render(buffer, blockSize);
+        mixVoice(voice, buffer, bus.channels);
+      }
+      if (isPlaying) {
+        i++;
+      } else {
+        active[i] = active[--bus.numVoices];
+        active[bus.numVoices] = null;
+        voice.source = null;
+        voice.state.set(FREE);
+      }
+    }
+  }
+  
+  /** Adds a rendered block of a voice to the channels of its bus, and advances its ramps. */
+  private void mixVoice(Voice voice, float[] buffer, float[][] channels) {
+    int ramp = Math.min(blockSize, Math.max(voice.gain.remaining, voice.pan.remaining));
+    float left = voice.left;
+    float right = voice.right;
+    if (ramp > 0) {
+      // the gains of the channels at the end of the ramp, or of the block
+      voice.gain.advance(ramp);
+      voice.pan.advance(ramp);
+      voice.updateChannelGains();
+      voice.gain.advance(blockSize - ramp);
+      voice.pan.advance(blockSize - ramp);
+    }
+    int c = voice.channel;
+    mix(buffer, channels[c], left, voice.left, ramp);
+    if (c + 1 < numChannels) {
+      mix(buffer, channels[c + 1], right, voice.right, ramp);
+    }
+  }
+  
+  /**
+   * Adds a block to a channel of a bus, with a gain which ramps from <code>startGain</code> to
+   * <code>endGain</code> over the first <code>ramp</code> frames and then stays constant.
+   */
+  private void mix(float[] source, float[] target, float startGain, float endGain, int ramp) {
+    if (ramp > 0) {
+      SampleKernels.mix(source, 0, target, 0, startGain, endGain, ramp);
+    }
+    if (ramp < blockSize && endGain != 0.0f) {
+      SampleKernels.mix(source, ramp, target, ramp, endGain, endGain, blockSize - ramp);
+    }
+  }
+  
+  
+  // ------ Voices and Buses ------
+  
+  /** A value which changes linearly over a number of frames, as in <code>ParameterQueue</code>. */
+  private static final class Ramp {
+    float value;
+    float target;
+    float increment;
+    int remaining;
+    
+    void set(float target, int numFrames) {
+      this.target = target;
+      if (numFrames == 0) {
+        value = target;
+        increment = 0.0f;
+        remaining = 0;
+      } else {
+        increment = (target - value) / numFrames;
+        remaining = numFrames;
+      }
+    }
+    
+    float valueAt(int frame) {
+      return (frame >= remaining) ? target : value + increment * frame;
+    }
+    
+    void advance(int numFrames) {
+      if (remaining > numFrames) {
+        value += increment * numFrames;
+        remaining -= numFrames;
+      } else {
+        value = target;
+        increment = 0.0f;
+        remaining = 0;
+      }
+    }
+  }
+  
+  private final class Voice {
+    final int index;
+    final AtomicInteger state;
+    
+    /** Incremented each time that the voice is claimed. Only written by the claiming thread. */
+    volatile int generation;
+    
+    // written by the claiming thread before the voice is started
+    Source source;
+    Bus bus;
+    int channel;
+    float initialGain;
+    float initialPan;
+    
+    // only used by the audio thread, or by the renderer of the bus
+    final Ramp gain;
+    final Ramp pan;
+    boolean isStopping;
+    
+    /** The gains of the two channels at the current frame. */
+    float left;
+    float right;
+    
+    Voice(int index) {
+      this.index = index;
+      state = new AtomicInteger(FREE);
+      gain = new Ramp();
+      pan = new Ramp();
+    }
+    
+    /** Computes the gains of the channels from the current gain and pan, with an equal-power law. */
+    void updateChannelGains() {
+      if (channel + 1 < numChannels) {
+        double angle = (pan.value + 1.0) * Math.PI / 4.0;
+        left = gain.value * (float) Math.cos(angle);
+        right = gain.value * (float) Math.sin(angle);
+      } else {
+        left = gain.value;
+        right = 0.0f;
+      }
+    }
+  }
+  
+  private final class Bus {
+    /** The mix of the bus, one contiguous array per channel. */
+    final float[][] channels;
+    
+    /** The voices which are playing on the bus. Only used by the renderer of the bus. */
+    final Voice[] voices;
+    int numVoices;
+    
+    final Ramp gain;
+    
+    /**
+     * The last cycle for which the bus was rendered, times two, plus one while the bus is being
+     * rendered. Claimed by a renderer with a compare-and-set.
+     */
+    final AtomicLong state;
+    
+    Bus() {
+      channels = new float[numChannels][blockSize];
+      state = new AtomicLong();
+      voices = new Voice[Mixer.this.voices.length];
+      gain = new Ramp();
+      gain.set(1.0f, 0);
+    }
+  }
+  
+  /** Renders sub-buses whenever the audio thread begins a cycle. */
+  private final class Worker implements Runnable {
+    final float[] buffer = new float[blockSize];
+    volatile boolean isParked;
+    
+    @Override
+    public void run() {
+      long spinNanos = (long) (SPIN_PERIODS * periodNanos);
+      long seen = 0L;
+      long idleNanos = System.nanoTime();
+      while (isOpen) {
+        long c = cycle;
+        if (c != seen) {
+          seen = c;
+          renderBuses(c, buffer);
+          idleNanos = System.nanoTime();
+        } else if (System.nanoTime() - idleNanos < spinNanos) {
+          Thread.yield();
+        } else {
+          isParked = true;
+          if (cycle == seen && isOpen) LockSupport.parkNanos(POLL_NANOS);
+          isParked = false;
+          idleNanos = System.nanoTime();
+        }
+      }
+    }
+  }
+}
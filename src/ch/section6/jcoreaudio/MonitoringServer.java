@@ -0,0 +1,639 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package ch.section6.jcoreaudio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <code>MonitoringServer</code> streams selected input and output <code>AudioLet</code>s over TCP,
+ * so that they can be monitored live from other machines. Any number of clients may connect, and
+ * each receives the same stream of frames.
+ * <pre>
+ * MonitoringServer server = new MonitoringServer(new InetSocketAddress(7000));
+ * server.addLet(microphoneLet);
+ * server.addLet(speakerLet);
+ * server.start();
+ * ...
+ * server.stop();
+ * </pre>
+ * The server is registered as a tap with <code>JCoreAudio</code>. On the audio thread, it takes a
+ * free frame from a pool of direct buffers, copies the block of the selected channels into it and
+ * hands it to the server thread, through wait-free single-producer/single-consumer queues of frame
+ * indices. If no frame is free, the block is dropped and counted rather than the audio thread
+ * waiting. The input and output callbacks may be made on different threads, so the input lets and
+ * the output lets are streamed in separate frames. Each direction has its own pool of frames,
+ * sequence numbers and pair of queues, and only its own callback takes frames from them. The server thread runs a selector, which accepts clients and sends each frame to every
+ * client without copying it again. A client which has fallen behind is sent all of its pending
+ * frames with one gathering write.<br/>
+ * <br/>
+ * A client which has {@link #MAX_PENDING_FRAMES} frames waiting is slow. It is then sent only
+ * every second block, and each time it falls behind again the interval is doubled. Once it has
+ * kept up for a second the interval is halved again. A client which falls behind while it is sent
+ * only every {@link #MAX_DECIMATION}th block is disconnected. Slow clients therefore never hold
+ * more than a bounded number of frames, and never apply backpressure to the audio thread.<br/>
+ * <br/>
+ * Each frame is self-describing, with a little-endian header:
+ * <pre>
+ *  0  int     length of the frame in bytes, including this field
+ *  4  int     magic, 0x5341434A ("JCAS")
+ *  8  long    sequence number of the block within its direction. The numbers of blocks which were
+ *             not sent are skipped.
+ * 16  double  timestamp of the block
+ * 24  float   sample rate in Hz
+ * 28  int     number of channels of the input or output lets, in the order in which they were added
+ * 32  int     number of frames per channel
+ * 36  int     flags, 1 if the frame holds the input lets and 0 if it holds the output lets
+ * 40  float[] the samples of each channel in turn
+ * </pre>
+ * Clients need not send anything; anything they send is ignored.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class MonitoringServer {
+  
+  /** The number of frames which may be waiting for a client before it is considered slow. */
+  public static final int MAX_PENDING_FRAMES = 16;
+  
+  /** The largest interval between the blocks sent to a slow client before it is disconnected. */
+  public static final int MAX_DECIMATION = 16;
+  
+  /** The default number of frames in the pool. */
+  public static final int DEFAULT_POOL_SIZE = 64;
+  
+  static final int MAGIC = 0x5341434A;
+  static final int HEADER_SIZE = 40;
+  static final int FLAG_INPUT = 1;
+  
+  /** The longest time for which the server thread waits for the network before it checks for frames. */
+  private static final long POLL_MILLIS = 1L;
+  
+  private final InetSocketAddress address;
+  private final List<AudioLet> lets;
+  private int poolSize;
+  
+  // the state of the current session
+  private Tap tap;
+  private Thread serverThread;
+  private ServerSocketChannel serverChannel;
+  private Selector selector;
+  private volatile boolean isRunning;
+  private volatile IOException error;
+  private volatile int numClients;
+  private final AtomicLong sentBytes;
+  private final AtomicLong skippedBlocks;
+  private final AtomicLong disconnectedClients;
+  
+  /** @param address  The address at which to accept clients. A port of zero chooses a free port. */
+  public MonitoringServer(InetSocketAddress address) {
+    if (address == null) {
+      throw new IllegalArgumentException("The address may not be null.");
+    }
+    this.address = address;
+    lets = new ArrayList<AudioLet>();
+    poolSize = DEFAULT_POOL_SIZE;
+    sentBytes = new AtomicLong();
+    skippedBlocks = new AtomicLong();
+    disconnectedClients = new AtomicLong();
+  }
+  
+  /**
+   * Adds all channels of the given input or output let. The channels appear in the frames of their
+   * direction in the order in which their lets were added.
+   * @throws IllegalStateException  If the server is running.
+   */
+  public synchronized void addLet(AudioLet let) {
+    if (isRunning) {
+      throw new IllegalStateException("Lets may not be added while the server is running.");
+    }
+    if (let == null) {
+      throw new IllegalArgumentException("The let may not be null.");
+    }
+    if (lets.contains(let)) {
+      throw new IllegalArgumentException("The let is already streamed: " + let);
+    }
+    lets.add(let);
+  }
+  
+  /** Removes all lets. */
+  public synchronized void clearLets() {
+    if (isRunning) {
+      throw new IllegalStateException("Lets may not be removed while the server is running.");
+    }
+    lets.clear();
+  }
+  
+  /**
+   * Sets the number of frames in the pool of each direction, which is rounded up to a power of two. The default is
+   * {@link #DEFAULT_POOL_SIZE}. Takes effect when the server is next started.
+   */
+  public synchronized void setPoolSize(int poolSize) {
+    if (poolSize < 2) {
+      throw new IllegalArgumentException("The pool must have at least two frames: " + poolSize);
+    }
+    this.poolSize = poolSize;
+  }
+  
+  /**
+   * Starts the server. The frames are laid out for the current configuration of
+   * <code>JCoreAudio</code>, and blocks are streamed from the next callback on.
+   * @throws IllegalStateException  If <code>JCoreAudio</code> is not initialized, or a let is not
+   *     one of its current lets.
+   * @throws IOException  If the server cannot be bound to its address.
+   */
+  public synchronized void start() throws IOException {
+    if (isRunning) return;
+    if (lets.isEmpty()) {
+      throw new IllegalStateException("At least one let must be added before the server is started.");
+    }
+    JCoreAudio jcoreaudio = JCoreAudio.getInstance();
+    AudioChannels inputs;
+    AudioChannels outputs;
+    int blockSize;
+    float sampleRate;
+    synchronized (jcoreaudio) {
+      if (!jcoreaudio.isInitialized()) {
+        throw new IllegalStateException("JCoreAudio must be initialized before the server is started.");
+      }
+      inputs = jcoreaudio.getInputChannels();
+      outputs = jcoreaudio.getOutputChannels();
+      blockSize = jcoreaudio.getBlockSize();
+      sampleRate = jcoreaudio.getSampleRate();
+    }
+    
+    TapChannels inputChannels = new TapChannels(lets, true, inputs, blockSize, true);
+    TapChannels outputChannels = new TapChannels(lets, false, outputs, blockSize, true);
+    int numFrames = Integer.highestOneBit(poolSize - 1) << 1;
+    
+    selector = Selector.open();
+    try {
+      serverChannel = ServerSocketChannel.open();
+      serverChannel.configureBlocking(false);
+      serverChannel.socket().setReuseAddress(true);
+      serverChannel.socket().bind(address);
+      serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    } catch (IOException e) {
+      if (serverChannel != null) serverChannel.close();
+      selector.close();
+      throw e;
+    }
+    
+    error = null;
+    numClients = 0;
+    sentBytes.set(0L);
+    skippedBlocks.set(0L);
+    disconnectedClients.set(0L);
+    tap = new Tap(inputChannels, outputChannels, numFrames, blockSize, sampleRate);
+    isRunning = true;
+    serverThread = new Thread(new Server(tap, (int) Math.ceil(sampleRate / blockSize)),
+        "JCoreAudio Monitoring Server");
+    serverThread.setDaemon(true);
+    serverThread.start();
+    jcoreaudio.addTap(tap);
+  }
+  
+  /** Stops the server and disconnects all clients. */
+  public synchronized void stop() {
+    if (!isRunning) return;
+    JCoreAudio.getInstance().removeTap(tap);
+    isRunning = false;
+    selector.wakeup();
+    try {
+      serverThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    serverThread = null;
+  }
+  
+  /** Indicates if the server is currently running. */
+  public boolean isRunning() {
+    return isRunning;
+  }
+  
+  /** Returns the port at which the server accepts clients, or -1 if it has not been started. */
+  public synchronized int getPort() {
+    return (serverChannel == null) ? -1 : serverChannel.socket().getLocalPort();
+  }
+  
+  /** Returns the error which stopped the server thread, or <code>null</code> if none has occurred. */
+  public IOException getError() {
+    return error;
+  }
+  
+  /** Returns the number of clients which are connected. */
+  public int getNumClients() {
+    return numClients;
+  }
+  
+  /**
+   * Returns the number of blocks which were streamed, i.e. handed to the server thread, with the
+   * input and output frames of a block counted apart.
+   */
+  public long getStreamedBlocks() {
+    Tap t = tap;
+    return (t == null) ? 0L : t.input.streamedBlocks.get() + t.output.streamedBlocks.get();
+  }
+  
+  /** Returns the number of blocks which were dropped on the audio threads because no frame was free. */
+  public long getDroppedBlocks() {
+    Tap t = tap;
+    return (t == null) ? 0L : t.input.droppedBlocks.get() + t.output.droppedBlocks.get();
+  }
+  
+  /** Returns the number of blocks which were not sent to slow clients, summed over the clients. */
+  public long getSkippedBlocks() {
+    return skippedBlocks.get();
+  }
+  
+  /** Returns the number of clients which were disconnected because they were too slow. */
+  public long getDisconnectedClients() {
+    return disconnectedClients.get();
+  }
+  
+  /** Returns the number of bytes sent to all clients. */
+  public long getSentBytes() {
+    return sentBytes.get();
+  }
+  
+  /** A block of the input or the output lets, in a direct buffer which is sent as it is. */
+  private static final class Frame {
+    final ByteBuffer buffer;
+    final FloatBuffer samples;
+    final boolean isInput;
+    
+    /** The number of clients to which the frame is yet to be sent. Used only by the server thread. */
+    int references;
+    
+    Frame(boolean isInput, int numChannels, int blockSize, float sampleRate) {
+      this.isInput = isInput;
+      int length = HEADER_SIZE + 4 * numChannels * blockSize;
+      buffer = ByteBuffer.allocateDirect(length).order(ByteOrder.LITTLE_ENDIAN);
+      buffer.putInt(0, length);
+      buffer.putInt(4, MAGIC);
+      buffer.putFloat(24, sampleRate);
+      buffer.putInt(28, numChannels);
+      buffer.putInt(32, blockSize);
+      buffer.putInt(36, isInput ? FLAG_INPUT : 0);
+      buffer.position(HEADER_SIZE);
+      samples = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+      buffer.clear();
+    }
+  }
+  
+  /**
+   * A wait-free single-producer/single-consumer queue of frame indices. It never overflows, as it
+   * can hold every frame and each frame is in at most one queue.
+   */
+  private static final class IndexQueue {
+    private final int[] slots;
+    private final int mask;
+    private final PaddedAtomicLong head;
+    private final PaddedAtomicLong tail;
+    
+    IndexQueue(int capacity) {
+      slots = new int[capacity];
+      mask = capacity - 1;
+      head = new PaddedAtomicLong();
+      tail = new PaddedAtomicLong();
+    }
+    
+    void offer(int index) {
+      long t = tail.get();
+      slots[(int) t & mask] = index;
+      tail.lazySet(t + 1L);
+    }
+    
+    /** Returns the next index, or -1 if the queue is empty. */
+    int poll() {
+      long h = head.get();
+      if (h == tail.get()) return -1;
+      int index = slots[(int) h & mask];
+      head.lazySet(h + 1L);
+      return index;
+    }
+  }
+  
+  /** Copies the selected channels into free frames on the audio threads. */
+  private static class Tap implements CoreAudioChannelListener {
+    
+    /** The frames of the input lets, followed by those of the output lets. */
+    private final Frame[] frames;
+    
+    private final Direction input;
+    private final Direction output;
+    
+    private Tap(TapChannels inputChannels, TapChannels outputChannels, int numFrames,
+        int blockSize, float sampleRate) {
+      int numInputFrames = (inputChannels.getNumChannels() > 0) ? numFrames : 0;
+      int numOutputFrames = (outputChannels.getNumChannels() > 0) ? numFrames : 0;
+      frames = new Frame[numInputFrames + numOutputFrames];
+      for (int i = 0; i < frames.length; i++) {
+        boolean isInput = i < numInputFrames;
+        frames[i] = new Frame(isInput, (isInput ? inputChannels : outputChannels).getNumChannels(),
+            blockSize, sampleRate);
+      }
+      input = new Direction(inputChannels, frames, 0, numInputFrames);
+      output = new Direction(outputChannels, frames, numInputFrames, numOutputFrames);
+    }
+    
+    @Override
+    public void onCoreAudioInput(double timestamp, AudioChannels channels) {
+      if (input.channels.isSelected(channels)) input.stream(timestamp);
+    }
+    
+    @Override
+    public void onCoreAudioOutput(double timestamp, AudioChannels channels) {
+      if (output.channels.isSelected(channels)) output.stream(timestamp);
+    }
+    
+    /** Returns the direction whose pool the given frame belongs to. */
+    private Direction directionOf(int index) {
+      return frames[index].isInput ? input : output;
+    }
+  }
+  
+  /**
+   * The frames of the input or the output lets. Only the callback of the direction takes frames
+   * from <code>free</code> and hands them over with <code>filled</code>, and only the server
+   * thread does the reverse.
+   */
+  private static final class Direction {
+    private final TapChannels channels;
+    private final Frame[] frames;
+    private final IndexQueue free;
+    private final IndexQueue filled;
+    
+    /** The sequence number of the next block. Only used by the callback of the direction. */
+    private long sequence;
+    
+    final AtomicLong streamedBlocks;
+    final AtomicLong droppedBlocks;
+    
+    private Direction(TapChannels channels, Frame[] frames, int first, int numFrames) {
+      this.channels = channels;
+      this.frames = frames;
+      // a direction without channels has no frames, but its queues are never used
+      free = new IndexQueue(Math.max(1, numFrames));
+      filled = new IndexQueue(Math.max(1, numFrames));
+      for (int i = first; i < first + numFrames; i++) {
+        free.offer(i);
+      }
+      streamedBlocks = new AtomicLong();
+      droppedBlocks = new AtomicLong();
+    }
+    
+    private void stream(double timestamp) {
+      int index = free.poll();
+      if (index >= 0) {
+        Frame frame = frames[index];
+        channels.copy(frame.samples, 0);
+        frame.buffer.putLong(8, sequence);
+        frame.buffer.putDouble(16, timestamp);
+        filled.offer(index);
+        streamedBlocks.lazySet(streamedBlocks.get() + 1L);
+      } else {
+        droppedBlocks.lazySet(droppedBlocks.get() + 1L);
+      }
+      sequence++;
+    }
+  }
+  
+  /** A connected client and the frames which are waiting to be sent to it. */
+  private static final class Client {
+    final SocketChannel channel;
+    final SelectionKey key;
+    
+    /** A view of each frame of the pool, so that each client has its own position in it. */
+    final ByteBuffer[] views;
+    
+    /** The frames which are waiting, oldest first, and their views. */
+    final int[] pending;
+    final ByteBuffer[] pendingViews;
+    int numPending;
+    
+    /** Only every <code>decimation</code>th block is sent. */
+    int decimation;
+    int keptUpBlocks;
+    
+    Client(SocketChannel channel, SelectionKey key, Frame[] frames) {
+      this.channel = channel;
+      this.key = key;
+      views = new ByteBuffer[frames.length];
+      for (int i = 0; i < frames.length; i++) {
+        views[i] = frames[i].buffer.duplicate();
+      }
+      pending = new int[MAX_PENDING_FRAMES];
+      pendingViews = new ByteBuffer[MAX_PENDING_FRAMES];
+      decimation = 1;
+    }
+  }
+  
+  /** Accepts clients and sends them the frames on a background thread. */
+  private class Server implements Runnable {
+    private final Tap tap;
+    private final Frame[] frames;
+    private final int blocksPerSecond;
+    private final List<Client> clients;
+    private final ByteBuffer discard;
+    
+    private Server(Tap tap, int blocksPerSecond) {
+      this.tap = tap;
+      this.frames = tap.frames;
+      this.blocksPerSecond = blocksPerSecond;
+      clients = new ArrayList<Client>();
+      discard = ByteBuffer.allocateDirect(4096);
+    }
+    
+    @Override
+    public void run() {
+      try {
+        while (isRunning) {
+          selector.select(POLL_MILLIS);
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            if (!key.isValid()) continue;
+            if (key.isAcceptable()) {
+              accept();
+            } else {
+              Client client = (Client) key.attachment();
+              if (key.isReadable()) read(client);
+              if (key.isValid() && key.isWritable()) flush(client);
+            }
+          }
+          distribute();
+        }
+      } catch (IOException e) {
+        error = e;
+        System.err.println("WARNING (JCoreAudio): The monitoring server has stopped because of an " +
+            "error. " + e);
+      } finally {
+        for (Client client : new ArrayList<Client>(clients)) {
+          disconnect(client);
+        }
+        try {
+          serverChannel.close();
+          selector.close();
+        } catch (IOException e) {
+          // the server is stopping regardless
+        }
+      }
+    }
+    
+    private void accept() throws IOException {
+      SocketChannel channel;
+      while ((channel = serverChannel.accept()) != null) {
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        Client client = new Client(channel, key, frames);
+        key.attach(client);
+        clients.add(client);
+        numClients = clients.size();
+      }
+    }
+    
+    /** Discards anything which the client sends, and disconnects it once it closes the connection. */
+    private void read(Client client) {
+      try {
+        int n;
+        do {
+          discard.clear();
+          n = client.channel.read(discard);
+        } while (n > 0);
+        if (n < 0) disconnect(client);
+      } catch (IOException e) {
+        disconnect(client);
+      }
+    }
+    
+    private void distribute() {
+      distribute(tap.input);
+      distribute(tap.output);
+    }
+    
+    /** Passes each new frame to the clients, and returns it to its pool once none need it. */
+    private void distribute(Direction direction) {
+      int index;
+      while ((index = direction.filled.poll()) >= 0) {
+        Frame frame = frames[index];
+        long sequence = frame.buffer.getLong(8);
+        frame.references = 1; // held until it has been passed to every client
+        for (int i = clients.size() - 1; i >= 0; i--) {
+          Client client = clients.get(i);
+          if (sequence % client.decimation != 0L) {
+            skippedBlocks.lazySet(skippedBlocks.get() + 1L);
+            continue;
+          }
+          if (client.numPending == MAX_PENDING_FRAMES) {
+            skippedBlocks.lazySet(skippedBlocks.get() + 1L);
+            slowDown(client);
+            continue;
+          }
+          client.keptUpBlocks += client.decimation;
+          if (client.keptUpBlocks >= blocksPerSecond && client.decimation > 1) {
+            client.decimation /= 2;
+            client.keptUpBlocks = 0;
+          }
+          ByteBuffer view = client.views[index];
+          view.clear();
+          client.pending[client.numPending] = index;
+          client.pendingViews[client.numPending] = view;
+          client.numPending++;
+          frame.references++;
+          flush(client);
+        }
+        release(index);
+      }
+    }
+    
+    private void slowDown(Client client) {
+      client.keptUpBlocks = 0;
+      if (client.decimation >= MAX_DECIMATION) {
+        disconnectedClients.lazySet(disconnectedClients.get() + 1L);
+        disconnect(client);
+      } else {
+        client.decimation *= 2;
+      }
+    }
+    
+    /** Sends as much of the pending frames as the socket accepts, with one gathering write. */
+    private void flush(Client client) {
+      if (client.numPending == 0) return;
+      try {
+        long n = client.channel.write(client.pendingViews, 0, client.numPending);
+        sentBytes.lazySet(sentBytes.get() + n);
+      } catch (IOException e) {
+        disconnect(client);
+        return;
+      }
+      int sent = 0;
+      while (sent < client.numPending && !client.pendingViews[sent].hasRemaining()) {
+        release(client.pending[sent]);
+        sent++;
+      }
+      if (sent > 0) {
+        int remaining = client.numPending - sent;
+        System.arraycopy(client.pending, sent, client.pending, 0, remaining);
+        System.arraycopy(client.pendingViews, sent, client.pendingViews, 0, remaining);
+        for (int i = remaining; i < client.numPending; i++) {
+          client.pendingViews[i] = null;
+        }
+        client.numPending = remaining;
+      }
+      client.key.interestOps((client.numPending > 0) ?
+          SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+    
+    private void release(int index) {
+      if (--frames[index].references == 0) tap.directionOf(index).free.offer(index);
+    }
+    
+    private void disconnect(Client client) {
+      if (!clients.remove(client)) return;
+      numClients = clients.size();
+      for (int i = 0; i < client.numPending; i++) {
+        release(client.pending[i]);
+      }
+      client.numPending = 0;
+      client.key.cancel();
+      try {
+        client.channel.close();
+      } catch (IOException e) {
+        // the client is gone regardless
+      }
+    }
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded ring of slots through which any number of threads pass messages to a single consumer
+ * without locks or allocation. The ring only orders the slots; the messages themselves are kept
+ * by the user in preallocated arrays, indexed by slot.<br/>
+ * <br/>
+ * Each slot has a sequence number. A producer claims a slot with a single compare-and-set of the
+ * tail, writes its message into the slot and then publishes it by advancing the sequence number.
+ * If the ring is full, {@link #claim()} fails at once, so producers never wait for the consumer.
+ * The consumer never waits for producers either: a slot which has been claimed but not yet
+ * published ends {@link #peek()}, and the message is taken on the next poll.
+ * <pre>
+ * // producer
+ * long index = ring.claim();
+ * if (index &lt; 0L) return false; // full
+ * values[ring.slot(index)] = value;
+ * ring.publish(index);
+ * 
+ * // consumer
+ * for (int slot; (slot = ring.peek()) &gt;= 0; ring.release()) {
+ *   apply(values[slot]);
+ * }
+ * </pre>
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+final class MpscRing {
+  
+  private final int capacity;
+  private final int mask;
+  private final AtomicLongArray sequences;
+  
+  /** The index of the next slot to be claimed by a producer. */
+  private final PaddedAtomicLong tail;
+  
+  /** The index of the next slot to be consumed. Only used by the consumer. */
+  private long head;
+  
+  /**
+   * @param minCapacity  The minimum number of messages which may be pending at once. It is rounded
+   *     up to the next power of two.
+   */
+  MpscRing(int minCapacity) {
+    if (minCapacity <= 0) {
+      throw new IllegalArgumentException("The capacity must be positive: " + minCapacity);
+    }
+    capacity = (minCapacity == 1) ? 1 : Integer.highestOneBit(minCapacity - 1) << 1;
+    mask = capacity - 1;
+    sequences = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++) {
+      sequences.set(i, i); // slot i is free for the message with index i
+    }
+    tail = new PaddedAtomicLong();
+  }
+  
+  /** Returns the number of messages which may be pending at once. */
+  int getCapacity() {
+    return capacity;
+  }
+  
+  /** Returns the number of slots which have ever been claimed. */
+  long getClaimed() {
+    return tail.get();
+  }
+  
+  /** Returns the slot of the message with the given index. */
+  int slot(long index) {
+    return (int) index & mask;
+  }
+  
+  /**
+   * Claims the next slot. May be called from any thread.
+   * @return  The index of the message, which gives its slot, or <code>-1</code> if the ring is full.
+   */
+  long claim() {
+    while (true) {
+      long index = tail.get();
+      long sequence = sequences.get((int) index & mask);
+      if (sequence == index) {
+        if (tail.compareAndSet(index, index + 1L)) return index; // the slot is claimed
+      } else if (sequence < index) {
+        // the slot still holds a message from the previous lap, i.e. the ring is full
+        return -1L;
+      }
+      // otherwise another producer has claimed the slot, so try again with the new tail
+    }
+  }
+  
+  /** Publishes the message with the given index, once it has been written into its slot. */
+  void publish(long index) {
+    sequences.lazySet((int) index & mask, index + 1L);
+  }
+  
+  /**
+   * Returns the slot of the oldest published message, or <code>-1</code> if the ring is empty or
+   * the oldest message has not yet been published. Only called by the consumer.
+   */
+  int peek() {
+    int slot = (int) head & mask;
+    return (sequences.get(slot) == head + 1L) ? slot : -1;
+  }
+  
+  /** Frees the slot returned by {@link #peek()} for the next lap. Only called by the consumer. */
+  void release() {
+    sequences.lazySet((int) head & mask, head + capacity);
+    head++;
+  }
+}
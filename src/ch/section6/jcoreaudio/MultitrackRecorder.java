@@ -0,0 +1,404 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <code>MultitrackRecorder</code> records selected input <code>AudioLet</code>s to disk without
+ * blocking the audio thread. Each track is one let, and is written to its own 32-bit float WAV
+ * file, which becomes an RF64 file if it grows beyond 4GB.<br/>
+ * <br/>
+ * The recorder is registered as a tap with <code>JCoreAudio</code>. On the audio thread it only
+ * copies the channels of the recorded lets into a {@link FloatRingBuffer}, which takes constant
+ * time and does not allocate or lock. A background thread drains the ring and appends the samples
+ * to the files through large direct buffers, extending the files in large extents ahead of the
+ * write position. If the writer falls so far behind that the ring is full, for instance because
+ * the disk stalls, whole blocks are dropped and counted rather than the audio thread waiting.
+ * The largest backlog seen by the writer is reported, so that the ring can be sized with
+ * confidence.
+ * <pre>
+ * MultitrackRecorder recorder = new MultitrackRecorder();
+ * recorder.addTrack(vocalLet, new File("vocals.wav"));
+ * recorder.addTrack(drumLet, new File("drums.wav"));
+ * recorder.start();
+ * ...
+ * recorder.stop();
+ * </pre>
+ * A recorder may be started while <code>JCoreAudio</code> is INITIALIZED or RUNNING, and must be
+ * stopped before it is uninitialized. It may be started again once stopped, in which case the
+ * files are overwritten.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class MultitrackRecorder {
+  
+  /** The default amount of audio which the ring can hold before blocks are dropped. */
+  public static final double DEFAULT_BUFFER_SECONDS = 2.0;
+  
+  /** The default size of the write buffer of each file in bytes. */
+  public static final int DEFAULT_WRITE_BUFFER_SIZE = 4 << 20;
+  
+  /** The default size of the steps in which the files are extended. */
+  public static final long DEFAULT_EXTENT_SIZE = 64L << 20;
+  
+  /** The maximum number of frames which the writer moves from the ring to the files at a time. */
+  private static final int CHUNK_FRAMES = 8192;
+  
+  /** The time for which the writer sleeps when the ring is empty. */
+  private static final long POLL_NANOS = 5000000L;
+  
+  private final List<Track> tracks;
+  private double bufferSeconds;
+  private int writeBufferSize;
+  private long extentSize;
+  
+  // the state of the current recording
+  private Tap tap;
+  private Thread writerThread;
+  private volatile boolean isRecording;
+  private volatile IOException error;
+  private final AtomicLong backlogHighWaterMark;
+  private final AtomicLong framesWritten;
+  private float sampleRate;
+  
+  public MultitrackRecorder() {
+    tracks = new ArrayList<Track>();
+    bufferSeconds = DEFAULT_BUFFER_SECONDS;
+    writeBufferSize = DEFAULT_WRITE_BUFFER_SIZE;
+    extentSize = DEFAULT_EXTENT_SIZE;
+    backlogHighWaterMark = new AtomicLong();
+    framesWritten = new AtomicLong();
+  }
+  
+  /**
+   * Adds a track which records all channels of the given input let to the given file.
+   * @throws IllegalStateException  If the recorder is recording.
+   */
+  public synchronized void addTrack(AudioLet let, File file) {
+    if (isRecording) {
+      throw new IllegalStateException("Tracks may not be added while recording.");
+    }
+    if (let == null || file == null) {
+      throw new IllegalArgumentException("The let and file may not be null.");
+    }
+    if (!let.isInput) {
+      throw new IllegalArgumentException("Only input lets can be recorded: " + let);
+    }
+    for (Track track : tracks) {
+      if (track.let == let) {
+        throw new IllegalArgumentException("The let is already recorded: " + let);
+      }
+    }
+    tracks.add(new Track(let, file));
+  }
+  
+  /** Removes all tracks. */
+  public synchronized void clearTracks() {
+    if (isRecording) {
+      throw new IllegalStateException("Tracks may not be removed while recording.");
+    }
+    tracks.clear();
+  }
+  
+  /**
+   * Sets the amount of audio which may be waiting to be written before blocks are dropped. The
+   * default is {@link #DEFAULT_BUFFER_SECONDS}. Takes effect when recording is next started.
+   */
+  public synchronized void setBufferSeconds(double bufferSeconds) {
+    if (bufferSeconds <= 0.0) {
+      throw new IllegalArgumentException("The buffer length must be positive: " + bufferSeconds);
+    }
+    this.bufferSeconds = bufferSeconds;
+  }
+  
+  /**
+   * Sets the size of the write buffer of each file, and the size of the steps in which the files
+   * are extended. An extent size of zero grows the files with each write. Takes effect when
+   * recording is next started.
+   */
+  public synchronized void setWriteSizes(int writeBufferSize, long extentSize) {
+    if (writeBufferSize <= 0 || extentSize < 0L) {
+      throw new IllegalArgumentException("The write buffer size must be positive and the extent " +
+          "size may not be negative.");
+    }
+    this.writeBufferSize = writeBufferSize;
+    this.extentSize = extentSize;
+  }
+  
+  /**
+   * Starts recording. The files of all tracks are created, and samples are written from the next
+   * callback on.
+   * @throws IllegalStateException  If <code>JCoreAudio</code> is not initialized, or a recorded let
+   *     is not one of its current input lets.
+   * @throws IOException  If a file cannot be created.
+   */
+  public synchronized void start() throws IOException {
+    if (isRecording) return;
+    if (tracks.isEmpty()) {
+      throw new IllegalStateException("At least one track must be added before recording.");
+    }
+    JCoreAudio jcoreaudio = JCoreAudio.getInstance();
+    AudioChannels channels;
+    int blockSize;
+    synchronized (jcoreaudio) {
+      if (!jcoreaudio.isInitialized()) {
+        throw new IllegalStateException("JCoreAudio must be initialized before recording.");
+      }
+      channels = jcoreaudio.getInputChannels();
+      blockSize = jcoreaudio.getBlockSize();
+      sampleRate = jcoreaudio.getSampleRate();
+    }
+    
+    // map the channels of all tracks onto the ring, in the order in which the tracks were added
+    int numChannels = 0;
+    for (Track track : tracks) {
+      numChannels += track.let.numChannels;
+    }
+    FloatBuffer[] selected = new FloatBuffer[numChannels];
+    for (int i = 0, k = 0; i < tracks.size(); i++) {
+      AudioLet let = tracks.get(i).let;
+      int first = indexOf(channels, let);
+      for (int j = 0; j < let.numChannels; j++) {
+        selected[k++] = channels.getFloatBuffer(first + j);
+      }
+    }
+    // the ring rounds its capacity up to a power of two, which must still fit into one byte buffer
+    int maxCapacity = Integer.highestOneBit(Integer.MAX_VALUE / (4 * numChannels));
+    int capacity = (int) Math.min(maxCapacity, Math.max(2L * blockSize, (long) (bufferSeconds * sampleRate)));
+    FloatRingBuffer ring = new FloatRingBuffer(numChannels, capacity);
+    float[][] scratch = new float[numChannels][CHUNK_FRAMES];
+    
+    try {
+      for (int i = 0, k = 0; i < tracks.size(); i++) {
+        Track track = tracks.get(i);
+        track.open(scratch, k, sampleRate, writeBufferSize, extentSize);
+        k += track.let.numChannels;
+      }
+    } catch (IOException e) {
+      closeTracks();
+      throw e;
+    }
+    
+    error = null;
+    backlogHighWaterMark.set(0L);
+    framesWritten.set(0L);
+    tap = new Tap(channels, selected, blockSize, ring);
+    isRecording = true;
+    writerThread = new Thread(new Writer(ring, scratch), "JCoreAudio Recorder");
+    writerThread.setDaemon(true);
+    writerThread.start();
+    jcoreaudio.addTap(tap);
+  }
+  
+  private static int indexOf(AudioChannels channels, AudioLet let) {
+    for (int i = 0; i < channels.getNumChannels(); i++) {
+      if (channels.getLet(i) == let) return i;
+    }
+    throw new IllegalStateException("The let " + let + " is not one of the current input lets.");
+  }
+  
+  /**
+   * Stops recording. All samples received so far are written, and the files are closed.
+   * @throws IOException  If an error occurred while writing or closing any file. The recording
+   *     is stopped regardless.
+   */
+  public synchronized void stop() throws IOException {
+    if (!isRecording) return;
+    JCoreAudio.getInstance().removeTap(tap);
+    isRecording = false;
+    LockSupport.unpark(writerThread);
+    try {
+      writerThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    writerThread = null;
+    IOException closeError = closeTracks();
+    if (error == null) error = closeError;
+    if (error != null) throw error;
+  }
+  
+  /** Closes the files of all tracks. Returns the first error, or <code>null</code>. */
+  private IOException closeTracks() {
+    IOException firstError = null;
+    for (Track track : tracks) {
+      try {
+        track.close();
+      } catch (IOException e) {
+        if (firstError == null) firstError = e;
+      }
+    }
+    return firstError;
+  }
+  
+  /** Indicates if the recorder is currently recording. */
+  public boolean isRecording() {
+    return isRecording;
+  }
+  
+  /** Returns the error which stopped the writer, or <code>null</code> if none has occurred. */
+  public IOException getError() {
+    return error;
+  }
+  
+  /** Returns the number of frames written to each file in the current or last recording. */
+  public long getFramesWritten() {
+    return framesWritten.get();
+  }
+  
+  /** Returns the number of blocks which were dropped because the writer had fallen behind. */
+  public long getDroppedBlocks() {
+    Tap t = tap;
+    return (t == null) ? 0L : t.ring.getOverruns();
+  }
+  
+  /**
+   * Returns the largest number of frames which were waiting to be written at any one time during
+   * the current or last recording. If this approaches {@link #getBufferFrames()}, the buffer
+   * should be enlarged.
+   */
+  public long getBacklogHighWaterMark() {
+    return backlogHighWaterMark.get();
+  }
+  
+  /** Returns {@link #getBacklogHighWaterMark()} in seconds. */
+  public double getBacklogHighWaterMarkSeconds() {
+    return (sampleRate > 0.0f) ? backlogHighWaterMark.get() / (double) sampleRate : 0.0;
+  }
+  
+  /** Returns the number of frames which may be waiting to be written before blocks are dropped. */
+  public int getBufferFrames() {
+    Tap t = tap;
+    return (t == null) ? 0 : t.ring.getCapacity();
+  }
+  
+  /** A recorded let and the file to which it is written. */
+  private static class Track {
+    private final AudioLet let;
+    private final File file;
+    private WaveFileWriter writer;
+    
+    /** The rows of the writer's scratch buffer which hold the channels of this track. */
+    private float[][] channels;
+    
+    private Track(AudioLet let, File file) {
+      this.let = let;
+      this.file = file;
+    }
+    
+    private void open(float[][] scratch, int firstChannel, float sampleRate, int writeBufferSize,
+        long extentSize) throws IOException {
+      channels = new float[let.numChannels][];
+      System.arraycopy(scratch, firstChannel, channels, 0, let.numChannels);
+      writer = new WaveFileWriter(file, let.numChannels, sampleRate, false,
+          Math.max(writeBufferSize, 4 * let.numChannels));
+      writer.setExtentSize(extentSize);
+    }
+    
+    private void close() throws IOException {
+      if (writer != null) {
+        try {
+          writer.close();
+        } finally {
+          writer = null;
+          channels = null;
+        }
+      }
+    }
+  }
+  
+  /** Copies the recorded channels into the ring on the audio thread. */
+  private static class Tap implements CoreAudioChannelListener {
+    private final AudioChannels channels;
+    private final FloatBuffer[] selected;
+    private final int blockSize;
+    private final FloatRingBuffer ring;
+    
+    private Tap(AudioChannels channels, FloatBuffer[] selected, int blockSize, FloatRingBuffer ring) {
+      this.channels = channels;
+      this.selected = selected;
+      this.blockSize = blockSize;
+      this.ring = ring;
+    }
+    
+    @Override
+    public void onCoreAudioInput(double timestamp, AudioChannels inputs) {
+      // after a reinitialisation, the buffers which were selected are no longer in use
+      if (inputs != channels) return;
+      ring.write(selected, blockSize);
+    }
+    
+    @Override
+    public void onCoreAudioOutput(double timestamp, AudioChannels outputs) {
+      // nothing to do
+    }
+  }
+  
+  /** Moves samples from the ring to the files on a background thread. */
+  private class Writer implements Runnable {
+    private final FloatRingBuffer ring;
+    private final float[][] scratch;
+    
+    private Writer(FloatRingBuffer ring, float[][] scratch) {
+      this.ring = ring;
+      this.scratch = scratch;
+    }
+    
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          boolean isStopping = !isRecording; // read first, so that the last blocks are not missed
+          int available = ring.availableToRead();
+          if (available > backlogHighWaterMark.get()) {
+            backlogHighWaterMark.lazySet(available);
+          }
+          if (available == 0) {
+            if (isStopping) break;
+            LockSupport.parkNanos(POLL_NANOS);
+            continue;
+          }
+          while (available > 0) {
+            int n = Math.min(available, CHUNK_FRAMES);
+            ring.read(scratch, 0, n);
+            for (Track track : tracks) {
+              track.writer.write(track.channels, 0, n);
+            }
+            framesWritten.lazySet(framesWritten.get() + n);
+            available -= n;
+          }
+        }
+      } catch (IOException e) {
+        error = e;
+        System.err.println("WARNING (JCoreAudio): The recorder has stopped writing because of an " +
+            "error. Further input will be dropped. " + e);
+        // keep the ring from being read, so that the tap counts the dropped blocks
+      }
+    }
+  }
+}
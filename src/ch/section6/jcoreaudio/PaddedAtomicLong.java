@@ -0,0 +1,44 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An <code>AtomicLong</code> followed by enough padding to fill a 64-byte cache line, so that
+ * counters written by different threads do not share a line.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+@SuppressWarnings({"serial", "unused"})
+class PaddedAtomicLong extends AtomicLong {
+  
+  private long p1, p2, p3, p4, p5, p6, p7;
+  
+  PaddedAtomicLong() {
+    super();
+  }
+  
+  /** Prevents the padding from being optimised away. */
+  long sumPadding() {
+    return p1 + p2 + p3 + p4 + p5 + p6 + p7;
+  }
+}
@@ -0,0 +1,277 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <code>ParameterQueue</code> passes parameter changes, e.g. of gain, routing or filter
+ * coefficients, from control threads to the audio thread without locks or allocation. Any number
+ * of threads may send changes, and the audio thread applies them at the start of each block. A
+ * change is either immediate or a linear ramp over an exact number of frames from the first frame
+ * of the block in which it is applied.<br/>
+ * <br/>
+ * Messages are kept in a bounded, preallocated ring of slots, each with a sequence number. A
+ * sender claims a slot with a single compare-and-set of the tail, writes the message and then
+ * publishes it by advancing the sequence number of the slot. If the ring is full the message is
+ * dropped and counted, so senders never wait for the audio thread. The audio thread never waits
+ * for senders either: a slot which has been claimed but not yet published ends the drain, and the
+ * message is applied in the next block.<br/>
+ * <br/>
+ * The values of the parameters are read by the listener on the audio thread, for any frame of the
+ * current block:
+ * <pre>
+ * ParameterQueue params = new ParameterQueue(new float[] {1.0f}, 4096, 480);
+ * jca.setParameterQueue(params);
+ * ...
+ * // on a control thread
+ * params.set(GAIN, 0.5f);
+ * ...
+ * // in the listener
+ * for (int i = 0; i &lt; blockSize; i++) {
+ *   out.put(i, in.get(i) * params.getValue(GAIN, i));
+ * }
+ * </pre>
+ * Registered with {@link JCoreAudio#setParameterQueue(ParameterQueue)}, the queue is processed
+ * before the output callback of the listener, or before the input callback if there is no output.
+ * Otherwise {@link #process(int)} must be called at the start of every block.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class ParameterQueue {
+  
+  private final int numParameters;
+  private final int smoothingFrames;
+  
+  // the message slots
+  private final MpscRing ring;
+  private final int[] messageParameters;
+  private final float[] messageValues;
+  private final int[] messageFrames;
+  
+  // the state of each parameter at the first frame of the current block
+  private final double[] values;
+  private final double[] increments;
+  private final int[] remainingFrames;
+  private final float[] targets;
+  
+  /** The length of the current block, by which the ramps are advanced at the next block. */
+  private int blockFrames;
+  
+  private final AtomicLong appliedMessages;
+  private final AtomicLong droppedMessages;
+  
+  /**
+   * @param initialValues  The initial value of each parameter. The number of parameters is the
+   *     length of the array.
+   * @param minCapacity  The minimum number of messages which may be pending at once. It is rounded
+   *     up to the next power of two.
+   * @param smoothingFrames  The length of the ramp used by {@link #set(int, float)}, in frames.
+   */
+  public ParameterQueue(float[] initialValues, int minCapacity, int smoothingFrames) {
+    if (initialValues.length == 0) {
+      throw new IllegalArgumentException("There must be at least one parameter.");
+    }
+    if (minCapacity <= 0) {
+      throw new IllegalArgumentException("The capacity must be positive: " + minCapacity);
+    }
+    if (smoothingFrames < 0) {
+      throw new IllegalArgumentException("The smoothing time may not be negative: " + smoothingFrames);
+    }
+    this.numParameters = initialValues.length;
+    this.smoothingFrames = smoothingFrames;
+    
+    ring = new MpscRing(minCapacity);
+    messageParameters = new int[ring.getCapacity()];
+    messageValues = new float[ring.getCapacity()];
+    messageFrames = new int[ring.getCapacity()];
+    
+    values = new double[numParameters];
+    increments = new double[numParameters];
+    remainingFrames = new int[numParameters];
+    targets = new float[numParameters];
+    for (int i = 0; i < numParameters; i++) {
+      values[i] = initialValues[i];
+      targets[i] = initialValues[i];
+    }
+    appliedMessages = new AtomicLong();
+    droppedMessages = new AtomicLong();
+  }
+  
+  public int getNumParameters() {
+    return numParameters;
+  }
+  
+  /** Returns the number of messages which may be pending at once. */
+  public int getCapacity() {
+    return ring.getCapacity();
+  }
+  
+  /** Returns the length of the ramp used by {@link #set(int, float)}, in frames. */
+  public int getSmoothingFrames() {
+    return smoothingFrames;
+  }
+  
+  /** Returns the number of messages which have been applied by the audio thread. */
+  public long getAppliedMessages() {
+    return appliedMessages.get();
+  }
+  
+  /** Returns the number of messages which were dropped because the queue was full. */
+  public long getDroppedMessages() {
+    return droppedMessages.get();
+  }
+  
+  
+  // ------ Senders ------
+  
+  /**
+   * Ramps a parameter to the given value over the smoothing time given to the constructor. May be
+   * called from any thread.
+   * @return  <code>true</code> if the message was queued, <code>false</code> if the queue was full.
+   */
+  public boolean set(int parameter, float value) {
+    return ramp(parameter, value, smoothingFrames);
+  }
+  
+  /**
+   * Sets a parameter to the given value from the first frame of the next block. May be called
+   * from any thread.
+   * @return  <code>true</code> if the message was queued, <code>false</code> if the queue was full.
+   */
+  public boolean jump(int parameter, float value) {
+    return ramp(parameter, value, 0);
+  }
+  
+  /**
+   * Ramps a parameter linearly from its current value to the given value. The ramp starts at the
+   * first frame of the next block, and the value is reached exactly <code>numFrames</code> frames
+   * later. Any ramp in progress is replaced. May be called from any thread.
+   * @return  <code>true</code> if the message was queued, <code>false</code> if the queue was full.
+   */
+  public boolean ramp(int parameter, float value, int numFrames) {
+    if (parameter < 0 || parameter >= numParameters) {
+      throw new IllegalArgumentException("The parameter " + parameter + " does not exist.");
+    }
+    if (numFrames < 0) {
+      throw new IllegalArgumentException("The length of the ramp may not be negative: " + numFrames);
+    }
+    long index = ring.claim();
+    if (index < 0L) {
+      droppedMessages.incrementAndGet();
+      return false;
+    }
+    int slot = ring.slot(index);
+    messageParameters[slot] = parameter;
+    messageValues[slot] = value;
+    messageFrames[slot] = numFrames;
+    ring.publish(index);
+    return true;
+  }
+  
+  
+  // ------ Audio Thread ------
+  
+  /**
+   * Begins a new block. The ramps are advanced past the previous block, and the pending messages
+   * are applied from the first frame of the new block. Called on the audio thread, by
+   * <code>JCoreAudio</code> if the queue is registered with it. It never blocks or allocates.
+   * @param numFrames  The length of the new block.
+   */
+  public void process(int numFrames) {
+    advance(blockFrames);
+    blockFrames = numFrames;
+    long applied = 0L;
+    for (int capacity = ring.getCapacity(); applied < capacity; applied++) {
+      int slot = ring.peek();
+      if (slot < 0) break; // empty, or not yet published
+      apply(messageParameters[slot], messageValues[slot], messageFrames[slot]);
+      ring.release();
+    }
+    if (applied > 0L) {
+      appliedMessages.lazySet(appliedMessages.get() + applied);
+    }
+  }
+  
+  private void advance(int numFrames) {
+    for (int i = 0; i < numParameters; i++) {
+      int remaining = remainingFrames[i];
+      if (remaining > numFrames) {
+        values[i] += increments[i] * numFrames;
+        remainingFrames[i] = remaining - numFrames;
+      } else if (remaining > 0) {
+        values[i] = targets[i];
+        increments[i] = 0.0;
+        remainingFrames[i] = 0;
+      }
+    }
+  }
+  
+  private void apply(int parameter, float value, int numFrames) {
+    targets[parameter] = value;
+    if (numFrames == 0) {
+      values[parameter] = value;
+      increments[parameter] = 0.0;
+      remainingFrames[parameter] = 0;
+    } else {
+      increments[parameter] = (value - values[parameter]) / numFrames;
+      remainingFrames[parameter] = numFrames;
+    }
+  }
+  
+  /** Returns the value of a parameter at the first frame of the current block. Audio thread only. */
+  public float getValue(int parameter) {
+    return (float) values[parameter];
+  }
+  
+  /** Returns the value of a parameter at the given frame of the current block. Audio thread only. */
+  public float getValue(int parameter, int frame) {
+    if (frame >= remainingFrames[parameter]) return targets[parameter];
+    return (float) (values[parameter] + increments[parameter] * frame);
+  }
+  
+  /** Returns the value which a parameter is ramping towards, or its value if it is constant. */
+  public float getTarget(int parameter) {
+    return targets[parameter];
+  }
+  
+  /** Indicates if a parameter changes during the current block. Audio thread only. */
+  public boolean isRamping(int parameter) {
+    return remainingFrames[parameter] > 0;
+  }
+  
+  /**
+   * Writes the values of a parameter for the first <code>numFrames</code> frames of the current
+   * block into the given array. Audio thread only.
+   */
+  public void fill(int parameter, float[] buffer, int offset, int numFrames) {
+    int ramp = Math.min(remainingFrames[parameter], numFrames);
+    double value = values[parameter];
+    double increment = increments[parameter];
+    for (int i = 0; i < ramp; i++) {
+      buffer[offset + i] = (float) (value + increment * i);
+    }
+    float target = targets[parameter];
+    for (int i = ramp; i < numFrames; i++) {
+      buffer[offset + i] = target;
+    }
+  }
+}
@@ -0,0 +1,522 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package ch.section6.jcoreaudio;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <code>PartitionedConvolver</code> convolves channels with long impulse responses, e.g. for
+ * convolution reverb, without adding latency. It is called from the audio callback with the
+ * buffers of the channels, and replaces each block of output with the convolution of the input.
+ * Input and output may be the same buffers.<br/>
+ * <br/>
+ * The impulse responses are split into partitions, which are convolved by overlap-save in the
+ * frequency domain. The first partitions (the head) have the block size of the callback and are
+ * computed in the callback itself, so that the output of a block depends on its input without
+ * delay. If the largest partition size is the block size, all partitions are uniform and computed
+ * in the callback. Otherwise, the partitions which follow are twice as large every two partitions
+ * up to the largest partition size, which is then used for the rest of the impulse response. Each
+ * group of partitions of size <i>P</i> begins <i>2P</i> frames into the impulse response, and
+ * is computed once every <i>P</i> frames by a pool of worker threads. Its result is due
+ * <i>P</i> frames after its input is complete, and the workers always take the job whose
+ * deadline is the earliest. A result which is not ready when it is due is left out of the output
+ * and counted as a deadline miss. With no worker threads, the whole convolution is computed in
+ * the callback, e.g. for offline rendering.<br/>
+ * <br/>
+ * The block size and the partition sizes must be powers of two. Neither the callback nor the
+ * workers allocate or lock.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public final class PartitionedConvolver {
+  
+  /** The default largest partition size. */
+  public static final int DEFAULT_MAX_PARTITION_SIZE = 8192;
+  
+  /** The number of partitions of the block size before the non-uniform partitions begin. */
+  private static final int HEAD_PARTITIONS = 4;
+  
+  /** How long an idle worker waits before checking for jobs again. */
+  private static final long POLL_NANOS = 1000000L;
+  
+  private final int numChannels;
+  private final int blockSize;
+  private final int length;
+  
+  /** The partition size, number of partitions and offset of each segment. Segment zero is the head. */
+  private final int[] sizes;
+  private final int[] counts;
+  private final int[] offsets;
+  
+  private final Channel[] channels;
+  private final Job[] jobs;
+  private final Thread[] workers;
+  private volatile boolean isOpen;
+  
+  // audio thread state
+  private long frame;
+  private final float[] block;
+  private final float[] result;
+  
+  private final AtomicLong deadlineMisses;
+  private final AtomicLong callbackNanos;
+  private final AtomicLong tailNanos;
+  
+  /**
+   * Creates a non-uniformly partitioned convolver with the default largest partition size, and
+   * one worker thread for each processor but one.
+   */
+  public PartitionedConvolver(float[][] impulseResponses, int blockSize) {
+    this(impulseResponses, blockSize, DEFAULT_MAX_PARTITION_SIZE,
+        Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+  }
+  
+  /**
+   * @param impulseResponses  The impulse response of each channel. Channels may share the same
+   *     array, in which case its spectra are shared as well.
+   * @param blockSize  The number of frames in each call to <code>process()</code>.
+   * @param maxPartitionSize  The largest partition size. If it is <code>blockSize</code>, the
+   *     partitions are uniform.
+   * @param numThreads  The number of worker threads. If zero, all partitions are computed in the
+   *     callback.
+   */
+  public PartitionedConvolver(float[][] impulseResponses, int blockSize, int maxPartitionSize,
+      int numThreads) {
+    if (impulseResponses.length == 0) {
+      throw new IllegalArgumentException("There must be at least one channel.");
+    }
+    if (blockSize < 2 || Integer.bitCount(blockSize) != 1) {
+      throw new IllegalArgumentException("The block size must be a power of two: " + blockSize);
+    }
+    if (maxPartitionSize < blockSize || Integer.bitCount(maxPartitionSize) != 1) {
+      throw new IllegalArgumentException("The largest partition size must be a power of two of at " +
+          "least the block size: " + maxPartitionSize);
+    }
+    if (numThreads < 0) {
+      throw new IllegalArgumentException("The number of threads may not be negative.");
+    }
+    int length = 1;
+    for (float[] impulseResponse : impulseResponses) {
+      length = Math.max(length, impulseResponse.length);
+    }
+    this.numChannels = impulseResponses.length;
+    this.blockSize = blockSize;
+    this.length = length;
+    
+    // lay out the segments, each of which begins at twice its partition size
+    List<int[]> layout = new ArrayList<int[]>();
+    int head = (maxPartitionSize == blockSize) ? divideUp(length, blockSize) :
+        Math.min(HEAD_PARTITIONS, divideUp(length, blockSize));
+    layout.add(new int[] {blockSize, head, 0});
+    int offset = head * blockSize;
+    for (int size = 2 * blockSize; offset < length; ) {
+      int count = (size < maxPartitionSize) ? Math.min(2, divideUp(length - offset, size)) :
+          divideUp(length - offset, size);
+      layout.add(new int[] {size, count, offset});
+      offset += count * size;
+      if (size < maxPartitionSize) size *= 2;
+    }
+    int numSegments = layout.size();
+    sizes = new int[numSegments];
+    counts = new int[numSegments];
+    offsets = new int[numSegments];
+    for (int i = 0; i < numSegments; i++) {
+      sizes[i] = layout.get(i)[0];
+      counts[i] = layout.get(i)[1];
+      offsets[i] = layout.get(i)[2];
+    }
+    
+    Map<float[], float[][][][]> spectra = new IdentityHashMap<float[], float[][][][]>();
+    int historySize = Integer.highestOneBit(4 * sizes[numSegments - 1]);
+    channels = new Channel[numChannels];
+    jobs = new Job[numChannels * (numSegments - 1)];
+    for (int c = 0; c < numChannels; c++) {
+      float[][][][] filter = spectra.get(impulseResponses[c]);
+      if (filter == null) {
+        filter = transform(impulseResponses[c]);
+        spectra.put(impulseResponses[c], filter);
+      }
+      channels[c] = new Channel(historySize, filter);
+      for (int i = 1; i < numSegments; i++) {
+        jobs[c * (numSegments - 1) + i - 1] = new Job(channels[c], i);
+      }
+    }
+    block = new float[blockSize];
+    result = new float[blockSize];
+    deadlineMisses = new AtomicLong();
+    callbackNanos = new AtomicLong();
+    tailNanos = new AtomicLong();
+    
+    isOpen = true;
+    workers = new Thread[(jobs.length > 0) ? numThreads : 0];
+    for (int i = 0; i < workers.length; i++) {
+      workers[i] = new Thread(new Worker(), "JCoreAudio Convolver " + i);
+      workers[i].setDaemon(true);
+      workers[i].setPriority(Thread.MAX_PRIORITY);
+      workers[i].start();
+    }
+  }
+  
+  private static int divideUp(int a, int b) {
+    return (a + b - 1) / b;
+  }
+  
+  /**
+   * Returns the spectra of the partitions of an impulse response, indexed by segment, partition,
+   * real or imaginary part and bin. They are scaled for the unnormalised inverse transform.
+   */
+  private float[][][][] transform(float[] impulseResponse) {
+    float[][][][] filter = new float[sizes.length][][][];
+    for (int i = 0; i < sizes.length; i++) {
+      int size = sizes[i];
+      Fft fft = new Fft(2 * size);
+      float[] partition = new float[2 * size];
+      filter[i] = new float[counts[i]][2][size + 1];
+      for (int k = 0; k < counts[i]; k++) {
+        int start = offsets[i] + k * size;
+        for (int n = 0; n < size; n++) {
+          partition[n] = (start + n < impulseResponse.length) ? impulseResponse[start + n] / (2 * size) : 0.0f;
+        }
+        fft.forward(partition, filter[i][k][0], filter[i][k][1]);
+      }
+    }
+    return filter;
+  }
+  
+  public int getNumChannels() {
+    return numChannels;
+  }
+  
+  public int getBlockSize() {
+    return blockSize;
+  }
+  
+  /** Returns the length of the longest impulse response, in frames. */
+  public int getLength() {
+    return length;
+  }
+  
+  /** Returns the latency added by the convolver, which is always zero. */
+  public int getLatency() {
+    return 0;
+  }
+  
+  /** Returns the number of worker threads. */
+  public int getNumThreads() {
+    return workers.length;
+  }
+  
+  /** Returns the partitions as a sum of counts and sizes, e.g. <code>4x64 + 2x128 + 38x8192</code>. */
+  public String getLayout() {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < sizes.length; i++) {
+      if (i > 0) sb.append(" + ");
+      sb.append(counts[i]).append('x').append(sizes[i]);
+    }
+    return sb.toString();
+  }
+  
+  /** Returns the number of results which were not ready when they were due, and were left out. */
+  public long getDeadlineMisses() {
+    return deadlineMisses.get();
+  }
+  
+  /** Returns the total time spent in <code>process()</code>, in nanoseconds. */
+  public long getCallbackNanos() {
+    return callbackNanos.get();
+  }
+  
+  /**
+   * Returns the total time spent computing the tail, in nanoseconds. Without worker threads, this
+   * is part of the time spent in <code>process()</code>.
+   */
+  public long getTailNanos() {
+    return tailNanos.get();
+  }
+  
+  /** Stops the worker threads. The convolver may no longer be used. */
+  public void close() {
+    if (!isOpen) return;
+    isOpen = false;
+    for (Thread worker : workers) {
+      LockSupport.unpark(worker);
+      try {
+        worker.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+  
+  /** Convolves one block of each channel. The views must have the block size and number of channels. */
+  public void process(AudioChannels inputs, AudioChannels outputs) {
+    process(inputs.getFloatBuffers(), outputs.getFloatBuffers());
+  }
+  
+  /**
+   * Convolves one block of each channel, replacing the output with the convolution of the input.
+   * The buffers are read and written from index zero, and may be the same.
+   */
+  public void process(FloatBuffer[] inputs, FloatBuffer[] outputs) {
+    long startNanos = System.nanoTime();
+    for (int c = 0; c < numChannels; c++) {
+      Channel channel = channels[c];
+      FloatBuffer input = inputs[c];
+      input.rewind();
+      input.get(block, 0, blockSize);
+      input.rewind();
+      channel.write(frame, block);
+      channel.convolveHead(frame, result);
+      for (int i = 1; i < sizes.length; i++) {
+        addTail(jobs[c * (sizes.length - 1) + i - 1], result);
+      }
+      FloatBuffer output = outputs[c];
+      output.rewind();
+      output.put(result, 0, blockSize);
+      output.rewind();
+    }
+    
+    // hand the blocks of input which are now complete to the workers
+    long end = frame + blockSize;
+    boolean isSubmitted = false;
+    for (int i = 0; i < jobs.length; i++) {
+      Job job = jobs[i];
+      if (end % job.size == 0) {
+        job.submitted = end / job.size;
+        if (workers.length == 0) {
+          long jobNanos = System.nanoTime();
+          job.run();
+          tailNanos.lazySet(tailNanos.get() + System.nanoTime() - jobNanos);
+        }
+        isSubmitted = true;
+      }
+    }
+    if (isSubmitted) {
+      for (int i = 0; i < workers.length; i++) {
+        LockSupport.unpark(workers[i]);
+      }
+    }
+    frame = end;
+    callbackNanos.lazySet(callbackNanos.get() + System.nanoTime() - startNanos);
+  }
+  
+  /** Adds the part of a segment's result which belongs to the current block. */
+  private void addTail(Job job, float[] output) {
+    long index = frame / job.size - 2;
+    if (index < 0L) return;
+    if (job.completed <= index) {
+      if (job.missedIndex != index) {
+        job.missedIndex = index;
+        deadlineMisses.lazySet(deadlineMisses.get() + 1L);
+      }
+      return;
+    }
+    float[] slot = job.slots[(int) index & 1];
+    int offset = (int) (frame % job.size);
+    for (int n = 0; n < blockSize; n++) {
+      output[n] += slot[offset + n];
+    }
+  }
+  
+  /** Multiplies the spectra of the delay line with those of the partitions, and accumulates them. */
+  private static void multiplyAccumulate(float[][][] delayLine, int index, float[][][] filter,
+      float[] accRe, float[] accIm) {
+    int numBins = accRe.length;
+    for (int n = 0; n < numBins; n++) {
+      accRe[n] = 0.0f;
+      accIm[n] = 0.0f;
+    }
+    int count = filter.length;
+    for (int k = 0; k < count; k++) {
+      int slot = index - k;
+      if (slot < 0) slot += count;
+      float[] xr = delayLine[slot][0];
+      float[] xi = delayLine[slot][1];
+      float[] hr = filter[k][0];
+      float[] hi = filter[k][1];
+      for (int n = 0; n < numBins; n++) {
+        accRe[n] += xr[n] * hr[n] - xi[n] * hi[n];
+        accIm[n] += xr[n] * hi[n] + xi[n] * hr[n];
+      }
+    }
+  }
+  
+  
+  /** The input history and the head of one channel. Only used by the audio thread, except as noted. */
+  private final class Channel {
+    /** The input, read by the workers up to the last frame which has been submitted. */
+    final float[] history;
+    final int historyMask;
+    final float[][][][] filter;
+    
+    final Fft fft;
+    final float[] window;
+    final float[][][] delayLine;
+    int delayIndex;
+    final float[] accRe;
+    final float[] accIm;
+    
+    Channel(int historySize, float[][][][] filter) {
+      this.history = new float[historySize];
+      this.historyMask = historySize - 1;
+      this.filter = filter;
+      fft = new Fft(2 * blockSize);
+      window = new float[2 * blockSize];
+      delayLine = new float[counts[0]][2][blockSize + 1];
+      accRe = new float[blockSize + 1];
+      accIm = new float[blockSize + 1];
+    }
+    
+    void write(long frame, float[] block) {
+      int offset = (int) frame & historyMask;
+      System.arraycopy(block, 0, history, offset, blockSize);
+    }
+    
+    /** Copies the <code>2 * size</code> frames of input which end at the given frame. */
+    void read(long end, float[] window, int size) {
+      int offset = (int) (end - 2 * size) & historyMask;
+      int first = Math.min(2 * size, history.length - offset);
+      System.arraycopy(history, offset, window, 0, first);
+      System.arraycopy(history, 0, window, first, 2 * size - first);
+    }
+    
+    void convolveHead(long frame, float[] output) {
+      read(frame + blockSize, window, blockSize);
+      delayIndex = (delayIndex + 1 == delayLine.length) ? 0 : delayIndex + 1;
+      fft.forward(window, delayLine[delayIndex][0], delayLine[delayIndex][1]);
+      multiplyAccumulate(delayLine, delayIndex, filter[0], accRe, accIm);
+      fft.inverse(accRe, accIm, window);
+      System.arraycopy(window, blockSize, output, 0, blockSize);
+    }
+  }
+  
+  /** One segment of the tail of one channel, computed by whichever worker claims it. */
+  private final class Job {
+    final Channel channel;
+    final int segment;
+    final int size;
+    
+    final Fft fft;
+    final float[] window;
+    final float[][][] delayLine;
+    int delayIndex;
+    final float[] accRe;
+    final float[] accIm;
+    
+    /** The results of alternate blocks of input, each of which is played for <code>size</code> frames. */
+    final float[][] slots;
+    
+    /** The number of blocks of input which have been submitted by the audio thread. */
+    volatile long submitted;
+    
+    /** The number of blocks whose result is in a slot. */
+    volatile long completed;
+    
+    final AtomicBoolean isClaimed;
+    
+    /** The last block which missed its deadline. Only used by the audio thread. */
+    long missedIndex;
+    
+    Job(Channel channel, int segment) {
+      this.channel = channel;
+      this.segment = segment;
+      this.size = sizes[segment];
+      fft = new Fft(2 * size);
+      window = new float[2 * size];
+      delayLine = new float[counts[segment]][2][size + 1];
+      delayIndex = counts[segment] - 1;
+      accRe = new float[size + 1];
+      accIm = new float[size + 1];
+      slots = new float[2][size];
+      isClaimed = new AtomicBoolean();
+      missedIndex = -1L;
+    }
+    
+    /** Returns the frame by which the next block must be complete. */
+    long getDeadline() {
+      return (completed + 2L) * size;
+    }
+    
+    /** Computes all submitted blocks. Called by the worker which has claimed the job. */
+    void run() {
+      for (long index = completed; index < submitted; index++) {
+        channel.read((index + 1L) * size, window, size);
+        delayIndex = (delayIndex + 1 == delayLine.length) ? 0 : delayIndex + 1;
+        fft.forward(window, delayLine[delayIndex][0], delayLine[delayIndex][1]);
+        multiplyAccumulate(delayLine, delayIndex, channel.filter[segment], accRe, accIm);
+        fft.inverse(accRe, accIm, window);
+        System.arraycopy(window, size, slots[(int) index & 1], 0, size);
+        completed = index + 1L; // publishes the slot
+      }
+    }
+  }
+  
+  /** Computes the tail, always taking the pending job with the earliest deadline. */
+  private final class Worker implements Runnable {
+    @Override
+    public void run() {
+      while (isOpen) {
+        Job job = claim();
+        if (job == null) {
+          LockSupport.parkNanos(POLL_NANOS);
+          continue;
+        }
+        long startNanos = System.nanoTime();
+        try {
+          job.run();
+        } finally {
+          job.isClaimed.set(false);
+        }
+        tailNanos.addAndGet(System.nanoTime() - startNanos);
+      }
+    }
+    
+    private Job claim() {
+      while (true) {
+        Job earliest = null;
+        long earliestDeadline = Long.MAX_VALUE;
+        for (int i = 0; i < jobs.length; i++) {
+          Job job = jobs[i];
+          if (job.submitted > job.completed && !job.isClaimed.get()) {
+            long deadline = job.getDeadline();
+            if (deadline < earliestDeadline) {
+              earliest = job;
+              earliestDeadline = deadline;
+            }
+          }
+        }
+        if (earliest == null) return null;
+        if (earliest.isClaimed.compareAndSet(false, true)) {
+          if (earliest.submitted > earliest.completed) return earliest;
+          earliest.isClaimed.set(false);
+        }
+      }
+    }
+  }
+}
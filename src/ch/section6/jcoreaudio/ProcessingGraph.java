@@ -0,0 +1,571 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package ch.section6.jcoreaudio;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <code>ProcessingGraph</code> spreads the processing of each block over several cores. The
+ * processing is split into {@link ProcessingNode}s, each of which declares the buffers which it
+ * reads and writes. The graph is registered as the channel listener:
+ * <pre>
+ * ProcessingGraph graph = new ProcessingGraph(64, 64, 0, blockSize, jca.getSampleRate(), 3);
+ * for (int c = 0; c &lt; 64; c++) {
+ *   graph.addNode(new Equaliser(c), new int[] {graph.getInputBuffer(c)},
+ *       new int[] {graph.getOutputBuffer(c)});
+ *   graph.addNode(new Compressor(c), new int[] {graph.getOutputBuffer(c)},
+ *       new int[] {graph.getOutputBuffer(c)});
+ * }
+ * jca.setChannelListener(graph);
+ * </pre>
+ * The buffers are arrays of the block size, owned by the graph: first one for each input channel,
+ * which are filled in the input callback, then one for each output channel, which are written to
+ * the outputs at the end of the output callback, and then any number of scratch buffers. The
+ * dependencies follow from the order in which the nodes are added, as in a sequential program: a
+ * node runs after the last node added before it which writes a buffer that it reads or writes, and
+ * after the nodes since then which read a buffer that it writes. The result is therefore the same
+ * as if the nodes were run one after the other in that order, which is also how they are run
+ * without worker threads.<br/>
+ * <br/>
+ * In the output callback, the nodes without dependencies are placed in a lock-free queue. The
+ * audio thread and the workers claim nodes from the queue, and a node whose last dependency
+ * completes is added to it. The block is complete once every node has run; the audio thread waits
+ * for this at a barrier, which is a counter of the completed nodes. Nodes are claimed as they
+ * become ready, so a worker which is late for a block simply takes part in less of it.<br/>
+ * <br/>
+ * The audio thread waits for at most half a block period. If a worker has stalled in a node by
+ * then, the audio thread runs any node which is ready but not yet claimed, and leaves the nodes
+ * which depend on the stalled one to the workers. The block is output as it stands, and counted
+ * as incomplete. The workers finish it, and the next block begins only once they have, so that
+ * no buffer is processed for two blocks at once. Until then, each block is helped along for at
+ * most the same time and then skipped, and is counted as incomplete as well.<br/>
+ * <br/>
+ * The workers spin between blocks so that they start without delay, and park if no block has
+ * arrived for a few block periods. A block which begins while any worker is parked is run
+ * serially on the audio thread, and wakes the workers for the next one. Java offers no way to
+ * pin threads to cores, so the workers run at the highest priority instead. Neither the audio
+ * thread nor the workers lock or allocate.<br/>
+ * <br/>
+ * An exception thrown by a node on the audio thread propagates out of {@link #process(double)}.
+ * One thrown on a worker is caught by the worker, which carries on with the next block, and the
+ * graph is marked as failed: the next call of <code>process()</code> throws an
+ * <code>IllegalStateException</code> caused by it instead of running the block. The other nodes
+ * of the block in which it was thrown are still run.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public final class ProcessingGraph implements CoreAudioChannelListener {
+  
+  /** How long an idle worker spins before it parks, in block periods. */
+  private static final double SPIN_PERIODS = 4.0;
+  
+  /** How long the audio thread waits for the workers to finish a block, in block periods. */
+  private static final double WAIT_PERIODS = 0.5;
+  
+  /** How long a parked worker waits before checking for work again. */
+  private static final long POLL_NANOS = 1000000L;
+  
+  private final int numInputs;
+  private final int numOutputs;
+  private final int blockSize;
+  private final float sampleRate;
+  private final long periodNanos;
+  private final float[][] buffers;
+  
+  // the state from which the dependencies of the next node are derived. Guarded by this.
+  private final List<ProcessingNode> nodes;
+  private final List<Set<Integer>> dependencies;
+  private final int[] lastWriters;
+  private final List<List<Integer>> readers;
+  
+  /** The schedule of the current nodes. Replaced, never modified, when a node is added. */
+  private volatile Schedule schedule;
+  
+  private final Worker[] workers;
+  private final Thread[] threads;
+  private volatile boolean isOpen;
+  
+  /** The number of the current block, and the schedule with which it is run, for the workers. */
+  private volatile long cycle;
+  private volatile Schedule running;
+  
+  private final AtomicLong parallelBlocks;
+  private final AtomicLong serialBlocks;
+  private final AtomicLong lateBlocks;
+  private final AtomicLong incompleteBlocks;
+  private final AtomicLong failedBlocks;
+  
+  /** The first exception thrown by a node on a worker since the last call of process(). */
+  private final AtomicReference<RuntimeException> failure;
+  
+  /**
+   * @param numInputs  The number of input channels, each of which has a buffer.
+   * @param numOutputs  The number of output channels, each of which has a buffer.
+   * @param numScratch  The number of further buffers, for intermediate results.
+   * @param numThreads  The number of worker threads. If zero, the nodes are run on the audio thread
+   *     in the order in which they were added.
+   */
+  public ProcessingGraph(int numInputs, int numOutputs, int numScratch, int blockSize,
+      float sampleRate, int numThreads) {
+    if (numInputs < 0 || numOutputs < 0 || numScratch < 0 || numThreads < 0) {
+      throw new IllegalArgumentException("The numbers of buffers and threads may not be negative.");
+    }
+    if (blockSize <= 0 || sampleRate <= 0.0f) {
+      throw new IllegalArgumentException("The block size and sample rate must be positive.");
+    }
+    this.numInputs = numInputs;
+    this.numOutputs = numOutputs;
+    this.blockSize = blockSize;
+    this.sampleRate = sampleRate;
+    this.periodNanos = (long) (1.0e9 * blockSize / sampleRate);
+    int numBuffers = numInputs + numOutputs + numScratch;
+    buffers = new float[numBuffers][blockSize];
+    
+    nodes = new ArrayList<ProcessingNode>();
+    dependencies = new ArrayList<Set<Integer>>();
+    lastWriters = new int[numBuffers];
+    Arrays.fill(lastWriters, -1);
+    readers = new ArrayList<List<Integer>>();
+    for (int i = 0; i < numBuffers; i++) {
+      readers.add(new ArrayList<Integer>());
+    }
+    schedule = new Schedule(nodes, dependencies);
+    parallelBlocks = new AtomicLong();
+    serialBlocks = new AtomicLong();
+    lateBlocks = new AtomicLong();
+    incompleteBlocks = new AtomicLong();
+    failedBlocks = new AtomicLong();
+    failure = new AtomicReference<RuntimeException>();
+    
+    isOpen = true;
+    workers = new Worker[numThreads];
+    threads = new Thread[numThreads];
+    for (int i = 0; i < numThreads; i++) {
+      workers[i] = new Worker();
+      threads[i] = new Thread(workers[i], "JCoreAudio Graph " + i);
+      threads[i].setDaemon(true);
+      threads[i].setPriority(Thread.MAX_PRIORITY);
+      threads[i].start();
+    }
+  }
+  
+  public int getBlockSize() {
+    return blockSize;
+  }
+  
+  public float getSampleRate() {
+    return sampleRate;
+  }
+  
+  /** Returns the number of buffers, of all kinds. */
+  public int getNumBuffers() {
+    return buffers.length;
+  }
+  
+  /** Returns the index of the buffer of the given input channel. */
+  public int getInputBuffer(int channel) {
+    if (channel < 0 || channel >= numInputs) {
+      throw new IllegalArgumentException("The input channel " + channel + " does not exist.");
+    }
+    return channel;
+  }
+  
+  /** Returns the index of the buffer of the given output channel. */
+  public int getOutputBuffer(int channel) {
+    if (channel < 0 || channel >= numOutputs) {
+      throw new IllegalArgumentException("The output channel " + channel + " does not exist.");
+    }
+    return numInputs + channel;
+  }
+  
+  /** Returns the index of the given scratch buffer. */
+  public int getScratchBuffer(int index) {
+    if (index < 0 || numInputs + numOutputs + index >= buffers.length) {
+      throw new IllegalArgumentException("The scratch buffer " + index + " does not exist.");
+    }
+    return numInputs + numOutputs + index;
+  }
+  
+  /** Returns the number of worker threads. */
+  public int getNumThreads() {
+    return threads.length;
+  }
+  
+  public synchronized int getNumNodes() {
+    return nodes.size();
+  }
+  
+  /** Returns the number of blocks which were run in parallel. */
+  public long getParallelBlocks() {
+    return parallelBlocks.get();
+  }
+  
+  /** Returns the number of blocks which were run serially, because a worker was not ready. */
+  public long getSerialBlocks() {
+    return serialBlocks.get();
+  }
+  
+  /** Returns the number of blocks which took longer than the block period. */
+  public long getLateBlocks() {
+    return lateBlocks.get();
+  }
+  
+  /**
+   * Returns the number of blocks which were output incomplete, because a worker stalled in a node
+   * of the block or of one before it.
+   */
+  public long getIncompleteBlocks() {
+    return incompleteBlocks.get();
+  }
+  
+  /** Returns the number of blocks which were not run, because a node had thrown on a worker. */
+  public long getFailedBlocks() {
+    return failedBlocks.get();
+  }
+  
+  /**
+   * Adds a node to the graph. Its dependencies on the nodes already in the graph are derived from
+   * the buffers which it reads and writes. It takes effect from the next block.
+   * @param reads  The buffers which the node reads. A buffer which is read and written need only
+   *     be given as written.
+   * @param writes  The buffers which the node writes.
+   * @return  The index of the node.
+   */
+  public synchronized int addNode(ProcessingNode node, int[] reads, int[] writes) {
+    for (int b : reads) checkBuffer(b);
+    for (int b : writes) checkBuffer(b);
+    int index = nodes.size();
+    Set<Integer> after = new LinkedHashSet<Integer>();
+    for (int b : reads) {
+      if (lastWriters[b] >= 0) after.add(lastWriters[b]);
+    }
+    for (int b : writes) {
+      if (lastWriters[b] >= 0) after.add(lastWriters[b]);
+      after.addAll(readers.get(b));
+    }
+    after.remove(index);
+    for (int b : reads) {
+      readers.get(b).add(index);
+    }
+    for (int b : writes) {
+      lastWriters[b] = index;
+      readers.get(b).clear();
+    }
+    nodes.add(node);
+    dependencies.add(after);
+    schedule = new Schedule(nodes, dependencies);
+    return index;
+  }
+  
+  /** Removes all nodes. It takes effect from the next block. */
+  public synchronized void clear() {
+    nodes.clear();
+    dependencies.clear();
+    Arrays.fill(lastWriters, -1);
+    for (List<Integer> list : readers) {
+      list.clear();
+    }
+    schedule = new Schedule(nodes, dependencies);
+  }
+  
+  private void checkBuffer(int buffer) {
+    if (buffer < 0 || buffer >= buffers.length) {
+      throw new IllegalArgumentException("The buffer " + buffer + " does not exist.");
+    }
+  }
+  
+  /** Stops the worker threads. The graph may no longer be used. */
+  public void close() {
+    if (!isOpen) return;
+    isOpen = false;
+    for (Thread thread : threads) {
+      LockSupport.unpark(thread);
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+  
+  
+  // ------ Audio Thread ------
+  
+  /** Copies the input channels into their buffers. Channels beyond those of the graph are ignored. */
+  @Override
+  public void onCoreAudioInput(double timestamp, AudioChannels inputs) {
+    int available = Math.min(numInputs, inputs.getNumChannels());
+    for (int c = 0; c < available; c++) {
+      inputs.read(c, buffers[c], 0);
+    }
+  }
+  
+  /** Runs all nodes, and copies the output buffers into the output channels. */
+  @Override
+  public void onCoreAudioOutput(double timestamp, AudioChannels outputs) {
+    process(timestamp);
+    int available = Math.min(numOutputs, outputs.getNumChannels());
+    for (int c = 0; c < available; c++) {
+      outputs.write(c, buffers[numInputs + c], 0);
+    }
+  }
+  
+  /**
+   * Runs all nodes for one block, in parallel if the workers are ready. Called on the audio
+   * thread, by <code>onCoreAudioOutput()</code>.
+   * @throws IllegalStateException  If a node has thrown an exception on a worker since the last
+   *     call, in which case the block is not run. The graph may be used again thereafter.
+   */
+  public void process(double timestamp) {
+    RuntimeException e = failure.getAndSet(null);
+    if (e != null) {
+      failedBlocks.lazySet(failedBlocks.get() + 1L);
+      throw new IllegalStateException("A node of the graph threw an exception on a worker thread.", e);
+    }
+    long startNanos = System.nanoTime();
+    long deadline = startNanos + (long) (WAIT_PERIODS * periodNanos);
+    Schedule last = running;
+    if (last != null && !last.isComplete() && !await(last, cycle, deadline)) {
+      // a worker is still stalled in an earlier block, with which this one may not overlap
+      incompleteBlocks.lazySet(incompleteBlocks.get() + 1L);
+      return;
+    }
+    Schedule s = schedule;
+    boolean isReady = workers.length > 0 && s.nodes.length > 1;
+    for (int i = 0; i < workers.length; i++) {
+      if (workers[i].isParked) {
+        // run this block serially, and have the worker spinning for the next
+        isReady = false;
+        LockSupport.unpark(threads[i]);
+      }
+    }
+    if (isReady) {
+      long c = cycle + 1L;
+      s.begin(c, timestamp);
+      running = s;
+      cycle = c; // publishes the block to the workers
+      if (!await(s, c, deadline)) {
+        // the nodes which depend on the stalled one are left to the workers
+        incompleteBlocks.lazySet(incompleteBlocks.get() + 1L);
+      }
+      parallelBlocks.lazySet(parallelBlocks.get() + 1L);
+    } else {
+      ProcessingNode[] serial = s.nodes;
+      for (int i = 0; i < serial.length; i++) {
+        serial[i].process(timestamp, buffers);
+      }
+      if (workers.length > 0) serialBlocks.lazySet(serialBlocks.get() + 1L);
+    }
+    if (System.nanoTime() - startNanos > periodNanos) {
+      lateBlocks.lazySet(lateBlocks.get() + 1L);
+    }
+  }
+  
+  
+  /**
+   * Runs the nodes of the given block on the audio thread as they become ready, and waits for the
+   * workers to complete the rest, until the deadline.
+   * @return  <code>true</code> if the block was completed in time.
+   */
+  private boolean await(Schedule s, long c, long deadline) {
+    s.run(c, buffers, deadline);
+    while (!s.isComplete()) {
+      if (System.nanoTime() - deadline > 0L) {
+        // a worker has stalled, so run any node which has become ready since, and leave the rest
+        s.run(c, buffers, deadline);
+        return s.isComplete();
+      }
+      Thread.yield(); // only while the last nodes are being run by the workers
+    }
+    return true;
+  }
+  
+  
+  // ------ Scheduling ------
+  
+  /** The nodes and their dependencies, and the state of the block which is being run. */
+  private static final class Schedule {
+    final ProcessingNode[] nodes;
+    final int[][] successors;
+    final int[] numDependencies;
+    final int[] roots;
+    
+    /** The number of dependencies of each node which have not yet completed. */
+    final AtomicIntegerArray remaining;
+    
+    /**
+     * The queue of nodes which are ready to run. Each entry is the cycle in the upper half and the
+     * node in the lower half, so that entries of earlier blocks are not taken for new ones. Each
+     * node is queued once per block, so the queue never wraps. The head carries the cycle in the
+     * same way, so that a worker which is still leaving the last block cannot claim from this one.
+     */
+    final AtomicLongArray ready;
+    final AtomicLong head;
+    final AtomicInteger tail;
+    final AtomicInteger completed;
+    
+    /** The timestamp of the current block. Published with the cycle. */
+    double timestamp;
+    
+    Schedule(List<ProcessingNode> nodeList, List<Set<Integer>> dependencies) {
+      int n = nodeList.size();
+      nodes = nodeList.toArray(new ProcessingNode[n]);
+      numDependencies = new int[n];
+      List<List<Integer>> next = new ArrayList<List<Integer>>();
+      for (int i = 0; i < n; i++) {
+        next.add(new ArrayList<Integer>());
+      }
+      List<Integer> rootList = new ArrayList<Integer>();
+      for (int i = 0; i < n; i++) {
+        numDependencies[i] = dependencies.get(i).size();
+        if (numDependencies[i] == 0) rootList.add(i);
+        for (int d : dependencies.get(i)) {
+          next.get(d).add(i);
+        }
+      }
+      successors = new int[n][];
+      for (int i = 0; i < n; i++) {
+        successors[i] = toArray(next.get(i));
+      }
+      roots = toArray(rootList);
+      remaining = new AtomicIntegerArray(n);
+      ready = new AtomicLongArray(Math.max(1, n));
+      head = new AtomicLong();
+      tail = new AtomicInteger();
+      completed = new AtomicInteger();
+    }
+    
+    private static int[] toArray(List<Integer> list) {
+      int[] array = new int[list.size()];
+      for (int i = 0; i < array.length; i++) {
+        array[i] = list.get(i);
+      }
+      return array;
+    }
+    
+    /** Resets the state for a new block, and queues the nodes without dependencies. */
+    void begin(long cycle, double timestamp) {
+      this.timestamp = timestamp;
+      for (int i = 0; i < nodes.length; i++) {
+        remaining.lazySet(i, numDependencies[i]);
+      }
+      head.set(cycle << 32);
+      tail.set(0);
+      completed.set(0);
+      for (int i = 0; i < roots.length; i++) {
+        push(cycle, roots[i]);
+      }
+    }
+    
+    private void push(long cycle, int node) {
+      int t = tail.getAndIncrement();
+      ready.set(t, (cycle << 32) | node);
+    }
+    
+    boolean isComplete() {
+      return completed.get() == nodes.length;
+    }
+    
+    /** Runs the nodes of the given block until none are left to claim. */
+    void run(long cycle, float[][] buffers) {
+      run(cycle, buffers, false, 0L);
+    }
+    
+    /**
+     * Runs the nodes of the given block until none are left to claim, or until the deadline if no
+     * node is ready by then.
+     */
+    void run(long cycle, float[][] buffers, long deadline) {
+      run(cycle, buffers, true, deadline);
+    }
+    
+    private void run(long cycle, float[][] buffers, boolean hasDeadline, long deadline) {
+      while (true) {
+        long tagged = head.get();
+        int h = (int) tagged;
+        if ((tagged >>> 32) != cycle || h >= nodes.length) return; // all nodes have been claimed
+        long entry = ready.get(h);
+        if ((entry >>> 32) != cycle) {
+          // not yet queued; return if the block is over, otherwise wait for a node to complete
+          if (completed.get() == nodes.length) return;
+          if (hasDeadline && System.nanoTime() - deadline > 0L) return;
+          Thread.yield();
+          continue;
+        }
+        if (!head.compareAndSet(tagged, tagged + 1L)) continue;
+        int node = (int) entry;
+        try {
+          nodes[node].process(timestamp, buffers);
+        } finally {
+          int[] next = successors[node];
+          for (int i = 0; i < next.length; i++) {
+            if (remaining.decrementAndGet(next[i]) == 0) push(cycle, next[i]);
+          }
+          completed.incrementAndGet();
+        }
+      }
+    }
+  }
+  
+  /** Runs nodes whenever the audio thread begins a block, and spins in between. */
+  private final class Worker implements Runnable {
+    volatile boolean isParked;
+    
+    @Override
+    public void run() {
+      long spinNanos = (long) (SPIN_PERIODS * periodNanos);
+      long seen = cycle;
+      long idleNanos = System.nanoTime();
+      while (isOpen) {
+        long c = cycle;
+        if (c != seen) {
+          seen = c;
+          try {
+            running.run(c, buffers);
+          } catch (RuntimeException e) {
+            // the worker would otherwise end, and the audio thread would wait for it in vain. The
+            // node has been counted as completed, so the rest of the block is run by the others.
+            failure.compareAndSet(null, e);
+          }
+          idleNanos = System.nanoTime();
+        } else if (System.nanoTime() - idleNanos < spinNanos) {
+          Thread.yield();
+        } else {
+          isParked = true;
+          if (cycle == seen && isOpen) LockSupport.parkNanos(POLL_NANOS);
+          isParked = false;
+          idleNanos = System.nanoTime();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,41 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package ch.section6.jcoreaudio;
+
+/**
+ * <code>ProcessingNode</code> is one step of the processing of a {@link ProcessingGraph}, e.g. the
+ * equaliser of one channel. It reads and writes the buffers which it declared when it was added to
+ * the graph, and no others.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public interface ProcessingNode {
+  
+  /**
+   * Processes one block. Called on the audio thread or on a worker of the graph, so it may neither
+   * lock nor allocate. Nodes which do not depend on one another may be called at the same time.
+   * @param timestamp  The time in samples at the beginning of the block.
+   * @param buffers  All buffers of the graph, each of the block size.
+   */
+  public void process(double timestamp, float[][] buffers);
+  
+}
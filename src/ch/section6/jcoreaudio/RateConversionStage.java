@@ -0,0 +1,210 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package ch.section6.jcoreaudio;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <code>RateConversionStage</code> runs the listener at a sample rate other than that of the
+ * device. The device callbacks fill and drain buffers of their own. Their input is converted to
+ * the processing rate and queued, and their output is taken from a queue which is filled by
+ * running as many blocks of the listener as necessary and converting their output to the device
+ * rate. A device callback may therefore cause zero, one or two listener callbacks, each of a
+ * whole block at the processing rate and with timestamps counted at that rate.<br/>
+ * <br/>
+ * If the device has both input and output, one block of input is queued ahead, so that the
+ * listener always receives input which has arrived. The added latency is this block, if any, plus
+ * the delays of the two {@link SampleRateConverter}s and up to one block at the device rate.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+final class RateConversionStage {
+  
+  private final int blockSize;
+  private final double ratio;
+  private final boolean hasInput;
+  private final boolean hasOutput;
+  
+  // device to listener. The queue is written by the input callback and read by the output callback.
+  private final FloatBuffer[] deviceInputs;
+  private final FloatBuffer[] inputs;
+  private final SampleRateConverter inputConverter;
+  private final float[][] convertedInput;
+  private final FloatRingBuffer inputQueue;
+  
+  // listener to device. Only used by the output callback.
+  private final FloatBuffer[] outputs;
+  private final FloatBuffer[] deviceOutputs;
+  private final SampleRateConverter outputConverter;
+  private final float[][] outputQueue;
+  private int numQueuedOutput;
+  
+  private double processingTime;
+  private double expectedDeviceTime;
+  private boolean isTimed;
+  
+  private final AtomicLong inputUnderruns;
+  
+  /**
+   * @param inputLets  The input lets as given to the listener. Their buffers are allocated here.
+   * @param deviceInputLets  Copies of the same lets, whose buffers have been assigned by the backend.
+   */
+  RateConversionStage(AudioLet[] inputLets, AudioLet[] deviceInputLets, AudioLet[] outputLets,
+      AudioLet[] deviceOutputLets, int blockSize, float sampleRate, float deviceSampleRate,
+      SampleRateConverter.Quality quality) {
+    this.blockSize = blockSize;
+    this.ratio = (double) sampleRate / deviceSampleRate;
+    
+    this.inputs = allocateBuffers(inputLets, blockSize);
+    this.deviceInputs = new AudioChannels(deviceInputLets, blockSize).getFloatBuffers();
+    this.hasInput = inputs.length > 0;
+    if (hasInput) {
+      inputConverter = new SampleRateConverter(inputs.length, deviceSampleRate, sampleRate, quality, blockSize);
+      convertedInput = new float[inputs.length][inputConverter.getMaxOutputFrames(blockSize)];
+      inputQueue = new FloatRingBuffer(inputs.length, 4 * (blockSize + convertedInput[0].length));
+    } else {
+      inputConverter = null;
+      convertedInput = null;
+      inputQueue = null;
+    }
+    
+    this.outputs = allocateBuffers(outputLets, blockSize);
+    this.deviceOutputs = new AudioChannels(deviceOutputLets, blockSize).getFloatBuffers();
+    this.hasOutput = outputs.length > 0;
+    if (hasOutput) {
+      outputConverter = new SampleRateConverter(outputs.length, sampleRate, deviceSampleRate, quality, blockSize);
+      outputQueue = new float[outputs.length][blockSize + outputConverter.getMaxOutputFrames(blockSize)];
+    } else {
+      outputConverter = null;
+      outputQueue = null;
+    }
+    inputUnderruns = new AtomicLong();
+  }
+  
+  private static FloatBuffer[] allocateBuffers(AudioLet[] lets, int blockSize) {
+    for (AudioLet let : lets) {
+      for (int i = 0; i < let.numChannels; i++) {
+        let.setChannelBuffer(i, AudioBackend.allocateChannelBuffer(blockSize));
+      }
+    }
+    return new AudioChannels(lets, blockSize).getFloatBuffers();
+  }
+  
+  /**
+   * Returns the latency added by the conversion, in frames at the device rate. It is that of input
+   * plus output, including the block which is queued ahead and the block which the output queue
+   * may hold.
+   */
+  double getLatency() {
+    double latency = 0.0;
+    if (hasInput) {
+      latency += inputConverter.getLatency();
+      if (hasOutput) latency += blockSize / ratio;
+    }
+    if (hasOutput) {
+      latency += outputConverter.getLatency() / ratio + blockSize;
+    }
+    return latency;
+  }
+  
+  /** Returns the number of listener blocks whose input had not yet arrived and was silent. */
+  long getInputUnderruns() {
+    return inputUnderruns.get();
+  }
+  
+  /** Empties the queues and converters. Only while no callbacks are made. */
+  void reset() {
+    if (hasInput) {
+      inputConverter.reset();
+      inputQueue.reset();
+      if (hasOutput) {
+        // queue one block ahead, as the listener may need a whole block before the next input
+        for (float[] channel : convertedInput) {
+          java.util.Arrays.fill(channel, 0.0f);
+        }
+        inputQueue.write(convertedInput, 0, blockSize);
+      }
+    }
+    if (hasOutput) {
+      outputConverter.reset();
+      numQueuedOutput = 0;
+    }
+    processingTime = 0.0;
+    isTimed = false;
+    inputUnderruns.set(0L);
+  }
+  
+  /** Called by the input callback of the device. */
+  void onDeviceInput(double timestamp) {
+    int n = inputConverter.process(deviceInputs, blockSize, convertedInput, 0);
+    inputQueue.write(convertedInput, 0, n);
+    if (!hasOutput) {
+      updateTime(timestamp);
+      while (inputQueue.availableToRead() >= blockSize) {
+        process();
+      }
+    }
+  }
+  
+  /** Called by the output callback of the device. */
+  void onDeviceOutput(double timestamp) {
+    updateTime(timestamp);
+    while (numQueuedOutput < blockSize) {
+      process();
+    }
+    for (int c = 0; c < outputs.length; c++) {
+      float[] queue = outputQueue[c];
+      FloatBuffer buffer = deviceOutputs[c];
+      buffer.clear();
+      buffer.put(queue, 0, blockSize);
+      buffer.clear();
+      System.arraycopy(queue, blockSize, queue, 0, numQueuedOutput - blockSize);
+    }
+    numQueuedOutput -= blockSize;
+  }
+  
+  /** Follows discontinuities of the device clock in the timestamps of the listener. */
+  private void updateTime(double timestamp) {
+    if (isTimed && timestamp != expectedDeviceTime) {
+      processingTime += Math.rint((timestamp - expectedDeviceTime) * ratio);
+    }
+    expectedDeviceTime = timestamp + blockSize;
+    isTimed = true;
+  }
+  
+  /** Runs one block of the listener at the processing rate. */
+  private void process() {
+    if (hasInput) {
+      if (!inputQueue.read(inputs, blockSize)) {
+        inputUnderruns.lazySet(inputUnderruns.get() + 1L);
+        JCoreAudio.jcoreaudio.diagnostics.log(DiagnosticLog.INPUT_UNDERRUN, processingTime);
+      }
+      JCoreAudio.processInput(processingTime);
+    }
+    if (hasOutput) {
+      JCoreAudio.processOutput(processingTime);
+      numQueuedOutput += outputConverter.process(outputs, blockSize, outputQueue, numQueuedOutput);
+    }
+    processingTime += blockSize;
+  }
+}
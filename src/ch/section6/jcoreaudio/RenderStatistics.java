@@ -0,0 +1,69 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio;
+
+/**
+ * <code>RenderStatistics</code> describes the result of an offline render, as returned by
+ * {@link JCoreAudio#renderOffline(java.io.File, java.io.File, long)}.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class RenderStatistics {
+  
+  /** The number of frames rendered. */
+  public final long numFrames;
+  
+  /** The sample rate at which the frames were rendered. */
+  public final float sampleRate;
+  
+  /** The wall-clock time taken by the render, in nanoseconds. */
+  public final long elapsedNanos;
+  
+  RenderStatistics(long numFrames, float sampleRate, long elapsedNanos) {
+    this.numFrames = numFrames;
+    this.sampleRate = sampleRate;
+    this.elapsedNanos = elapsedNanos;
+  }
+  
+  /** Returns the duration of the rendered audio in seconds. */
+  public double getAudioSeconds() {
+    return numFrames / (double) sampleRate;
+  }
+  
+  /** Returns the wall-clock time taken by the render in seconds. */
+  public double getElapsedSeconds() {
+    return elapsedNanos / 1000000000.0;
+  }
+  
+  /**
+   * Returns the ratio of rendered audio time to wall-clock time. A value of 80 means that one
+   * second of audio was rendered in 1/80 of a second.
+   */
+  public double getRealTimeFactor() {
+    return (elapsedNanos > 0) ? getAudioSeconds() / getElapsedSeconds() : Double.POSITIVE_INFINITY;
+  }
+  
+  @Override
+  public String toString() {
+    return String.format("Rendered %d frames (%.3fs) in %.3fs: %.1fx real time",
+        numFrames, getAudioSeconds(), getElapsedSeconds(), getRealTimeFactor());
+  }
+}
@@ -0,0 +1,467 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <code>SampleCache</code> keeps the samples of sampler-style instruments off the Java heap, in a
+ * fixed-size arena of direct memory, so that thousands of resident samples add nothing to garbage
+ * collection pause times.<br/>
+ * <br/>
+ * The arena is divided into pages of {@link #PAGE_FRAMES} frames of one channel. The first
+ * <code>headFrames</code> of every sample, its attack, are loaded when the sample is added and are
+ * pinned for as long as it stays in the cache. The rest of the sample, its tail, is loaded on a
+ * background thread when the sample is first read, and is evicted again, least recently used
+ * first, when the arena is full. A voice which is started from the head thus always has its
+ * attack, while the tail streams back in behind it.<br/>
+ * <br/>
+ * {@link Sample#read(int, long, FloatBuffer, int, int)} may be called from the audio thread. It is
+ * lock-free and does not allocate: frames which are not resident are rendered as silence and
+ * counted as a miss, and a load of the tail is requested.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class SampleCache {
+  
+  /** The number of frames of one channel in each page of the arena. */
+  public static final int PAGE_FRAMES = 4096;
+  
+  /** The largest region of the arena which is allocated as a single direct buffer. */
+  private static final int ARENA_BYTES = 1 << 30;
+  
+  private static final int PAGES_PER_ARENA = ARENA_BYTES / (4 * PAGE_FRAMES);
+  
+  /** The time for which the loader thread sleeps when there is nothing to load. */
+  private static final long POLL_NANOS = 2000000L;
+  
+  // the states of the tail of a sample
+  private static final int ABSENT = 0;
+  private static final int RESIDENT = 1;
+  private static final int EVICTING = 2;
+  
+  private final FloatBuffer[] arenas;
+  private final int numPages;
+  private final int headFrames;
+  
+  /** The indices of all free pages. Only modified while synchronized. */
+  private final int[] freePages;
+  private int numFreePages;
+  
+  /** All samples in the cache. Replaced, never modified, when samples are added or removed. */
+  private volatile Sample[] samples;
+  
+  /** A coarse clock which is advanced by the loader thread, and used to time accesses for eviction. */
+  private volatile long tick;
+  
+  private final AtomicLong hits;
+  private final AtomicLong misses;
+  private final AtomicLong loads;
+  private final AtomicLong evictions;
+  
+  private final Thread loaderThread;
+  private volatile boolean isOpen;
+  
+  /**
+   * @param capacityBytes  The size of the arena in bytes. The heads and resident tails of all
+   *     samples share it.
+   * @param headFrames  The number of frames at the start of every sample which are pinned.
+   */
+  public SampleCache(long capacityBytes, int headFrames) {
+    if (capacityBytes < 4L * PAGE_FRAMES) {
+      throw new IllegalArgumentException("The capacity must hold at least one page: " + capacityBytes);
+    }
+    if (headFrames < 0) {
+      throw new IllegalArgumentException("The number of head frames may not be negative: " + headFrames);
+    }
+    long pages = capacityBytes / (4L * PAGE_FRAMES);
+    if (pages > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("The capacity is too large: " + capacityBytes);
+    }
+    this.numPages = (int) pages;
+    this.headFrames = headFrames;
+    arenas = new FloatBuffer[(numPages + PAGES_PER_ARENA - 1) / PAGES_PER_ARENA];
+    for (int i = 0; i < arenas.length; i++) {
+      int arenaPages = Math.min(PAGES_PER_ARENA, numPages - i * PAGES_PER_ARENA);
+      arenas[i] = ByteBuffer.allocateDirect(4 * PAGE_FRAMES * arenaPages)
+          .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+    freePages = new int[numPages];
+    for (int i = 0; i < numPages; i++) {
+      freePages[i] = numPages - 1 - i; // so that pages are handed out from the start of the arena
+    }
+    numFreePages = numPages;
+    samples = new Sample[0];
+    hits = new AtomicLong();
+    misses = new AtomicLong();
+    loads = new AtomicLong();
+    evictions = new AtomicLong();
+    
+    isOpen = true;
+    loaderThread = new Thread(new Loader(), "JCoreAudio Sample Loader");
+    loaderThread.setDaemon(true);
+    loaderThread.start();
+  }
+  
+  /**
+   * Adds a WAV file to the cache and loads its head. Its tail is loaded when it is first read.
+   * @throws IllegalStateException  If the heads of all samples no longer fit into the arena.
+   */
+  public synchronized Sample add(File file) throws IOException {
+    WaveFileReader reader = new WaveFileReader(file);
+    try {
+      Sample sample = new Sample(file, reader.getNumChannels(), reader.getSampleRate(),
+          reader.getNumFrames());
+      int numHeadPages = sample.numHeadPages;
+      if (!reserve(numHeadPages * sample.numChannels, null)) {
+        throw new IllegalStateException("The SampleCache is too small to hold the heads of all samples.");
+      }
+      loadPages(sample, reader, 0, numHeadPages);
+      
+      Sample[] newSamples = Arrays.copyOf(samples, samples.length + 1);
+      newSamples[samples.length] = sample;
+      samples = newSamples;
+      return sample;
+    } finally {
+      reader.close();
+    }
+  }
+  
+  /**
+   * Removes a sample from the cache and frees its pages. Waits for any reads of the sample which
+   * are in progress to complete. The sample must not be read afterwards.
+   */
+  public synchronized void remove(Sample sample) {
+    List<Sample> list = new ArrayList<Sample>(Arrays.asList(samples));
+    if (!list.remove(sample)) return;
+    samples = list.toArray(new Sample[list.size()]);
+    sample.isRemoved = true;
+    while (sample.readers.get() != 0) {
+      Thread.yield();
+    }
+    freeTail(sample);
+    for (int c = 0; c < sample.numChannels; c++) {
+      for (int k = 0; k < sample.numHeadPages; k++) {
+        freePages[numFreePages++] = sample.pages[c][k];
+        sample.pages[c][k] = -1;
+      }
+    }
+  }
+  
+  /** Stops the loader thread. The arena is released once the cache is no longer referenced. */
+  public void close() {
+    isOpen = false;
+    LockSupport.unpark(loaderThread);
+    try {
+      loaderThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+  
+  /** Returns the size of the arena in bytes. */
+  public long getCapacityBytes() {
+    return 4L * PAGE_FRAMES * numPages;
+  }
+  
+  /** Returns the number of bytes of the arena which hold heads or tails. */
+  public synchronized long getResidentBytes() {
+    return 4L * PAGE_FRAMES * (numPages - numFreePages);
+  }
+  
+  /** Returns the number of reads which found all requested frames resident. */
+  public long getHits() {
+    return hits.get();
+  }
+  
+  /** Returns the number of reads which found some of the requested frames missing. */
+  public long getMisses() {
+    return misses.get();
+  }
+  
+  /** Returns the fraction of reads which were hits, or zero if there have been none. */
+  public double getHitRate() {
+    long h = hits.get();
+    long total = h + misses.get();
+    return (total == 0L) ? 0.0 : h / (double) total;
+  }
+  
+  /** Returns the number of tails which have been loaded. */
+  public long getLoads() {
+    return loads.get();
+  }
+  
+  /** Returns the number of tails which have been evicted to make room for others. */
+  public long getEvictions() {
+    return evictions.get();
+  }
+  
+  /** Returns the samples in the cache, in the order in which they were added. */
+  public List<Sample> getSamples() {
+    return new ArrayList<Sample>(Arrays.asList(samples));
+  }
+  
+  
+  // ------ Page management, only while synchronized ------
+  
+  /**
+   * Ensures that the given number of pages is free, evicting the least recently used tails as
+   * necessary. The tail of <code>except</code> is not evicted.
+   * @return  <code>false</code> if not enough tails could be evicted.
+   */
+  private boolean reserve(int numRequired, Sample except) {
+    int numInUse = 0;
+    while (numFreePages < numRequired) {
+      Sample victim = null;
+      for (Sample sample : samples) {
+        if (sample != except && sample.state == RESIDENT && sample.hasTail() &&
+            (victim == null || sample.lastAccess < victim.lastAccess)) {
+          victim = sample;
+        }
+      }
+      if (victim == null || numInUse > samples.length) return false;
+      
+      // readers check the state after announcing themselves, so after this no new read begins
+      victim.state = EVICTING;
+      if (victim.readers.get() != 0) {
+        victim.state = RESIDENT;
+        victim.lastAccess = tick; // in use, so try another
+        numInUse++;
+        continue;
+      }
+      freeTail(victim);
+      evictions.lazySet(evictions.get() + 1L);
+    }
+    return true;
+  }
+  
+  private void freeTail(Sample sample) {
+    for (int c = 0; c < sample.numChannels; c++) {
+      int[] pages = sample.pages[c];
+      for (int k = sample.numHeadPages; k < pages.length; k++) {
+        if (pages[k] >= 0) {
+          freePages[numFreePages++] = pages[k];
+          pages[k] = -1;
+        }
+      }
+    }
+    sample.state = ABSENT;
+  }
+  
+  /** Allocates pages <code>[from, to)</code> of every channel of the sample and reads them from the file. */
+  private void loadPages(Sample sample, WaveFileReader reader, int from, int to) throws IOException {
+    FloatBuffer[] views = new FloatBuffer[sample.numChannels];
+    reader.seek((long) from * PAGE_FRAMES);
+    for (int k = from; k < to; k++) {
+      for (int c = 0; c < sample.numChannels; c++) {
+        int page = freePages[--numFreePages];
+        sample.pages[c][k] = page;
+        FloatBuffer view = arenas[page / PAGES_PER_ARENA].duplicate();
+        int offset = (page % PAGES_PER_ARENA) * PAGE_FRAMES;
+        view.limit(offset + PAGE_FRAMES).position(offset);
+        views[c] = view.slice();
+      }
+      reader.read(views, PAGE_FRAMES);
+    }
+  }
+  
+  /** Loads the tail of a sample. Called on the loader thread. */
+  private synchronized void loadTail(Sample sample) throws IOException {
+    if (sample.isRemoved || sample.state != ABSENT) return;
+    int numTailPages = sample.pages[0].length - sample.numHeadPages;
+    if (!reserve(numTailPages * sample.numChannels, sample)) {
+      sample.isLoadRequested = true; // try again once another tail is no longer in use
+      return;
+    }
+    WaveFileReader reader = new WaveFileReader(sample.file);
+    try {
+      loadPages(sample, reader, sample.numHeadPages, sample.pages[0].length);
+    } finally {
+      reader.close();
+    }
+    sample.lastAccess = tick;
+    sample.state = RESIDENT; // publishes the pages
+    loads.lazySet(loads.get() + 1L);
+  }
+  
+  /** A sample in the cache. */
+  public class Sample {
+    private final File file;
+    private final int numChannels;
+    private final float sampleRate;
+    private final long numFrames;
+    private final int numHeadPages;
+    
+    /** The arena page of each page of each channel, or -1 if the page is not resident. */
+    private final int[][] pages;
+    
+    private volatile int state;
+    private volatile boolean isRemoved;
+    private volatile boolean isLoadRequested;
+    private volatile long lastAccess;
+    private final AtomicInteger readers;
+    
+    private Sample(File file, int numChannels, float sampleRate, long numFrames) {
+      int numPages = (int) ((numFrames + PAGE_FRAMES - 1) / PAGE_FRAMES);
+      this.file = file;
+      this.numChannels = numChannels;
+      this.sampleRate = sampleRate;
+      this.numFrames = numFrames;
+      this.numHeadPages = Math.min(numPages, (headFrames + PAGE_FRAMES - 1) / PAGE_FRAMES);
+      this.pages = new int[numChannels][numPages];
+      for (int[] p : pages) {
+        Arrays.fill(p, -1);
+      }
+      this.state = (numHeadPages == numPages) ? RESIDENT : ABSENT;
+      this.readers = new AtomicInteger();
+    }
+    
+    public File getFile() {
+      return file;
+    }
+    
+    public int getNumChannels() {
+      return numChannels;
+    }
+    
+    public float getSampleRate() {
+      return sampleRate;
+    }
+    
+    /** Returns the length of the sample in frames. */
+    public long getNumFrames() {
+      return numFrames;
+    }
+    
+    /** Returns the number of frames at the start of the sample which are always resident. */
+    public long getPinnedFrames() {
+      return Math.min(numFrames, (long) numHeadPages * PAGE_FRAMES);
+    }
+    
+    private boolean hasTail() {
+      return numHeadPages < pages[0].length;
+    }
+    
+    /** Indicates if the whole sample is currently resident. */
+    public boolean isResident() {
+      return state == RESIDENT;
+    }
+    
+    /** Requests that the tail of the sample is loaded, e.g. ahead of a note. Does not block. */
+    public void prefetch() {
+      if (state != RESIDENT) isLoadRequested = true;
+    }
+    
+    /**
+     * Copies frames of one channel of the sample into the given buffer, at absolute indices.
+     * Frames beyond the end of the sample, and frames which are not resident, are written as
+     * silence. May be called from the audio thread.
+     * @param channel  The channel of the sample.
+     * @param frame  The first frame of the sample to copy.
+     * @param target  The buffer into which to copy.
+     * @param offset  The index in <code>target</code> of the first frame.
+     * @param length  The number of frames to copy.
+     * @return  <code>true</code> if all frames within the sample were resident.
+     */
+    public boolean read(int channel, long frame, FloatBuffer target, int offset, int length) {
+      readers.incrementAndGet();
+      try {
+        boolean isTailResident = (state == RESIDENT) && !isRemoved;
+        if (!isTailResident) isLoadRequested = true;
+        lastAccess = tick;
+        
+        int[] channelPages = pages[channel];
+        long pinned = isRemoved ? 0L : (long) numHeadPages * PAGE_FRAMES;
+        boolean isHit = true;
+        int i = 0;
+        while (i < length) {
+          long f = frame + i;
+          if (f >= numFrames || f < 0L) {
+            target.put(offset + i++, 0.0f);
+            continue;
+          }
+          int k = (int) (f / PAGE_FRAMES);
+          int n = (int) Math.min(length - i, (long) (k + 1) * PAGE_FRAMES - f);
+          if (f < pinned || isTailResident) {
+            int page = channelPages[k];
+            FloatBuffer arena = arenas[page / PAGES_PER_ARENA];
+            int index = (page % PAGES_PER_ARENA) * PAGE_FRAMES + (int) (f % PAGE_FRAMES);
+            for (int j = 0; j < n; j++) {
+              target.put(offset + i + j, arena.get(index + j));
+            }
+          } else {
+            for (int j = 0; j < n; j++) {
+              target.put(offset + i + j, 0.0f);
+            }
+            isHit = false;
+          }
+          i += n;
+        }
+        if (isHit) {
+          hits.incrementAndGet();
+        } else {
+          misses.incrementAndGet();
+        }
+        return isHit;
+      } finally {
+        readers.decrementAndGet();
+      }
+    }
+    
+    @Override
+    public String toString() {
+      return file.getName() + " (" + numChannels + " channels, " + numFrames + " frames" +
+          (isResident() ? ", resident)" : ")");
+    }
+  }
+  
+  /** Loads requested tails on a background thread. */
+  private class Loader implements Runnable {
+    @Override
+    public void run() {
+      while (isOpen) {
+        tick = tick + 1L;
+        for (Sample sample : samples) {
+          if (sample.isLoadRequested) {
+            sample.isLoadRequested = false;
+            try {
+              loadTail(sample);
+            } catch (IOException e) {
+              System.err.println("WARNING (JCoreAudio): The tail of " + sample.file + " could not " +
+                  "be loaded. " + e);
+            }
+          }
+        }
+        LockSupport.parkNanos(POLL_NANOS);
+      }
+    }
+  }
+}
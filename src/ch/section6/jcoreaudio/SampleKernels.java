@@ -0,0 +1,306 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio;
+
+import java.nio.FloatBuffer;
+
+/**
+ * <code>SampleKernels</code> is a library of the inner loops needed to move multichannel audio
+ * between layouts and sample formats: interleaving, deinterleaving, conversion between floats
+ * and 16, 24 and 32-bit integer PCM, and mixing with constant or ramped gains. None of the methods allocate, so all of them may be called
+ * from the audio thread.<br/>
+ * <br/>
+ * The loops are written so that the JIT can unroll and vectorise them: unit-stride inner loops
+ * over arrays, with no calls and no data-dependent branches. Interleaving with a large number of
+ * channels is done in tiles of {@link #TILE_FRAMES} frames, so that both the channel rows and the
+ * interleaved frames which are being written stay in the L1 cache. Stereo, the most common case,
+ * has its own loop.<br/>
+ * <br/>
+ * <code>FloatBuffer</code>s are accessed with absolute indices from zero, so their positions and
+ * limits are neither used nor changed.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public final class SampleKernels {
+  
+  /** The number of frames interleaved at a time when there are many channels. */
+  public static final int TILE_FRAMES = 64;
+  
+  /**
+   * The indices 0, 1, 2, ... as floats. Ramps are computed from this table rather than from the
+   * loop counter, as the conversion of the counter keeps the JIT from vectorising the loop. Longer
+   * ramps are computed by accumulation, which is not vectorised.
+   */
+  private static final float[] RAMP = new float[4096];
+  static {
+    for (int i = 0; i < RAMP.length; i++) RAMP[i] = i;
+  }
+  
+  private SampleKernels() {
+    // this class has only static methods
+  }
+  
+  
+  // ------ Interleaving ------
+  
+  /**
+   * Interleaves planar channels into frames.
+   * @param channels  One array per channel. <code>channels.length</code> is the number of channels.
+   * @param offset  The index of the first frame in each channel array.
+   * @param interleaved  The destination, which receives <code>numFrames * channels.length</code>
+   *     samples.
+   * @param interleavedOffset  The index of the first sample in <code>interleaved</code>.
+   * @param numFrames  The number of frames to interleave.
+   */
+  public static void interleave(float[][] channels, int offset, float[] interleaved,
+      int interleavedOffset, int numFrames) {
+    int numChannels = channels.length;
+    if (numChannels == 1) {
+      System.arraycopy(channels[0], offset, interleaved, interleavedOffset, numFrames);
+    } else if (numChannels == 2) {
+      float[] left = channels[0];
+      float[] right = channels[1];
+      for (int i = 0, k = interleavedOffset; i < numFrames; i++, k += 2) {
+        interleaved[k] = left[offset + i];
+        interleaved[k + 1] = right[offset + i];
+      }
+    } else {
+      for (int t = 0; t < numFrames; t += TILE_FRAMES) {
+        int tileEnd = Math.min(numFrames, t + TILE_FRAMES);
+        for (int c = 0; c < numChannels; c++) {
+          float[] channel = channels[c];
+          for (int i = t, k = interleavedOffset + t * numChannels + c; i < tileEnd; i++, k += numChannels) {
+            interleaved[k] = channel[offset + i];
+          }
+        }
+      }
+    }
+  }
+  
+  /**
+   * Deinterleaves frames into planar channels. The reverse of
+   * {@link #interleave(float[][], int, float[], int, int)}.
+   */
+  public static void deinterleave(float[] interleaved, int interleavedOffset, float[][] channels,
+      int offset, int numFrames) {
+    int numChannels = channels.length;
+    if (numChannels == 1) {
+      System.arraycopy(interleaved, interleavedOffset, channels[0], offset, numFrames);
+    } else if (numChannels == 2) {
+      float[] left = channels[0];
+      float[] right = channels[1];
+      for (int i = 0, k = interleavedOffset; i < numFrames; i++, k += 2) {
+        left[offset + i] = interleaved[k];
+        right[offset + i] = interleaved[k + 1];
+      }
+    } else {
+      for (int t = 0; t < numFrames; t += TILE_FRAMES) {
+        int tileEnd = Math.min(numFrames, t + TILE_FRAMES);
+        for (int c = 0; c < numChannels; c++) {
+          float[] channel = channels[c];
+          for (int i = t, k = interleavedOffset + t * numChannels + c; i < tileEnd; i++, k += numChannels) {
+            channel[offset + i] = interleaved[k];
+          }
+        }
+      }
+    }
+  }
+  
+  /**
+   * Interleaves channel buffers, such as those of an <code>AudioLet</code>, into a buffer of
+   * frames.
+   * @param channels  One buffer per channel.
+   * @param interleaved  The destination, which must hold <code>numFrames * channels.length</code>
+   *     samples.
+   * @param numFrames  The number of frames to interleave.
+   */
+  public static void interleave(FloatBuffer[] channels, FloatBuffer interleaved, int numFrames) {
+    int numChannels = channels.length;
+    if (numChannels == 2) {
+      FloatBuffer left = channels[0];
+      FloatBuffer right = channels[1];
+      for (int i = 0, k = 0; i < numFrames; i++, k += 2) {
+        interleaved.put(k, left.get(i));
+        interleaved.put(k + 1, right.get(i));
+      }
+    } else {
+      for (int t = 0; t < numFrames; t += TILE_FRAMES) {
+        int tileEnd = Math.min(numFrames, t + TILE_FRAMES);
+        for (int c = 0; c < numChannels; c++) {
+          FloatBuffer channel = channels[c];
+          for (int i = t, k = t * numChannels + c; i < tileEnd; i++, k += numChannels) {
+            interleaved.put(k, channel.get(i));
+          }
+        }
+      }
+    }
+  }
+  
+  /**
+   * Deinterleaves a buffer of frames into channel buffers. The reverse of
+   * {@link #interleave(FloatBuffer[], FloatBuffer, int)}.
+   */
+  public static void deinterleave(FloatBuffer interleaved, FloatBuffer[] channels, int numFrames) {
+    int numChannels = channels.length;
+    if (numChannels == 2) {
+      FloatBuffer left = channels[0];
+      FloatBuffer right = channels[1];
+      for (int i = 0, k = 0; i < numFrames; i++, k += 2) {
+        left.put(i, interleaved.get(k));
+        right.put(i, interleaved.get(k + 1));
+      }
+    } else {
+      for (int t = 0; t < numFrames; t += TILE_FRAMES) {
+        int tileEnd = Math.min(numFrames, t + TILE_FRAMES);
+        for (int c = 0; c < numChannels; c++) {
+          FloatBuffer channel = channels[c];
+          for (int i = t, k = t * numChannels + c; i < tileEnd; i++, k += numChannels) {
+            channel.put(i, interleaved.get(k));
+          }
+        }
+      }
+    }
+  }
+  
+  
+  // ------ Mixing ------
+  
+  /**
+   * Adds the samples, multiplied by a gain, to those of the target. The gain changes linearly from
+   * <code>startGain</code> at the first sample, so that it would reach <code>endGain</code> at the
+   * sample after the last one, i.e. a ramp continues seamlessly into the next call.
+   */
+  public static void mix(float[] source, int sourceOffset, float[] target, int targetOffset,
+      float startGain, float endGain, int length) {
+    if (startGain == endGain) {
+      for (int i = 0; i < length; i++) {
+        target[targetOffset + i] += source[sourceOffset + i] * startGain;
+      }
+      return;
+    }
+    float step = (endGain - startGain) / length;
+    if (length <= RAMP.length) {
+      float[] ramp = RAMP;
+      for (int i = 0; i < length; i++) {
+        target[targetOffset + i] += source[sourceOffset + i] * (startGain + step * ramp[i]);
+      }
+    } else {
+      float gain = startGain;
+      for (int i = 0; i < length; i++, gain += step) {
+        target[targetOffset + i] += source[sourceOffset + i] * gain;
+      }
+    }
+  }
+  
+  /** Multiplies the samples in place by a gain, which changes linearly as in {@link #mix}. */
+  public static void scale(float[] samples, int offset, float startGain, float endGain, int length) {
+    if (startGain == endGain) {
+      for (int i = 0; i < length; i++) {
+        samples[offset + i] *= startGain;
+      }
+      return;
+    }
+    float step = (endGain - startGain) / length;
+    if (length <= RAMP.length) {
+      float[] ramp = RAMP;
+      for (int i = 0; i < length; i++) {
+        samples[offset + i] *= startGain + step * ramp[i];
+      }
+    } else {
+      float gain = startGain;
+      for (int i = 0; i < length; i++, gain += step) {
+        samples[offset + i] *= gain;
+      }
+    }
+  }
+  
+  
+  // ------ Format conversion ------
+  
+  /**
+   * Converts floats in the range [-1, 1] to 16-bit PCM, rounding to the nearest value. Samples
+   * outside the range are clipped.
+   */
+  public static void floatToPcm16(float[] source, int sourceOffset, short[] target, int targetOffset,
+      int length) {
+    for (int i = 0; i < length; i++) {
+      float f = source[sourceOffset + i] * 32768.0f;
+      f = Math.max(-32768.0f, Math.min(32767.0f, f));
+      target[targetOffset + i] = (short) Math.round(f);
+    }
+  }
+  
+  /** Converts 16-bit PCM to floats in the range [-1, 1). */
+  public static void pcm16ToFloat(short[] source, int sourceOffset, float[] target, int targetOffset,
+      int length) {
+    for (int i = 0; i < length; i++) {
+      target[targetOffset + i] = source[sourceOffset + i] * (1.0f / 32768.0f);
+    }
+  }
+  
+  /**
+   * Converts floats in the range [-1, 1] to packed little-endian 24-bit PCM, three bytes per
+   * sample. Samples outside the range are clipped.
+   * @param targetOffset  The index of the first byte in <code>target</code>.
+   */
+  public static void floatToPcm24(float[] source, int sourceOffset, byte[] target, int targetOffset,
+      int length) {
+    for (int i = 0, k = targetOffset; i < length; i++, k += 3) {
+      float f = source[sourceOffset + i] * 8388608.0f;
+      int s = Math.round(Math.max(-8388608.0f, Math.min(8388607.0f, f)));
+      target[k] = (byte) s;
+      target[k + 1] = (byte) (s >> 8);
+      target[k + 2] = (byte) (s >> 16);
+    }
+  }
+  
+  /**
+   * Converts packed little-endian 24-bit PCM to floats in the range [-1, 1).
+   * @param sourceOffset  The index of the first byte in <code>source</code>.
+   */
+  public static void pcm24ToFloat(byte[] source, int sourceOffset, float[] target, int targetOffset,
+      int length) {
+    for (int i = 0, k = sourceOffset; i < length; i++, k += 3) {
+      int s = (source[k] & 0xFF) | ((source[k + 1] & 0xFF) << 8) | (source[k + 2] << 16);
+      target[targetOffset + i] = s * (1.0f / 8388608.0f);
+    }
+  }
+  
+  /**
+   * Converts floats in the range [-1, 1] to 32-bit PCM. Samples outside the range are clipped.
+   */
+  public static void floatToPcm32(float[] source, int sourceOffset, int[] target, int targetOffset,
+      int length) {
+    for (int i = 0; i < length; i++) {
+      // computed in double, as a float cannot represent every 32-bit integer
+      double d = source[sourceOffset + i] * 2147483648.0;
+      target[targetOffset + i] = (int) Math.max(-2147483648.0, Math.min(2147483647.0, Math.rint(d)));
+    }
+  }
+  
+  /** Converts 32-bit PCM to floats in the range [-1, 1). */
+  public static void pcm32ToFloat(int[] source, int sourceOffset, float[] target, int targetOffset,
+      int length) {
+    for (int i = 0; i < length; i++) {
+      target[targetOffset + i] = source[sourceOffset + i] * (1.0f / 2147483648.0f);
+    }
+  }
+}
@@ -0,0 +1,333 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package ch.section6.jcoreaudio;
+
+import java.nio.FloatBuffer;
+
+/**
+ * <code>SampleRateConverter</code> converts multichannel audio between two sample rates with a
+ * polyphase windowed-sinc filter. The ratio of the rates is reduced to <i>L/M</i>, and the
+ * low-pass prototype filter at <i>L</i> times the input rate is designed with a Kaiser window and
+ * precomputed as a table of <i>L</i> phases. Each output sample is then the dot product of one
+ * phase with the most recent input samples, so the cost per sample depends only on the number of
+ * taps of the chosen {@link Quality}, not on the ratio.<br/>
+ * <br/>
+ * The converter is streaming: it keeps the last input samples of each channel, and each call to
+ * <code>process</code> produces as many output frames as the input allows. It does not allocate
+ * after construction and may be used from an audio callback, but is not thread-safe.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public final class SampleRateConverter {
+  
+  /**
+   * The quality presets of the converter. Each preset trades the width of the passband and the
+   * attenuation of aliases against latency and CPU cost. The passband is given as a fraction of
+   * the Nyquist frequency of the lower rate, for conversion between 44.1kHz and 48kHz.
+   */
+  public enum Quality {
+    /** 24 taps and 60dB of stopband attenuation. The passband extends to about 69% of Nyquist. */
+    LOW_LATENCY(24, 60.0),
+    /** 64 taps and 90dB of stopband attenuation. The passband extends to about 81% of Nyquist. */
+    STANDARD(64, 90.0),
+    /** 128 taps and 110dB of stopband attenuation. The passband extends to about 88% of Nyquist. */
+    HIGH(128, 110.0);
+    
+    final int taps;
+    final double attenuation;
+    
+    private Quality(int taps, double attenuation) {
+      this.taps = taps;
+      this.attenuation = attenuation;
+    }
+    
+    /** Returns the stopband attenuation in dB. */
+    public double getAttenuation() {
+      return attenuation;
+    }
+  }
+  
+  /** The attenuation in dB by which the filter is designed beyond that of its quality. */
+  private static final double DESIGN_MARGIN = 6.0;
+  
+  /** The largest number of phases, i.e. the largest reduced numerator of the ratio. */
+  private static final int MAX_PHASES = 4096;
+  
+  private final int numChannels;
+  private final float inputRate;
+  private final float outputRate;
+  private final Quality quality;
+  private final int upFactor;
+  private final int downFactor;
+  private final int taps;
+  private final int maxInputFrames;
+  private final double passband;
+  
+  /** <code>upFactor</code> rows of <code>taps</code> coefficients, each in the order of the input. */
+  private final float[] coefficients;
+  
+  /** The last <code>taps - 1</code> input samples of each channel, followed by the new input. */
+  private final float[][] history;
+  
+  // the position of the oldest input sample of the next output, and its phase
+  private int position;
+  private int phase;
+  
+  // the positions and table offsets of the outputs of the current call, shared by all channels
+  private final int[] positions;
+  private final int[] rows;
+  
+  /**
+   * @param numChannels  The number of channels.
+   * @param inputRate  The input sample rate in Hz. It must be a whole number, as must the output rate.
+   * @param outputRate  The output sample rate in Hz.
+   * @param quality  The quality preset.
+   * @param maxInputFrames  The largest number of frames which will be given to one call of
+   *     <code>process</code>.
+   */
+  public SampleRateConverter(int numChannels, float inputRate, float outputRate, Quality quality,
+      int maxInputFrames) {
+    if (numChannels <= 0 || maxInputFrames <= 0) {
+      throw new IllegalArgumentException("The number of channels and frames must be positive.");
+    }
+    long in = Math.round((double) inputRate);
+    long out = Math.round((double) outputRate);
+    if (in <= 0L || out <= 0L || in != inputRate || out != outputRate) {
+      throw new IllegalArgumentException("The sample rates must be positive whole numbers: " +
+          inputRate + "Hz, " + outputRate + "Hz");
+    }
+    long gcd = gcd(in, out);
+    if (out / gcd > MAX_PHASES) {
+      throw new IllegalArgumentException("The ratio of " + inputRate + "Hz to " + outputRate +
+          "Hz cannot be reduced to fewer than " + MAX_PHASES + " phases.");
+    }
+    this.numChannels = numChannels;
+    this.inputRate = inputRate;
+    this.outputRate = outputRate;
+    this.quality = quality;
+    this.upFactor = (int) (out / gcd);
+    this.downFactor = (int) (in / gcd);
+    this.maxInputFrames = maxInputFrames;
+    
+    // when decimating, the transition band must be as narrow relative to the input rate as it is
+    // relative to the output rate, so the filter is proportionally longer
+    int taps = (int) Math.ceil(quality.taps * Math.max(1.0, (double) inputRate / outputRate));
+    this.taps = (taps + 7) & ~7;
+    // Kaiser's estimate of the transition band falls short of the attenuation for filters this
+    // short, so the filter is designed with a margin beyond the attenuation of the quality
+    double attenuation = quality.attenuation + DESIGN_MARGIN;
+    double transition = (attenuation - 7.95) / (14.36 * this.taps) * inputRate;
+    double stopEdge = Math.min(inputRate, outputRate) / 2.0;
+    this.passband = (stopEdge - transition) / stopEdge;
+    this.coefficients = design(upFactor, this.taps, (stopEdge - transition / 2.0) / ((double) upFactor * inputRate),
+        attenuation);
+    
+    this.history = new float[numChannels][this.taps - 1 + maxInputFrames];
+    int maxOutputFrames = getMaxOutputFrames(maxInputFrames);
+    this.positions = new int[maxOutputFrames];
+    this.rows = new int[maxOutputFrames];
+  }
+  
+  private static long gcd(long a, long b) {
+    while (b != 0L) {
+      long t = a % b;
+      a = b;
+      b = t;
+    }
+    return a;
+  }
+  
+  /**
+   * Designs the Kaiser-windowed sinc prototype at the upsampled rate and returns it as a table of
+   * phases.
+   * @param cutoff  The cutoff frequency as a fraction of the upsampled rate.
+   */
+  private static float[] design(int numPhases, int taps, double cutoff, double attenuation) {
+    int length = numPhases * taps;
+    double beta = (attenuation > 50.0) ? 0.1102 * (attenuation - 8.7) :
+        0.5842 * Math.pow(attenuation - 21.0, 0.4) + 0.07886 * (attenuation - 21.0);
+    double center = (length - 1) / 2.0;
+    double i0Beta = besselI0(beta);
+    double[] h = new double[length];
+    for (int i = 0; i < length; i++) {
+      double x = i - center;
+      double sinc = (x == 0.0) ? 2.0 * cutoff :
+          Math.sin(2.0 * Math.PI * cutoff * x) / (Math.PI * x);
+      double r = x / center;
+      h[i] = sinc * besselI0(beta * Math.sqrt(Math.max(0.0, 1.0 - r * r))) / i0Beta;
+    }
+    // each phase sees every upFactor'th coefficient. Each is normalised to unity gain at DC on its
+    // own, as the phases of a truncated prototype do not sum to quite the same gain, which would
+    // modulate the output at the rate at which the phases repeat.
+    float[] table = new float[length];
+    for (int p = 0; p < numPhases; p++) {
+      double sum = 0.0;
+      for (int k = 0; k < taps; k++) {
+        sum += h[p + k * numPhases];
+      }
+      for (int k = 0; k < taps; k++) {
+        table[p * taps + k] = (float) (h[p + (taps - 1 - k) * numPhases] / sum);
+      }
+    }
+    return table;
+  }
+  
+  /** The modified Bessel function of the first kind and order zero. */
+  static double besselI0(double x) {
+    double sum = 1.0;
+    double term = 1.0;
+    double q = x * x / 4.0;
+    for (int k = 1; k < 64 && term > sum * 1e-17; k++) {
+      term *= q / ((double) k * k);
+      sum += term;
+    }
+    return sum;
+  }
+  
+  public int getNumChannels() {
+    return numChannels;
+  }
+  
+  public float getInputRate() {
+    return inputRate;
+  }
+  
+  public float getOutputRate() {
+    return outputRate;
+  }
+  
+  public Quality getQuality() {
+    return quality;
+  }
+  
+  /** Returns the number of taps of each phase of the filter, i.e. the multiply-adds per sample. */
+  public int getTaps() {
+    return taps;
+  }
+  
+  /** Returns the edge of the passband as a fraction of the Nyquist frequency of the lower rate. */
+  public double getPassband() {
+    return passband;
+  }
+  
+  /** Returns the delay of the filter in input frames. */
+  public double getLatency() {
+    return (taps - 1.0 / upFactor) / 2.0;
+  }
+  
+  /** Returns the largest number of output frames which the given number of input frames can produce. */
+  public int getMaxOutputFrames(int numInputFrames) {
+    return (int) (((long) numInputFrames * upFactor + upFactor - 1) / downFactor) + 1;
+  }
+  
+  /** Clears the history, as if the converter had just been created. */
+  public void reset() {
+    for (float[] h : history) {
+      for (int i = 0; i < taps - 1; i++) h[i] = 0.0f;
+    }
+    position = 0;
+    phase = 0;
+  }
+  
+  /**
+   * Converts frames from the given arrays, one per channel.
+   * @return  The number of frames written to <code>output</code>, starting at
+   *     <code>outputOffset</code>. It is at most {@link #getMaxOutputFrames(int)}.
+   */
+  public int process(float[][] input, int inputOffset, int numFrames, float[][] output, int outputOffset) {
+    checkFrames(numFrames);
+    for (int c = 0; c < numChannels; c++) {
+      System.arraycopy(input[c], inputOffset, history[c], taps - 1, numFrames);
+    }
+    return convert(numFrames, output, outputOffset);
+  }
+  
+  /**
+   * Converts frames from the given channel buffers, which are read from index zero. The positions
+   * of the buffers are reset.
+   * @return  The number of frames written to <code>output</code>, starting at
+   *     <code>outputOffset</code>. It is at most {@link #getMaxOutputFrames(int)}.
+   */
+  public int process(FloatBuffer[] input, int numFrames, float[][] output, int outputOffset) {
+    checkFrames(numFrames);
+    for (int c = 0; c < numChannels; c++) {
+      FloatBuffer buffer = input[c];
+      buffer.clear();
+      buffer.get(history[c], taps - 1, numFrames);
+      buffer.clear();
+    }
+    return convert(numFrames, output, outputOffset);
+  }
+  
+  private void checkFrames(int numFrames) {
+    if (numFrames < 0 || numFrames > maxInputFrames) {
+      throw new IllegalArgumentException("The number of frames must be between 0 and " +
+          maxInputFrames + ": " + numFrames);
+    }
+  }
+  
+  private int convert(int numFrames, float[][] output, int outputOffset) {
+    // compute the positions and phases once for all channels
+    int n = 0;
+    int pos = position;
+    int ph = phase;
+    while (pos < numFrames) {
+      positions[n] = pos;
+      rows[n] = ph * taps;
+      n++;
+      ph += downFactor;
+      while (ph >= upFactor) {
+        ph -= upFactor;
+        pos++;
+      }
+    }
+    
+    final float[] coeffs = coefficients;
+    final int taps = this.taps;
+    for (int c = 0; c < numChannels; c++) {
+      float[] x = history[c];
+      float[] y = output[c];
+      for (int j = 0; j < n; j++) {
+        int s = positions[j];
+        int r = rows[j];
+        // eight independent sums, so that the multiply-adds can be pipelined
+        float a0 = 0.0f, a1 = 0.0f, a2 = 0.0f, a3 = 0.0f, a4 = 0.0f, a5 = 0.0f, a6 = 0.0f, a7 = 0.0f;
+        for (int k = 0; k < taps; k += 8) {
+          a0 += coeffs[r + k] * x[s + k];
+          a1 += coeffs[r + k + 1] * x[s + k + 1];
+          a2 += coeffs[r + k + 2] * x[s + k + 2];
+          a3 += coeffs[r + k + 3] * x[s + k + 3];
+          a4 += coeffs[r + k + 4] * x[s + k + 4];
+          a5 += coeffs[r + k + 5] * x[s + k + 5];
+          a6 += coeffs[r + k + 6] * x[s + k + 6];
+          a7 += coeffs[r + k + 7] * x[s + k + 7];
+        }
+        y[outputOffset + j] = ((a0 + a1) + (a2 + a3)) + ((a4 + a5) + (a6 + a7));
+      }
+      // keep the newest taps - 1 samples for the next call
+      System.arraycopy(x, numFrames, x, 0, taps - 1);
+    }
+    position = pos - numFrames;
+    phase = ph;
+    return n;
+  }
+}
@@ -0,0 +1,348 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package ch.section6.jcoreaudio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <code>SharedMemoryReader</code> follows the audio which a {@link SharedMemoryTap} publishes into
+ * a memory-mapped file, typically in another process. It does not need <code>JCoreAudio</code> to
+ * be initialized, and only reads the file, so any number of readers may follow the same tap.
+ * <pre>
+ * SharedMemoryReader reader = new SharedMemoryReader(new File("/tmp/jcoreaudio.tap"));
+ * while (running) {
+ *   if (reader.next() &lt; 0L) {
+ *     Thread.sleep(1); // no new block yet
+ *     continue;
+ *   }
+ *   FloatBuffer samples = reader.getChannel(0); // the block, without a copy
+ *   ...
+ *   if (!reader.isValid()) {
+ *     // the block was overwritten while it was being read, so discard the results
+ *   }
+ * }
+ * </pre>
+ * A new reader begins with the next block to be published. The samples of a block are read in
+ * place from the mapped file, so a reader which takes longer than the length of the ring may find
+ * that the block has been overwritten, which {@link #isValid()} detects afterwards. A reader which
+ * has fallen so far behind that the blocks it has not yet read have been overwritten continues
+ * with the newest block, and counts the blocks which it missed in
+ * {@link #getDroppedBlocks()}.<br/>
+ * <br/>
+ * A reader is not thread-safe. The mapping is released when the reader is garbage collected.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class SharedMemoryReader {
+  
+  /** Read to order the reads from the mapped file, as described in {@link SharedMemoryTap}. */
+  private final AtomicLong ordering;
+  
+  private final File file;
+  private final MappedByteBuffer map;
+  private final long generation;
+  private final float sampleRate;
+  private final int blockSize;
+  private final int numChannels;
+  private final int numSlots;
+  private final int dataOffset;
+  private final int slotSize;
+  private final boolean[] isInput;
+  private final int[] letChannels;
+  private final String[] letNames;
+  
+  /** Whether the file has channels of each direction, whose halves of each block must be complete. */
+  private final boolean hasInputs;
+  private final boolean hasOutputs;
+  
+  /** One view of the samples per channel, moved to the current block when it is requested. */
+  private final FloatBuffer[] views;
+  
+  /** The next block to be read, and the current one, or -1 if there is none. */
+  private long position;
+  private long block;
+  
+  private long droppedBlocks;
+  private long overruns;
+  
+  /**
+   * Opens the file of a running or stopped tap.
+   * @throws IOException  If the file cannot be read, or has not been laid out by a tap.
+   */
+  public SharedMemoryReader(File file) throws IOException {
+    this.file = file;
+    ordering = new AtomicLong();
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      if (channel.size() < SharedMemoryTap.CHANNEL_TABLE_OFFSET) {
+        throw new IOException("The file is not that of a tap: " + file);
+      }
+      MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0L,
+          SharedMemoryTap.CHANNEL_TABLE_OFFSET);
+      header.order(ByteOrder.LITTLE_ENDIAN);
+      if (header.getInt(SharedMemoryTap.MAGIC_OFFSET) != SharedMemoryTap.MAGIC) {
+        throw new IOException("The file is not that of a tap, or the tap is being started: " + file);
+      }
+      if (header.getInt(SharedMemoryTap.VERSION_OFFSET) != SharedMemoryTap.VERSION) {
+        throw new IOException("The file has version " + header.getInt(SharedMemoryTap.VERSION_OFFSET) +
+            " of the layout, but only version " + SharedMemoryTap.VERSION + " can be read: " + file);
+      }
+      long size = header.getInt(SharedMemoryTap.DATA_OFFSET_OFFSET) +
+          (long) header.getInt(SharedMemoryTap.NUM_SLOTS_OFFSET) *
+          header.getInt(SharedMemoryTap.SLOT_SIZE_OFFSET);
+      if (size > channel.size()) {
+        throw new IOException("The file is shorter than its header describes: " + file);
+      }
+      map = channel.map(FileChannel.MapMode.READ_ONLY, 0L, size);
+    } finally {
+      raf.close(); // the mapping remains valid
+    }
+    map.order(ByteOrder.LITTLE_ENDIAN);
+    generation = map.getLong(SharedMemoryTap.GENERATION_OFFSET);
+    sampleRate = map.getFloat(SharedMemoryTap.SAMPLE_RATE_OFFSET);
+    blockSize = map.getInt(SharedMemoryTap.BLOCK_SIZE_OFFSET);
+    numChannels = map.getInt(SharedMemoryTap.NUM_CHANNELS_OFFSET);
+    numSlots = map.getInt(SharedMemoryTap.NUM_SLOTS_OFFSET);
+    dataOffset = map.getInt(SharedMemoryTap.DATA_OFFSET_OFFSET);
+    slotSize = map.getInt(SharedMemoryTap.SLOT_SIZE_OFFSET);
+    
+    isInput = new boolean[numChannels];
+    letChannels = new int[numChannels];
+    letNames = new String[numChannels];
+    byte[] name = new byte[SharedMemoryTap.CHANNEL_NAME_SIZE];
+    boolean hasInputs = false;
+    boolean hasOutputs = false;
+    for (int c = 0; c < numChannels; c++) {
+      int entry = SharedMemoryTap.CHANNEL_TABLE_OFFSET + c * SharedMemoryTap.CHANNEL_ENTRY_SIZE;
+      isInput[c] = (map.getInt(entry) & SharedMemoryTap.FLAG_INPUT) != 0;
+      letChannels[c] = map.getInt(entry + 4);
+      int length = 0;
+      while (length < SharedMemoryTap.CHANNEL_NAME_SIZE && map.get(entry + 8 + length) != 0) {
+        name[length] = map.get(entry + 8 + length);
+        length++;
+      }
+      letNames[c] = new String(name, 0, length, SharedMemoryTap.UTF_8);
+      hasInputs |= isInput[c];
+      hasOutputs |= !isInput[c];
+    }
+    this.hasInputs = hasInputs;
+    this.hasOutputs = hasOutputs;
+    
+    // the header is only valid if the tap was not restarted while it was being read
+    ordering.get();
+    checkGeneration();
+    map.position(dataOffset);
+    FloatBuffer data = map.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+    map.clear();
+    views = new FloatBuffer[numChannels];
+    for (int c = 0; c < numChannels; c++) {
+      views[c] = data.duplicate();
+    }
+    position = getPublishedBlocks();
+    block = -1L;
+  }
+  
+  public File getFile() {
+    return file;
+  }
+  
+  /** Returns the generation of the tap, which changes each time it is started. */
+  public long getGeneration() {
+    return generation;
+  }
+  
+  public float getSampleRate() {
+    return sampleRate;
+  }
+  
+  public int getBlockSize() {
+    return blockSize;
+  }
+  
+  public int getNumChannels() {
+    return numChannels;
+  }
+  
+  /** Returns the number of blocks which the ring holds. */
+  public int getNumSlots() {
+    return numSlots;
+  }
+  
+  /** Indicates if the given channel is that of an input let. */
+  public boolean isInput(int channel) {
+    return isInput[channel];
+  }
+  
+  /** Returns the index of the given channel within its let. */
+  public int getLetChannel(int channel) {
+    return letChannels[channel];
+  }
+  
+  /** Returns the name of the let of the given channel. */
+  public String getLetName(int channel) {
+    return letNames[channel];
+  }
+  
+  /** Returns the number of blocks which the tap has published, i.e. of which both halves are complete. */
+  public long getPublishedBlocks() {
+    long published = Long.MAX_VALUE;
+    if (hasInputs) published = map.getLong(SharedMemoryTap.INPUT_SEQUENCE_OFFSET);
+    if (hasOutputs) published = Math.min(published, map.getLong(SharedMemoryTap.OUTPUT_SEQUENCE_OFFSET));
+    ordering.get();
+    return (published == Long.MAX_VALUE) ? 0L : published;
+  }
+  
+  /** Returns the number of blocks which have been published but not yet read. */
+  public long available() {
+    return Math.max(0L, getPublishedBlocks() - position);
+  }
+  
+  /** Moves back to the oldest block which is still in the ring. */
+  public void rewind() {
+    checkGeneration();
+    // the oldest slot may be being overwritten, so it is left out
+    position = Math.max(0L, getPublishedBlocks() - numSlots + 1);
+    block = -1L;
+  }
+  
+  /**
+   * Moves to the next block.
+   * @return  The sequence number of the block, or -1 if no new block has been published.
+   * @throws IllegalStateException  If the tap has been restarted, after which the file must be
+   *     opened again.
+   */
+  public long next() {
+    checkGeneration();
+    while (true) {
+      long published = getPublishedBlocks();
+      if (position >= published) return -1L;
+      if (published - position >= numSlots) {
+        // the next block has been overwritten, so continue with the newest
+        droppedBlocks += published - 1L - position;
+        overruns++;
+        position = published - 1L;
+      }
+      if (isComplete(position)) break;
+      // the block was overwritten after the sequence was read
+      droppedBlocks++;
+      overruns++;
+      position++;
+    }
+    block = position++;
+    return block;
+  }
+  
+  /** Returns the sequence number of the current block, or -1 if there is none. */
+  public long getBlock() {
+    return block;
+  }
+  
+  private int slotOffset(long n) {
+    return dataOffset + (int) (n % numSlots) * slotSize;
+  }
+  
+  /** Indicates if the stamp of each half of block n in its slot is that of the complete block. */
+  private boolean isComplete(long n) {
+    int slot = slotOffset(n);
+    long stamp = 2L * n + 2L;
+    ordering.get(); // the reads before the stamps may not be moved after them
+    boolean isComplete = (!hasInputs || map.getLong(slot + SharedMemoryTap.INPUT_STAMP_OFFSET) == stamp) &&
+        (!hasOutputs || map.getLong(slot + SharedMemoryTap.OUTPUT_STAMP_OFFSET) == stamp);
+    ordering.get(); // and the reads after them may not be moved before them
+    return isComplete;
+  }
+  
+  /**
+   * Returns the timestamp of the output callback of the current block, or of the input callback if
+   * the file has no output channels. It is only valid if the block is valid.
+   */
+  public double getTimestamp() {
+    checkBlock();
+    return map.getDouble(slotOffset(block) + (hasOutputs ?
+        SharedMemoryTap.OUTPUT_TIMESTAMP_OFFSET : SharedMemoryTap.INPUT_TIMESTAMP_OFFSET));
+  }
+  
+  /**
+   * Returns the samples of the current block of the given channel, in place in the mapped file.
+   * They are between the position and the limit of the returned buffer, which is read-only in
+   * effect and is reused for every block. They are only valid if {@link #isValid()} is
+   * <code>true</code> once they have been read.
+   */
+  public FloatBuffer getChannel(int channel) {
+    checkBlock();
+    if (channel < 0 || channel >= numChannels) {
+      throw new IllegalArgumentException("The channel " + channel + " does not exist.");
+    }
+    int first = (slotOffset(block) - dataOffset + SharedMemoryTap.SLOT_HEADER_SIZE) / 4 +
+        channel * blockSize;
+    FloatBuffer view = views[channel];
+    view.limit(first + blockSize).position(first);
+    return view;
+  }
+  
+  /**
+   * Copies the samples of the current block of the given channel.
+   * @return  <code>true</code> if the samples are valid, i.e. the block was not overwritten while
+   *     it was being copied.
+   */
+  public boolean read(int channel, float[] samples, int offset) {
+    getChannel(channel).get(samples, offset, blockSize);
+    return isValid();
+  }
+  
+  /** Indicates if the current block has not been overwritten since it was returned by {@link #next()}. */
+  public boolean isValid() {
+    return block >= 0L && isComplete(block);
+  }
+  
+  /** Returns the number of blocks which were overwritten before they could be read. */
+  public long getDroppedBlocks() {
+    return droppedBlocks;
+  }
+  
+  /** Returns the number of times that the reader was overrun and skipped ahead. */
+  public long getOverruns() {
+    return overruns;
+  }
+  
+  private void checkBlock() {
+    if (block < 0L) {
+      throw new IllegalStateException("There is no current block.");
+    }
+  }
+  
+  private void checkGeneration() {
+    if (map.getInt(SharedMemoryTap.MAGIC_OFFSET) != SharedMemoryTap.MAGIC ||
+        map.getLong(SharedMemoryTap.GENERATION_OFFSET) != generation) {
+      throw new IllegalStateException("The tap has been restarted, so the file must be opened again: " +
+          file);
+    }
+  }
+}
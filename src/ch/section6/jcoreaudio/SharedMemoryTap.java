@@ -0,0 +1,394 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package ch.section6.jcoreaudio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <code>SharedMemoryTap</code> publishes selected input and output <code>AudioLet</code>s into a
+ * memory-mapped file, from which any number of other processes on the same machine can follow the
+ * audio without copies through sockets or pipes. Each process opens the file with a
+ * {@link SharedMemoryReader}.
+ * <pre>
+ * SharedMemoryTap tap = new SharedMemoryTap(new File("/tmp/jcoreaudio.tap"));
+ * tap.addLet(microphoneLet);
+ * tap.addLet(speakerLet);
+ * tap.start();
+ * ...
+ * tap.stop();
+ * </pre>
+ * The file is a ring of blocks. On the audio thread, the tap copies each block of the selected
+ * channels into the next slot of the ring and then advances the sequence number in the header,
+ * which takes constant time and does not allocate, lock or make system calls. The writer never
+ * waits for the readers; a reader which falls more than the length of the ring behind has been
+ * overrun, which it detects from the stamp of each slot.<br/>
+ * <br/>
+ * The input and output callbacks may be made on different threads, so each writes only its own
+ * half of a block: the channels of its lets, its own stamp in the slot and its own sequence
+ * number in the header. The <i>n</i>th input block and the <i>n</i>th output block share slot
+ * <i>n</i>. A block is complete once each direction which has channels in the file has written
+ * it, so the number of complete blocks is the lesser of the sequence numbers of those directions.<br/>
+ * <br/>
+ * The layout is little-endian, so that it can also be read from languages other than Java:
+ * <pre>
+ * header        0  int     magic, 0x5441434A ("JCAT")
+ *               4  int     version, 2
+ *               8  long    generation, increased each time the tap is started
+ *              16  float   sample rate in Hz
+ *              20  int     block size in frames
+ *              24  int     number of channels
+ *              28  int     number of slots in the ring
+ *              32  int     offset of the first slot in bytes
+ *              36  int     size of each slot in bytes
+ *              64  long    input sequence, the number of input blocks written since the tap was started
+ *              72  long    output sequence, likewise for the output blocks
+ * channels    128  64 bytes per channel: int flags (1 if the channel is an input), int index of
+ *                  the channel within its let, and the name of the let in UTF-8, zero-padded
+ * slots            block n is in slot n % number of slots:
+ *               0  long    input stamp, 2n + 1 while the input of block n is written and 2n + 2
+ *                          once it is complete
+ *               8  double  timestamp of the input callback of the block
+ *              16  long    output stamp, likewise for the output of the block
+ *              24  double  timestamp of the output callback of the block
+ *              64  float[] the block of each channel in turn, in the order of the channel table
+ * </pre>
+ * The header, the channel table and each slot begin on a 64-byte boundary. The magic number is
+ * written last, so a file without it is not ready to be read.<br/>
+ * <br/>
+ * Java 7 offers no ordered stores to mapped memory, so each store which must be seen first is
+ * followed by the <code>lazySet</code> of an <code>AtomicLong</code>, such as the copy of the
+ * sequence number which the tap keeps itself. This assumes, as holds for HotSpot on x86 and ARM,
+ * that <code>lazySet</code> is compiled to a store-store barrier before its store, which orders
+ * the plain stores to the mapped memory as well. Readers assume likewise that a volatile read is
+ * followed by a load-load barrier.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class SharedMemoryTap {
+  
+  /** The default amount of audio which the ring can hold. */
+  public static final double DEFAULT_BUFFER_SECONDS = 1.0;
+  
+  // the layout of the file
+  static final int MAGIC = 0x5441434A;
+  static final int VERSION = 2;
+  static final int MAGIC_OFFSET = 0;
+  static final int VERSION_OFFSET = 4;
+  static final int GENERATION_OFFSET = 8;
+  static final int SAMPLE_RATE_OFFSET = 16;
+  static final int BLOCK_SIZE_OFFSET = 20;
+  static final int NUM_CHANNELS_OFFSET = 24;
+  static final int NUM_SLOTS_OFFSET = 28;
+  static final int DATA_OFFSET_OFFSET = 32;
+  static final int SLOT_SIZE_OFFSET = 36;
+  static final int INPUT_SEQUENCE_OFFSET = 64;
+  static final int OUTPUT_SEQUENCE_OFFSET = 72;
+  static final int CHANNEL_TABLE_OFFSET = 128;
+  static final int CHANNEL_ENTRY_SIZE = 64;
+  static final int CHANNEL_NAME_SIZE = 56;
+  static final int SLOT_HEADER_SIZE = 64;
+  static final int INPUT_STAMP_OFFSET = 0;
+  static final int INPUT_TIMESTAMP_OFFSET = 8;
+  static final int OUTPUT_STAMP_OFFSET = 16;
+  static final int OUTPUT_TIMESTAMP_OFFSET = 24;
+  static final int FLAG_INPUT = 1;
+  
+  static final Charset UTF_8 = Charset.forName("UTF-8");
+  
+  private final File file;
+  private final List<AudioLet> lets;
+  private double bufferSeconds;
+  
+  // the state of the current session
+  private Tap tap;
+  private final AtomicLong generation;
+  private volatile boolean isRunning;
+  
+  /** @param file  The file to publish into. It is created if it does not exist. */
+  public SharedMemoryTap(File file) {
+    if (file == null) {
+      throw new IllegalArgumentException("The file may not be null.");
+    }
+    this.file = file;
+    lets = new ArrayList<AudioLet>();
+    bufferSeconds = DEFAULT_BUFFER_SECONDS;
+    generation = new AtomicLong();
+  }
+  
+  public File getFile() {
+    return file;
+  }
+  
+  /**
+   * Adds all channels of the given input or output let. The channels appear in the file in the
+   * order in which their lets were added.
+   * @throws IllegalStateException  If the tap is running.
+   */
+  public synchronized void addLet(AudioLet let) {
+    if (isRunning) {
+      throw new IllegalStateException("Lets may not be added while the tap is running.");
+    }
+    if (let == null) {
+      throw new IllegalArgumentException("The let may not be null.");
+    }
+    if (lets.contains(let)) {
+      throw new IllegalArgumentException("The let is already published: " + let);
+    }
+    lets.add(let);
+  }
+  
+  /** Removes all lets. */
+  public synchronized void clearLets() {
+    if (isRunning) {
+      throw new IllegalStateException("Lets may not be removed while the tap is running.");
+    }
+    lets.clear();
+  }
+  
+  /**
+   * Sets the amount of audio which the ring holds, i.e. how far a reader may fall behind before it
+   * is overrun. The default is {@link #DEFAULT_BUFFER_SECONDS}. Takes effect when the tap is next
+   * started.
+   */
+  public synchronized void setBufferSeconds(double bufferSeconds) {
+    if (bufferSeconds <= 0.0) {
+      throw new IllegalArgumentException("The buffer length must be positive: " + bufferSeconds);
+    }
+    this.bufferSeconds = bufferSeconds;
+  }
+  
+  /**
+   * Starts publishing. The file is laid out for the current configuration of
+   * <code>JCoreAudio</code>, and blocks are published from the next callback on. Readers which
+   * had opened the file during an earlier session must open it again.
+   * @throws IllegalStateException  If <code>JCoreAudio</code> is not initialized, or a let is not
+   *     one of its current lets.
+   * @throws IOException  If the file cannot be created or mapped.
+   */
+  public synchronized void start() throws IOException {
+    if (isRunning) return;
+    if (lets.isEmpty()) {
+      throw new IllegalStateException("At least one let must be added before the tap is started.");
+    }
+    JCoreAudio jcoreaudio = JCoreAudio.getInstance();
+    AudioChannels inputs;
+    AudioChannels outputs;
+    int blockSize;
+    float sampleRate;
+    synchronized (jcoreaudio) {
+      if (!jcoreaudio.isInitialized()) {
+        throw new IllegalStateException("JCoreAudio must be initialized before the tap is started.");
+      }
+      inputs = jcoreaudio.getInputChannels();
+      outputs = jcoreaudio.getOutputChannels();
+      blockSize = jcoreaudio.getBlockSize();
+      sampleRate = jcoreaudio.getSampleRate();
+    }
+    
+    int numChannels = 0;
+    for (AudioLet let : lets) {
+      numChannels += let.numChannels;
+    }
+    int numSlots = (int) Math.max(2L, Math.min(1 << 20, (long) Math.ceil(bufferSeconds * sampleRate / blockSize)));
+    int dataOffset = align(CHANNEL_TABLE_OFFSET + numChannels * CHANNEL_ENTRY_SIZE);
+    int slotSize = align(SLOT_HEADER_SIZE + 4 * numChannels * blockSize);
+    long size = dataOffset + (long) numSlots * slotSize;
+    if (size > Integer.MAX_VALUE) {
+      throw new IllegalStateException("The ring of " + numSlots + " blocks of " + numChannels +
+          " channels does not fit in one mapping. Reduce the buffer length.");
+    }
+    
+    // each channel is copied to its place among those of all lets in every slot
+    TapChannels inputChannels = new TapChannels(lets, true, inputs, blockSize, false);
+    TapChannels outputChannels = new TapChannels(lets, false, outputs, blockSize, false);
+    MappedByteBuffer map;
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      // the file is never shortened, as readers of an earlier session may still have it mapped
+      if (raf.length() < size) raf.setLength(size);
+      map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L, size);
+    } finally {
+      raf.close(); // the mapping remains valid
+    }
+    map.order(ByteOrder.LITTLE_ENDIAN);
+    
+    // invalidate the file while the header is rewritten
+    long g = (map.getInt(MAGIC_OFFSET) == MAGIC) ? map.getLong(GENERATION_OFFSET) + 1L : 1L;
+    map.putInt(MAGIC_OFFSET, 0);
+    generation.lazySet(g); // the magic number is cleared before the header is rewritten
+    map.putInt(VERSION_OFFSET, VERSION);
+    map.putLong(GENERATION_OFFSET, g);
+    map.putFloat(SAMPLE_RATE_OFFSET, sampleRate);
+    map.putInt(BLOCK_SIZE_OFFSET, blockSize);
+    map.putInt(NUM_CHANNELS_OFFSET, numChannels);
+    map.putInt(NUM_SLOTS_OFFSET, numSlots);
+    map.putInt(DATA_OFFSET_OFFSET, dataOffset);
+    map.putInt(SLOT_SIZE_OFFSET, slotSize);
+    map.putLong(INPUT_SEQUENCE_OFFSET, 0L);
+    map.putLong(OUTPUT_SEQUENCE_OFFSET, 0L);
+    int k = 0;
+    for (AudioLet let : lets) {
+      byte[] name = let.getName().getBytes(UTF_8);
+      for (int j = 0; j < let.numChannels; j++, k++) {
+        int entry = CHANNEL_TABLE_OFFSET + k * CHANNEL_ENTRY_SIZE;
+        map.putInt(entry, let.isInput ? FLAG_INPUT : 0);
+        map.putInt(entry + 4, j);
+        for (int i = 0; i < CHANNEL_NAME_SIZE; i++) {
+          map.put(entry + 8 + i, (i < name.length && i < CHANNEL_NAME_SIZE - 1) ? name[i] : 0);
+        }
+      }
+    }
+    for (int s = 0; s < numSlots; s++) {
+      map.putLong(dataOffset + s * slotSize + INPUT_STAMP_OFFSET, 0L);
+      map.putLong(dataOffset + s * slotSize + OUTPUT_STAMP_OFFSET, 0L);
+    }
+    generation.lazySet(g); // the header is written before the magic number
+    map.putInt(MAGIC_OFFSET, MAGIC);
+    map.force();
+    
+    tap = new Tap(map, numSlots, dataOffset, slotSize, inputChannels, outputChannels);
+    isRunning = true;
+    jcoreaudio.addTap(tap);
+  }
+  
+  private static int align(int bytes) {
+    return (bytes + 63) & ~63;
+  }
+  
+  /**
+   * Stops publishing. The file remains, and readers see no further blocks. The mapping is released
+   * when it is garbage collected.
+   */
+  public synchronized void stop() {
+    if (!isRunning) return;
+    JCoreAudio.getInstance().removeTap(tap);
+    isRunning = false;
+  }
+  
+  /** Indicates if the tap is currently publishing. */
+  public boolean isRunning() {
+    return isRunning;
+  }
+  
+  /** Returns the generation of the current or last session, which readers see in the header. */
+  public long getGeneration() {
+    return generation.get();
+  }
+  
+  /** Returns the number of blocks published in the current or last session. */
+  public long getPublishedBlocks() {
+    Tap t = tap;
+    return (t == null) ? 0L : t.getPublishedBlocks();
+  }
+  
+  /** Copies the selected channels into the ring on the audio threads. */
+  private static class Tap implements CoreAudioChannelListener {
+    private final Direction input;
+    private final Direction output;
+    
+    private Tap(MappedByteBuffer map, int numSlots, int dataOffset, int slotSize,
+        TapChannels inputChannels, TapChannels outputChannels) {
+      // a view of the whole file, to which both directions only make absolute stores
+      FloatBuffer data = map.asFloatBuffer();
+      input = new Direction(map, data, numSlots, dataOffset, slotSize, inputChannels,
+          INPUT_STAMP_OFFSET, INPUT_TIMESTAMP_OFFSET, INPUT_SEQUENCE_OFFSET);
+      output = new Direction(map, data, numSlots, dataOffset, slotSize, outputChannels,
+          OUTPUT_STAMP_OFFSET, OUTPUT_TIMESTAMP_OFFSET, OUTPUT_SEQUENCE_OFFSET);
+    }
+    
+    @Override
+    public void onCoreAudioInput(double timestamp, AudioChannels channels) {
+      if (input.channels.isSelected(channels)) input.publish(timestamp);
+    }
+    
+    @Override
+    public void onCoreAudioOutput(double timestamp, AudioChannels channels) {
+      if (output.channels.isSelected(channels)) output.publish(timestamp);
+    }
+    
+    /** Returns the number of blocks which both directions have written. */
+    private long getPublishedBlocks() {
+      long published = Long.MAX_VALUE;
+      if (input.channels.getNumChannels() > 0) published = input.sequence.get();
+      if (output.channels.getNumChannels() > 0) published = Math.min(published, output.sequence.get());
+      return (published == Long.MAX_VALUE) ? 0L : published;
+    }
+  }
+  
+  /** The input or the output half of each block, which only the callback of its direction writes. */
+  private static final class Direction {
+    private final MappedByteBuffer map;
+    private final FloatBuffer data;
+    private final int numSlots;
+    private final int dataOffset;
+    private final int slotSize;
+    private final TapChannels channels;
+    private final int stampOffset;
+    private final int timestampOffset;
+    private final int sequenceOffset;
+    
+    /** The stamp of the current block, which is set only to order the stores to the file. */
+    private final PaddedAtomicLong stamp;
+    
+    /** The number of blocks written, which is also set to order the stores to the file. */
+    private final PaddedAtomicLong sequence;
+    
+    private Direction(MappedByteBuffer map, FloatBuffer data, int numSlots, int dataOffset,
+        int slotSize, TapChannels channels, int stampOffset, int timestampOffset,
+        int sequenceOffset) {
+      this.map = map;
+      this.data = data;
+      this.numSlots = numSlots;
+      this.dataOffset = dataOffset;
+      this.slotSize = slotSize;
+      this.channels = channels;
+      this.stampOffset = stampOffset;
+      this.timestampOffset = timestampOffset;
+      this.sequenceOffset = sequenceOffset;
+      stamp = new PaddedAtomicLong();
+      sequence = new PaddedAtomicLong();
+    }
+    
+    private void publish(double timestamp) {
+      long n = sequence.get();
+      int slot = dataOffset + (int) (n % numSlots) * slotSize;
+      map.putLong(slot + stampOffset, 2L * n + 1L);
+      stamp.lazySet(2L * n + 1L); // the slot is marked before any of it is overwritten
+      channels.copy(data, (slot + SLOT_HEADER_SIZE) / 4);
+      map.putDouble(slot + timestampOffset, timestamp);
+      stamp.lazySet(2L * n + 2L); // and the block is written before it is marked as complete
+      map.putLong(slot + stampOffset, 2L * n + 2L);
+      sequence.lazySet(n + 1L); // and marked as complete before it is published
+      map.putLong(sequenceOffset, n + 1L);
+    }
+  }
+}
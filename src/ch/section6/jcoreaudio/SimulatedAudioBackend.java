@@ -0,0 +1,443 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ *
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <code>SimulatedAudioBackend</code> is a pure-Java {@link AudioBackend} which requires no audio
+ * hardware. Channel buffers are allocated as direct <code>ByteBuffer</code>s, and the audio
+ * callbacks are made from a high-priority thread which is clocked to the block period
+ * (<code>blockSize / sampleRate</code>). It is intended for load-testing and profiling
+ * <code>CoreAudioListener</code>s at real callback rates on machines without Core Audio.<br/>
+ * <br/>
+ * The simulated clock behaves like a hardware clock. If a callback returns so late that one or
+ * more block periods have passed, those blocks are skipped and the sample timestamp jumps ahead
+ * accordingly. The sample timestamp restarts at zero whenever playback is started.<br/>
+ * <br/>
+ * Devices are configured with {@link #addDevice(String, int[], int[])}. If no device has been
+ * added by the time the device list is first requested, a single device with one stereo input and
+ * one stereo output is made available. Each device has its own clock, whose rate may be offset
+ * with {@link #setClockDrift(int, double)} to test the aggregation of several devices.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class SimulatedAudioBackend extends AudioBackend {
+
+  /** The time before a deadline at which the clock thread stops sleeping and starts spinning. */
+  private static final long SPIN_NANOS = 200000L;
+
+  private final List<DeviceSpec> devices;
+
+  private float[] sampleRates;
+  private float currentSampleRate;
+  private int minimumBufferSize;
+  private int maximumBufferSize;
+  private int currentBufferSize;
+  private long jitterNanos;
+  private int threadPriority;
+
+  /** The currently initialized session. There is at most one. */
+  private Session session;
+  
+  /** The sessions of aggregated devices. */
+  private final List<Session> streams;
+  private long sessionCounter;
+  
+  /** The clock threads which have been told to stop, and are joined by awaitStopped(). */
+  private final List<Thread> stoppingThreads;
+
+  public SimulatedAudioBackend() {
+    devices = new ArrayList<DeviceSpec>();
+    streams = new ArrayList<Session>();
+    stoppingThreads = new ArrayList<Thread>();
+    sampleRates = new float[] {44100.0f, 48000.0f, 88200.0f, 96000.0f, 176400.0f, 192000.0f};
+    currentSampleRate = 44100.0f;
+    minimumBufferSize = 14;
+    maximumBufferSize = 4096;
+    currentBufferSize = 512;
+    jitterNanos = 0L;
+    threadPriority = Thread.MAX_PRIORITY;
+  }
+
+  /**
+   * Adds a simulated device.
+   * @param name  The name of the device.
+   * @param inputLayout  The number of channels of each input let, e.g. <code>{2, 2, 1}</code>
+   *     for two stereo lets and one mono let. May be <code>null</code> or empty.
+   * @param outputLayout  The number of channels of each output let. May be <code>null</code>
+   *     or empty.
+   * @return  The id of the new device.
+   */
+  public int addDevice(String name, int[] inputLayout, int[] outputLayout) {
+    int id;
+    synchronized (this) {
+      id = addSpec(name, inputLayout, outputLayout);
+    }
+    devicesChanged();
+    return id;
+  }
+  
+  private int addSpec(String name, int[] inputLayout, int[] outputLayout) {
+    int id = devices.size() + 1; // zero is reserved to indicate "no device"
+    devices.add(new DeviceSpec(id, name,
+        (inputLayout == null) ? new int[0] : inputLayout.clone(),
+        (outputLayout == null) ? new int[0] : outputLayout.clone()));
+    return id;
+  }
+
+  /** Sets the sample rates supported by all simulated devices, and the current sample rate. */
+  public void setSampleRates(float currentSampleRate, float... sampleRates) {
+    synchronized (this) {
+      this.currentSampleRate = currentSampleRate;
+      this.sampleRates = sampleRates.clone();
+    }
+    allDevicesChanged();
+  }
+
+  /** Sets the buffer size range and the current buffer size of all simulated devices. */
+  public void setBufferSizes(int currentBufferSize, int minimumBufferSize,
+      int maximumBufferSize) {
+    if (minimumBufferSize <= 0 || minimumBufferSize > maximumBufferSize) {
+      throw new IllegalArgumentException("The buffer size range is not valid: [" + minimumBufferSize +
+          ", " + maximumBufferSize + "]");
+    }
+    synchronized (this) {
+      this.currentBufferSize = currentBufferSize;
+      this.minimumBufferSize = minimumBufferSize;
+      this.maximumBufferSize = maximumBufferSize;
+    }
+    allDevicesChanged();
+  }
+  
+  /** Notifies the change of every device. The settings above apply to all of them alike. */
+  private void allDevicesChanged() {
+    int numDevices;
+    synchronized (this) {
+      numDevices = devices.size();
+    }
+    for (int id = 1; id <= numDevices; id++) {
+      deviceChanged(id);
+    }
+  }
+
+  /**
+   * Sets the maximum random delay of each callback relative to its ideal time. The delay is
+   * uniformly distributed and does not accumulate, i.e. the clock itself does not drift. Takes
+   * effect the next time playback is started.
+   */
+  public synchronized void setJitter(long jitterNanos) {
+    if (jitterNanos < 0L) {
+      throw new IllegalArgumentException("The jitter may not be negative: " + jitterNanos);
+    }
+    this.jitterNanos = jitterNanos;
+  }
+
+  /**
+   * Offsets the clock rate of a device from its nominal sample rate, e.g. by
+   * <code>50.0</code> for a clock which runs 50ppm fast. Takes effect when the device is next
+   * initialized.
+   */
+  public synchronized void setClockDrift(int deviceId, double ppm) {
+    if (deviceId <= 0 || deviceId > devices.size()) {
+      throw new IllegalArgumentException("No simulated device has the id " + deviceId + ".");
+    }
+    devices.get(deviceId - 1).driftPpm = ppm;
+  }
+
+  /** Sets the priority of the clock thread. The default is <code>Thread.MAX_PRIORITY</code>. */
+  public synchronized void setThreadPriority(int threadPriority) {
+    this.threadPriority = threadPriority;
+  }
+
+  @Override
+  protected synchronized void fillAudioDeviceList(List<AudioDevice> list) {
+    if (devices.isEmpty()) {
+      addSpec("Simulated Audio Device", new int[] {2}, new int[] {2});
+    }
+    for (DeviceSpec spec : devices) {
+      list.add(newAudioDevice(spec.id, spec.name, "JCoreAudio"));
+    }
+  }
+
+  @Override
+  protected synchronized void queryLetSet(AudioDevice device, boolean isInput, Set<AudioLet> set) {
+    int[] layout = getSpec(device).getLayout(isInput);
+    for (int i = 0, channelIndex = 0; i < layout.length; channelIndex += layout[i++]) {
+      set.add(newAudioLet(device, i, channelIndex,
+          (isInput ? "Input " : "Output ") + (i+1), isInput, layout[i]));
+    }
+  }
+
+  @Override
+  protected synchronized void queryAvailableSamplerates(AudioDevice device, int letIndex,
+      boolean isInput, Set<Float> set) {
+    for (float sampleRate : sampleRates) {
+      set.add(sampleRate);
+    }
+  }
+
+  @Override
+  protected synchronized int getCurrentBufferSize(AudioDevice device) {
+    return currentBufferSize;
+  }
+
+  @Override
+  protected synchronized int getMinimumBufferSize(AudioDevice device) {
+    return minimumBufferSize;
+  }
+
+  @Override
+  protected synchronized int getMaximumBufferSize(AudioDevice device) {
+    return maximumBufferSize;
+  }
+
+  @Override
+  protected synchronized float getCurrentSampleRate(AudioDevice device) {
+    return currentSampleRate;
+  }
+
+  @Override
+  protected synchronized long initialize(AudioLet[] inputLets, int numChannelsInput,
+      AudioDevice inputDevice, AudioLet[] outputLets, int numChannelsOutput, AudioDevice outputDevice,
+      int blockSize, float sampleRate) {
+    if (session != null) {
+      throw new IllegalStateException("The SimulatedAudioBackend is already initialized.");
+    }
+    for (AudioLet let : inputLets) {
+      for (int i = 0; i < let.numChannels; i++) {
+        setChannelBuffer(let, i, allocateChannelBuffer(blockSize));
+      }
+    }
+    for (AudioLet let : outputLets) {
+      for (int i = 0; i < let.numChannels; i++) {
+        setChannelBuffer(let, i, allocateChannelBuffer(blockSize));
+      }
+    }
+    DeviceSpec spec = getSpec((outputDevice != null) ? outputDevice : inputDevice);
+    session = new Session(++sessionCounter, false, numChannelsInput > 0, numChannelsOutput > 0,
+        blockSize, sampleRate * (1.0 + spec.driftPpm / 1000000.0));
+    return session.ptr;
+  }
+
+  @Override
+  protected synchronized long initializeStream(AudioLet[] inputLets, int numChannelsInput,
+      AudioLet[] outputLets, int numChannelsOutput, AudioDevice device, int blockSize,
+      float sampleRate) {
+    for (AudioLet let : inputLets) {
+      for (int i = 0; i < let.numChannels; i++) {
+        setChannelBuffer(let, i, allocateChannelBuffer(blockSize));
+      }
+    }
+    for (AudioLet let : outputLets) {
+      for (int i = 0; i < let.numChannels; i++) {
+        setChannelBuffer(let, i, allocateChannelBuffer(blockSize));
+      }
+    }
+    Session stream = new Session(++sessionCounter, true, numChannelsInput > 0, numChannelsOutput > 0,
+        blockSize, sampleRate * (1.0 + getSpec(device).driftPpm / 1000000.0));
+    streams.add(stream);
+    return stream.ptr;
+  }
+
+  @Override
+  protected synchronized void uninitialize(long ptr) {
+    Session s = getSession(ptr);
+    stop(s);
+    if (s == session) {
+      session = null;
+    } else {
+      streams.remove(s);
+    }
+  }
+
+  @Override
+  protected synchronized void play(boolean shouldPlay, long ptr) {
+    Session s = getSession(ptr);
+    if (shouldPlay) {
+      s.start(jitterNanos, threadPriority);
+    } else {
+      stop(s);
+    }
+  }
+  
+  /** Tells the clock thread of the session to stop. It is joined later, without holding any lock. */
+  private void stop(Session s) {
+    Thread thread = s.stop();
+    if (thread != null) stoppingThreads.add(thread);
+  }
+  
+  @Override
+  protected void awaitStopped() {
+    Thread[] threads;
+    synchronized (this) {
+      threads = stoppingThreads.toArray(new Thread[stoppingThreads.size()]);
+      stoppingThreads.clear();
+    }
+    for (Thread thread : threads) {
+      // a listener may stop playback from the clock thread itself
+      if (thread == Thread.currentThread()) continue;
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  private DeviceSpec getSpec(AudioDevice device) {
+    for (DeviceSpec spec : devices) {
+      if (spec.id == device.getId()) return spec;
+    }
+    throw new IllegalArgumentException("The AudioDevice " + device + " does not belong to this backend.");
+  }
+
+  private Session getSession(long ptr) {
+    if (session != null && session.ptr == ptr) return session;
+    for (Session stream : streams) {
+      if (stream.ptr == ptr) return stream;
+    }
+    throw new IllegalStateException("No session exists with the handle " + ptr + ".");
+  }
+
+  /** The configuration of a simulated device. */
+  private static class DeviceSpec {
+    private final int id;
+    private final String name;
+    private final int[] inputLayout;
+    private final int[] outputLayout;
+    private double driftPpm;
+
+    private DeviceSpec(int id, String name, int[] inputLayout, int[] outputLayout) {
+      this.id = id;
+      this.name = name;
+      this.inputLayout = inputLayout;
+      this.outputLayout = outputLayout;
+    }
+
+    private int[] getLayout(boolean isInput) {
+      return isInput ? inputLayout : outputLayout;
+    }
+  }
+
+  /** An initialized session and the clock thread which drives it. */
+  private static class Session implements Runnable {
+    private final long ptr;
+    private final boolean isStream;
+    private final boolean hasInput;
+    private final boolean hasOutput;
+    private final int blockSize;
+    private final double periodNanos;
+
+    private long jitterNanos;
+    
+    /** The clock thread, which runs for as long as it is this one. */
+    private volatile Thread thread;
+
+    /**
+     * @param clockRate  The true rate of the clock in Hz, which may differ from the nominal sample
+     *     rate.
+     */
+    private Session(long ptr, boolean isStream, boolean hasInput, boolean hasOutput, int blockSize,
+        double clockRate) {
+      this.ptr = ptr;
+      this.isStream = isStream;
+      this.hasInput = hasInput;
+      this.hasOutput = hasOutput;
+      this.blockSize = blockSize;
+      this.periodNanos = 1000000000.0 * blockSize / clockRate;
+    }
+
+    private void start(long jitterNanos, int priority) {
+      if (thread != null) return;
+      this.jitterNanos = jitterNanos;
+      Thread t = new Thread(this, "JCoreAudio Simulated Clock");
+      t.setDaemon(true);
+      t.setPriority(priority);
+      thread = t;
+      t.start();
+    }
+
+    /** Tells the clock thread to stop, without waiting for it. Returns it, or null if none ran. */
+    private Thread stop() {
+      Thread stopped = thread;
+      if (stopped == null) return null;
+      thread = null;
+      LockSupport.unpark(stopped);
+      return stopped;
+    }
+
+    @Override
+    public void run() {
+      final Thread self = Thread.currentThread();
+      final Random random = new Random();
+      final long startNanos = System.nanoTime();
+      long block = 0L;
+      double sampleTime = 0.0;
+      while (thread == self) {
+        long deadline = startNanos + (long) (block * periodNanos);
+        if (jitterNanos > 0L) {
+          deadline += (long) (random.nextDouble() * jitterNanos);
+        }
+        waitUntil(deadline, self);
+        if (thread != self) break;
+
+        try {
+          if (isStream) {
+            if (hasInput) fireOnStreamInput(ptr, sampleTime);
+            if (hasOutput) fireOnStreamOutput(ptr, sampleTime);
+          } else {
+            if (hasInput) fireOnCoreAudioInput(sampleTime);
+            if (hasOutput) fireOnCoreAudioOutput(sampleTime);
+          }
+        } catch (RuntimeException e) {
+          // as with Core Audio, an exception in the listener does not stop the callbacks
+          e.printStackTrace(System.err);
+        }
+        block++;
+        sampleTime += blockSize;
+
+        // if whole block periods have been missed, skip them as the hardware would
+        long lateNanos = System.nanoTime() - (startNanos + (long) (block * periodNanos));
+        if (lateNanos >= periodNanos) {
+          long skipped = (long) (lateNanos / periodNanos);
+          block += skipped;
+          sampleTime += skipped * blockSize;
+        }
+      }
+    }
+
+    /** Sleeps until shortly before the deadline, and then spins until it is reached. */
+    private void waitUntil(long deadline, Thread self) {
+      long remaining;
+      while (thread == self && (remaining = deadline - System.nanoTime()) > 0L) {
+        if (remaining > SPIN_NANOS) {
+          LockSupport.parkNanos(remaining - SPIN_NANOS);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,526 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package ch.section6.jcoreaudio;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <code>SpectrumAnalyser</code> computes the power spectra of every channel in one direction on a
+ * pool of worker threads, e.g. for live spectra and spectrograms. It is a tap, and is registered
+ * with {@link JCoreAudio#addTap(CoreAudioChannelListener)}:
+ * <pre>
+ * SpectrumAnalyser analyser = new SpectrumAnalyser(true, jca.getInputChannels().getNumChannels(),
+ *     jca.getBlockSize(), jca.getSampleRate(), 4096);
+ * jca.addTap(analyser);
+ * ...
+ * // on the UI thread
+ * float[] power = new float[analyser.getNumBins()];
+ * long frame = analyser.read(channel, power);
+ * </pre>
+ * The audio thread only copies each block into a history of each channel, and marks the channels
+ * which have a new frame of input. It neither waits nor allocates, and never runs a transform. The
+ * workers claim channels with new input, window the latest frame of each, transform it with their
+ * own {@link Fft} and publish the spectrum in a triple buffer. A worker which falls behind skips
+ * to the latest frame, so that the spectra stay current, and counts the frames which it skipped.
+ * Readers always get the latest complete spectrum, without waiting for the workers and without
+ * the workers waiting for them.<br/>
+ * <br/>
+ * Frames begin every <code>fftSize / overlap</code> samples. With a <code>decimation</code> of
+ * <i>D</i>, each channel is only analysed at every <i>D</i>th frame, staggered across the channels
+ * so that the load is even. This keeps the cost bounded at high channel counts.<br/>
+ * <br/>
+ * The spectra are scaled so that a sine of amplitude <i>A</i> has a power of <i>A</i>&sup2; in
+ * its bin, whatever the window.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public final class SpectrumAnalyser implements CoreAudioChannelListener {
+  
+  /** The window functions of the frames. */
+  public enum Window {
+    /** No window. The narrowest main lobe, but leakage of only -13dB. */
+    RECTANGULAR,
+    /** The Hann window. Sidelobes of -31dB which fall away quickly. */
+    HANN,
+    /** The Hamming window. Sidelobes of -43dB which fall away slowly. */
+    HAMMING,
+    /** The 4-term Blackman-Harris window. Sidelobes of -92dB, for a wide dynamic range. */
+    BLACKMAN_HARRIS;
+    
+    /** Returns the window of the given length, periodic so that overlapping frames sum evenly. */
+    float[] create(int length) {
+      float[] w = new float[length];
+      for (int n = 0; n < length; n++) {
+        double x = 2.0 * Math.PI * n / length;
+        switch (this) {
+          case HANN: w[n] = (float) (0.5 - 0.5 * Math.cos(x)); break;
+          case HAMMING: w[n] = (float) (0.54 - 0.46 * Math.cos(x)); break;
+          case BLACKMAN_HARRIS: w[n] = (float) (0.35875 - 0.48829 * Math.cos(x) +
+              0.14128 * Math.cos(2.0 * x) - 0.01168 * Math.cos(3.0 * x)); break;
+          default: w[n] = 1.0f; break;
+        }
+      }
+      return w;
+    }
+  }
+  
+  /** The number of frames of history kept for each channel, as a multiple of the FFT size. */
+  private static final int HISTORY_FRAMES = 4;
+  
+  /** How long an idle worker waits before checking for frames again. */
+  private static final long POLL_NANOS = 1000000L;
+  
+  private final boolean isInput;
+  private final int numChannels;
+  private final int blockSize;
+  private final float sampleRate;
+  private final int fftSize;
+  private final int hopSize;
+  private final int decimation;
+  private final Window window;
+  private final float[] coefficients;
+  
+  /** The scale of the power of each bin but DC and Nyquist, whose scale is a quarter of this. */
+  private final float scale;
+  
+  private final Channel[] channels;
+  private final Thread[] workers;
+  private final Analysis analysis;
+  private volatile boolean isOpen;
+  
+  /** The number of frames which the audio thread has written to the histories. */
+  private volatile long written;
+  
+  private final AtomicLong analysedFrames;
+  private final AtomicLong skippedFrames;
+  private final AtomicLong analysisNanos;
+  
+  /**
+   * Creates an analyser with Hann windows which overlap by half, and one worker thread for each
+   * processor but one.
+   * @param isInput  If the analyser analyses the input channels, otherwise the output channels.
+   * @param fftSize  The number of samples in each frame, a power of two.
+   */
+  public SpectrumAnalyser(boolean isInput, int numChannels, int blockSize, float sampleRate,
+      int fftSize) {
+    this(isInput, numChannels, blockSize, sampleRate, fftSize, 2, Window.HANN, 1,
+        Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+  }
+  
+  /**
+   * @param isInput  If the analyser analyses the input channels, otherwise the output channels.
+   * @param fftSize  The number of samples in each frame, a power of two of at least four.
+   * @param overlap  The number of frames which overlap each sample, a power of two of at most
+   *     <code>fftSize</code>.
+   * @param window  The window function of the frames.
+   * @param decimation  Each channel is analysed at every <code>decimation</code>th frame.
+   * @param numThreads  The number of worker threads. If zero, the frames are analysed in the
+   *     callback, e.g. for offline rendering.
+   */
+  public SpectrumAnalyser(boolean isInput, int numChannels, int blockSize, float sampleRate,
+      int fftSize, int overlap, Window window, int decimation, int numThreads) {
+    if (numChannels <= 0 || blockSize <= 0 || sampleRate <= 0.0f) {
+      throw new IllegalArgumentException("The number of channels, block size and sample rate must be positive.");
+    }
+    if (fftSize < 4 || Integer.bitCount(fftSize) != 1) {
+      throw new IllegalArgumentException("The FFT size must be a power of two of at least four: " + fftSize);
+    }
+    if (overlap <= 0 || overlap > fftSize || Integer.bitCount(overlap) != 1) {
+      throw new IllegalArgumentException("The overlap must be a power of two of at most the FFT size: " + overlap);
+    }
+    if (decimation <= 0) {
+      throw new IllegalArgumentException("The decimation must be positive: " + decimation);
+    }
+    if (numThreads < 0) {
+      throw new IllegalArgumentException("The number of threads may not be negative.");
+    }
+    this.isInput = isInput;
+    this.numChannels = numChannels;
+    this.blockSize = blockSize;
+    this.sampleRate = sampleRate;
+    this.fftSize = fftSize;
+    this.hopSize = fftSize / overlap;
+    this.decimation = decimation;
+    this.window = window;
+    this.coefficients = window.create(fftSize);
+    double sum = 0.0;
+    for (float w : coefficients) sum += w;
+    this.scale = (float) (4.0 / (sum * sum));
+    
+    // whole blocks, so that each block is copied into the history in one piece
+    int historySize = blockSize * ((HISTORY_FRAMES * fftSize + blockSize - 1) / blockSize + 1);
+    channels = new Channel[numChannels];
+    for (int c = 0; c < numChannels; c++) {
+      channels[c] = new Channel(historySize, fftSize / 2 + 1);
+    }
+    analysedFrames = new AtomicLong();
+    skippedFrames = new AtomicLong();
+    analysisNanos = new AtomicLong();
+    analysis = (numThreads == 0) ? new Analysis() : null;
+    
+    isOpen = true;
+    workers = new Thread[numThreads];
+    for (int i = 0; i < numThreads; i++) {
+      workers[i] = new Thread(new Worker(i), "JCoreAudio Spectrum " + i);
+      workers[i].setDaemon(true);
+      workers[i].start();
+    }
+  }
+  
+  public boolean isInput() {
+    return isInput;
+  }
+  
+  public int getNumChannels() {
+    return numChannels;
+  }
+  
+  public int getBlockSize() {
+    return blockSize;
+  }
+  
+  public float getSampleRate() {
+    return sampleRate;
+  }
+  
+  public int getFftSize() {
+    return fftSize;
+  }
+  
+  /** Returns the number of samples between the beginnings of consecutive frames. */
+  public int getHopSize() {
+    return hopSize;
+  }
+  
+  public int getDecimation() {
+    return decimation;
+  }
+  
+  public Window getWindow() {
+    return window;
+  }
+  
+  /** Returns the number of bins of each spectrum, from DC to Nyquist. */
+  public int getNumBins() {
+    return fftSize / 2 + 1;
+  }
+  
+  /** Returns the centre frequency of the given bin, in Hz. */
+  public float getFrequency(int bin) {
+    return bin * sampleRate / fftSize;
+  }
+  
+  /** Returns the number of worker threads. */
+  public int getNumThreads() {
+    return workers.length;
+  }
+  
+  /** Returns the number of frames which have been analysed, of all channels. */
+  public long getAnalysedFrames() {
+    return analysedFrames.get();
+  }
+  
+  /**
+   * Returns the number of frames which were not analysed, because the workers had fallen behind
+   * and had skipped to a later frame, or because the input had been overwritten meanwhile.
+   */
+  public long getSkippedFrames() {
+    return skippedFrames.get();
+  }
+  
+  /** Returns the total time spent analysing frames, in nanoseconds, of all threads. */
+  public long getAnalysisNanos() {
+    return analysisNanos.get();
+  }
+  
+  /** Stops the worker threads. The analyser may no longer be used. */
+  public void close() {
+    if (!isOpen) return;
+    isOpen = false;
+    for (Thread worker : workers) {
+      LockSupport.unpark(worker);
+      try {
+        worker.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+  
+  
+  // ------ Audio Thread ------
+  
+  @Override
+  public void onCoreAudioInput(double timestamp, AudioChannels inputs) {
+    if (isInput) process(inputs);
+  }
+  
+  @Override
+  public void onCoreAudioOutput(double timestamp, AudioChannels outputs) {
+    if (!isInput) process(outputs);
+  }
+  
+  /**
+   * Copies one block of the given channels into the histories, and hands the frames which are now
+   * complete to the workers. Called on the audio thread, by <code>JCoreAudio</code> if the
+   * analyser is registered as a tap. Channels beyond those of the analyser are ignored, and
+   * missing ones are analysed as silence.
+   */
+  public void process(AudioChannels inputs) {
+    long frame = written;
+    int offset = (int) (frame % channels[0].history.length);
+    int available = Math.min(numChannels, inputs.getNumChannels());
+    for (int c = 0; c < numChannels; c++) {
+      float[] history = channels[c].history;
+      if (c < available) {
+        inputs.read(c, history, offset);
+      } else {
+        for (int i = offset; i < offset + blockSize; i++) history[i] = 0.0f;
+      }
+    }
+    long end = frame + blockSize;
+    written = end; // publishes the block
+    
+    // the last frame which ends within the block
+    long last = end - end % hopSize;
+    if (last <= frame || last < fftSize) return;
+    long hop = last / hopSize;
+    boolean isSubmitted = false;
+    for (int c = 0; c < numChannels; c++) {
+      // the latest frame of this channel, with the channels staggered over the decimation
+      long h = hop - (int) ((hop + c) % decimation);
+      long frameEnd = h * hopSize;
+      if (frameEnd > frame && frameEnd >= fftSize) {
+        channels[c].submitted = frameEnd;
+        isSubmitted = true;
+      }
+    }
+    if (!isSubmitted) return;
+    if (workers.length == 0) {
+      for (int c = 0; c < numChannels; c++) {
+        analysis.run(channels[c]);
+      }
+    } else {
+      for (int i = 0; i < workers.length; i++) {
+        LockSupport.unpark(workers[i]);
+      }
+    }
+  }
+  
+  
+  // ------ Readers ------
+  
+  /**
+   * Copies the latest power spectrum of the given channel into the array, which must have at
+   * least {@link #getNumBins()} elements. It never waits for the workers. Readers of the same
+   * channel are synchronised among themselves.
+   * @return  The frame at which the spectrum ends, counted in samples since the analyser was
+   *     created, or -1 if no spectrum has been published yet, in which case the array is not
+   *     modified.
+   */
+  public long read(int channel, float[] power) {
+    if (power.length < fftSize / 2 + 1) {
+      throw new IllegalArgumentException("The array has " + power.length + " elements, but there " +
+          "are " + (fftSize / 2 + 1) + " bins.");
+    }
+    return channels[channel].result.read(power);
+  }
+  
+  /**
+   * Returns the frame at which the latest published spectrum of the given channel ends, or -1 if
+   * there is none, e.g. to check whether a new one is available without copying it.
+   */
+  public long getLatestFrame(int channel) {
+    return channels[channel].result.getLatestFrame();
+  }
+  
+  
+  // ------ Workers ------
+  
+  /** The input history and results of one channel. */
+  private final class Channel {
+    /** The input, written by the audio thread one block at a time. */
+    final float[] history;
+    
+    /** The end of the latest frame which has been handed to the workers. */
+    volatile long submitted;
+    
+    /** The end of the latest frame which has been analysed or skipped. Only used by its claimant. */
+    long completed;
+    
+    final AtomicBoolean isClaimed;
+    final TripleBuffer result;
+    
+    Channel(int historySize, int numBins) {
+      history = new float[historySize];
+      isClaimed = new AtomicBoolean();
+      result = new TripleBuffer(numBins);
+    }
+  }
+  
+  /** The transform and buffers with which a thread analyses frames. Each thread has its own. */
+  private final class Analysis {
+    final Fft fft;
+    final float[] frame;
+    final float[] re;
+    final float[] im;
+    
+    Analysis() {
+      fft = new Fft(fftSize);
+      frame = new float[fftSize];
+      re = new float[fftSize / 2 + 1];
+      im = new float[fftSize / 2 + 1];
+    }
+    
+    /** Analyses the latest submitted frame of the channel, if it has not been analysed yet. */
+    void run(Channel channel) {
+      long end = channel.submitted;
+      if (end <= channel.completed) return;
+      long startNanos = System.nanoTime();
+      long skipped = (channel.completed == 0L) ? 0L :
+          (end - channel.completed) / ((long) hopSize * decimation) - 1L;
+      channel.completed = end;
+      
+      float[] history = channel.history;
+      int length = history.length;
+      int offset = (int) ((end - fftSize) % length);
+      int first = Math.min(fftSize, length - offset);
+      System.arraycopy(history, offset, frame, 0, first);
+      System.arraycopy(history, 0, frame, first, fftSize - first);
+      if (written + blockSize > end - fftSize + length) {
+        // the audio thread may have overwritten the frame while it was being copied
+        skippedFrames.addAndGet(skipped + 1L);
+        return;
+      }
+      for (int n = 0; n < fftSize; n++) {
+        frame[n] *= coefficients[n];
+      }
+      fft.forward(frame, re, im);
+      
+      float[] power = channel.result.getBackBuffer();
+      int half = fftSize / 2;
+      for (int k = 0; k <= half; k++) {
+        power[k] = (re[k] * re[k] + im[k] * im[k]) * scale;
+      }
+      power[0] *= 0.25f;
+      power[half] *= 0.25f;
+      channel.result.publish(end);
+      
+      if (skipped > 0L) skippedFrames.addAndGet(skipped);
+      analysedFrames.incrementAndGet();
+      analysisNanos.addAndGet(System.nanoTime() - startNanos);
+    }
+  }
+  
+  /** Analyses the channels with new frames, beginning each scan where the previous one ended. */
+  private final class Worker implements Runnable {
+    private final Analysis analysis;
+    private int next;
+    
+    Worker(int index) {
+      analysis = new Analysis();
+      next = index * numChannels / Math.max(1, workers.length);
+    }
+    
+    @Override
+    public void run() {
+      while (isOpen) {
+        boolean isIdle = true;
+        for (int i = 0; i < numChannels; i++) {
+          Channel channel = channels[next];
+          next = (next + 1 == numChannels) ? 0 : next + 1;
+          if (channel.submitted > channel.completed && channel.isClaimed.compareAndSet(false, true)) {
+            try {
+              analysis.run(channel);
+            } finally {
+              channel.isClaimed.set(false);
+            }
+            isIdle = false;
+          }
+        }
+        if (isIdle) LockSupport.parkNanos(POLL_NANOS);
+      }
+    }
+  }
+  
+  /**
+   * A triple buffer of spectra, with one writer at a time and any number of readers. The writer
+   * fills the back buffer and swaps it with the middle one. A reader with a new spectrum waiting
+   * swaps the middle buffer with the front one, and copies the front one. Neither side ever waits
+   * for the other; readers only synchronise among themselves.
+   */
+  private static final class TripleBuffer {
+    /** Set in the state when the middle buffer holds a spectrum which has not been read. */
+    private static final int FRESH = 4;
+    
+    private final float[][] buffers;
+    private final long[] frames;
+    
+    /** The index of the middle buffer, and <code>FRESH</code>. */
+    private final AtomicInteger state;
+    
+    /** The index of the back buffer. Only used by the writer. */
+    private int back;
+    
+    /** The index of the front buffer. Only used by readers, which hold the lock. */
+    private int front;
+    
+    TripleBuffer(int length) {
+      buffers = new float[3][length];
+      frames = new long[] {-1L, -1L, -1L};
+      state = new AtomicInteger(1);
+      back = 0;
+      front = 2;
+    }
+    
+    float[] getBackBuffer() {
+      return buffers[back];
+    }
+    
+    /** Publishes the back buffer, which holds the spectrum of the frame which ends at the given frame. */
+    void publish(long frame) {
+      frames[back] = frame;
+      back = state.getAndSet(back | FRESH) & ~FRESH;
+    }
+    
+    synchronized long read(float[] power) {
+      if ((state.get() & FRESH) != 0) {
+        front = state.getAndSet(front) & ~FRESH;
+      }
+      long frame = frames[front];
+      if (frame >= 0L) {
+        System.arraycopy(buffers[front], 0, power, 0, buffers[front].length);
+      }
+      return frame;
+    }
+    
+    synchronized long getLatestFrame() {
+      if ((state.get() & FRESH) != 0) {
+        front = state.getAndSet(front) & ~FRESH;
+      }
+      return frames[front];
+    }
+  }
+}
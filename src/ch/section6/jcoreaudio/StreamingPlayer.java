@@ -0,0 +1,533 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <code>StreamingPlayer</code> plays WAV files from disk into output channels without the audio
+ * thread ever touching the disk. Each file is a {@link Stream} whose channels are played into
+ * consecutive output channels.<br/>
+ * <br/>
+ * A background thread reads the files through memory-mapped windows, converts the samples to
+ * floats, and keeps a {@link FloatRingBuffer} of each stream filled with a configurable window of
+ * audio ahead of the play position. On the audio thread, {@link #render(AudioChannels)} only copies
+ * one block from each ring into the output channels. A block which has not been read in time is
+ * played as silence and counted as a prefetch miss, and the stream then skips ahead so that all
+ * streams stay in sync.<br/>
+ * <br/>
+ * {@link #seek(long)} may be called from any thread. The rings are flushed and then primed from the
+ * new position before playback resumes, during which the player renders silence. Seeking is
+ * coordinated with the audio thread without locks, and so completes only while
+ * {@link #render(AudioChannels)} is being called.
+ * <pre>
+ * StreamingPlayer player = new StreamingPlayer();
+ * player.addStream(new File("drums.wav"), 0);
+ * player.addStream(new File("bass.wav"), 2);
+ * player.open();
+ * player.start();
+ * // in CoreAudioChannelListener.onCoreAudioOutput()
+ * player.render(outputs);
+ * </pre>
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class StreamingPlayer {
+  
+  /** The default amount of audio which is read ahead of the play position. */
+  public static final double DEFAULT_PREFETCH_SECONDS = 2.0;
+  
+  /** The size of the regions of each file which are mapped at a time. */
+  private static final int MAP_SIZE = 16 << 20;
+  
+  /** The maximum number of frames which are read from a file at a time. */
+  private static final int CHUNK_FRAMES = 8192;
+  
+  /** The time for which the prefetch thread sleeps when all rings are full. */
+  private static final long POLL_NANOS = 2000000L;
+  
+  private final List<Stream> streams;
+  private Stream[] streamArray;
+  private double prefetchSeconds;
+  private Thread prefetchThread;
+  private volatile boolean isOpen;
+  private volatile boolean isPlaying;
+  private volatile IOException error;
+  
+  // the seek protocol. Each seek increments the requested generation. The prefetch thread stops
+  // writing to the rings and acknowledges it, the audio thread then empties the rings and
+  // acknowledges it, and the prefetch thread refills them from the new position and marks the
+  // generation as primed, after which the audio thread plays again.
+  private volatile long seekFrame;
+  private volatile int requestedGeneration;
+  private volatile int producerGeneration;
+  private volatile int consumerGeneration;
+  private volatile int primedGeneration;
+  
+  /** The frame of the files which will be played next. Written only by the audio thread. */
+  private final AtomicLong position;
+  
+  public StreamingPlayer() {
+    streams = new ArrayList<Stream>();
+    streamArray = new Stream[0];
+    prefetchSeconds = DEFAULT_PREFETCH_SECONDS;
+    position = new AtomicLong();
+    primedGeneration = -1;
+  }
+  
+  /**
+   * Adds a stream which plays the given WAV file. The sample rate of the file is not converted.
+   * @param file  The file to play.
+   * @param firstOutputChannel  The output channel to which the first channel of the file is
+   *     played. Further channels are played to the following output channels.
+   * @throws IllegalStateException  If the player is open.
+   */
+  public synchronized Stream addStream(File file, int firstOutputChannel) throws IOException {
+    if (isOpen) {
+      throw new IllegalStateException("Streams may not be added while the player is open.");
+    }
+    if (firstOutputChannel < 0) {
+      throw new IllegalArgumentException("The output channel may not be negative: " + firstOutputChannel);
+    }
+    Stream stream = new Stream(file, firstOutputChannel);
+    streams.add(stream);
+    return stream;
+  }
+  
+  /** Returns the streams of the player, in the order in which they were added. */
+  public synchronized List<Stream> getStreams() {
+    return new ArrayList<Stream>(streams);
+  }
+  
+  /**
+   * Sets the amount of audio which is read ahead of the play position. The default is
+   * {@link #DEFAULT_PREFETCH_SECONDS}. Takes effect when the player is next opened.
+   */
+  public synchronized void setPrefetchSeconds(double prefetchSeconds) {
+    if (prefetchSeconds <= 0.0) {
+      throw new IllegalArgumentException("The prefetch window must be positive: " + prefetchSeconds);
+    }
+    this.prefetchSeconds = prefetchSeconds;
+  }
+  
+  /**
+   * Allocates the prefetch buffers and starts reading from the beginning of the files. The player
+   * is initially stopped.
+   */
+  public synchronized void open() throws IOException {
+    if (isOpen) return;
+    if (streams.isEmpty()) {
+      throw new IllegalStateException("At least one stream must be added before opening the player.");
+    }
+    int maxChannels = 0;
+    for (Stream stream : streams) {
+      stream.open(prefetchSeconds);
+      maxChannels = Math.max(maxChannels, stream.numChannels);
+    }
+    streamArray = streams.toArray(new Stream[streams.size()]);
+    error = null;
+    seekFrame = 0L;
+    position.set(0L);
+    requestedGeneration = producerGeneration = consumerGeneration = 0;
+    primedGeneration = -1;
+    isOpen = true;
+    prefetchThread = new Thread(new Prefetcher(new float[maxChannels][CHUNK_FRAMES]),
+        "JCoreAudio Prefetch");
+    prefetchThread.setDaemon(true);
+    prefetchThread.start();
+  }
+  
+  /**
+   * Stops the prefetch thread and closes the files. {@link #render(AudioChannels)} must no longer be
+   * called once this method has been called.
+   */
+  public synchronized void close() throws IOException {
+    if (!isOpen) return;
+    isOpen = false;
+    isPlaying = false;
+    LockSupport.unpark(prefetchThread);
+    try {
+      prefetchThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    prefetchThread = null;
+    IOException firstError = null;
+    for (Stream stream : streams) {
+      try {
+        stream.close();
+      } catch (IOException e) {
+        if (firstError == null) firstError = e;
+      }
+    }
+    if (firstError != null) throw firstError;
+  }
+  
+  /** Starts playback from the current position. */
+  public void start() {
+    isPlaying = true;
+  }
+  
+  /** Stops playback at the current position. Stopped streams render silence. */
+  public void stop() {
+    isPlaying = false;
+  }
+  
+  public boolean isPlaying() {
+    return isPlaying;
+  }
+  
+  /**
+   * Moves the play position of all streams to the given frame. Playback continues from there as
+   * soon as the prefetch buffers have been primed.
+   */
+  public synchronized void seek(long frame) {
+    if (frame < 0L) {
+      throw new IllegalArgumentException("The frame may not be negative: " + frame);
+    }
+    seekFrame = frame;
+    requestedGeneration = requestedGeneration + 1;
+    LockSupport.unpark(prefetchThread);
+  }
+  
+  /** Indicates if the last seek has completed and the prefetch buffers have been primed. */
+  public boolean isPrimed() {
+    return primedGeneration == requestedGeneration && consumerGeneration == requestedGeneration;
+  }
+  
+  /** Returns the frame of the files which will be played next. */
+  public long getPosition() {
+    return position.get();
+  }
+  
+  /** Returns the error which stopped the prefetch thread, or <code>null</code> if none has occurred. */
+  public IOException getError() {
+    return error;
+  }
+  
+  /**
+   * Renders one block of every stream into its output channels. Output channels without a stream
+   * are not modified, and a stream with channels beyond the last output channel is not played. This
+   * method must be called from the audio thread, e.g. from
+   * <code>CoreAudioChannelListener.onCoreAudioOutput()</code>. It does not allocate or block.
+   */
+  public void render(AudioChannels outputs) {
+    int blockSize = outputs.getBlockSize();
+    Stream[] streams = streamArray;
+    int requested = requestedGeneration;
+    if (consumerGeneration != requested) {
+      if (producerGeneration == requested) {
+        // the prefetch thread has stopped filling the rings, so they can now be emptied
+        for (Stream stream : streams) {
+          stream.ring.skip(stream.ring.getCapacity());
+          stream.skipDebt = 0L;
+        }
+        position.lazySet(seekFrame);
+        consumerGeneration = requested;
+      }
+      renderSilence(streams, outputs);
+      return;
+    }
+    if (!isPlaying || primedGeneration != requested) {
+      renderSilence(streams, outputs);
+      return;
+    }
+    
+    for (Stream stream : streams) {
+      stream.render(outputs, blockSize);
+    }
+    position.lazySet(position.get() + blockSize);
+  }
+  
+  private static void renderSilence(Stream[] streams, AudioChannels outputs) {
+    for (Stream stream : streams) {
+      int end = stream.firstOutputChannel + stream.numChannels;
+      if (end > outputs.getNumChannels()) continue;
+      for (int c = stream.firstOutputChannel; c < end; c++) {
+        FloatBuffer buffer = outputs.getFloatBuffer(c);
+        for (int i = 0; i < outputs.getBlockSize(); i++) {
+          buffer.put(i, 0.0f);
+        }
+      }
+    }
+  }
+  
+  /** A file which is played by a <code>StreamingPlayer</code>. */
+  public static class Stream {
+    private final File file;
+    private final int firstOutputChannel;
+    private final int numChannels;
+    private final float sampleRate;
+    private final long numFrames;
+    private final long dataOffset;
+    private final int bytesPerSample;
+    private final boolean isFloat;
+    private final int frameSize;
+    
+    // prefetch thread state
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private MappedByteBuffer map;
+    private long mapFirstFrame;
+    private long mapNumFrames;
+    private long readFrame;
+    private volatile boolean isExhausted;
+    
+    // audio thread state
+    private FloatRingBuffer ring;
+    private final FloatBuffer[] targets;
+    private AudioChannels targetsOutputs;
+    private long skipDebt;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    
+    private Stream(File file, int firstOutputChannel) throws IOException {
+      WaveFileReader reader = new WaveFileReader(file);
+      try {
+        this.numChannels = reader.getNumChannels();
+        this.sampleRate = reader.getSampleRate();
+        this.numFrames = reader.getNumFrames();
+        this.dataOffset = reader.getDataOffset();
+        this.bytesPerSample = reader.getBytesPerSample();
+        this.isFloat = reader.isFloat();
+      } finally {
+        reader.close();
+      }
+      this.file = file;
+      this.firstOutputChannel = firstOutputChannel;
+      this.frameSize = bytesPerSample * numChannels;
+      this.targets = new FloatBuffer[numChannels];
+      this.hits = new AtomicLong();
+      this.misses = new AtomicLong();
+    }
+    
+    public File getFile() {
+      return file;
+    }
+    
+    public int getNumChannels() {
+      return numChannels;
+    }
+    
+    public float getSampleRate() {
+      return sampleRate;
+    }
+    
+    /** Returns the length of the file in frames. */
+    public long getNumFrames() {
+      return numFrames;
+    }
+    
+    public int getFirstOutputChannel() {
+      return firstOutputChannel;
+    }
+    
+    /** Returns the number of blocks which were played from the prefetch buffer. */
+    public long getPrefetchHits() {
+      return hits.get();
+    }
+    
+    /** Returns the number of blocks which were played as silence because they had not been read in time. */
+    public long getPrefetchMisses() {
+      return misses.get();
+    }
+    
+    private void open(double prefetchSeconds) throws IOException {
+      int frames = (int) Math.min(1 << 28, Math.max(2 * CHUNK_FRAMES, (long) (prefetchSeconds * sampleRate)));
+      ring = new FloatRingBuffer(numChannels, frames);
+      raf = new RandomAccessFile(file, "r");
+      channel = raf.getChannel();
+      map = null;
+      readFrame = 0L;
+      isExhausted = (numFrames == 0L);
+      skipDebt = 0L;
+      targetsOutputs = null;
+      hits.set(0L);
+      misses.set(0L);
+    }
+    
+    private void close() throws IOException {
+      map = null;
+      if (raf != null) {
+        raf.close();
+        raf = null;
+      }
+    }
+    
+    // ------ Prefetch thread ------
+    
+    private void seek(long frame) {
+      readFrame = Math.min(frame, numFrames);
+      isExhausted = (readFrame == numFrames);
+    }
+    
+    /** Reads up to the given number of frames into the arrays. Returns the number of frames read. */
+    private int read(float[][] scratch, int length) throws IOException {
+      int n = (int) Math.min(length, numFrames - readFrame);
+      if (n <= 0) return 0;
+      if (map == null || readFrame < mapFirstFrame || readFrame >= mapFirstFrame + mapNumFrames) {
+        mapFirstFrame = readFrame;
+        mapNumFrames = Math.min(numFrames - readFrame, Math.max(1, MAP_SIZE / frameSize));
+        map = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + mapFirstFrame * frameSize,
+            mapNumFrames * frameSize);
+        map.order(ByteOrder.LITTLE_ENDIAN);
+      }
+      n = (int) Math.min(n, mapFirstFrame + mapNumFrames - readFrame);
+      int index = (int) (readFrame - mapFirstFrame) * frameSize;
+      for (int i = 0; i < n; i++) {
+        for (int c = 0; c < numChannels; c++, index += bytesPerSample) {
+          scratch[c][i] = decode(index);
+        }
+      }
+      readFrame += n;
+      return n;
+    }
+    
+    private float decode(int index) {
+      switch (bytesPerSample) {
+        case 2: return map.getShort(index) / 32768.0f;
+        case 3: {
+          int s = (map.get(index) & 0xFF) | ((map.get(index + 1) & 0xFF) << 8) | (map.get(index + 2) << 16);
+          return s / 8388608.0f;
+        }
+        default:
+        case 4: return isFloat ? map.getFloat(index) : map.getInt(index) / 2147483648.0f;
+      }
+    }
+    
+    // ------ Audio thread ------
+    
+    private void render(AudioChannels outputs, int blockSize) {
+      if (targetsOutputs != outputs) {
+        boolean fits = (firstOutputChannel + numChannels <= outputs.getNumChannels());
+        for (int c = 0; c < numChannels; c++) {
+          targets[c] = fits ? outputs.getFloatBuffer(firstOutputChannel + c) : null;
+        }
+        targetsOutputs = outputs;
+      }
+      if (targets[0] == null) {
+        ring.skip(blockSize);
+        return;
+      }
+      
+      // if the end of the file has been read, then all of it is in the ring
+      boolean isEnded = isExhausted;
+      if (skipDebt > 0L) {
+        skipDebt -= ring.skip((int) Math.min(skipDebt, Integer.MAX_VALUE));
+        if (isEnded) skipDebt = 0L;
+      }
+      int available = ring.availableToRead();
+      if (available >= blockSize && skipDebt == 0L) {
+        ring.read(targets, blockSize);
+        hits.lazySet(hits.get() + 1L);
+      } else if (isEnded) {
+        // the end of the file: play what is left, followed by silence
+        if (available > 0) ring.read(targets, available);
+        for (int c = 0; c < numChannels; c++) {
+          for (int i = available; i < blockSize; i++) {
+            targets[c].put(i, 0.0f);
+          }
+        }
+      } else {
+        for (int c = 0; c < numChannels; c++) {
+          for (int i = 0; i < blockSize; i++) {
+            targets[c].put(i, 0.0f);
+          }
+        }
+        skipDebt += blockSize;
+        misses.lazySet(misses.get() + 1L);
+      }
+    }
+  }
+  
+  /** Keeps the rings of all streams filled on a background thread. */
+  private class Prefetcher implements Runnable {
+    private final float[][] scratch;
+    
+    private Prefetcher(float[][] scratch) {
+      this.scratch = scratch;
+    }
+    
+    @Override
+    public void run() {
+      int positionedGeneration = 0;
+      try {
+        while (isOpen) {
+          int requested = requestedGeneration;
+          if (producerGeneration != requested) {
+            producerGeneration = requested; // no more writes until the audio thread has caught up
+          }
+          if (consumerGeneration != requested) {
+            LockSupport.parkNanos(POLL_NANOS);
+            continue;
+          }
+          if (positionedGeneration != requested) {
+            long frame = seekFrame;
+            for (Stream stream : streamArray) {
+              stream.seek(frame);
+            }
+            positionedGeneration = requested;
+          }
+          
+          boolean isPrimed = true;
+          boolean didRead = false;
+          for (Stream stream : streamArray) {
+            FloatRingBuffer ring = stream.ring;
+            int free = ring.availableToWrite();
+            // read in large chunks, unless the end of the file is near
+            int n = Math.min(free, CHUNK_FRAMES);
+            if (n == CHUNK_FRAMES || (n > 0 && stream.numFrames - stream.readFrame <= n)) {
+              n = stream.read(scratch, n);
+              if (n > 0) {
+                ring.write(scratch, 0, n);
+                didRead = true;
+              }
+              if (stream.readFrame == stream.numFrames) stream.isExhausted = true;
+            }
+            if (!stream.isExhausted && ring.getCapacity() - ring.availableToWrite() < ring.getCapacity() / 4) {
+              isPrimed = false;
+            }
+          }
+          if (isPrimed && primedGeneration != requested) {
+            primedGeneration = requested;
+          }
+          if (!didRead) {
+            LockSupport.parkNanos(POLL_NANOS);
+          }
+        }
+      } catch (IOException e) {
+        error = e;
+        System.err.println("WARNING (JCoreAudio): The streaming player has stopped reading because " +
+            "of an error. The streams will play silence. " + e);
+      }
+    }
+  }
+}
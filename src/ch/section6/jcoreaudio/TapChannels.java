@@ -0,0 +1,108 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ * 
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The channels of either the input or the output lets of a tap, and where each is copied to in a
+ * block of the tap. The input and output callbacks may be made on different threads, so a tap
+ * keeps one instance, and the rest of its state, per direction, and only uses each from the
+ * callback of its direction. The samples are copied with absolute indices, so the positions and
+ * limits of the buffers are never changed.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+final class TapChannels {
+  
+  private final AudioChannels channels;
+  private final FloatBuffer[] sources;
+  
+  /** The index of each channel within a block of the tap. */
+  private final int[] offsets;
+  
+  private final int blockSize;
+  
+  /**
+   * @param lets  All lets of the tap, in the order in which they were added.
+   * @param isInput  If the input lets are selected, otherwise the output lets.
+   * @param channels  The current input or output channels of <code>JCoreAudio</code>.
+   * @param isPacked  If the selected channels follow each other in a block of the tap, otherwise
+   *     each is in its place among the channels of all lets.
+   * @throws IllegalStateException  If a let is not one of the current lets.
+   */
+  TapChannels(List<AudioLet> lets, boolean isInput, AudioChannels channels, int blockSize,
+      boolean isPacked) {
+    this.channels = channels;
+    this.blockSize = blockSize;
+    List<FloatBuffer> sourceList = new ArrayList<FloatBuffer>();
+    List<Integer> offsetList = new ArrayList<Integer>();
+    int k = 0;
+    for (AudioLet let : lets) {
+      if (let.isInput != isInput) {
+        if (!isPacked) k += let.numChannels;
+        continue;
+      }
+      int first = indexOf(channels, let);
+      for (int j = 0; j < let.numChannels; j++, k++) {
+        sourceList.add(channels.getFloatBuffer(first + j));
+        offsetList.add(k * blockSize);
+      }
+    }
+    sources = sourceList.toArray(new FloatBuffer[sourceList.size()]);
+    offsets = new int[offsetList.size()];
+    for (int i = 0; i < offsets.length; i++) {
+      offsets[i] = offsetList.get(i);
+    }
+  }
+  
+  private static int indexOf(AudioChannels channels, AudioLet let) {
+    for (int i = 0; i < channels.getNumChannels(); i++) {
+      if (channels.getLet(i) == let) return i;
+    }
+    throw new IllegalStateException("The let " + let + " is not one of the current lets.");
+  }
+  
+  int getNumChannels() {
+    return sources.length;
+  }
+  
+  /**
+   * Indicates if channels are selected from those of the current callback. After a
+   * reinitialisation, the buffers which were selected are no longer in use.
+   */
+  boolean isSelected(AudioChannels channels) {
+    return channels == this.channels && sources.length > 0;
+  }
+  
+  /** Copies the block of each channel into the destination, whose block begins at the given index. */
+  void copy(FloatBuffer destination, int index) {
+    for (int i = 0; i < sources.length; i++) {
+      FloatBuffer source = sources[i];
+      int offset = index + offsets[i];
+      for (int j = 0; j < blockSize; j++) {
+        destination.put(offset + j, source.get(j));
+      }
+    }
+  }
+}
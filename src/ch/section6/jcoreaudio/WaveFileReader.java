@@ -0,0 +1,240 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ *
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <code>WaveFileReader</code> reads multichannel audio from a WAV file. 16, 24 and 32-bit integer
+ * PCM and 32-bit float samples are supported, and are converted to floats in the range [-1, 1].
+ * RF64 files, whose sizes are given in a <code>ds64</code> chunk, are read in the same way.
+ * The file is read through a large direct buffer so that the file system sees few, large reads.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class WaveFileReader implements Closeable {
+
+  static final int WAVE_FORMAT_PCM = 1;
+  static final int WAVE_FORMAT_EXTENSIBLE = 0xFFFE;
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final ByteBuffer buffer;
+  private final int numChannels;
+  private final float sampleRate;
+  private final int bytesPerSample;
+  private final boolean isFloat;
+  private final long dataOffset;
+  private final long numFrames;
+  private long framePosition;
+  
+  /** The number of bytes of sample data which have not yet been read into the buffer. */
+  private long unbufferedBytes;
+
+  public WaveFileReader(File file) throws IOException {
+    this(file, WaveFileWriter.DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * @param bufferSize  The size of the read buffer in bytes. It is rounded down to a whole
+   *     number of frames.
+   */
+  public WaveFileReader(File file, int bufferSize) throws IOException {
+    this.file = new RandomAccessFile(file, "r");
+    this.channel = this.file.getChannel();
+    try {
+      ByteBuffer chunk = ByteBuffer.allocate(40).order(ByteOrder.LITTLE_ENDIAN);
+      readFully(chunk, 12);
+      boolean isRF64 = (chunk.getInt(0) == fourCC("RF64"));
+      if ((chunk.getInt(0) != fourCC("RIFF") && !isRF64) || chunk.getInt(8) != fourCC("WAVE")) {
+        throw new IOException(file + " is not a WAV file.");
+      }
+
+      // walk the chunks until the data chunk is found
+      int format = 0, channels = 0, bits = 0;
+      float rate = 0.0f;
+      long dataSize = -1L;
+      long ds64DataSize = -1L;
+      while (dataSize < 0L) {
+        readFully(chunk, 8);
+        int id = chunk.getInt(0);
+        long size = chunk.getInt(4) & 0xFFFFFFFFL;
+        if (id == fourCC("ds64") && isRF64 && size >= 16) {
+          readFully(chunk, 16);
+          ds64DataSize = chunk.getLong(8);
+          channel.position(channel.position() + size - 16 + (size & 1));
+        } else if (id == fourCC("fmt ")) {
+          readFully(chunk, (int) Math.min(size, chunk.capacity()));
+          format = chunk.getShort(0) & 0xFFFF;
+          channels = chunk.getShort(2) & 0xFFFF;
+          rate = chunk.getInt(4);
+          bits = chunk.getShort(14) & 0xFFFF;
+          if (format == WAVE_FORMAT_EXTENSIBLE && size >= 26) {
+            format = chunk.getShort(24) & 0xFFFF; // the first two bytes of the sub-format GUID
+          }
+          channel.position(channel.position() + size - Math.min(size, chunk.capacity()) + (size & 1));
+        } else if (id == fourCC("data")) {
+          dataSize = (isRF64 && size == 0xFFFFFFFFL && ds64DataSize >= 0L) ? ds64DataSize : size;
+        } else {
+          channel.position(channel.position() + size + (size & 1)); // chunks are word aligned
+        }
+      }
+      if (channels == 0) {
+        throw new IOException(file + " has no fmt chunk before its data chunk.");
+      }
+      if (!(format == WAVE_FORMAT_PCM && (bits == 16 || bits == 24 || bits == 32)) &&
+          !(format == WaveFileWriter.WAVE_FORMAT_IEEE_FLOAT && bits == 32)) {
+        throw new IOException("Unsupported WAV format " + format + " with " + bits + " bits per sample.");
+      }
+      this.numChannels = channels;
+      this.sampleRate = rate;
+      this.bytesPerSample = bits / 8;
+      this.isFloat = (format == WaveFileWriter.WAVE_FORMAT_IEEE_FLOAT);
+      this.dataOffset = channel.position();
+      int frameSize = bytesPerSample * numChannels;
+      this.numFrames = Math.min(dataSize, channel.size() - dataOffset) / frameSize;
+      this.buffer = ByteBuffer.allocateDirect(Math.max(frameSize, bufferSize - (bufferSize % frameSize)))
+          .order(ByteOrder.LITTLE_ENDIAN);
+      this.buffer.limit(0);
+      this.unbufferedBytes = numFrames * frameSize;
+    } catch (IOException e) {
+      this.file.close();
+      throw e;
+    }
+  }
+
+  private void readFully(ByteBuffer b, int length) throws IOException {
+    b.clear().limit(length);
+    while (b.hasRemaining()) {
+      if (channel.read(b) < 0) throw new EOFException();
+    }
+  }
+
+  private static int fourCC(String s) {
+    return (s.charAt(0)) | (s.charAt(1) << 8) | (s.charAt(2) << 16) | (s.charAt(3) << 24);
+  }
+
+  public int getNumChannels() {
+    return numChannels;
+  }
+
+  public float getSampleRate() {
+    return sampleRate;
+  }
+
+  /** Returns the total number of frames in the file. */
+  public long getNumFrames() {
+    return numFrames;
+  }
+
+  /** Returns the offset of the first sample in the file, in bytes. */
+  long getDataOffset() {
+    return dataOffset;
+  }
+  
+  /** Returns the number of bytes per sample, i.e. 2, 3 or 4. */
+  int getBytesPerSample() {
+    return bytesPerSample;
+  }
+  
+  /** Indicates if the samples are 32-bit floats rather than integers. */
+  boolean isFloat() {
+    return isFloat;
+  }
+  
+  /** Returns the index of the next frame to be read. */
+  public long getFramePosition() {
+    return framePosition;
+  }
+
+  /** Moves the read position to the given frame. */
+  public void seek(long frame) throws IOException {
+    framePosition = Math.max(0L, Math.min(frame, numFrames));
+    channel.position(dataOffset + framePosition * bytesPerSample * numChannels);
+    unbufferedBytes = (numFrames - framePosition) * bytesPerSample * numChannels;
+    buffer.limit(0);
+  }
+
+  /**
+   * Reads frames into the given channel buffers. Samples are written with absolute indices from
+   * zero, so the positions of the buffers are neither used nor changed. Channels of the file
+   * without a buffer are skipped, and buffers without a channel in the file, as well as any frames
+   * beyond the end of the file, are filled with silence.
+   * @param channels  One buffer per channel. Entries may be <code>null</code>.
+   * @param length  The number of frames to read into each buffer.
+   * @return  The number of frames read from the file, which is less than <code>length</code>
+   *     only at the end of the file.
+   */
+  public int read(FloatBuffer[] channels, int length) throws IOException {
+    int numRead = (int) Math.min(length, numFrames - framePosition);
+    for (int i = 0; i < numRead; i++) {
+      if (!buffer.hasRemaining()) fill();
+      for (int j = 0; j < numChannels; j++) {
+        float f = readSample();
+        if (j < channels.length && channels[j] != null) channels[j].put(i, f);
+      }
+    }
+    for (int j = 0; j < channels.length; j++) {
+      FloatBuffer b = channels[j];
+      if (b == null) continue;
+      for (int i = (j < numChannels) ? numRead : 0; i < length; i++) {
+        b.put(i, 0.0f);
+      }
+    }
+    framePosition += numRead;
+    return numRead;
+  }
+
+  private void fill() throws IOException {
+    buffer.clear();
+    if (unbufferedBytes < buffer.capacity()) buffer.limit((int) unbufferedBytes);
+    unbufferedBytes -= buffer.remaining();
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) throw new EOFException();
+    }
+    buffer.flip();
+  }
+
+  private float readSample() {
+    switch (bytesPerSample) {
+      case 2: return buffer.getShort() / 32768.0f;
+      case 3: {
+        int s = (buffer.get() & 0xFF) | ((buffer.get() & 0xFF) << 8) | (buffer.get() << 16);
+        return s / 8388608.0f;
+      }
+      default:
+      case 4: return isFloat ? buffer.getFloat() : buffer.getInt() / 2147483648.0f;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+}
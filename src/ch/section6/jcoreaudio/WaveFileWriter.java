@@ -0,0 +1,260 @@
+/*
+ *  Copyright 2012 Martin Roth
+ *                 mhroth@gmail.com
+ *
+ *  This file is part of JCoreAudio.
+ *
+ *  JCoreAudio is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JCoreAudio is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with JCoreAudio.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ch.section6.jcoreaudio;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <code>WaveFileWriter</code> writes multichannel 32-bit float audio to a WAV file
+ * (<code>WAVE_FORMAT_IEEE_FLOAT</code>), or to a headerless file of interleaved little-endian
+ * floats. Samples are interleaved into a large direct buffer which is written to the
+ * <code>FileChannel</code> only when it is full, so that the file system sees few, large writes.
+ * The header is completed when the writer is closed.<br/>
+ * <br/>
+ * The header reserves space for an RF64 <code>ds64</code> chunk in a <code>JUNK</code> chunk. If
+ * more than 4GB of samples are written, the file is converted to RF64 (EBU Tech 3306) when it is
+ * closed, so that recordings of any length remain readable. Otherwise it is a plain WAV file, and
+ * readers skip the <code>JUNK</code> chunk.<br/>
+ * <br/>
+ * For long recordings, the file can be extended ahead of the write position in large steps with
+ * {@link #setExtentSize(long)}, so that the file system does not need to grow the file on every
+ * write. The unused part of the last extent is truncated when the file is closed.
+ * @author Martin Roth (mhroth@gmail.com)
+ */
+public class WaveFileWriter implements Closeable {
+
+  /** The default size of the write buffer in bytes. */
+  public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+  static final int WAVE_FORMAT_IEEE_FLOAT = 3;
+
+  /** The size of the header written by {@link #writeHeader(ByteBuffer, int, float, long)}. */
+  static final int HEADER_SIZE = 94;
+  
+  /** The size of the payload of the <code>ds64</code> chunk, without a chunk size table. */
+  private static final int DS64_SIZE = 28;
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final ByteBuffer buffer;
+  private final int numChannels;
+  private final float sampleRate;
+  private final boolean isRaw;
+  private long numFrames;
+  private long extentSize;
+  
+  /** The current length of the file, including any extents which have not yet been written. */
+  private long allocatedLength;
+
+  /** Creates a WAV file with the given channel count and sample rate. */
+  public WaveFileWriter(File file, int numChannels, float sampleRate) throws IOException {
+    this(file, numChannels, sampleRate, false, DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * @param file  The file to write. It is truncated if it already exists.
+   * @param isRaw  If <code>true</code>, no header is written and the file contains only
+   *     interleaved little-endian floats.
+   * @param bufferSize  The size of the write buffer in bytes. It is rounded down to a whole
+   *     number of frames.
+   */
+  public WaveFileWriter(File file, int numChannels, float sampleRate, boolean isRaw, int bufferSize)
+      throws IOException {
+    if (numChannels <= 0) {
+      throw new IllegalArgumentException("The number of channels must be positive: " + numChannels);
+    }
+    int frameSize = 4 * numChannels;
+    if (bufferSize < frameSize) {
+      throw new IllegalArgumentException("The buffer must hold at least one frame: " + bufferSize);
+    }
+    this.numChannels = numChannels;
+    this.sampleRate = sampleRate;
+    this.isRaw = isRaw;
+    this.buffer = ByteBuffer.allocateDirect(bufferSize - (bufferSize % frameSize))
+        .order(ByteOrder.LITTLE_ENDIAN);
+    this.file = new RandomAccessFile(file, "rw");
+    this.file.setLength(0L);
+    this.channel = this.file.getChannel();
+    if (!isRaw) {
+      // reserve space for the header, which is written when the file is closed
+      channel.position(HEADER_SIZE);
+    }
+  }
+
+  public int getNumChannels() {
+    return numChannels;
+  }
+
+  public float getSampleRate() {
+    return sampleRate;
+  }
+
+  /** Returns the number of frames written so far. */
+  public long getNumFrames() {
+    return numFrames;
+  }
+
+  /**
+   * Extends the file in steps of the given size ahead of the write position. This reserves space
+   * for long recordings in a few large allocations rather than many small ones. Whether the space
+   * is allocated immediately or sparsely depends on the file system. Zero, the default, disables
+   * extents.
+   */
+  public void setExtentSize(long extentSize) {
+    if (extentSize < 0L) {
+      throw new IllegalArgumentException("The extent size may not be negative: " + extentSize);
+    }
+    this.extentSize = extentSize;
+  }
+  
+  /**
+   * Appends frames from the given channel buffers. Samples are read with absolute indices from
+   * zero, so the positions of the buffers are neither used nor changed.
+   * @param channels  One buffer per channel. Missing (<code>null</code>) channels are written
+   *     as silence.
+   * @param length  The number of frames to write from each buffer.
+   */
+  public void write(FloatBuffer[] channels, int length) throws IOException {
+    for (int i = 0; i < length; i++) {
+      if (buffer.remaining() < 4 * numChannels) flush();
+      for (int j = 0; j < numChannels; j++) {
+        FloatBuffer b = (j < channels.length) ? channels[j] : null;
+        buffer.putFloat((b == null) ? 0.0f : b.get(i));
+      }
+    }
+    numFrames += length;
+  }
+
+  /** Appends interleaved frames from the given array. */
+  public void write(float[] interleaved, int offset, int numFrames) throws IOException {
+    for (int i = offset, end = offset + numFrames * numChannels; i < end; i++) {
+      if (!buffer.hasRemaining()) flush();
+      buffer.putFloat(interleaved[i]);
+    }
+    this.numFrames += numFrames;
+  }
+
+  /**
+   * Appends frames from the given arrays, one per channel.
+   * @param channels  One array per channel. There must be at least as many arrays as channels.
+   * @param offset  The index of the first frame in each array.
+   * @param numFrames  The number of frames to write.
+   */
+  public void write(float[][] channels, int offset, int numFrames) throws IOException {
+    for (int i = offset, end = offset + numFrames; i < end; i++) {
+      if (buffer.remaining() < 4 * numChannels) flush();
+      for (int j = 0; j < numChannels; j++) {
+        buffer.putFloat(channels[j][i]);
+      }
+    }
+    this.numFrames += numFrames;
+  }
+  
+  /** Writes all buffered samples to the file. */
+  public void flush() throws IOException {
+    if (extentSize > 0L) {
+      long end = channel.position() + buffer.position();
+      if (end > allocatedLength) {
+        allocatedLength = ((end + extentSize - 1) / extentSize) * extentSize;
+        file.setLength(allocatedLength);
+      }
+    }
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  /** Flushes all buffered samples, completes the header and closes the file. */
+  @Override
+  public void close() throws IOException {
+    if (!channel.isOpen()) return;
+    try {
+      flush();
+      if (allocatedLength > channel.position()) {
+        channel.truncate(channel.position());
+      }
+      if (!isRaw) {
+        // the write buffer may be smaller than the header
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        writeHeader(header, numChannels, sampleRate, numFrames);
+        header.flip();
+        while (header.hasRemaining()) {
+          channel.write(header, header.position());
+        }
+      }
+    } finally {
+      file.close();
+    }
+  }
+
+  /**
+   * Writes a float WAV header of {@link #HEADER_SIZE} bytes into the given buffer. If the sample
+   * data do not fit into a RIFF file, an RF64 header is written instead.
+   */
+  static void writeHeader(ByteBuffer header, int numChannels, float sampleRate, long numFrames) {
+    long dataSize = 4L * numChannels * numFrames;
+    long riffSize = HEADER_SIZE - 8 + dataSize;
+    boolean isRF64 = riffSize > 0xFFFFFFFFL;
+    header.order(ByteOrder.LITTLE_ENDIAN);
+    if (isRF64) {
+      header.put((byte) 'R').put((byte) 'F').put((byte) '6').put((byte) '4');
+      header.putInt(-1);
+    } else {
+      header.put((byte) 'R').put((byte) 'I').put((byte) 'F').put((byte) 'F');
+      header.putInt((int) riffSize);
+    }
+    header.put((byte) 'W').put((byte) 'A').put((byte) 'V').put((byte) 'E');
+    if (isRF64) {
+      header.put((byte) 'd').put((byte) 's').put((byte) '6').put((byte) '4');
+    } else {
+      header.put((byte) 'J').put((byte) 'U').put((byte) 'N').put((byte) 'K');
+    }
+    header.putInt(DS64_SIZE);
+    header.putLong(isRF64 ? riffSize : 0L);
+    header.putLong(isRF64 ? dataSize : 0L);
+    header.putLong(isRF64 ? numFrames : 0L);
+    header.putInt(0); // no table of other chunk sizes
+    header.put((byte) 'f').put((byte) 'm').put((byte) 't').put((byte) ' ');
+    header.putInt(18);
+    header.putShort((short) WAVE_FORMAT_IEEE_FLOAT);
+    header.putShort((short) numChannels);
+    header.putInt((int) sampleRate);
+    header.putInt((int) sampleRate * 4 * numChannels); // byte rate
+    header.putShort((short) (4 * numChannels)); // block align
+    header.putShort((short) 32); // bits per sample
+    header.putShort((short) 0); // extension size
+    header.put((byte) 'f').put((byte) 'a').put((byte) 'c').put((byte) 't');
+    header.putInt(4);
+    header.putInt(isRF64 ? -1 : (int) Math.min(0xFFFFFFFFL, numFrames));
+    header.put((byte) 'd').put((byte) 'a').put((byte) 't').put((byte) 'a');
+    header.putInt(isRF64 ? -1 : (int) dataSize);
+  }
+}